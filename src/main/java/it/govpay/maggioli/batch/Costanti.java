@@ -11,6 +11,9 @@ public class Costanti {
 	// Nome job Maggioli JPPA notification
 	public static final String MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME = "maggioliJppaNotificationJob";
 
+	// Nome job di reinvio delle notifiche in JPPA_NOTIFICHE_DLQ
+	public static final String MAGGIOLI_JPPA_REDRIVE_JOB_NAME = "maggioliJppaRedriveJob";
+
 	// Esiti notifica
 	public static final String ESITO_ERRORE_INVIO = "ERRORE_INVIO";
 
@@ -18,6 +21,7 @@ public class Costanti {
 	public static final String P_EMAIL_ALLEGATO = "EMAIL_ALLEGATO";
 	public static final String P_EMAIL_INDIRIZZO = "EMAIL_INDIRIZZO";
 	public static final String P_EMAIL_SUBJECT = "EMAIL_SUBJECT";
+	public static final String P_MODALITA_REPORT = "MODALITA_REPORT";
 	public static final String DEFAULT_EMAIL_OGGETTO = "Report notifiche pagamento JPPA";
 	public static final String DEFAULT_EMAIL_TESTO = "In allegato il report delle notifiche di pagamento.";
 
@@ -0,0 +1,166 @@
+package it.govpay.maggioli.batch.config;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.step.StepExecution;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.dto.AdaptiveScheduleInfo;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Schedulazione del job di notifica con intervallo adattato all'esito delle esecuzioni precedenti,
+ * al posto dell'intervallo fisso di {@link ScheduledJobRunner}:
+ * <ul>
+ * <li>l'intervallo si dimezza se al termine restano ricevute da notificare o se l'esecuzione e' durata
+ * piu' di meta' dell'intervallo (gli arrivi si accumulano piu' velocemente di quanto vengono smaltiti)</li>
+ * <li>raddoppia dopo un numero configurato di esecuzioni consecutive senza notifiche</li>
+ * <li>resta invariato negli altri casi</li>
+ * </ul>
+ * sempre entro i limiti minimo e massimo configurati.
+ */
+@Component
+@Profile("default")
+@ConditionalOnProperty(prefix = "govpay.batch.adaptive-scheduling", name = "enabled", havingValue = "true")
+@Slf4j
+public class AdaptiveJobScheduler implements SchedulingConfigurer {
+
+    static final String METRIC_INTERVALLO = "govpay.maggioli.scheduling.interval";
+
+    private static final String WORKER_STEP_NAME = "sendNotificationWorkerStep";
+    private static final List<Integer> ESITI_DA_NOTIFICARE = List.of(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO, Costanti.RPT_ESITO_PAGAMENTO_PARZIALMENTE_ESEGUITO);
+
+    private final ScheduledJobRunner scheduledJobRunner;
+    private final RptRepository rptRepository;
+    private final BatchProperties batchProperties;
+    private final ZoneId applicationZoneId;
+    private final long ritardoIniziale;
+    private final Clock clock;
+
+    private final AtomicLong intervallo = new AtomicLong();
+    private volatile int esecuzioniVuoteConsecutive = 0;
+    private volatile String motivo = "intervallo iniziale";
+    private volatile Instant ultimaEsecuzione;
+    private volatile Instant prossimaEsecuzione;
+
+    public AdaptiveJobScheduler(ScheduledJobRunner scheduledJobRunner, RptRepository rptRepository, BatchProperties batchProperties,
+                                ZoneId applicationZoneId, MeterRegistry meterRegistry,
+                                @Value("${scheduler.maggioliJppaNotificationJob.fixedDelayString:600000}") long intervalloIniziale,
+                                @Value("${scheduler.initialDelayString:1}") long ritardoIniziale) {
+        this(scheduledJobRunner, rptRepository, batchProperties, applicationZoneId, meterRegistry, intervalloIniziale, ritardoIniziale, Clock.systemUTC());
+    }
+
+    AdaptiveJobScheduler(ScheduledJobRunner scheduledJobRunner, RptRepository rptRepository, BatchProperties batchProperties,
+                         ZoneId applicationZoneId, MeterRegistry meterRegistry, long intervalloIniziale, long ritardoIniziale, Clock clock) {
+        this.scheduledJobRunner = scheduledJobRunner;
+        this.rptRepository = rptRepository;
+        this.batchProperties = batchProperties;
+        this.applicationZoneId = applicationZoneId;
+        this.ritardoIniziale = ritardoIniziale;
+        this.clock = clock;
+        this.intervallo.set(limita(intervalloIniziale));
+        meterRegistry.gauge(METRIC_INTERVALLO, intervallo, v -> v.get() / 1000.0);
+    }
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+        taskRegistrar.addTriggerTask(this::esegui, triggerContext -> {
+            Instant ultimoCompletamento = triggerContext.lastCompletion();
+            prossimaEsecuzione = ultimoCompletamento == null
+                    ? clock.instant().plusMillis(ritardoIniziale)
+                    : ultimoCompletamento.plusMillis(intervallo.get());
+            return prossimaEsecuzione;
+        });
+    }
+
+    void esegui() {
+        Instant inizio = clock.instant();
+        try {
+            JobExecution execution = scheduledJobRunner.eseguiJob();
+            if (execution == null) {
+                // Job in esecuzione altrove: nessuna informazione sul carico
+                return;
+            }
+            ultimaEsecuzione = inizio;
+            adatta(notificheInviate(execution), Duration.between(inizio, clock.instant()),
+                    rptRepository.countDaNotificareDominiAbilitati(ESITI_DA_NOTIFICARE));
+        } catch (Exception e) {
+            log.error("Errore nell'esecuzione schedulata del job {}: {}", Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Calcola l'intervallo fino alla prossima esecuzione dall'esito di quella appena conclusa
+     */
+    void adatta(long notificheInviate, Duration durata, long ricevuteArretrate) {
+        long corrente = intervallo.get();
+        long nuovo = corrente;
+        if (ricevuteArretrate > 0) {
+            esecuzioniVuoteConsecutive = 0;
+            nuovo = limita(corrente / 2);
+            motivo = ricevuteArretrate + " ricevute ancora da notificare";
+        } else if (durata.toMillis() > corrente / 2) {
+            esecuzioniVuoteConsecutive = 0;
+            nuovo = limita(corrente / 2);
+            motivo = "esecuzione di " + durata.toSeconds() + " s, oltre meta' dell'intervallo";
+        } else if (notificheInviate == 0) {
+            esecuzioniVuoteConsecutive++;
+            if (esecuzioniVuoteConsecutive >= batchProperties.getAdaptiveScheduling().getEsecuzioniVuote()) {
+                esecuzioniVuoteConsecutive = 0;
+                nuovo = limita(corrente * 2);
+                motivo = batchProperties.getAdaptiveScheduling().getEsecuzioniVuote() + " esecuzioni consecutive senza notifiche";
+            }
+        } else {
+            esecuzioniVuoteConsecutive = 0;
+            motivo = notificheInviate + " notifiche inviate senza arretrato";
+        }
+        intervallo.set(nuovo);
+        if (nuovo != corrente) {
+            log.info("Intervallo di schedulazione del job {} da {} a {} ms: {}", Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME, corrente, nuovo, motivo);
+        }
+    }
+
+    public long getIntervalloMillis() {
+        return intervallo.get();
+    }
+
+    public AdaptiveScheduleInfo getInfo() {
+        BatchProperties.AdaptiveScheduling config = batchProperties.getAdaptiveScheduling();
+        return AdaptiveScheduleInfo.builder()
+            .modalita("ADATTIVA")
+            .intervalloMillis(intervallo.get())
+            .intervalloMinimoMillis(config.getIntervalloMinimoMillis())
+            .intervalloMassimoMillis(config.getIntervalloMassimoMillis())
+            .ultimaEsecuzione(ultimaEsecuzione != null ? ultimaEsecuzione.atZone(applicationZoneId).toOffsetDateTime() : null)
+            .prossimaEsecuzione(prossimaEsecuzione != null ? prossimaEsecuzione.atZone(applicationZoneId).toOffsetDateTime() : null)
+            .motivo(motivo)
+            .esecuzioniVuoteConsecutive(esecuzioniVuoteConsecutive)
+            .build();
+    }
+
+    private long limita(long millis) {
+        BatchProperties.AdaptiveScheduling config = batchProperties.getAdaptiveScheduling();
+        return Math.clamp(millis, config.getIntervalloMinimoMillis(), Math.max(config.getIntervalloMinimoMillis(), config.getIntervalloMassimoMillis()));
+    }
+
+    private static long notificheInviate(JobExecution execution) {
+        return execution.getStepExecutions().stream()
+                .filter(se -> se.getStepName().startsWith(WORKER_STEP_NAME))
+                .mapToLong(StepExecution::getWriteCount)
+                .sum();
+    }
+}
@@ -1,17 +1,27 @@
 package it.govpay.maggioli.batch.config;
 
+import it.govpay.maggioli.batch.Costanti;
 import it.govpay.maggioli.batch.dto.DominioProcessingContext;
 import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch;
-import it.govpay.maggioli.batch.entity.RPT;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.listener.BatchExecutionRecapListener;
+import it.govpay.maggioli.batch.listener.EmptyPartitionPruningListener;
 import it.govpay.maggioli.batch.partitioner.DominioPartitioner;
+import it.govpay.maggioli.batch.partitioner.WeightedFairPartitionHandler;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.ConnectionPoolGovernor;
+import it.govpay.maggioli.batch.service.ReportAggregator;
 import it.govpay.maggioli.batch.step2.MaggioliJppaHeadersProcessor;
 import it.govpay.maggioli.batch.step2.MaggioliJppaHeadersWriter;
 import it.govpay.maggioli.batch.step2.MaggioliJppaHeadersReader;
+import it.govpay.maggioli.batch.step3.AdaptiveChunkCompletionPolicy;
+import it.govpay.maggioli.batch.step3.DominioHeadersAcquisitionListener;
 import it.govpay.maggioli.batch.step3.SendNotificationProcessor;
 import it.govpay.maggioli.batch.step3.SendNotificationReader;
 import it.govpay.maggioli.batch.step3.SendNotificationWriter;
 import it.govpay.maggioli.batch.tasklet.CleanupJppaNotificheTasklet;
+import it.govpay.maggioli.batch.tasklet.RedriveDlqTasklet;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 import java.text.MessageFormat;
@@ -22,8 +32,14 @@ import org.springframework.batch.core.job.Job;
 import org.springframework.batch.core.step.Step;
 import org.springframework.batch.core.job.builder.JobBuilder;
 import org.springframework.batch.core.job.parameters.RunIdIncrementer;
+import org.springframework.batch.core.listener.ChunkListener;
+import org.springframework.batch.core.listener.SkipListener;
+import org.springframework.batch.core.listener.StepExecutionListener;
 import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.step.builder.FaultTolerantStepBuilder;
+import org.springframework.batch.core.step.builder.PartitionStepBuilder;
 import org.springframework.batch.core.step.builder.StepBuilder;
+import org.springframework.batch.infrastructure.support.transaction.ResourcelessTransactionManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.task.SimpleAsyncTaskExecutor;
@@ -82,17 +98,35 @@ public class BatchJobConfiguration {
 
     /**
      * Main Maggioli JPPA Notification Job with 2 steps
+     * In streaming mode headers are acquired by each partition of step 3, so step 2 is not executed
      */
     @Bean
     public Job maggioliJppaNotificationJob(
         Step cleanupStep,
         Step maggioliHeadersAcquisitionStep,
         Step maggioliSendNotificationStep,
-        BatchExecutionRecapListener batchExecutionRecapListener
+        BatchExecutionRecapListener batchExecutionRecapListener,
+        EmptyPartitionPruningListener emptyPartitionPruningListener,
+        ConfigurazioneRunService configurazioneRunService,
+        ReportAggregator reportAggregator
     ) {
+        if (batchProperties.getStreaming().isEnabled()) {
+            return new JobBuilder("maggioliJppaNotificationJob", jobRepository)
+                .incrementer(new RunIdIncrementer())
+                .listener(configurazioneRunService)
+                .listener(batchExecutionRecapListener)
+                .listener(emptyPartitionPruningListener)
+                .listener(reportAggregator)
+                .start(cleanupStep)
+                .next(maggioliSendNotificationStep)
+                .build();
+        }
         return new JobBuilder("maggioliJppaNotificationJob", jobRepository)
             .incrementer(new RunIdIncrementer())
+            .listener(configurazioneRunService)
             .listener(batchExecutionRecapListener)
+            .listener(emptyPartitionPruningListener)
+            .listener(reportAggregator)
             .start(cleanupStep)
             .next(maggioliHeadersAcquisitionStep)
             .next(maggioliSendNotificationStep)
@@ -101,11 +135,13 @@ public class BatchJobConfiguration {
 
     /**
      * Step 1: Cleanup JPPA_NOTIFICHE table
+     * TRUNCATE commits implicitly on Oracle and MySQL: with staging.truncate the step holds no transaction
+     * and the TRUNCATE runs in its own
      */
     @Bean
     public Step cleanupStep(CleanupJppaNotificheTasklet cleanupJppaNotificheTasklet) {
         return new StepBuilder("cleanupStep", jobRepository)
-            .tasklet(cleanupJppaNotificheTasklet, transactionManager)
+            .tasklet(cleanupJppaNotificheTasklet, batchProperties.getStaging().isTruncate() ? new ResourcelessTransactionManager() : transactionManager)
             .build();
     }
 
@@ -117,10 +153,11 @@ public class BatchJobConfiguration {
         MaggioliJppaHeadersReader maggioliHeadersReader,
         MaggioliJppaHeadersProcessor maggioliHeadersProcessor,
         MaggioliJppaHeadersWriter maggioliHeadersWriter,
-        SimpleAsyncTaskExecutor taskExecutor
+        SimpleAsyncTaskExecutor taskExecutor,
+        ConnectionPoolGovernor connectionPoolGovernor
     ) {
         return new StepBuilder("maggioliHeadersAcquisitionStep", jobRepository)
-            .<DominioProcessingContext, MaggioliHeadersBatch>chunk(batchProperties.getChunkSize(), transactionManager)
+            .<DominioProcessingContext, MaggioliHeadersBatch>chunk(batchProperties.getHeadersChunkSize(), connectionPoolGovernor.governa(transactionManager))
             .reader(maggioliHeadersReader)
             .processor(maggioliHeadersProcessor)
             .writer(maggioliHeadersWriter)
@@ -162,15 +199,24 @@ public class BatchJobConfiguration {
 
     /**
      * Step 3: Send Notification to Maggioli JPPA (PARTITIONED by domain)
+     * With scheduling enabled partitions share the threads by weighted fair queuing on SLA class
      */
     @Bean
     public Step maggioliSendNotificationStep(
         DominioPartitioner dominioPartitioner,
         Step maggioliSendNotificationWorkerStep,
-        SimpleAsyncTaskExecutor taskExecutor
+        SimpleAsyncTaskExecutor taskExecutor,
+        MeterRegistry meterRegistry
     ) {
-        return new StepBuilder("maggioliSendNotificationStep", jobRepository)
-            .partitioner("sendNotificationWorkerStep", dominioPartitioner)
+        PartitionStepBuilder partitionStepBuilder = new StepBuilder("maggioliSendNotificationStep", jobRepository)
+            .partitioner("sendNotificationWorkerStep", dominioPartitioner);
+        if (batchProperties.getScheduling().isEnabled()) {
+            return partitionStepBuilder
+                .partitionHandler(new WeightedFairPartitionHandler(maggioliSendNotificationWorkerStep, taskExecutor,
+                    batchProperties.getThreadPoolSize(), batchProperties.getScheduling(), meterRegistry))
+                .build();
+        }
+        return partitionStepBuilder
             .step(maggioliSendNotificationWorkerStep)
             .gridSize(batchProperties.getThreadPoolSize()) // Numero di partizioni parallele
             .taskExecutor(taskExecutor)
@@ -179,6 +225,10 @@ public class BatchJobConfiguration {
 
     /**
      * Worker step for Step 3: processes all receipt of a single domain
+     * With chunk tuning enabled the commit interval is set at runtime by AdaptiveChunkCompletionPolicy
+     * With short transactions enabled the chunk keeps the JPA transaction but the DataSource hands out the physical
+     * connection only at the first statement (ShortTransactionsConfiguration): remote calls run without a connection,
+     * the write phase of the chunk commits or rolls back as a whole
      */
     @Bean
     public Step maggioliSendNotificationWorkerStep(
@@ -187,19 +237,75 @@ public class BatchJobConfiguration {
         BackOffPolicy sendNotificationBackOffPolicy,
         RetryListener sendNotificationRetryListener,
         SendNotificationProcessor sendNotificationProcessor,
-        SendNotificationWriter sendNotificationWriter
+        SendNotificationWriter sendNotificationWriter,
+        DominioHeadersAcquisitionListener dominioHeadersAcquisitionListener,
+        AdaptiveChunkCompletionPolicy adaptiveChunkCompletionPolicy,
+        ConnectionPoolGovernor connectionPoolGovernor
     ) {
-        return new StepBuilder("sendNotificationWorkerStep", jobRepository)
-            .<RPT, SendNotificationProcessor.NotificationCompleteData>chunk(batchProperties.getChunkSize(), transactionManager)
+        StepBuilder stepBuilder = new StepBuilder("sendNotificationWorkerStep", jobRepository);
+        PlatformTransactionManager chunkTransactionManager = batchProperties.getShortTransactions().isEnabled()
+                ? transactionManager
+                : connectionPoolGovernor.governa(transactionManager);
+        FaultTolerantStepBuilder<RicevutaDaNotificare, SendNotificationProcessor.NotificationCompleteData> builder = (adaptiveChunkCompletionPolicy.isAttiva()
+                ? stepBuilder.<RicevutaDaNotificare, SendNotificationProcessor.NotificationCompleteData>chunk(adaptiveChunkCompletionPolicy, chunkTransactionManager)
+                : stepBuilder.<RicevutaDaNotificare, SendNotificationProcessor.NotificationCompleteData>chunk(batchProperties.getPaymentsChunkSize(), chunkTransactionManager))
             .reader(sendNotificationReader)
             .processor(sendNotificationProcessor)
             .writer(sendNotificationWriter)
             .listener(sendNotificationWriter) // Register writer as step listener for report and final update
-            .faultTolerant()
-            .retryPolicy(sendNotificationRetryPolicy)
-            .backOffPolicy(sendNotificationBackOffPolicy)
-            .retry(RestClientException.class)
-            .listener(sendNotificationRetryListener)
+            .faultTolerant();
+        if (batchProperties.getStreaming().isEnabled()) {
+            // Headers of the partition domain are committed before the reader opens
+            builder.listener((StepExecutionListener) dominioHeadersAcquisitionListener);
+        }
+        if (adaptiveChunkCompletionPolicy.isAttiva()) {
+            // Chunk duration and rollbacks drive the next commit interval
+            builder.listener((ChunkListener) adaptiveChunkCompletionPolicy);
+        }
+        if (batchProperties.getRetry().getMode() == BatchProperties.ModalitaRetry.BLOCKING) {
+            builder
+                .retryPolicy(sendNotificationRetryPolicy)
+                .backOffPolicy(sendNotificationBackOffPolicy)
+                .retry(RestClientException.class)
+                .listener(sendNotificationRetryListener);
+            if (adaptiveChunkCompletionPolicy.isAttiva()) {
+                // Failed attempts in the chunk shrink the next commit interval
+                builder.listener((RetryListener) adaptiveChunkCompletionPolicy);
+            }
+        }
+        if (batchProperties.getRetry().getMode() == BatchProperties.ModalitaRetry.DELAYED) {
+            // Failed receipts are parked in DelayedRetryQueue and re-read without blocking the partition;
+            // the reader waits for them between chunks, outside the chunk transaction
+            builder.listener((ChunkListener) sendNotificationReader);
+        }
+        if (batchProperties.getDlq().isEnabled()) {
+            // Receipts exhausting retries go to JPPA_NOTIFICHE_DLQ instead of failing the partition
+            builder
+                .skip(RestClientException.class)
+                .skipLimit(batchProperties.getDlq().getSkipLimit())
+                .listener((SkipListener<RicevutaDaNotificare, SendNotificationProcessor.NotificationCompleteData>) sendNotificationWriter);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Re-drive job: resends the notifications stored in JPPA_NOTIFICHE_DLQ
+     */
+    @Bean
+    public Job maggioliJppaRedriveJob(Step redriveDlqStep, ConfigurazioneRunService configurazioneRunService) {
+        return new JobBuilder(Costanti.MAGGIOLI_JPPA_REDRIVE_JOB_NAME, jobRepository)
+            .incrementer(new RunIdIncrementer())
+            .listener(configurazioneRunService)
+            .start(redriveDlqStep)
+            .build();
+    }
+
+    @Bean
+    public Step redriveDlqStep(RedriveDlqTasklet redriveDlqTasklet) {
+        // Nessuna transazione attorno agli invii HTTP: l'esito di ogni notifica e' salvato
+        // con una transazione propria da DeadLetterService
+        return new StepBuilder("redriveDlqStep", jobRepository)
+            .tasklet(redriveDlqTasklet, new ResourcelessTransactionManager())
             .build();
     }
 
@@ -0,0 +1,69 @@
+package it.govpay.maggioli.batch.config;
+
+import javax.sql.DataSource;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.batch.autoconfigure.BatchTransactionManager;
+import org.springframework.boot.batch.jdbc.autoconfigure.BatchDataSource;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.autoconfigure.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.orm.jpa.JpaTransactionManager;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import jakarta.persistence.EntityManagerFactory;
+
+/**
+ * Pool dedicato ai metadati di Spring Batch (govpay.batch.metadata-pool.enabled=true).
+ * <p>
+ * Il JobRepository usa un proprio DataSource, sullo stesso database (spring.datasource.*) ma con un pool
+ * separato configurato in govpay.batch.metadata-pool.hikari.*, e un proprio transaction manager: gli
+ * aggiornamenti delle step execution a ogni chunk non attendono connessioni occupate dalle letture su RPT.
+ * Il commit dei metadati e' quindi separato da quello del chunk; i job non sono mai riavviati (ogni esecuzione
+ * ha un nuovo run.id), per cui un'interruzione tra i due commit non ha effetti su una ripartenza.
+ * <p>
+ * Definire un DataSource disattiva l'autoconfigurazione di Spring Boot: DataSource e transaction manager JPA
+ * dell'applicazione sono dichiarati qui (o in {@link ReplicaDataSourceConfiguration} con la replica attiva).
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "govpay.batch.metadata-pool", name = "enabled", havingValue = "true")
+public class BatchMetadataDataSourceConfiguration {
+
+    @Bean
+    @Primary
+    @ConditionalOnProperty(prefix = "govpay.batch.replica", name = "enabled", havingValue = "false", matchIfMissing = true)
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource dataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primario");
+        return dataSource;
+    }
+
+    @Bean
+    @BatchDataSource
+    @ConfigurationProperties("govpay.batch.metadata-pool.hikari")
+    public HikariDataSource batchDataSource(DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("metadati-batch");
+        return dataSource;
+    }
+
+    @Bean
+    @BatchTransactionManager
+    public DataSourceTransactionManager batchTransactionManager(@BatchDataSource DataSource batchDataSource) {
+        return new DataSourceTransactionManager(batchDataSource);
+    }
+
+    /**
+     * Transaction manager dei chunk e dei repository JPA, in sostituzione di quello di Spring Boot
+     */
+    @Bean
+    @Primary
+    public JpaTransactionManager transactionManager(EntityManagerFactory entityManagerFactory) {
+        return new JpaTransactionManager(entityManagerFactory);
+    }
+}
@@ -1,21 +1,570 @@
 package it.govpay.maggioli.batch.config;
 
 import it.govpay.common.batch.config.BatchJobProperties;
+import jakarta.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @Configuration
 @ConfigurationProperties(prefix = "govpay.batch")
 @Getter
 @Setter
+@Slf4j
 public class BatchProperties extends BatchJobProperties {
 
     private int threadPoolSize = 5;
 
-    private int chunkSize = 100;
+    /**
+     * Commit interval dello step 2 (domini per chunk, ciascuno con tutti i propri headers)
+     */
+    private int headersChunkSize = 1;
+
+    /**
+     * Commit interval dello step 3 (ricevute per chunk); con chunk-tuning attivo e' la dimensione iniziale.
+     * Se non impostato vale {@code chunk-size} (deprecata) o 100.
+     */
+    private Integer paymentsChunkSize;
+
+    /**
+     * @deprecated sostituita da {@code payments-chunk-size}, usata solo se questa non e' impostata
+     */
+    @Deprecated
+    private Integer chunkSize;
 
     private int maxRetries = 5;
 
+    public int getPaymentsChunkSize() {
+        if (paymentsChunkSize != null) {
+            return paymentsChunkSize;
+        }
+        return chunkSize != null ? chunkSize : 100;
+    }
+
+    @PostConstruct
+    void verificaProprietaDeprecate() {
+        if (chunkSize == null) {
+            return;
+        }
+        if (paymentsChunkSize != null) {
+            log.warn("La proprieta' govpay.batch.chunk-size e' deprecata e viene ignorata: vale govpay.batch.payments-chunk-size={}", paymentsChunkSize);
+        } else {
+            log.warn("La proprieta' govpay.batch.chunk-size e' deprecata: usata come govpay.batch.payments-chunk-size={}", chunkSize);
+        }
+    }
+
+    /**
+     * Scheduling delle partizioni dello step di invio (weighted fair queuing per classe SLA)
+     */
+    private final Scheduling scheduling = new Scheduling();
+
+    @Getter
+    @Setter
+    public static class Scheduling {
+
+        /**
+         * Se false le partizioni sono eseguite nell'ordine del partitioner
+         */
+        private boolean enabled = false;
+
+        /**
+         * Classe SLA assegnata ai domini che non ne hanno una in JPPA_CONFIG
+         */
+        private String classeDefault = "STANDARD";
+
+        /**
+         * Peso di ciascuna classe SLA (classi non censite hanno peso 1)
+         */
+        private Map<String, Integer> pesiClassi = new HashMap<>();
+
+        /**
+         * Ogni intervallo di attesa della ricevuta pendente piu' vecchia vale un turno di precedenza (0 = disabilitato)
+         */
+        private long invecchiamentoMillis = 600000;
+    }
+
+    /**
+     * Gestione dei nuovi tentativi di invio delle notifiche
+     */
+    private final Retry retry = new Retry();
+
+    public enum ModalitaRetry {
+        /** Retry nel chunk con attesa bloccante del thread di partizione */
+        BLOCKING,
+        /** Ricevute in errore parcheggiate in una coda ritardata, la partizione prosegue con le altre */
+        DELAYED
+    }
+
+    @Getter
+    @Setter
+    public static class Retry {
+
+        private ModalitaRetry mode = ModalitaRetry.BLOCKING;
+
+        private long backoffInizialeMillis = 2000;
+
+        private long backoffMassimoMillis = 10000;
+
+        /**
+         * Limite superiore al ritardo richiesto dal servizio con Retry-After
+         */
+        private long maxAttesaMillis = 300000;
+    }
+
+    /**
+     * Validazione locale delle richieste di notifica prima dell'invio
+     */
+    private final Validazione validazione = new Validazione();
+
+    @Getter
+    @Setter
+    public static class Validazione {
+
+        private boolean enabled = true;
+
+        /**
+         * Se true le ricevute senza dati di accertamento (contabilita' assente) non vengono inviate.
+         * Disattivata di default: prima della validazione locale queste ricevute venivano comunque notificate.
+         */
+        private boolean contabilitaObbligatoria = false;
+
+        /**
+         * Se true le ricevute con somma degli importi di accertamento diversa dall'importo totale pagato nella RT
+         * non vengono inviate. Non e' un vincolo di maggioli-api.json e scarterebbe i pagamenti parzialmente
+         * eseguiti e quelli con contabilita' solo su alcuni singoli versamenti: disattivata di default.
+         */
+        private boolean importoCoerente = false;
+    }
+
+    /**
+     * Cache dei connettori con scadenza per voce e ricaricamento anticipato, davanti al ConnettoreService
+     */
+    private final ConnettoreCache connettoreCache = new ConnettoreCache();
+
+    @Getter
+    @Setter
+    public static class ConnettoreCache {
+
+        private boolean enabled = false;
+
+        /**
+         * Durata di una voce dal caricamento (ms)
+         */
+        private long ttlMillis = 300000;
+
+        /**
+         * Anticipo sulla scadenza dal quale una lettura avvia il ricaricamento in background (ms)
+         */
+        private long anticipoMillis = 60000;
+    }
+
+    /**
+     * Tracciati di esito scritti dalle partizioni su file di spool non compressi e compressi in background
+     */
+    private final Spool spool = new Spool();
+
+    @Getter
+    @Setter
+    public static class Spool {
+
+        private boolean enabled = false;
+
+        /**
+         * Directory dei file di spool (default: govpay-maggioli-spool nella directory temporanea)
+         */
+        private String directory;
+
+        /**
+         * Thread di compressione, e quindi Deflater attivi contemporaneamente
+         */
+        private int concorrenza = 2;
+
+        /**
+         * Tracciati in attesa di compressione oltre i quali la partizione comprime il proprio
+         */
+        private int capacitaCoda = 100;
+
+        /**
+         * Livello di compressione da 0 a 9 (-1 = livello predefinito di Deflater)
+         */
+        private int livelloCompressione = -1;
+
+        /**
+         * Se true il CSV viene archiviato nello zip senza compressione (metodo STORED)
+         */
+        private boolean senzaCompressione = false;
+    }
+
+    /**
+     * Coda di invio delle email di report, consegnate da thread dedicati con nuovi tentativi
+     */
+    private final MailOutbox mailOutbox = new MailOutbox();
+
+    @Getter
+    @Setter
+    public static class MailOutbox {
+
+        private boolean enabled = false;
+
+        /**
+         * Thread di invio
+         */
+        private int concorrenza = 1;
+
+        /**
+         * Email in coda oltre le quali l'invio avviene dal thread chiamante
+         */
+        private int capacitaCoda = 500;
+
+        private int maxTentativi = 3;
+
+        private long backoffInizialeMillis = 30000;
+
+        private long backoffMassimoMillis = 600000;
+    }
+
+    /**
+     * Letture pesanti su RPT da una replica di sola lettura (connessione in govpay.batch.replica.datasource.*)
+     */
+    private final Replica replica = new Replica();
+
+    @Getter
+    @Setter
+    public static class Replica {
+
+        private boolean enabled = false;
+
+        /**
+         * Ritardo massimo della replica rispetto al primario, misurato sulla ricevuta piu' recente dei domini
+         * abilitati, oltre il quale le letture tornano sul primario (ms)
+         */
+        private long ritardoMassimoMillis = 60000;
+
+        /**
+         * Intervallo tra due misure del ritardo della replica (ms)
+         */
+        private long verificaMillis = 30000;
+    }
+
+    /**
+     * Tabella di appoggio JPPA_NOTIFICHE (vedi sql/{dbms}/staging-jppa-notifiche.sql)
+     */
+    private final Staging staging = new Staging();
+
+    @Getter
+    @Setter
+    public static class Staging {
+
+        /**
+         * Svuota JPPA_NOTIFICHE con TRUNCATE invece di DELETE (non con la tabella memory-optimized di SQL Server)
+         */
+        private boolean truncate = false;
+    }
+
+    /**
+     * Step 3 senza transazione DB sul chunk: le chiamate remote non trattengono connessioni, le sole scritture
+     * (esiti in DLQ, data ultima RT, metadati) aprono transazioni brevi
+     */
+    private final ShortTransactions shortTransactions = new ShortTransactions();
+
+    @Getter
+    @Setter
+    public static class ShortTransactions {
+
+        private boolean enabled = false;
+    }
+
+    /**
+     * Pool e transaction manager dedicati al JobRepository (pool configurato in govpay.batch.metadata-pool.hikari.*)
+     */
+    private final MetadataPool metadataPool = new MetadataPool();
+
+    @Getter
+    @Setter
+    public static class MetadataPool {
+
+        private boolean enabled = false;
+    }
+
+    /**
+     * Limite alle transazioni dei chunk degli step 2 e 3 in base al pool di connessioni del primario
+     */
+    private final PoolGovernor poolGovernor = new PoolGovernor();
+
+    @Getter
+    @Setter
+    public static class PoolGovernor {
+
+        private boolean enabled = false;
+
+        /**
+         * Connessioni del pool lasciate fuori dai chunk (metadati di Spring Batch, letture della partizione)
+         */
+        private int riservaConnessioni = 1;
+
+        /**
+         * Attesa massima di una connessione oltre la quale il limite viene ridotto
+         */
+        private long attesaMassimaMillis = 100;
+
+        /**
+         * Intervallo minimo tra due ricalcoli del limite
+         */
+        private long verificaMillis = 5000;
+    }
+
+    /**
+     * Adattamento a runtime del commit interval dello step 3
+     */
+    private final ChunkTuning chunkTuning = new ChunkTuning();
+
+    @Getter
+    @Setter
+    public static class ChunkTuning {
+
+        private boolean enabled = false;
+
+        private int dimensioneMinima = 10;
+
+        private int dimensioneMassima = 500;
+
+        /**
+         * Durata obiettivo di un chunk, dalla prima lettura al commit (ms)
+         */
+        private long tempoCommitObiettivoMillis = 5000;
+
+        /**
+         * Rapporto tra tentativi falliti e ricevute del chunk oltre il quale la dimensione viene dimezzata
+         */
+        private double sogliaRetry = 0.1;
+
+        /**
+         * Occupazione dell'heap (frazione del massimo) oltre la quale la dimensione viene dimezzata
+         */
+        private double sogliaMemoria = 0.8;
+    }
+
+    /**
+     * Modalita' continua: un worker per connettore notifica le nuove ricevute senza cicli del job
+     */
+    private final Continuous continuous = new Continuous();
+
+    @Getter
+    @Setter
+    public static class Continuous {
+
+        private boolean enabled = false;
+
+        /**
+         * Ricevute lette per dominio a ogni incremento
+         */
+        private int dimensioneIncremento = 50;
+
+        /**
+         * Attesa del worker quando nessun dominio del connettore ha ricevute da notificare (ms)
+         */
+        private long attesaMillis = 2000;
+
+        /**
+         * Pausa di un dominio dopo un errore di invio, prima di ritentare (ms)
+         */
+        private long pausaErroreMillis = 60000;
+
+        /**
+         * Intervallo di rilettura dei connettori dei domini abilitati: avvia i worker dei connettori nuovi e
+         * ferma quelli dei connettori non piu' in uso (ms)
+         */
+        private long aggiornamentoConnettoriMillis = 60000;
+    }
+
+    /**
+     * Modalita' cooperativa: i nodi si ripartiscono i domini della modalita' continua tramite lease su DB
+     */
+    private final Lease lease = new Lease();
+
+    @Getter
+    @Setter
+    public static class Lease {
+
+        private boolean enabled = false;
+
+        /**
+         * Identificativo del nodo (default: cluster-id seguito da un suffisso casuale per processo)
+         */
+        private String idNodo;
+
+        /**
+         * Validita' di un lease non rinnovato: oltre questa durata i domini di un nodo caduto passano agli altri (ms, arrotondata al secondo)
+         */
+        private long durataMillis = 30000;
+
+        /**
+         * Intervallo di rinnovo dei lease e di registrazione del nodo, su un thread dedicato (ms, inferiore a due terzi della durata)
+         */
+        private long heartbeatMillis = 10000;
+    }
+
+    /**
+     * Svecchiamento automatico delle tabelle BATCH_* di Spring Batch
+     */
+    private final MetadataPruning metadataPruning = new MetadataPruning();
+
+    @Getter
+    @Setter
+    public static class MetadataPruning {
+
+        private boolean enabled = false;
+
+        /**
+         * Esecuzioni concluse da piu' giorni di questo valore vengono eliminate (0 = nessun limite per eta')
+         */
+        private int giorniRetention = 30;
+
+        /**
+         * Esecuzioni piu' recenti mantenute per ciascun job (0 = nessun limite per numero)
+         */
+        private int esecuzioniDaMantenere = 0;
+
+        /**
+         * Esecuzioni di job eliminate per transazione (massimo 1000)
+         */
+        private int dimensioneBlocco = 200;
+
+        /**
+         * Elimina a fine job le step execution delle partizioni che non hanno trovato ricevute
+         */
+        private boolean escludiPartizioniVuote = false;
+    }
+
+    /**
+     * Intervallo di esecuzione del job adattato al carico delle esecuzioni precedenti
+     */
+    private final AdaptiveScheduling adaptiveScheduling = new AdaptiveScheduling();
+
+    @Getter
+    @Setter
+    public static class AdaptiveScheduling {
+
+        private boolean enabled = false;
+
+        private long intervalloMinimoMillis = 60000;
+
+        private long intervalloMassimoMillis = 3600000;
+
+        /**
+         * Esecuzioni consecutive senza notifiche dopo le quali l'intervallo raddoppia
+         */
+        private int esecuzioniVuote = 3;
+    }
+
+    /**
+     * Avvio del job alla comparsa di nuove ricevute, in aggiunta all'esecuzione periodica
+     */
+    private final ChangeDetection changeDetection = new ChangeDetection();
+
+    @Getter
+    @Setter
+    public static class ChangeDetection {
+
+        private boolean enabled = false;
+
+        /**
+         * Intervallo tra due sonde sulla tabella RPT (ms)
+         */
+        private long intervalloMillis = 5000;
+
+        /**
+         * Periodo senza nuove ricevute dopo il quale il job viene avviato (ms)
+         */
+        private long quieteMillis = 2000;
+
+        /**
+         * Ritardo massimo dell'avvio rispetto alla prima nuova ricevuta, anche con arrivi continui (ms)
+         */
+        private long attesaMassimaMillis = 30000;
+    }
+
+    /**
+     * Modalita' streaming: acquisizione headers e invio per dominio, senza attendere la fine dello step 2
+     */
+    private final Streaming streaming = new Streaming();
+
+    @Getter
+    @Setter
+    public static class Streaming {
+
+        private boolean enabled = false;
+    }
+
+    /**
+     * Esecuzione in pipeline dello step 3: lettura, costruzione delle richieste e invio sovrapposti
+     */
+    private final Pipeline pipeline = new Pipeline();
+
+    @Getter
+    @Setter
+    public static class Pipeline {
+
+        private boolean enabled = false;
+
+        /**
+         * Ricevute caricate dal DB per ogni pagina
+         */
+        private int dimensionePagina = 200;
+
+        /**
+         * Capacita' della coda tra lettura e costruzione delle richieste
+         */
+        private int profonditaCodaLettura = 400;
+
+        /**
+         * Capacita' della coda tra costruzione delle richieste e invio
+         */
+        private int profonditaCodaInvio = 100;
+    }
+
+    /**
+     * Dead letter queue (JPPA_NOTIFICHE_DLQ) e job di reinvio
+     */
+    private final Dlq dlq = new Dlq();
+
+    @Getter
+    @Setter
+    public static class Dlq {
+
+        /**
+         * Se true le notifiche non consegnate sono registrate in JPPA_NOTIFICHE_DLQ invece di fermare la partizione
+         */
+        private boolean enabled = false;
+
+        /**
+         * Numero massimo di ricevute scartate per partizione prima di fermare lo step
+         */
+        private int skipLimit = 1000;
+
+        /**
+         * Numero massimo di notifiche reinviate per esecuzione del job di reinvio
+         */
+        private int redriveBatchSize = 100;
+
+        /**
+         * Invii contemporanei del job di reinvio
+         */
+        private int concorrenza = 1;
+
+        /**
+         * Tentativi oltre i quali la notifica resta in DLQ senza ulteriori reinvii
+         */
+        private int maxTentativi = 10;
+
+        private long backoffInizialeMillis = 900000;
+
+        private long backoffMassimoMillis = 86400000;
+    }
+
 }
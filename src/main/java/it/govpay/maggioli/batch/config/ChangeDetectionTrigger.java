@@ -0,0 +1,102 @@
+package it.govpay.maggioli.batch.config;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Avvio del job di notifica alla comparsa di nuove ricevute.
+ * Ogni pochi secondi sonda la data della ricevuta piu' recente dei domini abilitati (una sola query di
+ * aggregazione) e avvia il job solo se e' avanzata. Gli arrivi ravvicinati sono raggruppati: il job parte
+ * dopo un periodo di quiete, o comunque entro l'attesa massima dalla prima ricevuta nuova.
+ * Se il job e' gia' in esecuzione l'avvio resta pendente e viene ritentato alla sonda successiva.
+ * L'esecuzione periodica (fissa o adattiva) resta attiva come rete di sicurezza.
+ */
+@Component
+@Profile("default")
+@ConditionalOnProperty(prefix = "govpay.batch.change-detection", name = "enabled", havingValue = "true")
+@Slf4j
+public class ChangeDetectionTrigger {
+
+    private static final List<Integer> ESITI_DA_NOTIFICARE = List.of(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO, Costanti.RPT_ESITO_PAGAMENTO_PARZIALMENTE_ESEGUITO);
+
+    private final RptRepository rptRepository;
+    private final ScheduledJobRunner scheduledJobRunner;
+    private final BatchProperties batchProperties;
+    private final Clock clock;
+
+    private Instant ultimaRicevutaVista;
+    private boolean inizializzato = false;
+    private Instant primaModifica;
+    private Instant ultimaModifica;
+
+    public ChangeDetectionTrigger(RptRepository rptRepository, ScheduledJobRunner scheduledJobRunner, BatchProperties batchProperties) {
+        this(rptRepository, scheduledJobRunner, batchProperties, Clock.systemUTC());
+    }
+
+    ChangeDetectionTrigger(RptRepository rptRepository, ScheduledJobRunner scheduledJobRunner, BatchProperties batchProperties, Clock clock) {
+        this.rptRepository = rptRepository;
+        this.scheduledJobRunner = scheduledJobRunner;
+        this.batchProperties = batchProperties;
+        this.clock = clock;
+    }
+
+    @Scheduled(
+        fixedDelayString = "${govpay.batch.change-detection.intervallo-millis:5000}",
+        initialDelayString = "${govpay.batch.change-detection.intervallo-millis:5000}"
+    )
+    public synchronized void sonda() {
+        Instant adesso = clock.instant();
+        Instant ricevutaPiuRecente = rptRepository.findMaxDataMsgRicevutaDominiAbilitati(ESITI_DA_NOTIFICARE);
+
+        if (!inizializzato) {
+            // Prima sonda: solo riferimento, le ricevute gia' presenti sono coperte dall'esecuzione periodica
+            ultimaRicevutaVista = ricevutaPiuRecente;
+            inizializzato = true;
+            return;
+        }
+
+        if (ricevutaPiuRecente != null && (ultimaRicevutaVista == null || ricevutaPiuRecente.isAfter(ultimaRicevutaVista))) {
+            log.debug("Nuove ricevute rilevate (piu' recente: {})", ricevutaPiuRecente);
+            ultimaRicevutaVista = ricevutaPiuRecente;
+            if (primaModifica == null) {
+                primaModifica = adesso;
+            }
+            ultimaModifica = adesso;
+        }
+
+        if (primaModifica == null || !daAvviare(adesso)) {
+            return;
+        }
+
+        try {
+            JobExecution execution = scheduledJobRunner.eseguiJob();
+            if (execution != null) {
+                log.info("Job {} avviato per nuove ricevute (prima rilevata alle {})", Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME, primaModifica);
+                primaModifica = null;
+                ultimaModifica = null;
+            } else {
+                log.debug("Job {} non avviato (gia' in esecuzione), avvio ritentato alla prossima sonda", Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME);
+            }
+        } catch (Exception e) {
+            log.error("Errore nell'avvio del job {} per nuove ricevute: {}", Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME, e.getMessage(), e);
+        }
+    }
+
+    private boolean daAvviare(Instant adesso) {
+        BatchProperties.ChangeDetection config = batchProperties.getChangeDetection();
+        boolean quiete = !adesso.isBefore(ultimaModifica.plusMillis(config.getQuieteMillis()));
+        boolean attesaScaduta = !adesso.isBefore(primaModifica.plusMillis(config.getAttesaMassimaMillis()));
+        return quiete || attesaScaduta;
+    }
+}
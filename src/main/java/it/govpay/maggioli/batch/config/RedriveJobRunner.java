@@ -0,0 +1,53 @@
+package it.govpay.maggioli.batch.config;
+
+import org.springframework.batch.core.job.Job;
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.job.parameters.InvalidJobParametersException;
+import org.springframework.batch.core.launch.JobExecutionAlreadyRunningException;
+import org.springframework.batch.core.launch.JobInstanceAlreadyCompleteException;
+import org.springframework.batch.core.launch.JobRestartException;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import it.govpay.common.batch.runner.AbstractScheduledJobRunner;
+import it.govpay.common.batch.runner.JobExecutionHelper;
+import it.govpay.common.batch.service.JobConcurrencyService;
+import it.govpay.maggioli.batch.Costanti;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Esecuzione schedulata del job di reinvio della DLQ, a bassa priorita':
+ * non parte mentre e' in esecuzione il job principale di notifica.
+ */
+@Component
+@Profile("default")
+@ConditionalOnProperty(prefix = "govpay.batch.dlq", name = "enabled", havingValue = "true")
+@Slf4j
+public class RedriveJobRunner extends AbstractScheduledJobRunner {
+
+    private final JobConcurrencyService jobConcurrencyService;
+
+    public RedriveJobRunner(
+            JobExecutionHelper jobExecutionHelper,
+            JobConcurrencyService jobConcurrencyService,
+            @Qualifier("maggioliJppaRedriveJob") Job maggioliJppaRedriveJob) {
+        super(jobExecutionHelper, maggioliJppaRedriveJob, Costanti.MAGGIOLI_JPPA_REDRIVE_JOB_NAME);
+        this.jobConcurrencyService = jobConcurrencyService;
+    }
+
+    @Scheduled(
+        fixedDelayString = "${scheduler.maggioliJppaRedriveJob.fixedDelayString:3600000}",
+        initialDelayString = "${scheduler.maggioliJppaRedriveJob.initialDelayString:300000}"
+    )
+    public JobExecution runBatchMaggioliJppaRedriveJob() throws JobExecutionAlreadyRunningException,
+            JobRestartException, JobInstanceAlreadyCompleteException, InvalidJobParametersException {
+        if (jobConcurrencyService.getCurrentRunningJobExecution(Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME) != null) {
+            log.info("Job {} in esecuzione, reinvio DLQ rimandato alla prossima schedulazione", Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME);
+            return null;
+        }
+        return executeScheduledJob();
+    }
+}
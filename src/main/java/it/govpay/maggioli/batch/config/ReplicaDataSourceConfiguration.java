@@ -0,0 +1,71 @@
+package it.govpay.maggioli.batch.config;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.autoconfigure.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * DataSource con replica di sola lettura (govpay.batch.replica.enabled=true).
+ * <p>
+ * Il DataSource dell'applicazione e' un {@link LazyConnectionDataSourceProxy}: la connessione fisica viene
+ * ottenuta alla prima istruzione, dal pool della replica se la transazione e' read-only e dal primario
+ * altrimenti. Le scritture (JPPA_NOTIFICHE, data ultima RT di JPPA_CONFIG) e i metadati di Spring Batch
+ * avvengono in transazioni read-write e restano quindi sul primario; le letture pesanti su RPT sono aperte
+ * in transazioni read-only da {@link it.govpay.maggioli.batch.service.ReplicaReadExecutor}.
+ * <p>
+ * Definendo i DataSource si disattiva l'autoconfigurazione di Spring Boot: il primario resta configurato con
+ * spring.datasource.* (pool spring.datasource.hikari.*), la replica con govpay.batch.replica.datasource.*
+ * (pool govpay.batch.replica.datasource.hikari.*).
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "govpay.batch.replica", name = "enabled", havingValue = "true")
+public class ReplicaDataSourceConfiguration {
+
+    @Bean
+    @Primary
+    @ConfigurationProperties("spring.datasource")
+    public DataSourceProperties primaryDataSourceProperties() {
+        return new DataSourceProperties();
+    }
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(@Qualifier("primaryDataSourceProperties") DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("primario");
+        return dataSource;
+    }
+
+    @Bean
+    @ConfigurationProperties("govpay.batch.replica.datasource")
+    public DataSourceProperties replicaDataSourceProperties() {
+        return new DataSourceProperties();
+    }
+
+    @Bean
+    @ConfigurationProperties("govpay.batch.replica.datasource.hikari")
+    public HikariDataSource replicaDataSource(@Qualifier("replicaDataSourceProperties") DataSourceProperties properties) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setPoolName("replica");
+        dataSource.setReadOnly(true);
+        return dataSource;
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") DataSource primaryDataSource,
+                                 @Qualifier("replicaDataSource") DataSource replicaDataSource) {
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(primaryDataSource);
+        dataSource.setReadOnlyDataSource(replicaDataSource);
+        return dataSource;
+    }
+}
@@ -7,6 +7,7 @@ import org.springframework.batch.core.launch.JobExecutionAlreadyRunningException
 import org.springframework.batch.core.launch.JobInstanceAlreadyCompleteException;
 import org.springframework.batch.core.launch.JobRestartException;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -21,6 +22,12 @@ import it.govpay.maggioli.batch.Costanti;
 @EnableScheduling
 public class ScheduledJobRunner extends AbstractScheduledJobRunner {
 
+    @Value("${govpay.batch.adaptive-scheduling.enabled:false}")
+    private boolean schedulazioneAdattiva;
+
+    @Value("${govpay.batch.continuous.enabled:false}")
+    private boolean modalitaContinua;
+
     public ScheduledJobRunner(
             JobExecutionHelper jobExecutionHelper,
             @Qualifier("maggioliJppaNotificationJob") Job maggioliJppaNotificationJob) {
@@ -33,6 +40,22 @@ public class ScheduledJobRunner extends AbstractScheduledJobRunner {
     )
     public JobExecution runBatchMaggioliJppaNotificationJob() throws JobExecutionAlreadyRunningException,
             JobRestartException, JobInstanceAlreadyCompleteException, InvalidJobParametersException {
+        if (schedulazioneAdattiva) {
+            // Le esecuzioni sono pianificate da AdaptiveJobScheduler
+            return null;
+        }
+        return eseguiJob();
+    }
+
+    /**
+     * Esecuzione del job con i controlli di concorrenza multi-nodo, per gli altri trigger
+     */
+    public JobExecution eseguiJob() throws JobExecutionAlreadyRunningException,
+            JobRestartException, JobInstanceAlreadyCompleteException, InvalidJobParametersException {
+        if (modalitaContinua) {
+            // Le ricevute sono notificate da ContinuousNotificationService
+            return null;
+        }
         return executeScheduledJob();
     }
 }
@@ -0,0 +1,40 @@
+package it.govpay.maggioli.batch.config;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+/**
+ * Transazioni brevi nello step 3 (govpay.batch.short-transactions.enabled=true).
+ * <p>
+ * Il chunk dello step 3 resta una transazione JPA, cosi' un errore a meta' della scrittura annulla tutte le
+ * scritture del chunk. Il DataSource dell'applicazione viene avvolto in un {@link LazyConnectionDataSourceProxy}:
+ * l'apertura della transazione non impegna una connessione del pool, che viene ottenuta alla prima istruzione
+ * (fase di scrittura del chunk) e rilasciata al commit. Le chiamate remote del processor avvengono cosi' senza
+ * connessioni. Con la replica attiva il DataSource e' gia' un {@link LazyConnectionDataSourceProxy} e non viene
+ * modificato.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "govpay.batch.short-transactions", name = "enabled", havingValue = "true")
+public class ShortTransactionsConfiguration {
+
+    static final String DATA_SOURCE = "dataSource";
+
+    @Bean
+    public static BeanPostProcessor connessioneDifferitaPostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (DATA_SOURCE.equals(beanName) && bean instanceof DataSource dataSource
+                        && !(bean instanceof LazyConnectionDataSourceProxy)) {
+                    return new LazyConnectionDataSourceProxy(dataSource);
+                }
+                return bean;
+            }
+        };
+    }
+}
@@ -0,0 +1,244 @@
+package it.govpay.maggioli.batch.continuous;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.DeadLetterService;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+import it.govpay.maggioli.batch.service.NotificheMetrics;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Modalita' continua: al posto delle esecuzioni del job avvia un thread per ogni connettore dei domini abilitati,
+ * che notifica le nuove ricevute a piccoli incrementi (vedi {@link ContinuousNotificationWorker}).
+ * Invio, validazione ed eventi GDE passano da {@link NotificheApiService} come nel job.
+ * I connettori sono riletti ogni {@code aggiornamento-connettori-millis}: i worker dei connettori nuovi vengono avviati
+ * e quelli dei connettori non piu' usati fermati, senza riavviare l'applicazione.
+ * Con i lease abilitati piu' nodi si ripartiscono i domini (vedi {@link DomainLeaseService}).
+ */
+@Component
+@Profile("default")
+@ConditionalOnProperty(prefix = "govpay.batch.continuous", name = "enabled", havingValue = "true")
+@Slf4j
+public class ContinuousNotificationService implements SmartLifecycle {
+
+    private final JppaConfigRepository jppaConfigRepository;
+    private final RptRepository rptRepository;
+    private final ReplicaReadExecutor replicaReadExecutor;
+    private final NotificheApiService notificheApiService;
+    private final DeadLetterService deadLetterService;
+    private final NotificheMetrics notificheMetrics;
+    private final DomainLeaseService leaseService;
+    private final BatchProperties batchProperties;
+    private final boolean dlqEnabled;
+
+    private final Map<String, Esecuzione> esecuzioni = new LinkedHashMap<>();
+    private Set<String> dominiSenzaConnettore = Set.of();
+    private Thread supervisore;
+    private volatile boolean running = false;
+
+    public ContinuousNotificationService(JppaConfigRepository jppaConfigRepository, RptRepository rptRepository,
+                                         ReplicaReadExecutor replicaReadExecutor, NotificheApiService notificheApiService, DeadLetterService deadLetterService,
+                                         NotificheMetrics notificheMetrics, DomainLeaseService leaseService, BatchProperties batchProperties,
+                                         @Value("${govpay.batch.dlq.enabled:false}") boolean dlqEnabled) {
+        this.jppaConfigRepository = jppaConfigRepository;
+        this.rptRepository = rptRepository;
+        this.replicaReadExecutor = replicaReadExecutor;
+        this.notificheApiService = notificheApiService;
+        this.deadLetterService = deadLetterService;
+        this.notificheMetrics = notificheMetrics;
+        this.leaseService = leaseService;
+        this.batchProperties = batchProperties;
+        this.dlqEnabled = dlqEnabled;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (leaseService.isAttiva()) {
+            // Registrazione del nodo e quota iniziale prima che i worker acquisiscano i lease
+            leaseService.heartbeat();
+        }
+        running = true;
+        allinea();
+        supervisore = Thread.ofPlatform().name("continuous-supervisore").start(this::supervisiona);
+        log.info("Modalita' continua avviata per i connettori {}", esecuzioni.keySet());
+    }
+
+    private void supervisiona() {
+        while (running) {
+            try {
+                Thread.sleep(batchProperties.getContinuous().getAggiornamentoConnettoriMillis());
+                allinea();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Errore nella rilettura dei connettori della modalita' continua: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Rilegge i connettori dei domini abilitati e allinea i worker: avvia quelli dei connettori nuovi (o terminati),
+     * ferma quelli dei connettori non piu' usati. Un connettore ripreso mentre il suo worker si sta ancora fermando
+     * viene riavviato al giro successivo, cosi' un connettore non ha mai due worker.
+     */
+    synchronized void allinea() {
+        if (!running) {
+            return;
+        }
+        List<JppaConfig> abilitati = jppaConfigRepository.findAllByAbilitato(Boolean.TRUE);
+        Set<String> connettori = abilitati.stream()
+                .map(JppaConfig::getConnettore)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        segnalaDominiSenzaConnettore(abilitati);
+
+        Iterator<Map.Entry<String, Esecuzione>> it = esecuzioni.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Esecuzione> voce = it.next();
+            Esecuzione esecuzione = voce.getValue();
+            if (esecuzione.attivo && !connettori.contains(voce.getKey())) {
+                esecuzione.ferma();
+                log.info("Connettore {} non piu' usato dai domini abilitati: worker in arresto", voce.getKey());
+            }
+            if (!esecuzione.attivo && !esecuzione.thread.isAlive()) {
+                it.remove();
+            }
+        }
+
+        for (String codConnettore : connettori) {
+            Esecuzione esecuzione = esecuzioni.get(codConnettore);
+            if (esecuzione == null) {
+                avvia(codConnettore);
+                log.info("Modalita' continua: avviato il worker del connettore {}", codConnettore);
+            } else if (!esecuzione.attivo) {
+                log.debug("Worker del connettore {} ancora in arresto, riavvio al prossimo aggiornamento", codConnettore);
+            } else if (!esecuzione.thread.isAlive()) {
+                log.warn("Worker del connettore {} terminato inaspettatamente: riavvio", codConnettore);
+                avvia(codConnettore);
+            }
+        }
+    }
+
+    private void avvia(String codConnettore) {
+        ContinuousNotificationWorker worker = new ContinuousNotificationWorker(codConnettore, jppaConfigRepository, rptRepository,
+                replicaReadExecutor, notificheApiService, deadLetterService, notificheMetrics, leaseService, batchProperties, dlqEnabled, Clock.systemUTC());
+        Esecuzione esecuzione = new Esecuzione();
+        esecuzione.thread = Thread.ofPlatform().name("continuous-" + codConnettore).unstarted(() -> esegui(worker, esecuzione));
+        esecuzioni.put(codConnettore, esecuzione);
+        esecuzione.thread.start();
+    }
+
+    /**
+     * I domini abilitati senza connettore non hanno un worker: segnalati quando l'elenco cambia
+     */
+    private void segnalaDominiSenzaConnettore(List<JppaConfig> abilitati) {
+        Set<String> senzaConnettore = abilitati.stream()
+                .filter(config -> config.getConnettore() == null)
+                .map(JppaConfig::getCodDominio)
+                .collect(Collectors.toCollection(TreeSet::new));
+        if (!senzaConnettore.equals(dominiSenzaConnettore) && !senzaConnettore.isEmpty()) {
+            log.warn("Domini abilitati senza connettore, non notificati dalla modalita' continua: {}", senzaConnettore);
+        }
+        dominiSenzaConnettore = senzaConnettore;
+    }
+
+    /**
+     * Connettori con un worker attivo
+     */
+    synchronized Set<String> getConnettoriAttivi() {
+        return esecuzioni.entrySet().stream()
+                .filter(voce -> voce.getValue().attivo)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    private void esegui(ContinuousNotificationWorker worker, Esecuzione esecuzione) {
+        BatchProperties.Continuous config = batchProperties.getContinuous();
+        while (running && esecuzione.attivo) {
+            try {
+                if (worker.ciclo() == 0) {
+                    Thread.sleep(config.getAttesaMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Errore nel ciclo di notifica continua del connettore {}: {}", worker.getCodConnettore(), e.getMessage(), e);
+                try {
+                    Thread.sleep(config.getPausaErroreMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (supervisore != null) {
+            supervisore.interrupt();
+            supervisore = null;
+        }
+        for (Esecuzione esecuzione : esecuzioni.values()) {
+            esecuzione.ferma();
+        }
+        for (Esecuzione esecuzione : esecuzioni.values()) {
+            try {
+                esecuzione.thread.join(batchProperties.getContinuous().getPausaErroreMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        esecuzioni.clear();
+        if (leaseService.isAttiva()) {
+            try {
+                leaseService.rilasciaTutti();
+            } catch (Exception e) {
+                log.warn("Errore nel rilascio dei lease del nodo {}: {}", leaseService.getNodo(), e.getMessage());
+            }
+        }
+        log.info("Modalita' continua arrestata");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Thread del worker di un connettore; un worker fermato termina al piu' tardi alla fine dell'incremento in corso
+     */
+    private static final class Esecuzione {
+
+        private Thread thread;
+        private volatile boolean attivo = true;
+
+        private void ferma() {
+            attivo = false;
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package it.govpay.maggioli.batch.continuous;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+
+import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
+import it.govpay.maggioli.batch.entity.RPT;
+import it.govpay.maggioli.batch.exception.LoginFailedException;
+import it.govpay.maggioli.batch.exception.PayloadValidationException;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.DeadLetterService;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+import it.govpay.maggioli.batch.service.NotificheMetrics;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
+import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Worker della modalita' continua per un connettore: a ogni ciclo legge per ciascun dominio abilitato
+ * un piccolo incremento di ricevute successive alla data ultima RT, le notifica nell'ordine di
+ * data_msg_ricevuta e avanza la data ultima RT.
+ * <p>
+ * Un incremento pieno termina prima dell'ultima data_msg_ricevuta letta, cosi' le ricevute con la stessa data
+ * restano nello stesso incremento e nessuna viene superata dall'avanzamento. Gli esiti sono trattati come nel
+ * job: HTTP 400 e validazione fallita avanzano (e vanno in DLQ se abilitata); gli altri errori con la DLQ
+ * abilitata registrano la ricevuta e proseguono, altrimenti fermano il dominio per la pausa configurata con
+ * la data ultima RT ferma prima della ricevuta fallita.
+ */
+@Slf4j
+public class ContinuousNotificationWorker {
+
+    private static final List<Integer> ESITI_DA_NOTIFICARE = List.of(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO, Costanti.RPT_ESITO_PAGAMENTO_PARZIALMENTE_ESEGUITO);
+
+    private final String codConnettore;
+    private final JppaConfigRepository jppaConfigRepository;
+    private final RptRepository rptRepository;
+    private final ReplicaReadExecutor replicaReadExecutor;
+    private final NotificheApiService notificheApiService;
+    private final DeadLetterService deadLetterService;
+    private final NotificheMetrics notificheMetrics;
+    private final DomainLeaseService leaseService;
+    private final BatchProperties batchProperties;
+    private final boolean dlqEnabled;
+    private final Clock clock;
+
+    private final Map<String, Instant> dominiInPausa = new HashMap<>();
+
+    public ContinuousNotificationWorker(String codConnettore, JppaConfigRepository jppaConfigRepository, RptRepository rptRepository,
+                                        ReplicaReadExecutor replicaReadExecutor, NotificheApiService notificheApiService, DeadLetterService deadLetterService, NotificheMetrics notificheMetrics,
+                                        DomainLeaseService leaseService, BatchProperties batchProperties, boolean dlqEnabled, Clock clock) {
+        this.codConnettore = codConnettore;
+        this.jppaConfigRepository = jppaConfigRepository;
+        this.rptRepository = rptRepository;
+        this.replicaReadExecutor = replicaReadExecutor;
+        this.notificheApiService = notificheApiService;
+        this.deadLetterService = deadLetterService;
+        this.notificheMetrics = notificheMetrics;
+        this.leaseService = leaseService;
+        this.batchProperties = batchProperties;
+        this.dlqEnabled = dlqEnabled;
+        this.clock = clock;
+    }
+
+    public String getCodConnettore() {
+        return codConnettore;
+    }
+
+    /**
+     * Un incremento per ogni dominio abilitato del connettore (in modalita' cooperativa solo per i domini
+     * di cui il nodo possiede il lease); i domini sono riletti a ogni ciclo
+     *
+     * @return numero di ricevute elaborate nel ciclo
+     */
+    public int ciclo() {
+        int elaborate = 0;
+        for (JppaConfig config : jppaConfigRepository.findAllByAbilitatoAndConnettore(Boolean.TRUE, codConnettore)) {
+            Instant pausaFinoA = dominiInPausa.get(config.getCodDominio());
+            if (pausaFinoA != null) {
+                if (clock.instant().isBefore(pausaFinoA)) {
+                    continue;
+                }
+                dominiInPausa.remove(config.getCodDominio());
+            }
+            if (leaseService.isAttiva() && !leaseService.possiede(config.getCodDominio())) {
+                continue;
+            }
+            elaborate += incremento(config);
+        }
+        return elaborate;
+    }
+
+    int incremento(JppaConfig config) {
+        String codDominio = config.getCodDominio();
+        List<RptRepository.RicevutaProjection> ricevute = leggiIncremento(codDominio,
+                config.getDataUltimaRt() != null ? config.getDataUltimaRt() : Instant.EPOCH);
+        if (ricevute.isEmpty()) {
+            return 0;
+        }
+
+        List<Long> ids = ricevute.stream().map(RptRepository.RicevutaProjection::getId).toList();
+        Map<Long, RPT> rptById = replicaReadExecutor.leggi(() -> rptRepository.findByIdInFetchVersamento(ids))
+                .stream().collect(Collectors.toMap(RPT::getId, Function.identity()));
+        List<RPT> rpts = ricevute.stream()
+                .map(r -> rptById.get(r.getId()))
+                .filter(r -> r != null)
+                .sorted(Comparator.comparing(RPT::getDataMsgRicevuta).thenComparing(RPT::getId))
+                .toList();
+
+        Instant dataUltimaRt = config.getDataUltimaRt();
+        List<JppaNotificheDlq> scartate = new ArrayList<>();
+        int elaborate = 0;
+        for (RPT rpt : rpts) {
+            String esito;
+            String errori = null;
+            try {
+                RispostaNotificaPagamentoDto risposta = notificheApiService.notificaPagamento(codConnettore, codDominio,
+                        RicevutaDaNotificare.voci(rpt.getVersamento().getSingoliVersamenti()), rpt.getXmlRt());
+                esito = risposta.getEsito().name();
+            } catch (PayloadValidationException e) {
+                log.error("Notifica ec={}, iuv={}, idRicevuta={} non inviata, validazione fallita: {}", codDominio, rpt.getIuv(), rpt.getCcp(), e.getMessage());
+                esito = Costanti.ESITO_ERRORE_INVIO;
+                errori = String.join("\n", e.getErrori());
+            } catch (HttpClientErrorException.BadRequest e) {
+                log.error("Errore HTTP 400 nell'invio della notifica ec={}, iuv={}, idRicevuta={}: {}", codDominio, rpt.getIuv(), rpt.getCcp(), e.getMessage());
+                esito = Costanti.ESITO_ERRORE_INVIO;
+                errori = e.getStatusCode() + ": " + e.getMessage();
+            } catch (RestClientException | LoginFailedException e) {
+                if (!dlqEnabled) {
+                    long pausa = batchProperties.getContinuous().getPausaErroreMillis();
+                    log.error("Errore nell'invio della notifica ec={}, iuv={}, idRicevuta={}, dominio in pausa per {} ms: {}",
+                            codDominio, rpt.getIuv(), rpt.getCcp(), pausa, e.getMessage());
+                    dominiInPausa.put(codDominio, clock.instant().plusMillis(pausa));
+                    dataUltimaRt = limita(dataUltimaRt, rpt.getDataMsgRicevuta(), config.getDataUltimaRt());
+                    break;
+                }
+                log.warn("Errore nell'invio della notifica ec={}, iuv={}, idRicevuta={}, registrata in DLQ: {}", codDominio, rpt.getIuv(), rpt.getCcp(), e.getMessage());
+                esito = Costanti.ESITO_ERRORE_INVIO;
+                errori = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+
+            if (dlqEnabled && Costanti.ESITO_ERRORE_INVIO.equals(esito)) {
+                scartate.add(scartata(rpt, errori));
+            }
+            notificheMetrics.registra(NotificheMetrics.MODALITA_CONTINUA, esito, rpt.getDataMsgRicevuta());
+            dataUltimaRt = rpt.getDataMsgRicevuta();
+            elaborate++;
+        }
+
+        if (!scartate.isEmpty()) {
+            deadLetterService.registra(scartate);
+        }
+        if (dataUltimaRt != null && !dataUltimaRt.equals(config.getDataUltimaRt())) {
+            if (leaseService.isAttiva()) {
+                if (!leaseService.aggiornaDataUltimaRt(codDominio, dataUltimaRt)) {
+                    return elaborate;
+                }
+            } else {
+                // UPDATE mirato della sola data ultima RT, senza riscrivere l'intera riga di JPPA_CONFIG
+                jppaConfigRepository.aggiornaDataUltimaRt(codDominio, dataUltimaRt);
+            }
+            log.debug("Dominio {}: {} ricevute elaborate, data ultima RT {}", codDominio, elaborate, dataUltimaRt);
+        }
+        return elaborate;
+    }
+
+    /**
+     * Legge un incremento che termina su un cambio di data_msg_ricevuta; se l'intero incremento ha la stessa
+     * data viene allargato finche' la data cambia o le ricevute finiscono.
+     */
+    private List<RptRepository.RicevutaProjection> leggiIncremento(String codDominio, Instant dopo) {
+        int dimensione = Math.max(1, batchProperties.getContinuous().getDimensioneIncremento());
+        while (true) {
+            Pageable pagina = PageRequest.of(0, dimensione);
+            List<RptRepository.RicevutaProjection> ricevute = replicaReadExecutor.leggi(() ->
+                    rptRepository.findRicevuteDaNotificare(codDominio, ESITI_DA_NOTIFICARE, dopo, pagina));
+            if (ricevute.size() < dimensione) {
+                return ricevute;
+            }
+            Instant ultima = ricevute.get(ricevute.size() - 1).getDataMsgRicevuta();
+            int fine = ricevute.size();
+            while (fine > 0 && ricevute.get(fine - 1).getDataMsgRicevuta().equals(ultima)) {
+                fine--;
+            }
+            if (fine > 0) {
+                return ricevute.subList(0, fine);
+            }
+            dimensione *= 2;
+        }
+    }
+
+    /**
+     * La data ultima RT resta prima della ricevuta fallita, che viene cosi' riletta dopo la pausa
+     */
+    private static Instant limita(Instant dataUltimaRt, Instant dataFallita, Instant dataIniziale) {
+        if (dataUltimaRt == null || dataUltimaRt.isBefore(dataFallita)) {
+            return dataUltimaRt;
+        }
+        Instant limite = dataFallita.minusMillis(1);
+        return dataIniziale != null && limite.isBefore(dataIniziale) ? dataIniziale : limite;
+    }
+
+    private static JppaNotificheDlq scartata(RPT rpt, String errore) {
+        return JppaNotificheDlq.builder()
+                .idRpt(rpt.getId())
+                .codDominio(rpt.getCodDominio())
+                .iuv(rpt.getIuv())
+                .ccp(rpt.getCcp())
+                .dataMsgRicevuta(rpt.getDataMsgRicevuta())
+                .ultimoErrore(errore)
+                .build();
+    }
+}
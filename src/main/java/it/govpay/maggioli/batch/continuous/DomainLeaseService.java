@@ -0,0 +1,224 @@
+package it.govpay.maggioli.batch.continuous;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.entity.JppaLease;
+import it.govpay.maggioli.batch.entity.JppaNodo;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.repository.JppaLeaseRepository;
+import it.govpay.maggioli.batch.repository.JppaNodoRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Lease dei domini su JPPA_LEASE per la modalita' cooperativa: ogni nodo esegue i worker della modalita'
+ * continua ma notifica solo i domini di cui possiede il lease, cosi' l'ordine delle ricevute di un dominio
+ * resta garantito da un solo nodo alla volta.
+ * <ul>
+ * <li>il lease si acquisisce con un aggiornamento condizionato (libero, scaduto o gia' del nodo); scadenze e
+ * heartbeat usano l'orologio del database, non quello del nodo</li>
+ * <li>l'heartbeat registra il nodo in JPPA_NODI e rinnova i lease; i lease di un nodo caduto scadono e
+ * vengono acquisiti dagli altri. Gira su un thread dedicato, cosi' i job schedulati non ne ritardano il rinnovo</li>
+ * <li>se l'heartbeat non riesce a rinnovare in tempo (scadenza locale: ultimo rinnovo + durata - un terzo della
+ * durata) il nodo smette di notificare i propri domini finche' un heartbeat non va a buon fine</li>
+ * <li>ogni nodo tiene al piu' la propria quota (domini abilitati / nodi attivi) e rilascia l'eccedenza tra
+ * un incremento e l'altro, cosi' i domini si ridistribuiscono all'ingresso di un nuovo nodo; controllo della
+ * quota e acquisizione sono serializzati sul nodo, cosi' worker concorrenti non la superano</li>
+ * <li>la data ultima RT e' aggiornata solo se il lease e' ancora del nodo (vedi
+ * {@link JppaConfigRepository#aggiornaDataUltimaRtConLease})</li>
+ * </ul>
+ */
+@Service
+@Slf4j
+public class DomainLeaseService {
+
+    static final String METRIC_LEASE = "govpay.maggioli.lease.owned";
+
+    private final JppaLeaseRepository leaseRepository;
+    private final JppaNodoRepository nodoRepository;
+    private final JppaConfigRepository jppaConfigRepository;
+    private final BatchProperties batchProperties;
+    private final String nodo;
+    private final ScheduledExecutorService executor;
+    private final Clock clock;
+
+    private final Set<String> posseduti = ConcurrentHashMap.newKeySet();
+    private volatile int quota = 1;
+    private volatile Instant scadenzaLocale = Instant.EPOCH;
+
+    public DomainLeaseService(JppaLeaseRepository leaseRepository, JppaNodoRepository nodoRepository, JppaConfigRepository jppaConfigRepository,
+                              BatchProperties batchProperties, MeterRegistry meterRegistry, @Value("${govpay.batch.cluster-id}") String clusterId) {
+        this(leaseRepository, nodoRepository, jppaConfigRepository, batchProperties, meterRegistry, clusterId,
+                Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("maggioli-lease-")), Clock.systemUTC());
+    }
+
+    DomainLeaseService(JppaLeaseRepository leaseRepository, JppaNodoRepository nodoRepository, JppaConfigRepository jppaConfigRepository,
+                       BatchProperties batchProperties, MeterRegistry meterRegistry, String clusterId, ScheduledExecutorService executor, Clock clock) {
+        this.leaseRepository = leaseRepository;
+        this.nodoRepository = nodoRepository;
+        this.jppaConfigRepository = jppaConfigRepository;
+        this.batchProperties = batchProperties;
+        this.executor = executor;
+        this.clock = clock;
+        String idNodo = batchProperties.getLease().getIdNodo();
+        this.nodo = idNodo != null && !idNodo.isBlank() ? idNodo : clusterId + "-" + UUID.randomUUID().toString().substring(0, 8);
+        meterRegistry.gaugeCollectionSize(METRIC_LEASE, Tags.empty(), posseduti);
+    }
+
+    @PostConstruct
+    void avvia() {
+        if (isAttiva()) {
+            long intervallo = batchProperties.getLease().getHeartbeatMillis();
+            if (intervallo * 3 >= durataSecondi() * 2000) {
+                log.warn("Nodo {}: heartbeat-millis ({}) non inferiore a due terzi della durata dei lease: i domini verranno sospesi tra un rinnovo e l'altro",
+                        nodo, intervallo);
+            }
+            executor.scheduleWithFixedDelay(this::heartbeat, intervallo, intervallo, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void chiudi() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isAttiva() {
+        return batchProperties.getLease().isEnabled();
+    }
+
+    public String getNodo() {
+        return nodo;
+    }
+
+    /**
+     * Indica se il nodo puo' notificare il dominio, acquisendone il lease se libero ed entro la quota.
+     * Chiamato dal worker tra un incremento e l'altro, quando rilasciare un dominio in eccedenza e' sicuro.
+     * Oltre la scadenza locale dell'ultimo rinnovo i lease potrebbero essere gia' di altri nodi: nessun dominio.
+     */
+    public synchronized boolean possiede(String codDominio) {
+        if (clock.instant().isAfter(scadenzaLocale)) {
+            if (!posseduti.isEmpty()) {
+                log.warn("Nodo {}: lease non rinnovati entro {}, sospesa la notifica dei domini {}", nodo, scadenzaLocale, posseduti);
+                posseduti.clear();
+            }
+            return false;
+        }
+        if (posseduti.contains(codDominio)) {
+            if (posseduti.size() > quota) {
+                rilascia(codDominio);
+                return false;
+            }
+            return true;
+        }
+        if (posseduti.size() >= quota) {
+            return false;
+        }
+        if (!leaseRepository.existsById(codDominio)) {
+            try {
+                leaseRepository.save(JppaLease.builder().codDominio(codDominio).scadenza(Instant.EPOCH).build());
+            } catch (DataIntegrityViolationException e) {
+                log.debug("Lease del dominio {} creato da un altro nodo", codDominio);
+            }
+        }
+        if (leaseRepository.acquisisci(codDominio, nodo, durataSecondi()) == 1) {
+            posseduti.add(codDominio);
+            log.info("Nodo {}: acquisito il lease del dominio {}", nodo, codDominio);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Aggiorna la data ultima RT solo se il lease del dominio e' ancora del nodo
+     *
+     * @return false se il lease e' stato perso: l'incremento verra' ripreso dal nuovo possessore
+     */
+    public boolean aggiornaDataUltimaRt(String codDominio, Instant dataUltimaRt) {
+        if (jppaConfigRepository.aggiornaDataUltimaRtConLease(codDominio, dataUltimaRt, nodo) == 1) {
+            return true;
+        }
+        log.warn("Nodo {}: lease del dominio {} perso, data ultima RT non aggiornata", nodo, codDominio);
+        posseduti.remove(codDominio);
+        return false;
+    }
+
+    /**
+     * Registra il nodo, rinnova i lease, ricalcola la quota di domini del nodo e sposta la scadenza locale
+     */
+    public void heartbeat() {
+        if (!isAttiva()) {
+            return;
+        }
+        long durata = durataSecondi();
+        // Istante locale precedente al rinnovo: la scadenza su DB, calcolata dopo, non e' anteriore
+        Instant inizio = clock.instant();
+        try {
+            if (nodoRepository.registraHeartbeat(nodo) == 0) {
+                nodoRepository.save(JppaNodo.builder().nodo(nodo).ultimoHeartbeat(Instant.EPOCH).build());
+                nodoRepository.registraHeartbeat(nodo);
+            }
+            leaseRepository.rinnova(nodo, durata);
+            Set<String> validi = new HashSet<>(leaseRepository.findDominiPosseduti(nodo));
+
+            long nodiAttivi = Math.max(1, nodoRepository.countAttivi(durata));
+            long domini = jppaConfigRepository.countByAbilitato(Boolean.TRUE);
+            synchronized (this) {
+                posseduti.retainAll(validi);
+                posseduti.addAll(validi);
+                quota = (int) Math.max(1, (domini + nodiAttivi - 1) / nodiAttivi);
+                Duration validita = Duration.ofSeconds(durata);
+                scadenzaLocale = inizio.plus(validita).minus(validita.dividedBy(3));
+            }
+            log.debug("Nodo {}: {} lease, quota {} ({} domini, {} nodi attivi)", nodo, posseduti.size(), quota, domini, nodiAttivi);
+        } catch (Exception e) {
+            log.error("Nodo {}: errore nell'heartbeat dei lease: {}", nodo, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rilascia tutti i lease del nodo (arresto), che passano subito agli altri nodi
+     */
+    public synchronized void rilasciaTutti() {
+        for (String codDominio : List.copyOf(posseduti)) {
+            rilascia(codDominio);
+        }
+        nodoRepository.deleteById(nodo);
+    }
+
+    private void rilascia(String codDominio) {
+        posseduti.remove(codDominio);
+        leaseRepository.rilascia(codDominio, nodo);
+        log.info("Nodo {}: rilasciato il lease del dominio {}", nodo, codDominio);
+    }
+
+    private long durataSecondi() {
+        return Math.max(1, batchProperties.getLease().getDurataMillis() / 1000);
+    }
+}
@@ -4,11 +4,14 @@ import java.time.ZoneId;
 
 import org.springframework.batch.core.job.Job;
 import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -20,6 +23,10 @@ import it.govpay.common.batch.dto.NextExecutionInfo;
 import it.govpay.common.batch.runner.JobExecutionHelper;
 import it.govpay.common.client.service.ConnettoreService;
 import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.config.AdaptiveJobScheduler;
+import it.govpay.maggioli.batch.dto.AdaptiveScheduleInfo;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.ConnettoreCache;
 import jakarta.persistence.EntityManager;
 
 @RestController
@@ -28,6 +35,12 @@ public class BatchController extends AbstractBatchController {
 
     private final Job maggioliJppaNotificationJob;
     private final ConnettoreService connettoreService;
+    private final ObjectProvider<AdaptiveJobScheduler> adaptiveJobScheduler;
+    private final ConfigurazioneRunService configurazioneRunService;
+    private final ConnettoreCache connettoreCache;
+
+    @Value("${govpay.batch.continuous.enabled:false}")
+    private boolean modalitaContinua;
 
     public BatchController(
             JobExecutionHelper jobExecutionHelper,
@@ -37,10 +50,16 @@ public class BatchController extends AbstractBatchController {
             ZoneId applicationZoneId,
             @Value("${scheduler.maggioliJppaNotificationJob.fixedDelayString:600000}") long schedulerIntervalMillis,
             ConnettoreService connettoreService,
-            EntityManager entityManager) {
+            EntityManager entityManager,
+            ObjectProvider<AdaptiveJobScheduler> adaptiveJobScheduler,
+            ConfigurazioneRunService configurazioneRunService,
+            ConnettoreCache connettoreCache) {
         super(jobExecutionHelper, jobRepository, environment, applicationZoneId, schedulerIntervalMillis, entityManager);
         this.maggioliJppaNotificationJob = maggioliJppaNotificationJob;
         this.connettoreService = connettoreService;
+        this.adaptiveJobScheduler = adaptiveJobScheduler;
+        this.configurazioneRunService = configurazioneRunService;
+        this.connettoreCache = connettoreCache;
     }
 
     @Override
@@ -68,12 +87,29 @@ public class BatchController extends AbstractBatchController {
     @Override
     protected ResponseEntity<String> clearCache() {
         connettoreService.clearCache();
+        connettoreCache.invalidaTutto();
+        // Anche la configurazione dell'esecuzione contiene i connettori letti dalla cache
+        configurazioneRunService.invalida();
         return ResponseEntity.ok("Cache connettori invalidata");
     }
 
+    /**
+     * Invalida un solo connettore; senza cache dei connettori attiva equivale a clearCache
+     */
+    @GetMapping("/clearCache/{codConnettore}")
+    public ResponseEntity<String> clearCacheConnettoreEndpoint(@PathVariable("codConnettore") String codConnettore) {
+        connettoreCache.invalida(codConnettore);
+        configurazioneRunService.invalida();
+        return ResponseEntity.ok("Connettore " + codConnettore + " invalidato");
+    }
+
     @GetMapping("/run")
     public ResponseEntity<Object> eseguiJobEndpoint(
             @RequestParam(name = "force", required = false, defaultValue = "false") boolean force) {
+        if (modalitaContinua) {
+            // Le ricevute sono notificate da ContinuousNotificationService: il job avanzerebbe la stessa data ultima RT
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Modalita' continua attiva: esecuzione del job non consentita");
+        }
         return eseguiJob(force);
     }
 
@@ -91,4 +127,16 @@ public class BatchController extends AbstractBatchController {
     public ResponseEntity<NextExecutionInfo> getNextExecutionEndpoint() {
         return getNextExecution();
     }
+
+    /**
+     * Con la schedulazione adattiva riporta l'intervallo scelto, il motivo e la prossima esecuzione pianificata
+     */
+    @GetMapping("/nextExecution/adaptive")
+    public ResponseEntity<AdaptiveScheduleInfo> getAdaptiveScheduleEndpoint() {
+        AdaptiveJobScheduler scheduler = adaptiveJobScheduler.getIfAvailable();
+        if (scheduler == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(scheduler.getInfo());
+    }
 }
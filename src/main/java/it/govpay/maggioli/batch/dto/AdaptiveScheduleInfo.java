@@ -0,0 +1,22 @@
+package it.govpay.maggioli.batch.dto;
+
+import java.time.OffsetDateTime;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Stato della schedulazione adattiva, esposto da /api/batch/nextExecution
+ */
+@Data
+@Builder
+public class AdaptiveScheduleInfo {
+    private String modalita;
+    private long intervalloMillis;
+    private long intervalloMinimoMillis;
+    private long intervalloMassimoMillis;
+    private OffsetDateTime ultimaEsecuzione;
+    private OffsetDateTime prossimaEsecuzione;
+    private String motivo;
+    private int esecuzioniVuoteConsecutive;
+}
@@ -0,0 +1,55 @@
+package it.govpay.maggioli.batch.dto;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import it.govpay.common.client.model.Connettore;
+
+/**
+ * Configurazione di JPPA_CONFIG e dei connettori letta all'avvio di un'esecuzione e condivisa da tutti gli step,
+ * che vedono cosi' la stessa configurazione per l'intera esecuzione.
+ *
+ * @param versione impronta della configurazione (esclusa la data ultima RT), cambia solo se cambiano domini o connettori
+ * @param domini domini di JPPA_CONFIG per codice, nell'ordine di lettura
+ * @param connettori connettori dei domini per codice
+ */
+public record ConfigurazioneRun(String versione, Instant caricamento, Map<String, Dominio> domini, Map<String, ConnettoreRun> connettori) {
+
+    public ConfigurazioneRun {
+        domini = Collections.unmodifiableMap(new LinkedHashMap<>(domini));
+        connettori = Collections.unmodifiableMap(new HashMap<>(connettori));
+    }
+
+    /**
+     * Riga di JPPA_CONFIG
+     */
+    public record Dominio(String codDominio, String codConnettore, boolean abilitato, Instant dataUltimaRt, String classeSla, Integer peso) {
+    }
+
+    /**
+     * Connettore con le sue proprieta' (EMAIL_INDIRIZZO, INVIA_TRACCIATO_ESITO, ...)
+     */
+    public record ConnettoreRun(Connettore connettore, Map<String, String> proprieta) {
+
+        public ConnettoreRun {
+            proprieta = proprieta == null ? Map.of() : Collections.unmodifiableMap(new HashMap<>(proprieta));
+        }
+    }
+
+    public Optional<Dominio> dominio(String codDominio) {
+        return Optional.ofNullable(domini.get(codDominio));
+    }
+
+    public List<Dominio> dominiAbilitati() {
+        return domini.values().stream().filter(Dominio::abilitato).toList();
+    }
+
+    public Optional<ConnettoreRun> connettore(String codConnettore) {
+        return codConnettore == null ? Optional.empty() : Optional.ofNullable(connettori.get(codConnettore));
+    }
+}
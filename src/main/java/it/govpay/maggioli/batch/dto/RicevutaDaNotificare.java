@@ -0,0 +1,38 @@
+package it.govpay.maggioli.batch.dto;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+import it.govpay.maggioli.batch.entity.SingoloVersamento;
+
+/**
+ * Ricevuta da notificare nello step 3, letta con una proiezione e non come entity: non entra nel persistence
+ * context, per cui non viene controllata al flush dei chunk e non fa crescere la cache di primo livello con
+ * la durata della partizione.
+ *
+ * @param voci descrizione e contabilita' dei singoli versamenti, mai null
+ */
+public record RicevutaDaNotificare(Long id, String codDominio, String iuv, String ccp, Instant dataMsgRicevuta, byte[] xmlRt,
+                                   List<VoceContabile> voci) {
+
+    public RicevutaDaNotificare {
+        voci = voci == null ? List.of() : List.copyOf(voci);
+    }
+
+    /**
+     * Dati di un singolo versamento necessari per i datiAccertamento
+     */
+    public record VoceContabile(String descrizione, String contabilita) {
+    }
+
+    /**
+     * Voci contabili dei singoli versamenti di una entity, per i percorsi che leggono ancora le RPT come entity
+     */
+    public static List<VoceContabile> voci(Collection<SingoloVersamento> singoliVersamenti) {
+        if (singoliVersamenti == null) {
+            return List.of();
+        }
+        return singoliVersamenti.stream().map(sv -> new VoceContabile(sv.getDescrizione(), sv.getContabilita())).toList();
+    }
+}
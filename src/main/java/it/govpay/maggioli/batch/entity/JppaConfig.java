@@ -33,4 +33,16 @@ public class JppaConfig {
     @Column(name = "data_ultima_rt")
     private Instant dataUltimaRt;
 
+    /**
+     * Classe SLA del dominio, usata dallo scheduling pesato delle partizioni
+     */
+    @Column(name = "classe_sla", length = 35)
+    private String classeSla;
+
+    /**
+     * Peso del dominio nello scheduling delle partizioni (se assente vale il peso della classe SLA)
+     */
+    @Column(name = "peso")
+    private Integer peso;
+
 }
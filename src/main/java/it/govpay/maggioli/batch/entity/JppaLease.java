@@ -0,0 +1,54 @@
+package it.govpay.maggioli.batch.entity;
+
+import java.time.Instant;
+
+import org.springframework.data.domain.Persistable;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Entity representing the lease of a domain held by a node in cooperative mode
+ */
+@Entity
+@Table(name = "JPPA_LEASE")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class JppaLease implements Persistable<String> {
+
+    @Id
+    @Column(name = "cod_dominio", length = 35)
+    private String codDominio;
+
+    @Column(name = "nodo", length = 255)
+    private String nodo;
+
+    /**
+     * Data oltre la quale il lease, se non rinnovato, puo' essere acquisito da un altro nodo
+     */
+    @Column(name = "scadenza", nullable = false)
+    private Instant scadenza;
+
+    @Column(name = "data_acquisizione")
+    private Instant dataAcquisizione;
+
+    @Override
+    public String getId() {
+        return codDominio;
+    }
+
+    /**
+     * Le righe vengono solo inserite (un inserimento concorrente fallisce sulla chiave primaria),
+     * gli aggiornamenti passano dalle query condizionate di JppaLeaseRepository
+     */
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+
+}
@@ -0,0 +1,29 @@
+package it.govpay.maggioli.batch.entity;
+
+import java.time.Instant;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Entity representing a node taking part in cooperative mode, kept alive by its heartbeat
+ */
+@Entity
+@Table(name = "JPPA_NODI")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class JppaNodo {
+
+    @Id
+    @Column(name = "nodo", length = 255)
+    private String nodo;
+
+    @Column(name = "ultimo_heartbeat", nullable = false)
+    private Instant ultimoHeartbeat;
+
+}
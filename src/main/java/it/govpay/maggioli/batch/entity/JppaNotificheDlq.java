@@ -0,0 +1,53 @@
+package it.govpay.maggioli.batch.entity;
+
+import java.time.Instant;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Entity representing a notification that could not be delivered (dead letter), to be resent by the re-drive job
+ */
+@Entity
+@Table(name = "JPPA_NOTIFICHE_DLQ")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class JppaNotificheDlq {
+
+    @Id
+    @Column(name = "id_rpt")
+    private Long idRpt;
+
+    @Column(name = "cod_dominio", nullable = false, length = 35)
+    private String codDominio;
+
+    @Column(name = "iuv", length = 35)
+    private String iuv;
+
+    @Column(name = "ccp", length = 35)
+    private String ccp;
+
+    @Column(name = "data_msg_ricevuta")
+    private Instant dataMsgRicevuta;
+
+    @Column(name = "tentativi", nullable = false)
+    private int tentativi;
+
+    @Column(name = "ultimo_errore", length = 1000)
+    private String ultimoErrore;
+
+    @Column(name = "data_inserimento", nullable = false)
+    private Instant dataInserimento;
+
+    /**
+     * Data dopo la quale la notifica puo' essere reinviata (null = tentativi esauriti)
+     */
+    @Column(name = "data_prossimo_tentativo")
+    private Instant dataProssimoTentativo;
+
+}
@@ -0,0 +1,22 @@
+package it.govpay.maggioli.batch.exception;
+
+import java.util.List;
+
+/**
+ * Eccezione lanciata quando la richiesta di notifica non supera la validazione locale.
+ * Come {@link LoginFailedException} non estende RestClientException: la ricevuta va
+ * direttamente in esito di errore, senza login, invio o retry.
+ */
+public class PayloadValidationException extends RuntimeException {
+
+    private final List<String> errori;
+
+    public PayloadValidationException(String codDominio, List<String> errori) {
+        super("Richiesta di notifica non valida per dominio " + codDominio + ": " + String.join("; ", errori));
+        this.errori = List.copyOf(errori);
+    }
+
+    public List<String> getErrori() {
+        return errori;
+    }
+}
@@ -1,14 +1,25 @@
 package it.govpay.maggioli.batch.listener;
 
+import java.util.IntSummaryStatistics;
+
 import org.springframework.batch.core.job.JobExecution;
 import org.springframework.batch.core.step.StepExecution;
 import org.springframework.stereotype.Component;
 
 import it.govpay.common.batch.listener.AbstractBatchExecutionListener;
+import it.govpay.maggioli.batch.step3.AdaptiveChunkCompletionPolicy;
+import lombok.extern.slf4j.Slf4j;
 
 @Component
+@Slf4j
 public class BatchExecutionRecapListener extends AbstractBatchExecutionListener {
 
+    private final AdaptiveChunkCompletionPolicy adaptiveChunkCompletionPolicy;
+
+    public BatchExecutionRecapListener(AdaptiveChunkCompletionPolicy adaptiveChunkCompletionPolicy) {
+        this.adaptiveChunkCompletionPolicy = adaptiveChunkCompletionPolicy;
+    }
+
     @Override
     protected String getBatchName() {
         return "NOTIFICA MAGGIOLI JPPA";
@@ -31,5 +42,23 @@ public class BatchExecutionRecapListener extends AbstractBatchExecutionListener
         // Step 3: Send Notification (partitioned)
         printPartitionedStepStats(jobExecution, "maggioliSendNotificationStep",
             "sendNotificationWorkerStep", 3, "INVIO NOTIFICHE MAGGIOLI JPPA");
+        if (adaptiveChunkCompletionPolicy.isAttiva()) {
+            printChunkTuningStats(jobExecution);
+        }
+    }
+
+    /**
+     * Dimensioni di chunk scelte dal chunk-tuning, come registrate a fine partizione
+     */
+    private void printChunkTuningStats(JobExecution jobExecution) {
+        IntSummaryStatistics dimensioni = jobExecution.getStepExecutions().stream()
+            .filter(se -> se.getStepName().startsWith("sendNotificationWorkerStep"))
+            .filter(se -> se.getExecutionContext().containsKey(AdaptiveChunkCompletionPolicy.CHIAVE_DIMENSIONE_CHUNK))
+            .mapToInt(se -> se.getExecutionContext().getInt(AdaptiveChunkCompletionPolicy.CHIAVE_DIMENSIONE_CHUNK))
+            .summaryStatistics();
+        if (dimensioni.getCount() > 0) {
+            log.info("    Dimensione chunk (chunk-tuning): attuale {}, min {}, max {} su {} partizioni",
+                adaptiveChunkCompletionPolicy.getDimensione(), dimensioni.getMin(), dimensioni.getMax(), dimensioni.getCount());
+        }
     }
 }
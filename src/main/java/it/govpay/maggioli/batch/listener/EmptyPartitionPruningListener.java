@@ -0,0 +1,62 @@
+package it.govpay.maggioli.batch.listener;
+
+import java.util.List;
+
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.listener.JobExecutionListener;
+import org.springframework.batch.core.step.StepExecution;
+import org.springframework.stereotype.Component;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.service.BatchMetadataPruner;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A fine job elimina dal repository le step execution delle partizioni dello step 3 che non hanno trovato
+ * ricevute: con una partizione per dominio a ogni esecuzione sono la gran parte delle righe di BATCH_STEP_EXECUTION.
+ * Le partizioni con ricevute, errori o scarti restano registrate.
+ */
+@Component
+@Slf4j
+public class EmptyPartitionPruningListener implements JobExecutionListener {
+
+    private static final String WORKER_STEP_NAME = "sendNotificationWorkerStep";
+
+    private final BatchMetadataPruner batchMetadataPruner;
+    private final BatchProperties batchProperties;
+
+    public EmptyPartitionPruningListener(BatchMetadataPruner batchMetadataPruner, BatchProperties batchProperties) {
+        this.batchMetadataPruner = batchMetadataPruner;
+        this.batchProperties = batchProperties;
+    }
+
+    @Override
+    public void afterJob(JobExecution jobExecution) {
+        if (!batchProperties.getMetadataPruning().isEscludiPartizioniVuote()) {
+            return;
+        }
+        List<Long> vuote = jobExecution.getStepExecutions().stream()
+                .filter(se -> se.getStepName().startsWith(WORKER_STEP_NAME))
+                .filter(EmptyPartitionPruningListener::senzaLavoro)
+                .map(StepExecution::getId)
+                .toList();
+        if (vuote.isEmpty()) {
+            return;
+        }
+        try {
+            batchMetadataPruner.eliminaStepExecution(vuote);
+            log.debug("Eliminate {} step execution di partizioni senza ricevute", vuote.size());
+        } catch (Exception e) {
+            log.warn("Errore nell'eliminazione delle step execution delle partizioni vuote: {}", e.getMessage());
+        }
+    }
+
+    private static boolean senzaLavoro(StepExecution stepExecution) {
+        return stepExecution.getStatus() == BatchStatus.COMPLETED
+                && stepExecution.getReadCount() == 0
+                && stepExecution.getWriteCount() == 0
+                && stepExecution.getSkipCount() == 0
+                && stepExecution.getFilterCount() == 0;
+    }
+}
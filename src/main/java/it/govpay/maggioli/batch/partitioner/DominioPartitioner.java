@@ -1,8 +1,9 @@
 package it.govpay.maggioli.batch.partitioner;
 
-import it.govpay.maggioli.batch.entity.JppaConfig;
-import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.ConfigurazioneRun;
 import it.govpay.maggioli.batch.repository.JppaNotificheRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.batch.core.partition.Partitioner;
 import org.springframework.batch.infrastructure.item.ExecutionContext;
@@ -12,42 +13,60 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * Partitioner che divide il lavoro per cod_dominio.
  * Ogni partizione processa tutti i flussi di un singolo ente creditore.
+ * In modalita' streaming le partizioni sono i domini abilitati, ancora prima dell'acquisizione degli headers.
+ * Connettore e dati di scheduling dei domini sono letti dalla configurazione dell'esecuzione.
  */
 @Component
 @Slf4j
 public class DominioPartitioner implements Partitioner {
 
     private final JppaNotificheRepository jppaNotificheRepository;
-    private final JppaConfigRepository jppaConfigRepository;
+    private final ConfigurazioneRunService configurazioneRunService;
+    private final BatchProperties batchProperties;
 
-    public DominioPartitioner(JppaNotificheRepository jppaNotificheRepository, JppaConfigRepository jppaConfigRepository) {
+    public DominioPartitioner(JppaNotificheRepository jppaNotificheRepository, ConfigurazioneRunService configurazioneRunService, BatchProperties batchProperties) {
         this.jppaNotificheRepository = jppaNotificheRepository;
-        this.jppaConfigRepository = jppaConfigRepository;
+        this.configurazioneRunService = configurazioneRunService;
+        this.batchProperties = batchProperties;
     }
 
     @Override
     public Map<String, ExecutionContext> partition(int gridSize) {
-        // Recupera tutti i cod_dominio distinti presenti in JPPA_NOTIFICHE
-        List<String> domini = jppaNotificheRepository.findDistinctCodDominio();
+        ConfigurazioneRun configurazione = configurazioneRunService.corrente();
+        List<String> domini;
+        if (batchProperties.getStreaming().isEnabled()) {
+            // Modalita' streaming: gli headers sono acquisiti da ogni partizione, si parte dai domini abilitati
+            domini = configurazione.dominiAbilitati().stream().map(ConfigurazioneRun.Dominio::codDominio).toList();
+            log.info("Creazione partizioni: trovati {} domini abilitati in JPPA_CONFIG", domini.size());
+        } else {
+            // Recupera tutti i cod_dominio distinti presenti in JPPA_NOTIFICHE
+            domini = jppaNotificheRepository.findDistinctCodDominio();
+            log.info("Creazione partizioni: trovati {} domini in JPPA_NOTIFICHE", domini.size());
+        }
 
-        log.info("Creazione partizioni: trovati {} domini in JPPA_NOTIFICHE", domini.size());
+        boolean scheduling = batchProperties.getScheduling().isEnabled();
+        Map<String, JppaNotificheRepository.BacklogDominioProjection> backlog = scheduling
+                ? jppaNotificheRepository.findBacklogPerDominio().stream()
+                        .collect(Collectors.toMap(JppaNotificheRepository.BacklogDominioProjection::getCodDominio, b -> b))
+                : Map.of();
 
         Map<String, ExecutionContext> partitions = new HashMap<>();
 
         for (int i = 0; i < domini.size(); i++) {
             String codDominio = domini.get(i);
 
-            Optional<JppaConfig> jppaConfigOpt = jppaConfigRepository.findByCodDominio(codDominio);
-            if (jppaConfigOpt.isEmpty() || jppaConfigOpt.get().getConnettore() == null) {
+            Optional<ConfigurazioneRun.Dominio> dominio = configurazione.dominio(codDominio);
+            if (dominio.isEmpty() || dominio.get().codConnettore() == null) {
                 log.warn("Nessun connettore configurato per il dominio {}, partizione ignorata", codDominio);
                 continue;
             }
 
-            String codConnettore = jppaConfigOpt.get().getConnettore();
+            String codConnettore = dominio.get().codConnettore();
 
             ExecutionContext context = new ExecutionContext();
             context.putString("codDominio", codDominio);
@@ -55,6 +74,10 @@ public class DominioPartitioner implements Partitioner {
             context.putInt("partitionNumber", i + 1);
             context.putInt("totalPartitions", domini.size());
 
+            if (scheduling) {
+                putSchedulingInfo(context, dominio.get(), backlog.get(codDominio));
+            }
+
             // Nome partizione: partition-dominio
             String partitionName = "partition-" + codDominio;
             partitions.put(partitionName, context);
@@ -65,4 +88,18 @@ public class DominioPartitioner implements Partitioner {
         log.info("Partizioni create: {} (gridSize richiesto: {})", partitions.size(), gridSize);
         return partitions;
     }
+
+    /**
+     * Dati usati da {@link WeightedFairPartitionHandler} per ordinare le partizioni
+     */
+    private void putSchedulingInfo(ExecutionContext context, ConfigurazioneRun.Dominio dominio, JppaNotificheRepository.BacklogDominioProjection backlog) {
+        String classeSla = dominio.classeSla() != null ? dominio.classeSla() : batchProperties.getScheduling().getClasseDefault();
+        context.putString(WeightedFairPartitionHandler.CTX_CLASSE_SLA, classeSla);
+        if (dominio.peso() != null && dominio.peso() > 0) {
+            context.putInt(WeightedFairPartitionHandler.CTX_PESO, dominio.peso());
+        }
+        if (backlog != null && backlog.getDataRtMenoRecente() != null) {
+            context.putLong(WeightedFairPartitionHandler.CTX_DATA_RT_MENO_RECENTE, backlog.getDataRtMenoRecente().toEpochMilli());
+        }
+    }
 }
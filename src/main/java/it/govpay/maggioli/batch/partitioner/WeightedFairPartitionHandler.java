@@ -0,0 +1,207 @@
+package it.govpay.maggioli.batch.partitioner;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.partition.PartitionHandler;
+import org.springframework.batch.core.partition.StepExecutionSplitter;
+import org.springframework.batch.core.step.Step;
+import org.springframework.batch.core.step.StepExecution;
+import org.springframework.batch.infrastructure.item.ExecutionContext;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * PartitionHandler che assegna gli slot di esecuzione alle partizioni (domini) con weighted fair queuing
+ * per classe SLA.
+ * Ogni classe ha una propria coda, ordinata per ricevuta pendente piu' vecchia; a ogni slot libero viene
+ * eseguita la testa della classe con tempo di fine virtuale minore. Il costo di una partizione e' l'inverso
+ * del suo peso (peso del dominio in JPPA_CONFIG o, in mancanza, peso della classe), mentre l'attesa della
+ * ricevuta piu' vecchia anticipa la partizione di un turno per ogni intervallo di invecchiamento, cosi'
+ * nessun dominio resta indietro a tempo indeterminato.
+ */
+@Slf4j
+public class WeightedFairPartitionHandler implements PartitionHandler {
+
+    public static final String CTX_CLASSE_SLA = "classeSla";
+    public static final String CTX_PESO = "peso";
+    public static final String CTX_DATA_RT_MENO_RECENTE = "dataRtMenoRecente";
+
+    static final String METRIC_ATTESA_CODA = "govpay.maggioli.scheduling.queue.wait";
+
+    private final Step step;
+    private final TaskExecutor taskExecutor;
+    private final int slot;
+    private final BatchProperties.Scheduling scheduling;
+    private final MeterRegistry meterRegistry;
+    private final Clock clock;
+
+    public WeightedFairPartitionHandler(Step step, TaskExecutor taskExecutor, int slot,
+                                        BatchProperties.Scheduling scheduling, MeterRegistry meterRegistry) {
+        this(step, taskExecutor, slot, scheduling, meterRegistry, Clock.systemUTC());
+    }
+
+    WeightedFairPartitionHandler(Step step, TaskExecutor taskExecutor, int slot,
+                                 BatchProperties.Scheduling scheduling, MeterRegistry meterRegistry, Clock clock) {
+        this.step = step;
+        this.taskExecutor = taskExecutor;
+        this.slot = Math.max(1, slot);
+        this.scheduling = scheduling;
+        this.meterRegistry = meterRegistry;
+        this.clock = clock;
+    }
+
+    @Override
+    public Collection<StepExecution> handle(StepExecutionSplitter stepSplitter, StepExecution managerStepExecution) throws Exception {
+        Set<StepExecution> partizioni = stepSplitter.split(managerStepExecution, slot);
+        Set<StepExecution> risultati = new LinkedHashSet<>();
+        if (partizioni.isEmpty()) {
+            return risultati;
+        }
+
+        long inizio = clock.millis();
+        CodaFair coda = new CodaFair(scheduling.getInvecchiamentoMillis());
+        partizioni.stream()
+                .sorted(Comparator.comparing(StepExecution::getStepName))
+                .forEach(se -> coda.accoda(elemento(se, inizio)));
+
+        log.info("Scheduling pesato di {} partizioni su {} slot", partizioni.size(), slot);
+
+        Semaphore slotLiberi = new Semaphore(slot);
+        List<Future<StepExecution>> tasks = new ArrayList<>();
+        while (!coda.isEmpty()) {
+            slotLiberi.acquire();
+            long adesso = clock.millis();
+            Elemento elemento = coda.prossimo(adesso);
+            StepExecution stepExecution = elemento.stepExecution();
+
+            Timer.builder(METRIC_ATTESA_CODA)
+                    .description("Attesa in coda delle partizioni prima dell'esecuzione, per classe SLA")
+                    .tag("classe", elemento.classe())
+                    .register(meterRegistry)
+                    .record(Duration.ofMillis(adesso - elemento.accodatoIl()));
+            log.debug("Avvio partizione {} (classe {}, peso {}) dopo {} ms di attesa",
+                    stepExecution.getStepName(), elemento.classe(), elemento.peso(), adesso - elemento.accodatoIl());
+
+            FutureTask<StepExecution> task = new FutureTask<>(() -> {
+                try {
+                    step.execute(stepExecution);
+                } finally {
+                    slotLiberi.release();
+                }
+                return stepExecution;
+            });
+            try {
+                taskExecutor.execute(task);
+                tasks.add(task);
+            } catch (TaskRejectedException e) {
+                slotLiberi.release();
+                log.error("Partizione {} rifiutata dal task executor: {}", stepExecution.getStepName(), e.getMessage());
+                stepExecution.setStatus(BatchStatus.FAILED);
+                stepExecution.setExitStatus(ExitStatus.FAILED.addExitDescription(e));
+                risultati.add(stepExecution);
+            }
+        }
+
+        for (Future<StepExecution> task : tasks) {
+            risultati.add(task.get());
+        }
+        return risultati;
+    }
+
+    private Elemento elemento(StepExecution stepExecution, long accodatoIl) {
+        ExecutionContext context = stepExecution.getExecutionContext();
+        String classe = context.containsKey(CTX_CLASSE_SLA) ? context.getString(CTX_CLASSE_SLA) : scheduling.getClasseDefault();
+        int peso = context.containsKey(CTX_PESO) ? context.getInt(CTX_PESO) : scheduling.getPesiClassi().getOrDefault(classe, 1);
+        Long dataRtMenoRecente = context.containsKey(CTX_DATA_RT_MENO_RECENTE) ? context.getLong(CTX_DATA_RT_MENO_RECENTE) : null;
+        return new Elemento(stepExecution, classe, Math.max(1, peso), dataRtMenoRecente, accodatoIl);
+    }
+
+    record Elemento(StepExecution stepExecution, String classe, int peso, Long dataRtMenoRecente, long accodatoIl) {
+    }
+
+    /**
+     * Code per classe SLA con selezione per tempo di fine virtuale (WFQ).
+     * Non thread-safe: usata solo dal thread che esegue {@link #handle}.
+     */
+    static final class CodaFair {
+
+        private final long invecchiamentoMillis;
+        private final Map<String, Deque<Elemento>> code = new TreeMap<>();
+        private final Map<String, Double> finePerClasse = new HashMap<>();
+        private double tempoVirtuale = 0;
+
+        CodaFair(long invecchiamentoMillis) {
+            this.invecchiamentoMillis = invecchiamentoMillis;
+        }
+
+        void accoda(Elemento elemento) {
+            Deque<Elemento> coda = code.computeIfAbsent(elemento.classe(), k -> new ArrayDeque<>());
+            List<Elemento> ordinata = new ArrayList<>(coda);
+            ordinata.add(elemento);
+            // Dentro la classe precede il dominio con la ricevuta pendente piu' vecchia
+            ordinata.sort(Comparator.comparing(Elemento::dataRtMenoRecente, Comparator.nullsLast(Comparator.naturalOrder())));
+            coda.clear();
+            coda.addAll(ordinata);
+        }
+
+        boolean isEmpty() {
+            return code.values().stream().allMatch(Deque::isEmpty);
+        }
+
+        Elemento prossimo(long adesso) {
+            String classeScelta = null;
+            double tagMigliore = Double.MAX_VALUE;
+            for (Map.Entry<String, Deque<Elemento>> entry : code.entrySet()) {
+                Elemento testa = entry.getValue().peekFirst();
+                if (testa == null) {
+                    continue;
+                }
+                double tag = inizioVirtuale(entry.getKey()) + 1.0 / testa.peso() - bonusInvecchiamento(testa, adesso);
+                if (tag < tagMigliore) {
+                    tagMigliore = tag;
+                    classeScelta = entry.getKey();
+                }
+            }
+            if (classeScelta == null) {
+                return null;
+            }
+            Elemento scelto = code.get(classeScelta).pollFirst();
+            double inizio = inizioVirtuale(classeScelta);
+            finePerClasse.put(classeScelta, inizio + 1.0 / scelto.peso());
+            tempoVirtuale = inizio;
+            return scelto;
+        }
+
+        private double inizioVirtuale(String classe) {
+            return Math.max(finePerClasse.getOrDefault(classe, 0d), tempoVirtuale);
+        }
+
+        private double bonusInvecchiamento(Elemento elemento, long adesso) {
+            if (invecchiamentoMillis <= 0 || elemento.dataRtMenoRecente() == null) {
+                return 0;
+            }
+            return Math.max(0, adesso - elemento.dataRtMenoRecente()) / (double) invecchiamentoMillis;
+        }
+    }
+}
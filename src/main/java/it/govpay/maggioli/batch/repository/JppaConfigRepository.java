@@ -1,10 +1,15 @@
 package it.govpay.maggioli.batch.repository;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import it.govpay.maggioli.batch.entity.JppaConfig;
 
@@ -13,5 +18,26 @@ public interface JppaConfigRepository extends JpaRepository<JppaConfig, String>
 
 	List<JppaConfig> findAllByAbilitato(Boolean abilitato);
 
+	long countByAbilitato(Boolean abilitato);
+
+	List<JppaConfig> findAllByAbilitatoAndConnettore(Boolean abilitato, String connettore);
+
 	Optional<JppaConfig> findByCodDominio(String codDominio);
+
+	/**
+     * Aggiorna la data ultima RT del dominio senza rileggerne la configurazione
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE JppaConfig c SET c.dataUltimaRt = :dataUltimaRt WHERE c.codDominio = :codDominio")
+    int aggiornaDataUltimaRt(@Param("codDominio") String codDominio, @Param("dataUltimaRt") Instant dataUltimaRt);
+
+	/**
+     * Aggiorna la data ultima RT solo se il nodo possiede ancora un lease valido sul dominio (modalita' cooperativa)
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE JppaConfig c SET c.dataUltimaRt = :dataUltimaRt WHERE c.codDominio = :codDominio AND EXISTS (SELECT l FROM JppaLease l WHERE l.codDominio = :codDominio AND l.nodo = :nodo AND l.scadenza >= CURRENT_TIMESTAMP)")
+    int aggiornaDataUltimaRtConLease(@Param("codDominio") String codDominio, @Param("dataUltimaRt") Instant dataUltimaRt,
+    		@Param("nodo") String nodo);
 }
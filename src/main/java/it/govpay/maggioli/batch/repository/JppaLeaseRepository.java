@@ -0,0 +1,49 @@
+package it.govpay.maggioli.batch.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import it.govpay.maggioli.batch.entity.JppaLease;
+
+@Repository
+public interface JppaLeaseRepository extends JpaRepository<JppaLease, String> {
+
+    /**
+     * Acquisisce il lease del dominio se libero, scaduto o gia' del nodo: l'aggiornamento condizionato
+     * garantisce che un solo nodo lo ottenga. Scadenza e confronto usano l'orologio del database, cosi'
+     * lo sfasamento tra gli orologi dei nodi non anticipa ne' ritarda il passaggio del lease.
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE JppaLease l SET l.nodo = :nodo, l.scadenza = CURRENT_TIMESTAMP + :durata SECOND, l.dataAcquisizione = CURRENT_TIMESTAMP WHERE l.codDominio = :codDominio AND (l.nodo = :nodo OR l.nodo IS NULL OR l.scadenza < CURRENT_TIMESTAMP)")
+    int acquisisci(@Param("codDominio") String codDominio, @Param("nodo") String nodo, @Param("durata") long durataSecondi);
+
+    /**
+     * Rinnova i lease ancora validi del nodo (heartbeat)
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE JppaLease l SET l.scadenza = CURRENT_TIMESTAMP + :durata SECOND WHERE l.nodo = :nodo AND l.scadenza >= CURRENT_TIMESTAMP")
+    int rinnova(@Param("nodo") String nodo, @Param("durata") long durataSecondi);
+
+    /**
+     * Rilascia il lease del dominio, che diventa subito acquisibile dagli altri nodi
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE JppaLease l SET l.nodo = NULL, l.scadenza = CURRENT_TIMESTAMP WHERE l.codDominio = :codDominio AND l.nodo = :nodo")
+    int rilascia(@Param("codDominio") String codDominio, @Param("nodo") String nodo);
+
+    /**
+     * Domini con lease valido del nodo
+     */
+    @Query("SELECT l.codDominio FROM JppaLease l WHERE l.nodo = :nodo AND l.scadenza >= CURRENT_TIMESTAMP")
+    List<String> findDominiPosseduti(@Param("nodo") String nodo);
+
+}
@@ -0,0 +1,29 @@
+package it.govpay.maggioli.batch.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import it.govpay.maggioli.batch.entity.JppaNodo;
+
+@Repository
+public interface JppaNodoRepository extends JpaRepository<JppaNodo, String> {
+
+    /**
+     * Record the node heartbeat with the database clock
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE JppaNodo n SET n.ultimoHeartbeat = CURRENT_TIMESTAMP WHERE n.nodo = :nodo")
+    int registraHeartbeat(@Param("nodo") String nodo);
+
+    /**
+     * Count the nodes whose heartbeat, by the database clock, is within the given number of seconds
+     */
+    @Query("SELECT COUNT(n) FROM JppaNodo n WHERE n.ultimoHeartbeat >= CURRENT_TIMESTAMP - :durata SECOND")
+    long countAttivi(@Param("durata") long durataSecondi);
+
+}
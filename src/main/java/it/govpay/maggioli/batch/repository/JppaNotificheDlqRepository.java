@@ -0,0 +1,25 @@
+package it.govpay.maggioli.batch.repository;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
+
+@Repository
+public interface JppaNotificheDlqRepository extends JpaRepository<JppaNotificheDlq, Long> {
+
+    /**
+     * Find the notifications whose resend is due, oldest first (bounded by the page size)
+     */
+    List<JppaNotificheDlq> findByDataProssimoTentativoLessThanEqualOrderByDataProssimoTentativo(Instant data, Pageable pageable);
+
+    /**
+     * Count the notifications that exhausted their resend attempts
+     */
+    long countByDataProssimoTentativoIsNull();
+
+}
@@ -1,24 +1,42 @@
 package it.govpay.maggioli.batch.repository;
 
+import java.time.Instant;
 import java.util.List;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 import it.govpay.maggioli.batch.entity.JppaNotifiche;
 
 @Repository
 public interface JppaNotificheRepository extends JpaRepository<JppaNotifiche, Long> {
+	public interface BacklogDominioProjection {
+		String getCodDominio();
+		Instant getDataRtMenoRecente();
+		Long getNumeroRicevute();
+	}
 
 	/**
      * Delete all records from JPPA_NOTIFICHE
      */
     @Modifying
+    @Transactional
     @Query("DELETE FROM JppaNotifiche")
     void deleteAllRecords();
 
+    /**
+     * Truncate JPPA_NOTIFICHE (no per-row undo/redo). DDL with implicit commit on Oracle and MySQL: it always
+     * runs in its own transaction, so the implicit commit cannot close a caller transaction
+     */
+    @Modifying
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Query(value = "TRUNCATE TABLE JPPA_NOTIFICHE", nativeQuery = true)
+    void truncate();
+
     /**
      * Check if Notifica already exists in temporary table
      */
@@ -30,4 +48,10 @@ public interface JppaNotificheRepository extends JpaRepository<JppaNotifiche, Lo
     @Query("SELECT DISTINCT n.codDominio FROM JppaNotifiche n ORDER BY n.codDominio")
     List<String> findDistinctCodDominio();
 
+    /**
+     * Find, for each cod_dominio in JPPA_NOTIFICHE, the oldest pending receipt date and the number of receipts (for scheduling)
+     */
+    @Query("SELECT n.codDominio AS codDominio, MIN(r.dataMsgRicevuta) AS dataRtMenoRecente, COUNT(r.id) AS numeroRicevute FROM JppaNotifiche n, RPT r WHERE r.id = n.idRpt GROUP BY n.codDominio")
+    List<BacklogDominioProjection> findBacklogPerDominio();
+
 }
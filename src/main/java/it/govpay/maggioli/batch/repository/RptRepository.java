@@ -1,14 +1,20 @@
 package it.govpay.maggioli.batch.repository;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.entity.RPT;
 
 @Repository
@@ -17,6 +23,36 @@ public interface RptRepository extends JpaRepository<RPT, Long> {
 		Long getId();
 	}
 
+	public interface RicevutaProjection {
+		Long getId();
+		Instant getDataMsgRicevuta();
+	}
+
+	/**
+	 * Ricevuta dello step 3 senza i singoli versamenti (prima fase della lettura)
+	 */
+	public interface RptDaNotificareProjection {
+		Long getId();
+		String getCodDominio();
+		String getIuv();
+		String getCcp();
+		Instant getDataMsgRicevuta();
+		byte[] getXmlRt();
+		Long getIdVersamento();
+	}
+
+	/**
+	 * Voce contabile di un singolo versamento (seconda fase della lettura)
+	 */
+	public interface VoceContabileProjection {
+		Long getIdVersamento();
+		String getDescrizione();
+		String getContabilita();
+	}
+
+	/** Massimo numero di versamenti nella IN della seconda fase (Oracle non ne ammette piu' di 1000) */
+	int MAX_VERSAMENTI_PER_QUERY = 500;
+
 	List<InfoProjection> findByCodDominioAndCodEsitoPagamentoIn(String codDominio, List<Integer> codEsitoPagamento);
 
 	List<InfoProjection> findByCodDominioAndCodEsitoPagamentoInAndDataMsgRicevutaAfter(String codDominio, List<Integer> codEsitoPagamento, Instant date);
@@ -40,8 +76,103 @@ public interface RptRepository extends JpaRepository<RPT, Long> {
 	}
 
 	/**
-     * Find all RTP con id in JPPA_NOTIFICHE per il dominio indicato
+     * Data della ricevuta piu' recente dei domini abilitati (sonda del trigger a rilevazione di modifiche)
+     */
+    @Query("SELECT MAX(r.dataMsgRicevuta) FROM RPT r WHERE r.codEsitoPagamento IN :esiti AND r.codDominio IN (SELECT c.codDominio FROM JppaConfig c WHERE c.abilitato = true)")
+    Instant findMaxDataMsgRicevutaDominiAbilitati(@Param("esiti") List<Integer> esiti);
+
+	/**
+     * Ricevute dei domini abilitati successive alla data ultima RT del dominio, ancora da notificare
+     */
+    @Query("SELECT COUNT(r) FROM RPT r, JppaConfig c WHERE r.codDominio = c.codDominio AND c.abilitato = true AND r.codEsitoPagamento IN :esiti AND (c.dataUltimaRt IS NULL OR r.dataMsgRicevuta > c.dataUltimaRt)")
+    long countDaNotificareDominiAbilitati(@Param("esiti") List<Integer> esiti);
+
+	/**
+     * Id delle ricevute del dominio successive alla data indicata, nell'ordine di invio (modalita' continua)
+     */
+    @Query("SELECT r.id AS id, r.dataMsgRicevuta AS dataMsgRicevuta FROM RPT r WHERE r.codDominio = :codDominio AND r.codEsitoPagamento IN :esiti AND r.dataMsgRicevuta > :dopo ORDER BY r.dataMsgRicevuta, r.id")
+    List<RicevutaProjection> findRicevuteDaNotificare(@Param("codDominio") String codDominio, @Param("esiti") List<Integer> esiti, @Param("dopo") Instant dopo, Pageable pageable);
+
+	/**
+     * RTP in JPPA_NOTIFICHE per il dominio indicato, nell'ordine di invio (una riga per ricevuta)
+     */
+    @Query("SELECT r.id AS id, r.codDominio AS codDominio, r.iuv AS iuv, r.ccp AS ccp, r.dataMsgRicevuta AS dataMsgRicevuta, r.xmlRt AS xmlRt, r.versamento.id AS idVersamento FROM RPT r, JppaNotifiche n WHERE n.idRpt = r.id AND r.codDominio = :codDominio ORDER BY r.dataMsgRicevuta, r.id")
+    List<RptDaNotificareProjection> findRptByNotificheOrderByDataMsgRicevuta(@Param("codDominio") String codDominio);
+
+	/**
+     * RTP in JPPA_NOTIFICHE per il dominio indicato escluse quelle in JPPA_NOTIFICHE_DLQ, nell'ordine di invio (una riga per ricevuta)
+     */
+    @Query("SELECT r.id AS id, r.codDominio AS codDominio, r.iuv AS iuv, r.ccp AS ccp, r.dataMsgRicevuta AS dataMsgRicevuta, r.xmlRt AS xmlRt, r.versamento.id AS idVersamento FROM RPT r, JppaNotifiche n WHERE n.idRpt = r.id AND r.codDominio = :codDominio AND NOT EXISTS (SELECT d FROM JppaNotificheDlq d WHERE d.idRpt = r.id) ORDER BY r.dataMsgRicevuta, r.id")
+    List<RptDaNotificareProjection> findRptByNotificheNotInDlqOrderByDataMsgRicevuta(@Param("codDominio") String codDominio);
+
+	/**
+     * RTP con gli id indicati (pagine della pipeline, una riga per ricevuta)
+     */
+    @Query("SELECT r.id AS id, r.codDominio AS codDominio, r.iuv AS iuv, r.ccp AS ccp, r.dataMsgRicevuta AS dataMsgRicevuta, r.xmlRt AS xmlRt, r.versamento.id AS idVersamento FROM RPT r WHERE r.id IN :ids ORDER BY r.id")
+    List<RptDaNotificareProjection> findRptByIdIn(@Param("ids") Collection<Long> ids);
+
+	/**
+     * Descrizione e contabilita' dei singoli versamenti dei versamenti indicati
+     */
+    @Query("SELECT sv.versamento.id AS idVersamento, sv.descrizione AS descrizione, sv.contabilita AS contabilita FROM SingoloVersamento sv WHERE sv.versamento.id IN :idVersamenti ORDER BY sv.id")
+    List<VoceContabileProjection> findVociContabiliByIdVersamentoIn(@Param("idVersamenti") Collection<Long> idVersamenti);
+
+	/**
+     * Ricevute da notificare del dominio indicato (step 3), lette senza entity
+     */
+	default List<RicevutaDaNotificare> findRicevuteByNotificheOrderByDataMsgRicevuta(String codDominio) {
+		return conVociContabili(findRptByNotificheOrderByDataMsgRicevuta(codDominio));
+	}
+
+	/**
+     * Ricevute da notificare del dominio indicato escluse quelle in JPPA_NOTIFICHE_DLQ (step 3), lette senza entity
+     */
+	default List<RicevutaDaNotificare> findRicevuteByNotificheNotInDlqOrderByDataMsgRicevuta(String codDominio) {
+		return conVociContabili(findRptByNotificheNotInDlqOrderByDataMsgRicevuta(codDominio));
+	}
+
+	/**
+     * Ricevute con gli id indicati, lette senza entity
+     */
+	default List<RicevutaDaNotificare> findRicevuteByIdIn(Collection<Long> ids) {
+		return conVociContabili(findRptByIdIn(ids));
+	}
+
+	/**
+     * Completa le ricevute con le voci contabili dei singoli versamenti, lette a blocchi di versamenti.
+     * Le RT sono trasferite una sola volta per ricevuta anche per i pagamenti con piu' quote.
+     */
+	default List<RicevutaDaNotificare> conVociContabili(List<RptDaNotificareProjection> righe) {
+		List<Long> idVersamenti = righe.stream().map(RptDaNotificareProjection::getIdVersamento).distinct().toList();
+		Map<Long, List<RicevutaDaNotificare.VoceContabile>> voci = new HashMap<>();
+		for (int inizio = 0; inizio < idVersamenti.size(); inizio += MAX_VERSAMENTI_PER_QUERY) {
+			List<Long> blocco = idVersamenti.subList(inizio, Math.min(inizio + MAX_VERSAMENTI_PER_QUERY, idVersamenti.size()));
+			for (VoceContabileProjection voce : findVociContabiliByIdVersamentoIn(blocco)) {
+				voci.computeIfAbsent(voce.getIdVersamento(), id -> new ArrayList<>())
+						.add(new RicevutaDaNotificare.VoceContabile(voce.getDescrizione(), voce.getContabilita()));
+			}
+		}
+		return righe.stream()
+				.map(riga -> new RicevutaDaNotificare(riga.getId(), riga.getCodDominio(), riga.getIuv(), riga.getCcp(),
+						riga.getDataMsgRicevuta(), riga.getXmlRt(), voci.get(riga.getIdVersamento())))
+				.toList();
+	}
+
+	/**
+     * Id delle RTP in JPPA_NOTIFICHE per il dominio indicato, nell'ordine di invio (lettura a pagine della pipeline)
+     */
+    @Query("SELECT r.id FROM RPT r, JppaNotifiche n WHERE n.idRpt = r.id AND r.codDominio = :codDominio ORDER BY r.dataMsgRicevuta, r.id")
+    List<Long> findIdsByNotificheOrderByDataMsgRicevuta(@Param("codDominio") String codDominio);
+
+	/**
+     * Id delle RTP in JPPA_NOTIFICHE per il dominio indicato escluse quelle in JPPA_NOTIFICHE_DLQ, nell'ordine di invio
+     */
+    @Query("SELECT r.id FROM RPT r, JppaNotifiche n WHERE n.idRpt = r.id AND r.codDominio = :codDominio AND NOT EXISTS (SELECT d FROM JppaNotificheDlq d WHERE d.idRpt = r.id) ORDER BY r.dataMsgRicevuta, r.id")
+    List<Long> findIdsByNotificheNotInDlqOrderByDataMsgRicevuta(@Param("codDominio") String codDominio);
+
+	/**
+     * Find RTP by id with versamento and singoli versamenti (for re-drive and continuous mode)
      */
-    @Query("SELECT r FROM RPT r JOIN FETCH r.versamento v LEFT JOIN FETCH v.singoliVersamenti, JppaNotifiche n WHERE n.idRpt = r.id AND r.codDominio = :codDominio ORDER BY r.dataMsgRicevuta")
-    List<RPT> findByNotificheOrderByDataMsgRicevuta(@Param("codDominio") String codDominio);
+    @Query("SELECT DISTINCT r FROM RPT r JOIN FETCH r.versamento v LEFT JOIN FETCH v.singoliVersamenti WHERE r.id IN :ids")
+    List<RPT> findByIdInFetchVersamento(@Param("ids") Collection<Long> ids);
 }
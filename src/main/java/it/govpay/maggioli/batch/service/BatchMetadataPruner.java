@@ -0,0 +1,186 @@
+package it.govpay.maggioli.batch.service;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.batch.autoconfigure.BatchTransactionManager;
+import org.springframework.boot.batch.jdbc.autoconfigure.BatchDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Svecchiamento delle tabelle BATCH_* di Spring Batch, equivalente automatico di sql/{dbms}/spring-batch-cleanup.sql.
+ * <p>
+ * Sono eliminate solo le esecuzioni concluse (COMPLETED, FAILED, STOPPED, ABANDONED) piu' vecchie della retention
+ * o oltre il numero di esecuzioni da mantenere per job. Le cancellazioni procedono a blocchi, ciascuno in una
+ * propria transazione e nell'ordine delle foreign key; l'SQL e' standard (limite delle righe tramite maxRows del
+ * driver, liste IN di al piu' 1000 elementi) e vale per tutti i DBMS supportati. Con il pool dedicato ai metadati
+ * (govpay.batch.metadata-pool) usa il DataSource e il transaction manager del JobRepository.
+ */
+@Service
+@Slf4j
+public class BatchMetadataPruner {
+
+    private static final String STATI_CONCLUSI = "'COMPLETED', 'FAILED', 'STOPPED', 'ABANDONED'";
+    private static final int MAX_BLOCCO = 1000;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BatchProperties batchProperties;
+    private final String prefisso;
+    private final Clock clock;
+
+    public BatchMetadataPruner(@BatchDataSource ObjectProvider<DataSource> batchDataSource, ObjectProvider<DataSource> dataSource,
+                               @BatchTransactionManager ObjectProvider<PlatformTransactionManager> batchTransactionManager,
+                               ObjectProvider<PlatformTransactionManager> transactionManager, BatchProperties batchProperties,
+                               @Value("${spring.batch.jdbc.table-prefix:BATCH_}") String prefisso) {
+        this(new JdbcTemplate(batchDataSource.getIfAvailable(dataSource::getObject)),
+             batchTransactionManager.getIfAvailable(transactionManager::getObject), batchProperties, prefisso, Clock.systemDefaultZone());
+    }
+
+    BatchMetadataPruner(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, BatchProperties batchProperties,
+                        String prefisso, Clock clock) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchProperties = batchProperties;
+        this.prefisso = prefisso;
+        this.clock = clock;
+    }
+
+    @Scheduled(
+        fixedDelayString = "${scheduler.batchMetadataPruning.fixedDelayString:3600000}",
+        initialDelayString = "${scheduler.batchMetadataPruning.initialDelayString:600000}"
+    )
+    public void esegui() {
+        if (!batchProperties.getMetadataPruning().isEnabled()) {
+            return;
+        }
+        try {
+            pota();
+        } catch (Exception e) {
+            log.error("Errore nello svecchiamento delle tabelle {}*: {}", prefisso, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Elimina le esecuzioni oltre la retention per eta' e per numero
+     *
+     * @return numero di esecuzioni di job eliminate
+     */
+    public int pota() {
+        BatchProperties.MetadataPruning config = batchProperties.getMetadataPruning();
+        int eliminate = 0;
+        if (config.getGiorniRetention() > 0) {
+            Timestamp limite = Timestamp.valueOf(LocalDateTime.now(clock).minus(Duration.ofDays(config.getGiorniRetention())));
+            eliminate += potaBlocchi("SELECT JOB_EXECUTION_ID, JOB_INSTANCE_ID FROM " + prefisso + "JOB_EXECUTION"
+                    + " WHERE STATUS IN (" + STATI_CONCLUSI + ") AND END_TIME < ? ORDER BY JOB_EXECUTION_ID", limite);
+        }
+        if (config.getEsecuzioniDaMantenere() > 0) {
+            for (String jobName : jdbcTemplate.queryForList("SELECT DISTINCT JOB_NAME FROM " + prefisso + "JOB_INSTANCE", String.class)) {
+                Long primaDaMantenere = primaEsecuzioneDaMantenere(jobName, config.getEsecuzioniDaMantenere());
+                if (primaDaMantenere != null) {
+                    eliminate += potaBlocchi("SELECT e.JOB_EXECUTION_ID, e.JOB_INSTANCE_ID FROM " + prefisso + "JOB_EXECUTION e JOIN "
+                            + prefisso + "JOB_INSTANCE i ON e.JOB_INSTANCE_ID = i.JOB_INSTANCE_ID WHERE i.JOB_NAME = ? AND e.STATUS IN ("
+                            + STATI_CONCLUSI + ") AND e.JOB_EXECUTION_ID < ? ORDER BY e.JOB_EXECUTION_ID", jobName, primaDaMantenere);
+                }
+            }
+        }
+        if (eliminate > 0) {
+            log.info("Svecchiamento tabelle {}*: eliminate {} esecuzioni di job", prefisso, eliminate);
+        }
+        return eliminate;
+    }
+
+    /**
+     * Elimina step execution (e relativi contesti) di un'esecuzione ancora in corso, ad esempio le partizioni vuote
+     */
+    public void eliminaStepExecution(List<Long> stepExecutionIds) {
+        for (List<Long> blocco : blocchi(stepExecutionIds)) {
+            transactionTemplate.executeWithoutResult(status -> {
+                String in = segnaposti(blocco.size());
+                Object[] args = blocco.toArray();
+                jdbcTemplate.update("DELETE FROM " + prefisso + "STEP_EXECUTION_CONTEXT WHERE STEP_EXECUTION_ID IN (" + in + ")", args);
+                jdbcTemplate.update("DELETE FROM " + prefisso + "STEP_EXECUTION WHERE STEP_EXECUTION_ID IN (" + in + ")", args);
+            });
+        }
+    }
+
+    private Long primaEsecuzioneDaMantenere(String jobName, int daMantenere) {
+        JdbcTemplate limitato = limitato(daMantenere);
+        List<Long> recenti = limitato.queryForList("SELECT e.JOB_EXECUTION_ID FROM " + prefisso + "JOB_EXECUTION e JOIN " + prefisso
+                + "JOB_INSTANCE i ON e.JOB_INSTANCE_ID = i.JOB_INSTANCE_ID WHERE i.JOB_NAME = ? ORDER BY e.JOB_EXECUTION_ID DESC", Long.class, jobName);
+        return recenti.size() < daMantenere ? null : recenti.get(recenti.size() - 1);
+    }
+
+    private int potaBlocchi(String selezione, Object... args) {
+        JdbcTemplate limitato = limitato(Math.clamp(batchProperties.getMetadataPruning().getDimensioneBlocco(), 1, MAX_BLOCCO));
+        int eliminate = 0;
+        while (true) {
+            List<Long> esecuzioni = new ArrayList<>();
+            Set<Long> istanze = new LinkedHashSet<>();
+            limitato.query(selezione, (RowCallbackHandler) rs -> {
+                esecuzioni.add(rs.getLong(1));
+                istanze.add(rs.getLong(2));
+            }, args);
+            if (esecuzioni.isEmpty()) {
+                return eliminate;
+            }
+            transactionTemplate.executeWithoutResult(status -> eliminaEsecuzioni(esecuzioni, new ArrayList<>(istanze)));
+            eliminate += esecuzioni.size();
+        }
+    }
+
+    private void eliminaEsecuzioni(List<Long> esecuzioni, List<Long> istanze) {
+        String in = segnaposti(esecuzioni.size());
+        Object[] args = esecuzioni.toArray();
+        jdbcTemplate.update("DELETE FROM " + prefisso + "STEP_EXECUTION_CONTEXT WHERE STEP_EXECUTION_ID IN (SELECT STEP_EXECUTION_ID FROM "
+                + prefisso + "STEP_EXECUTION WHERE JOB_EXECUTION_ID IN (" + in + "))", args);
+        jdbcTemplate.update("DELETE FROM " + prefisso + "STEP_EXECUTION WHERE JOB_EXECUTION_ID IN (" + in + ")", args);
+        jdbcTemplate.update("DELETE FROM " + prefisso + "JOB_EXECUTION_CONTEXT WHERE JOB_EXECUTION_ID IN (" + in + ")", args);
+        jdbcTemplate.update("DELETE FROM " + prefisso + "JOB_EXECUTION_PARAMS WHERE JOB_EXECUTION_ID IN (" + in + ")", args);
+        jdbcTemplate.update("DELETE FROM " + prefisso + "JOB_EXECUTION WHERE JOB_EXECUTION_ID IN (" + in + ")", args);
+        // Istanze rimaste senza esecuzioni
+        jdbcTemplate.update("DELETE FROM " + prefisso + "JOB_INSTANCE WHERE JOB_INSTANCE_ID IN (" + segnaposti(istanze.size())
+                + ") AND NOT EXISTS (SELECT 1 FROM " + prefisso + "JOB_EXECUTION e WHERE e.JOB_INSTANCE_ID = " + prefisso
+                + "JOB_INSTANCE.JOB_INSTANCE_ID)", istanze.toArray());
+    }
+
+    private JdbcTemplate limitato(int righe) {
+        JdbcTemplate limitato = new JdbcTemplate(jdbcTemplate.getDataSource());
+        limitato.setMaxRows(righe);
+        return limitato;
+    }
+
+    private static List<List<Long>> blocchi(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<List<Long>> blocchi = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += MAX_BLOCCO) {
+            blocchi.add(ids.subList(i, Math.min(ids.size(), i + MAX_BLOCCO)));
+        }
+        return blocchi;
+    }
+
+    private static String segnaposti(int n) {
+        return String.join(", ", Collections.nCopies(n, "?"));
+    }
+}
@@ -0,0 +1,219 @@
+package it.govpay.maggioli.batch.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.listener.JobExecutionListener;
+import org.springframework.batch.core.scope.context.StepContext;
+import org.springframework.batch.core.scope.context.StepSynchronizationManager;
+import org.springframework.stereotype.Service;
+
+import it.govpay.common.client.model.Connettore;
+import it.govpay.maggioli.batch.dto.ConfigurazioneRun;
+import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Configurazione dell'esecuzione ({@link ConfigurazioneRun}): ricaricata all'avvio di ogni job con una sola query
+ * su JPPA_CONFIG e una lettura per connettore ({@link ConnettoreCache}), poi letta da partitioner, reader, listener, writer e client API
+ * al posto delle ricerche per partizione e per ricevuta.
+ * <p>
+ * Tra un'esecuzione e l'altra la nuova configurazione viene confrontata con la precedente tramite l'impronta
+ * (domini e proprieta' dei connettori, esclusa la data ultima RT) e le differenze sono registrate nel log.
+ * <p>
+ * La configurazione di un job e' legata alla sua esecuzione (jobExecutionId) dal beforeJob all'afterJob: le
+ * esecuzioni contemporanee (job principale e reinvio DLQ) hanno ciascuna la propria e l'invalidazione
+ * ({@code /clearCache}) non la sostituisce a esecuzione in corso, ma vale dal job successivo. I thread senza
+ * contesto di step (ad esempio gli invii concorrenti del reinvio DLQ) usano quella del job avviato per ultimo.
+ * Fuori dai job (modalita' continua) la configurazione caricata alla prima richiesta viene scartata
+ * dall'invalidazione e riletta dopo la durata delle voci della cache dei connettori, se attiva, cosi' da seguirne
+ * gli aggiornamenti.
+ */
+@Service
+@Slf4j
+public class ConfigurazioneRunService implements JobExecutionListener {
+
+    private final JppaConfigRepository jppaConfigRepository;
+    private final ConnettoreCache connettoreCache;
+    private final Clock clock;
+
+    private final Map<Long, ConfigurazioneRun> perEsecuzione = new ConcurrentHashMap<>();
+    private volatile Long ultimaEsecuzione;
+    private volatile ConfigurazioneRun corrente;
+    private String ultimaVersione;
+
+    public ConfigurazioneRunService(JppaConfigRepository jppaConfigRepository, ConnettoreCache connettoreCache) {
+        this(jppaConfigRepository, connettoreCache, Clock.systemUTC());
+    }
+
+    ConfigurazioneRunService(JppaConfigRepository jppaConfigRepository, ConnettoreCache connettoreCache, Clock clock) {
+        this.jppaConfigRepository = jppaConfigRepository;
+        this.connettoreCache = connettoreCache;
+        this.clock = clock;
+    }
+
+    @Override
+    public void beforeJob(JobExecution jobExecution) {
+        perEsecuzione.put(jobExecution.getId(), aggiorna());
+        ultimaEsecuzione = jobExecution.getId();
+    }
+
+    @Override
+    public void afterJob(JobExecution jobExecution) {
+        perEsecuzione.remove(jobExecution.getId());
+    }
+
+    /**
+     * Configurazione del job in esecuzione sul thread o, fuori dai job, configurazione corrente caricata alla
+     * prima richiesta
+     */
+    public ConfigurazioneRun corrente() {
+        ConfigurazioneRun diEsecuzione = diEsecuzione();
+        if (diEsecuzione != null) {
+            return diEsecuzione;
+        }
+        ConfigurazioneRun configurazione = corrente;
+        if (configurazione == null || scaduta(configurazione)) {
+            return aggiorna();
+        }
+        return configurazione;
+    }
+
+    /**
+     * Scarta la configurazione usata fuori dai job: la successiva richiesta la rilegge. Le esecuzioni in corso
+     * mantengono la propria, il prossimo job legge quella aggiornata
+     */
+    public void invalida() {
+        corrente = null;
+    }
+
+    private ConfigurazioneRun diEsecuzione() {
+        StepContext contesto = StepSynchronizationManager.getContext();
+        if (contesto != null) {
+            ConfigurazioneRun configurazione = perEsecuzione.get(contesto.getStepExecution().getJobExecutionId());
+            if (configurazione != null) {
+                return configurazione;
+            }
+        }
+        Long ultima = ultimaEsecuzione;
+        return ultima != null ? perEsecuzione.get(ultima) : null;
+    }
+
+    private boolean scaduta(ConfigurazioneRun configurazione) {
+        return connettoreCache.isAbilitata()
+                && clock.millis() - configurazione.caricamento().toEpochMilli() >= connettoreCache.getTtlMillis();
+    }
+
+    /**
+     * Connettore dalla configurazione corrente, o dalla cache dei connettori se non vi compare
+     */
+    public Connettore connettore(String codConnettore) {
+        return corrente().connettore(codConnettore)
+                .map(ConfigurazioneRun.ConnettoreRun::connettore)
+                .orElseGet(() -> connettoreCache.getConnettore(codConnettore));
+    }
+
+    /**
+     * Proprieta' del connettore dalla configurazione corrente, o dalla cache dei connettori se non vi compare
+     */
+    public Map<String, String> proprieta(String codConnettore) {
+        return corrente().connettore(codConnettore)
+                .map(ConfigurazioneRun.ConnettoreRun::proprieta)
+                .orElseGet(() -> connettoreCache.getConnettoreAsMap(codConnettore));
+    }
+
+    /**
+     * Rilegge JPPA_CONFIG e i connettori dei domini
+     */
+    public synchronized ConfigurazioneRun aggiorna() {
+        Map<String, ConfigurazioneRun.Dominio> domini = new LinkedHashMap<>();
+        for (JppaConfig config : jppaConfigRepository.findAll()) {
+            domini.put(config.getCodDominio(), new ConfigurazioneRun.Dominio(config.getCodDominio(), config.getConnettore(),
+                    Boolean.TRUE.equals(config.getAbilitato()), config.getDataUltimaRt(), config.getClasseSla(), config.getPeso()));
+        }
+
+        Map<String, ConfigurazioneRun.ConnettoreRun> connettori = new HashMap<>();
+        for (ConfigurazioneRun.Dominio dominio : domini.values()) {
+            String codConnettore = dominio.codConnettore();
+            if (codConnettore == null || connettori.containsKey(codConnettore)) {
+                continue;
+            }
+            try {
+                connettori.put(codConnettore, new ConfigurazioneRun.ConnettoreRun(connettoreCache.getConnettore(codConnettore),
+                        connettoreCache.getConnettoreAsMap(codConnettore)));
+            } catch (RuntimeException e) {
+                // Non blocca gli altri domini: chi usa il connettore lo richiede alla cache e ne riceve l'errore
+                log.warn("Connettore {} del dominio {} non disponibile: {}", codConnettore, dominio.codDominio(), e.getMessage());
+            }
+        }
+
+        ConfigurazioneRun configurazione = new ConfigurazioneRun(impronta(domini, connettori), clock.instant(), domini, connettori);
+        registraModifiche(configurazione);
+        corrente = configurazione;
+        return configurazione;
+    }
+
+    private void registraModifiche(ConfigurazioneRun nuova) {
+        ConfigurazioneRun precedente = corrente;
+        if (ultimaVersione == null) {
+            log.info("Configurazione caricata: {} domini ({} abilitati), {} connettori",
+                    nuova.domini().size(), nuova.dominiAbilitati().size(), nuova.connettori().size());
+        } else if (!ultimaVersione.equals(nuova.versione())) {
+            if (precedente != null) {
+                log.info("Configurazione modificata: domini {}, connettori {}",
+                        modificati(precedente.domini(), nuova.domini(), ConfigurazioneRunService::confrontabile),
+                        modificati(precedente.connettori(), nuova.connettori(), ConfigurazioneRun.ConnettoreRun::proprieta));
+            } else {
+                log.info("Configurazione modificata: {} domini ({} abilitati), {} connettori",
+                        nuova.domini().size(), nuova.dominiAbilitati().size(), nuova.connettori().size());
+            }
+        } else {
+            log.debug("Configurazione invariata (versione {})", nuova.versione());
+        }
+        ultimaVersione = nuova.versione();
+    }
+
+    /**
+     * Chiavi aggiunte, rimosse o con valore diverso (senza riportare i valori, che includono credenziali)
+     */
+    private static <V> Set<String> modificati(Map<String, V> prima, Map<String, V> dopo, Function<V, Object> valore) {
+        Set<String> chiavi = new TreeSet<>(prima.keySet());
+        chiavi.addAll(dopo.keySet());
+        chiavi.removeIf(k -> prima.containsKey(k) && dopo.containsKey(k) && Objects.equals(valore.apply(prima.get(k)), valore.apply(dopo.get(k))));
+        return chiavi;
+    }
+
+    /**
+     * Campi del dominio che contano per la versione: la data ultima RT cambia a ogni esecuzione
+     */
+    private static Object confrontabile(ConfigurazioneRun.Dominio dominio) {
+        return List.of(String.valueOf(dominio.codConnettore()), dominio.abilitato(), String.valueOf(dominio.classeSla()), String.valueOf(dominio.peso()));
+    }
+
+    static String impronta(Map<String, ConfigurazioneRun.Dominio> domini, Map<String, ConfigurazioneRun.ConnettoreRun> connettori) {
+        StringBuilder sb = new StringBuilder();
+        new TreeMap<>(domini).forEach((cod, dominio) -> sb.append(cod).append('=').append(confrontabile(dominio)).append('\n'));
+        new TreeMap<>(connettori).forEach((cod, connettore) -> sb.append(cod).append('=').append(new TreeMap<>(connettore.proprieta())).append('\n'));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 non disponibile", e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package it.govpay.maggioli.batch.service;
+
+import java.sql.SQLException;
+import java.time.Clock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Limita le transazioni dei chunk degli step 2 e 3 aperte in contemporanea alle connessioni disponibili nel
+ * pool Hikari del primario, perche' i thread attendano un permesso invece di andare in timeout su getConnection.
+ * <p>
+ * Il limite parte dalla dimensione massima del pool meno una riserva (JobRepository, letture fuori dal chunk) e
+ * viene ricalcolato a intervalli: scende di uno se ci sono thread in attesa di una connessione o se l'attesa
+ * massima recente del pool supera la soglia, risale di uno altrimenti. Le transazioni annidate non richiedono
+ * un altro permesso. All'avvio viene segnalato un pool sottodimensionato o sovradimensionato rispetto ai thread.
+ */
+@Service
+@Slf4j
+public class ConnectionPoolGovernor {
+
+    static final String METRIC_PERMESSI = "govpay.maggioli.pool.governor.permits";
+    static final String METRIC_ATTESA = "govpay.maggioli.pool.governor.wait";
+    static final String METRIC_ATTESA_HIKARI = "hikaricp.connections.acquire";
+
+    private final BatchProperties batchProperties;
+    private final Supplier<HikariPoolMXBean> pool;
+    private final Supplier<String> nomePool;
+    private final int dimensionePool;
+    private final int limiteBase;
+    private final MeterRegistry meterRegistry;
+    private final Clock clock;
+
+    private final Permessi permessi;
+    private final AtomicInteger limite = new AtomicInteger();
+    private final Timer attesa;
+
+    private volatile long prossimaVerifica;
+
+    public ConnectionPoolGovernor(DataSource dataSource, BatchProperties batchProperties, MeterRegistry meterRegistry) {
+        this(hikari(dataSource), batchProperties, meterRegistry, Clock.systemUTC());
+    }
+
+    private ConnectionPoolGovernor(HikariDataSource hikari, BatchProperties batchProperties, MeterRegistry meterRegistry, Clock clock) {
+        // Nome e MXBean sono disponibili solo dopo l'avvio del pool, alla prima connessione
+        this(hikari != null ? hikari.getMaximumPoolSize() : 0, hikari != null ? hikari::getPoolName : () -> null,
+                hikari != null ? hikari::getHikariPoolMXBean : () -> null, batchProperties, meterRegistry, clock);
+    }
+
+    ConnectionPoolGovernor(int dimensionePool, Supplier<String> nomePool, Supplier<HikariPoolMXBean> pool, BatchProperties batchProperties,
+                           MeterRegistry meterRegistry, Clock clock) {
+        this.batchProperties = batchProperties;
+        this.pool = pool;
+        this.nomePool = nomePool;
+        this.dimensionePool = dimensionePool;
+        this.meterRegistry = meterRegistry;
+        this.clock = clock;
+        this.limiteBase = Math.max(1, dimensionePool - batchProperties.getPoolGovernor().getRiservaConnessioni());
+        this.limite.set(limiteBase);
+        this.permessi = new Permessi(limiteBase);
+        this.attesa = Timer.builder(METRIC_ATTESA)
+                .description("Attesa di un permesso per aprire la transazione del chunk").register(meterRegistry);
+        if (isAttivo()) {
+            meterRegistry.gauge(METRIC_PERMESSI, limite);
+        }
+        verificaConfigurazione();
+    }
+
+    public boolean isAttivo() {
+        return batchProperties.getPoolGovernor().isEnabled() && dimensionePool > 0;
+    }
+
+    public int getLimite() {
+        return limite.get();
+    }
+
+    /**
+     * Transaction manager dei chunk con il limite sulle transazioni concorrenti; invariato se il governor non e' attivo
+     */
+    public PlatformTransactionManager governa(PlatformTransactionManager transactionManager) {
+        return isAttivo() ? new TransactionManagerGovernato(transactionManager) : transactionManager;
+    }
+
+    /**
+     * Attende un permesso se il thread non ha gia' una transazione attiva
+     *
+     * @return true se e' stato acquisito un permesso da rilasciare
+     */
+    boolean acquisisci() {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return false;
+        }
+        ricalibra();
+        long inizio = System.nanoTime();
+        try {
+            permessi.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CannotCreateTransactionException("Interrotto in attesa di una connessione del pool", e);
+        } finally {
+            attesa.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    void rilascia() {
+        permessi.release();
+    }
+
+    /**
+     * Ricalcola il limite dall'occupazione del pool, al piu' una volta per intervallo di verifica
+     */
+    void ricalibra() {
+        long adesso = clock.millis();
+        if (adesso < prossimaVerifica) {
+            return;
+        }
+        synchronized (this) {
+            if (adesso < prossimaVerifica) {
+                return;
+            }
+            prossimaVerifica = adesso + batchProperties.getPoolGovernor().getVerificaMillis();
+            HikariPoolMXBean statoPool = pool.get();
+            if (statoPool == null) {
+                // Pool non ancora avviato
+                return;
+            }
+            int inAttesa = statoPool.getThreadsAwaitingConnection();
+            double attesaMassima = attesaMassimaPool();
+            int corrente = limite.get();
+            if ((inAttesa > 0 || attesaMassima > batchProperties.getPoolGovernor().getAttesaMassimaMillis()) && corrente > 1) {
+                limite.set(corrente - 1);
+                permessi.riduci(1);
+                log.info("Pool {} sotto pressione ({} thread in attesa, attesa massima {} ms): transazioni concorrenti ridotte a {}",
+                        nomePool.get(), inAttesa, Math.round(attesaMassima), corrente - 1);
+            } else if (inAttesa == 0 && attesaMassima <= batchProperties.getPoolGovernor().getAttesaMassimaMillis() && corrente < limiteBase) {
+                limite.set(corrente + 1);
+                permessi.release();
+                log.debug("Pool {} libero: transazioni concorrenti portate a {}", nomePool.get(), corrente + 1);
+            }
+        }
+    }
+
+    private double attesaMassimaPool() {
+        String nome = nomePool.get();
+        if (nome == null) {
+            return 0;
+        }
+        Timer acquisizione = meterRegistry.find(METRIC_ATTESA_HIKARI).tag("pool", nome).timer();
+        return acquisizione != null ? acquisizione.max(TimeUnit.MILLISECONDS) : 0;
+    }
+
+    private void verificaConfigurazione() {
+        if (dimensionePool <= 0) {
+            log.warn("DataSource non Hikari: dimensione del pool non disponibile, governor delle connessioni disattivato");
+            return;
+        }
+        int thread = batchProperties.getThreadPoolSize();
+        if (thread > limiteBase) {
+            log.warn("thread-pool-size={} supera le connessioni disponibili per i chunk ({} del pool meno {} di riserva): {}",
+                    thread, limiteBase, batchProperties.getPoolGovernor().getRiservaConnessioni(),
+                    isAttivo() ? "i thread in eccesso attenderanno un permesso"
+                               : "i thread in eccesso rischiano il timeout su getConnection, abilitare govpay.batch.pool-governor.enabled o aumentare il pool");
+        } else if (thread * 2 < limiteBase) {
+            log.info("Il pool di {} connessioni e' sovradimensionato per thread-pool-size={}: le connessioni in eccesso restano inattive",
+                    dimensionePool, thread);
+        }
+    }
+
+    private static HikariDataSource hikari(DataSource dataSource) {
+        try {
+            // Anche dietro al proxy della replica: il pool e' quello del primario
+            return dataSource.isWrapperFor(HikariDataSource.class) ? dataSource.unwrap(HikariDataSource.class) : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Semaforo con riduzione dei permessi anche se gia' assegnati
+     */
+    private static final class Permessi extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Permessi(int permessi) {
+            super(permessi, true);
+        }
+
+        void riduci(int permessi) {
+            reducePermits(permessi);
+        }
+    }
+
+    /**
+     * Acquisisce il permesso prima della connessione e lo rilascia al commit o al rollback
+     */
+    private final class TransactionManagerGovernato implements PlatformTransactionManager {
+
+        private final PlatformTransactionManager delegato;
+        private final Set<TransactionStatus> conPermesso = ConcurrentHashMap.newKeySet();
+
+        TransactionManagerGovernato(PlatformTransactionManager delegato) {
+            this.delegato = delegato;
+        }
+
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) throws TransactionException {
+            boolean permesso = acquisisci();
+            try {
+                TransactionStatus status = delegato.getTransaction(definition);
+                if (permesso) {
+                    conPermesso.add(status);
+                }
+                return status;
+            } catch (RuntimeException | Error e) {
+                if (permesso) {
+                    rilascia();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void commit(TransactionStatus status) throws TransactionException {
+            try {
+                delegato.commit(status);
+            } finally {
+                if (conPermesso.remove(status)) {
+                    rilascia();
+                }
+            }
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) throws TransactionException {
+            try {
+                delegato.rollback(status);
+            } finally {
+                if (conPermesso.remove(status)) {
+                    rilascia();
+                }
+            }
+        }
+    }
+}
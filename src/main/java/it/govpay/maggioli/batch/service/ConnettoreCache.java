@@ -0,0 +1,242 @@
+package it.govpay.maggioli.batch.service;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.govpay.common.client.model.Connettore;
+import it.govpay.common.client.service.ConnettoreService;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cache dei connettori davanti al {@link ConnettoreService} (govpay.batch.connettore-cache.enabled=true).
+ * <p>
+ * Ogni voce scade dopo ttl-millis dal caricamento; una lettura nell'ultimo anticipo-millis restituisce la voce
+ * corrente e avvia il ricaricamento in background, per cui le voci lette con continuita' non scadono e non
+ * bloccano i thread. Un solo thread per connettore carica una voce mancante o scaduta, gli altri ne attendono
+ * il risultato.
+ * <p>
+ * Il {@link ConnettoreService} ha una propria cache, svuotabile solo per intero: non viene svuotata a ogni
+ * caricamento, ma solo se la copia che conserva potrebbe essere meno recente della voce da sostituire (o, al
+ * primo caricamento, piu' vecchia di ttl-millis). Un ciclo di ricaricamento di tutti i connettori svuota cosi'
+ * la cache del {@link ConnettoreService} una volta sola, e l'istante di una voce e' quello dell'ultimo
+ * svuotamento, da cui la copia e' stata letta. L'invalidazione di un connettore la svuota sempre.
+ * <p>
+ * Con la cache disattivata le letture passano direttamente al {@link ConnettoreService}.
+ */
+@Service
+@Slf4j
+public class ConnettoreCache {
+
+    static final String METRIC_RICHIESTE = "govpay.maggioli.connettori.cache.requests";
+    static final String METRIC_CARICAMENTO = "govpay.maggioli.connettori.cache.load";
+
+    /**
+     * Connettore con le sue proprieta' e l'istante di caricamento
+     */
+    record Voce(Connettore connettore, Map<String, String> proprieta, Instant caricamento) {
+    }
+
+    private final ConnettoreService connettoreService;
+    private final BatchProperties batchProperties;
+    private final MeterRegistry meterRegistry;
+    private final Clock clock;
+    private final Executor executor;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Voce>> voci = new ConcurrentHashMap<>();
+    private final Set<String> inAggiornamento = ConcurrentHashMap.newKeySet();
+    private Instant ultimoSvuotamento = Instant.EPOCH;
+    private final Counter hit;
+    private final Counter miss;
+
+    public ConnettoreCache(ConnettoreService connettoreService, BatchProperties batchProperties, MeterRegistry meterRegistry) {
+        this(connettoreService, batchProperties, meterRegistry, Clock.systemUTC(), new SimpleAsyncTaskExecutor("maggioli-connettori-"));
+    }
+
+    ConnettoreCache(ConnettoreService connettoreService, BatchProperties batchProperties, MeterRegistry meterRegistry, Clock clock, Executor executor) {
+        this.connettoreService = connettoreService;
+        this.batchProperties = batchProperties;
+        this.meterRegistry = meterRegistry;
+        this.clock = clock;
+        this.executor = executor;
+        this.hit = Counter.builder(METRIC_RICHIESTE).description("Letture della cache connettori").tag("esito", "hit").register(meterRegistry);
+        this.miss = Counter.builder(METRIC_RICHIESTE).description("Letture della cache connettori").tag("esito", "miss").register(meterRegistry);
+    }
+
+    public boolean isAbilitata() {
+        return batchProperties.getConnettoreCache().isEnabled();
+    }
+
+    /**
+     * Durata di una voce, per chi conserva a sua volta i connettori letti
+     */
+    public long getTtlMillis() {
+        return batchProperties.getConnettoreCache().getTtlMillis();
+    }
+
+    public Connettore getConnettore(String codConnettore) {
+        if (!isAbilitata()) {
+            return connettoreService.getConnettore(codConnettore);
+        }
+        return voce(codConnettore).connettore();
+    }
+
+    public Map<String, String> getConnettoreAsMap(String codConnettore) {
+        if (!isAbilitata()) {
+            return connettoreService.getConnettoreAsMap(codConnettore);
+        }
+        return voce(codConnettore).proprieta();
+    }
+
+    /**
+     * Scarta la voce del connettore: la lettura successiva la ricarica. Con la cache disattivata viene
+     * svuotata la cache del {@link ConnettoreService}, che non e' invalidabile per singolo connettore.
+     */
+    public void invalida(String codConnettore) {
+        if (!isAbilitata()) {
+            connettoreService.clearCache();
+            return;
+        }
+        voci.remove(codConnettore);
+        svuota();
+        log.info("Connettore {} rimosso dalla cache", codConnettore);
+    }
+
+    /**
+     * Scarta tutte le voci
+     */
+    public void invalidaTutto() {
+        voci.clear();
+    }
+
+    Voce voce(String codConnettore) {
+        BatchProperties.ConnettoreCache config = batchProperties.getConnettoreCache();
+        while (true) {
+            CompletableFuture<Voce> futura = voci.get(codConnettore);
+            if (futura == null) {
+                CompletableFuture<Voce> nuova = new CompletableFuture<>();
+                futura = voci.putIfAbsent(codConnettore, nuova);
+                if (futura == null) {
+                    miss.increment();
+                    return caricaVoce(codConnettore, nuova, null);
+                }
+            }
+            if (!futura.isDone()) {
+                // Caricamento in corso su un altro thread: si attende il suo risultato
+                miss.increment();
+                return attendi(futura);
+            }
+            if (futura.isCompletedExceptionally()) {
+                voci.remove(codConnettore, futura);
+                continue;
+            }
+            Voce voce = futura.join();
+            long eta = clock.millis() - voce.caricamento().toEpochMilli();
+            if (eta >= config.getTtlMillis()) {
+                CompletableFuture<Voce> nuova = new CompletableFuture<>();
+                if (voci.replace(codConnettore, futura, nuova)) {
+                    miss.increment();
+                    return caricaVoce(codConnettore, nuova, voce.caricamento());
+                }
+                continue;
+            }
+            hit.increment();
+            if (eta >= config.getTtlMillis() - config.getAnticipoMillis()) {
+                aggiornaInBackground(codConnettore, futura, voce.caricamento());
+            }
+            return voce;
+        }
+    }
+
+    private Voce caricaVoce(String codConnettore, CompletableFuture<Voce> futura, Instant precedente) {
+        try {
+            Voce voce = carica(codConnettore, "sincrono", precedente);
+            futura.complete(voce);
+            return voce;
+        } catch (RuntimeException e) {
+            voci.remove(codConnettore, futura);
+            futura.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void aggiornaInBackground(String codConnettore, CompletableFuture<Voce> corrente, Instant precedente) {
+        if (!inAggiornamento.add(codConnettore)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                Voce voce = carica(codConnettore, "anticipato", precedente);
+                // Se nel frattempo la voce e' stata invalidata non viene reinserita
+                voci.replace(codConnettore, corrente, CompletableFuture.completedFuture(voce));
+            } catch (RuntimeException e) {
+                // La voce corrente resta valida fino alla scadenza
+                log.warn("Ricaricamento anticipato del connettore {} fallito: {}", codConnettore, e.getMessage());
+            } finally {
+                inAggiornamento.remove(codConnettore);
+            }
+        });
+    }
+
+    private Voce carica(String codConnettore, String modalita, Instant precedente) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String esito = "ok";
+        try {
+            Instant aggiornataAl = svuotaSeMenoRecente(precedente != null
+                    ? precedente : clock.instant().minusMillis(batchProperties.getConnettoreCache().getTtlMillis()));
+            Voce voce = new Voce(connettoreService.getConnettore(codConnettore), connettoreService.getConnettoreAsMap(codConnettore), aggiornataAl);
+            log.debug("Connettore {} caricato ({})", codConnettore, modalita);
+            return voce;
+        } catch (RuntimeException e) {
+            esito = "errore";
+            throw e;
+        } finally {
+            sample.stop(Timer.builder(METRIC_CARICAMENTO)
+                    .description("Caricamento di un connettore nella cache")
+                    .tag("modalita", modalita)
+                    .tag("esito", esito)
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Svuota la cache del {@link ConnettoreService} se l'ultimo svuotamento non e' successivo al limite
+     *
+     * @return istante da cui le copie del {@link ConnettoreService} sono state lette
+     */
+    private synchronized Instant svuotaSeMenoRecente(Instant limite) {
+        if (!ultimoSvuotamento.isAfter(limite)) {
+            svuota();
+        }
+        return ultimoSvuotamento;
+    }
+
+    private synchronized void svuota() {
+        Instant adesso = clock.instant();
+        connettoreService.clearCache();
+        ultimoSvuotamento = adesso;
+    }
+
+    private static Voce attendi(CompletableFuture<Voce> futura) {
+        try {
+            return futura.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException causa) {
+                throw causa;
+            }
+            throw e;
+        }
+    }
+}
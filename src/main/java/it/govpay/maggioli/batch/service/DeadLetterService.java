@@ -0,0 +1,121 @@
+package it.govpay.maggioli.batch.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
+import it.govpay.maggioli.batch.repository.JppaNotificheDlqRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Gestione della tabella JPPA_NOTIFICHE_DLQ: registrazione delle notifiche non consegnate e pianificazione dei reinvii
+ */
+@Service
+@Slf4j
+public class DeadLetterService {
+
+    private static final int MAX_LUNGHEZZA_ERRORE = 1000;
+
+    private final JppaNotificheDlqRepository dlqRepository;
+    private final BatchProperties batchProperties;
+
+    public DeadLetterService(JppaNotificheDlqRepository dlqRepository, BatchProperties batchProperties) {
+        this.dlqRepository = dlqRepository;
+        this.batchProperties = batchProperties;
+    }
+
+    /**
+     * Registra in blocco le notifiche non consegnate: le nuove vengono inserite,
+     * quelle gia' presenti aggiornano numero di tentativi, errore e data del prossimo reinvio.
+     */
+    @Transactional
+    public void registra(List<JppaNotificheDlq> notifiche) {
+        if (notifiche.isEmpty()) {
+            return;
+        }
+        Map<Long, JppaNotificheDlq> daRegistrare = notifiche.stream()
+                .collect(Collectors.toMap(JppaNotificheDlq::getIdRpt, Function.identity(), (a, b) -> b, LinkedHashMap::new));
+        Map<Long, JppaNotificheDlq> esistenti = dlqRepository.findAllById(daRegistrare.keySet()).stream()
+                .collect(Collectors.toMap(JppaNotificheDlq::getIdRpt, Function.identity()));
+
+        Instant adesso = Instant.now();
+        List<JppaNotificheDlq> daSalvare = new ArrayList<>(daRegistrare.size());
+        for (JppaNotificheDlq notifica : daRegistrare.values()) {
+            JppaNotificheDlq esistente = esistenti.get(notifica.getIdRpt());
+            if (esistente == null) {
+                notifica.setTentativi(1);
+                notifica.setUltimoErrore(tronca(notifica.getUltimoErrore()));
+                notifica.setDataInserimento(adesso);
+                notifica.setDataProssimoTentativo(prossimoTentativo(1, adesso));
+                daSalvare.add(notifica);
+            } else {
+                registraFallimento(esistente, notifica.getUltimoErrore(), adesso);
+                daSalvare.add(esistente);
+            }
+        }
+        dlqRepository.saveAll(daSalvare);
+        log.info("Registrate {} notifiche in JPPA_NOTIFICHE_DLQ ({} gia' presenti)", daSalvare.size(), esistenti.size());
+    }
+
+    /**
+     * Rimuove dalla DLQ una notifica consegnata, in una transazione propria
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void rimuovi(JppaNotificheDlq notifica) {
+        dlqRepository.deleteById(notifica.getIdRpt());
+    }
+
+    /**
+     * Registra il fallimento di un reinvio e salva la notifica ripianificata, in una transazione propria
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void registraReinvioFallito(JppaNotificheDlq notifica, String errore, Instant adesso) {
+        registraFallimento(notifica, errore, adesso);
+        dlqRepository.save(notifica);
+    }
+
+    /**
+     * Aggiorna la notifica dopo un reinvio fallito; superato il numero massimo di tentativi non viene piu' ripianificata.
+     */
+    public void registraFallimento(JppaNotificheDlq notifica, String errore, Instant adesso) {
+        notifica.setTentativi(notifica.getTentativi() + 1);
+        notifica.setUltimoErrore(tronca(errore));
+        if (notifica.getTentativi() >= batchProperties.getDlq().getMaxTentativi()) {
+            log.warn("Notifica idRpt={} (dominio {}, iuv {}): raggiunto il numero massimo di tentativi ({}), reinvio sospeso",
+                    notifica.getIdRpt(), notifica.getCodDominio(), notifica.getIuv(), notifica.getTentativi());
+            notifica.setDataProssimoTentativo(null);
+        } else {
+            notifica.setDataProssimoTentativo(prossimoTentativo(notifica.getTentativi(), adesso));
+        }
+    }
+
+    /**
+     * Backoff esponenziale sul numero di tentativi, limitato al massimo configurato
+     */
+    Instant prossimoTentativo(int tentativi, Instant adesso) {
+        BatchProperties.Dlq dlq = batchProperties.getDlq();
+        long ritardo = dlq.getBackoffInizialeMillis();
+        for (int i = 1; i < tentativi && ritardo < dlq.getBackoffMassimoMillis(); i++) {
+            ritardo *= 2;
+        }
+        return adesso.plus(Duration.ofMillis(Math.min(ritardo, dlq.getBackoffMassimoMillis())));
+    }
+
+    private static String tronca(String errore) {
+        if (errore == null || errore.length() <= MAX_LUNGHEZZA_ERRORE) {
+            return errore;
+        }
+        return errore.substring(0, MAX_LUNGHEZZA_ERRORE);
+    }
+}
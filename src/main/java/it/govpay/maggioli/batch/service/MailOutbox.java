@@ -0,0 +1,210 @@
+package it.govpay.maggioli.batch.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.govpay.common.mail.MailInfo;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coda di invio delle email di report (govpay.batch.mail-outbox.enabled=true).
+ * <p>
+ * I thread di partizione accodano il messaggio e proseguono; thread dedicati lo consegnano al
+ * {@link MaggioliMailService} e in caso di errore lo ritentano con backoff esponenziale fino a max-tentativi.
+ * Gli allegati restano file fino all'invio e sono letti dal thread di invio, per cui in memoria ci sono al piu'
+ * gli allegati dei messaggi in consegna. Con la coda piena il messaggio viene inviato dal thread chiamante.
+ * <p>
+ * Con la coda disattivata il messaggio viene inviato subito dal thread chiamante, che riceve l'eventuale errore.
+ * <p>
+ * La coda e' solo in memoria. In chiusura, dopo l'attesa delle consegne in corso, i messaggi ancora in coda o in
+ * attesa di un nuovo tentativo sono inviati un'ultima volta dal thread di chiusura; per ogni messaggio che non
+ * e' possibile consegnare sono registrati nel log oggetto, destinatari e file allegati, per un invio manuale.
+ */
+@Service
+@Slf4j
+public class MailOutbox {
+
+    static final String METRIC_CODA = "govpay.maggioli.mail.outbox.size";
+    static final String METRIC_INVIO = "govpay.maggioli.mail.send";
+
+    private final MaggioliMailService mailService;
+    private final BatchProperties batchProperties;
+    private final MeterRegistry meterRegistry;
+    private final ScheduledExecutorService executor;
+    private final AtomicInteger inCoda = new AtomicInteger();
+    private final Set<Messaggio> inAttesa = ConcurrentHashMap.newKeySet();
+
+    public MailOutbox(MaggioliMailService mailService, BatchProperties batchProperties, MeterRegistry meterRegistry) {
+        this(mailService, batchProperties, meterRegistry, Executors.newScheduledThreadPool(
+                Math.max(1, batchProperties.getMailOutbox().getConcorrenza()), new CustomizableThreadFactory("maggioli-mail-")));
+    }
+
+    MailOutbox(MaggioliMailService mailService, BatchProperties batchProperties, MeterRegistry meterRegistry, ScheduledExecutorService executor) {
+        this.mailService = mailService;
+        this.batchProperties = batchProperties;
+        this.meterRegistry = meterRegistry;
+        this.executor = executor;
+        Gauge.builder(METRIC_CODA, inCoda, AtomicInteger::get)
+                .description("Email di report in attesa di invio o di un nuovo tentativo")
+                .register(meterRegistry);
+    }
+
+    public boolean isAbilitata() {
+        return batchProperties.getMailOutbox().isEnabled();
+    }
+
+    /**
+     * Invia o accoda il messaggio; gli allegati (nome → file) sono aggiunti al momento dell'invio
+     */
+    public void invia(MailInfo.MailInfoBuilder mail, Map<String, Path> allegati) {
+        MailInfo anteprima = mail.build();
+        Messaggio messaggio = new Messaggio(mail, new LinkedHashMap<>(allegati), anteprima.getOggetto(), String.valueOf(anteprima.getTo()));
+        if (!isAbilitata()) {
+            consegna(messaggio);
+            return;
+        }
+        if (inCoda.incrementAndGet() > batchProperties.getMailOutbox().getCapacitaCoda()) {
+            inCoda.decrementAndGet();
+            log.warn("Coda email piena, invio di \"{}\" dal thread chiamante", messaggio.oggetto());
+            consegna(messaggio);
+            return;
+        }
+        inAttesa.add(messaggio);
+        pianifica(messaggio, 1, 0);
+    }
+
+    private void pianifica(Messaggio messaggio, int tentativo, long ritardoMillis) {
+        try {
+            executor.schedule(() -> tenta(messaggio, tentativo), ritardoMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Resta tra i messaggi in attesa: viene inviato un'ultima volta in chiusura
+            log.warn("Email \"{}\" non pianificata: coda in chiusura", messaggio.oggetto());
+        }
+    }
+
+    private void tenta(Messaggio messaggio, int tentativo) {
+        BatchProperties.MailOutbox config = batchProperties.getMailOutbox();
+        try {
+            consegna(messaggio);
+            rimuovi(messaggio);
+        } catch (RuntimeException e) {
+            if (tentativo >= config.getMaxTentativi()) {
+                rimuovi(messaggio);
+                log.error("Email \"{}\" a {} scartata dopo {} tentativi: {}", messaggio.oggetto(), messaggio.destinatari(),
+                        tentativo, e.getMessage(), e);
+                return;
+            }
+            long attesa = Math.min(config.getBackoffMassimoMillis(), config.getBackoffInizialeMillis() << Math.min(tentativo - 1, 20));
+            log.warn("Invio email \"{}\" fallito (tentativo {}), nuovo tentativo tra {} ms: {}", messaggio.oggetto(), tentativo, attesa, e.getMessage());
+            pianifica(messaggio, tentativo + 1, attesa);
+        }
+    }
+
+    private void rimuovi(Messaggio messaggio) {
+        if (inAttesa.remove(messaggio)) {
+            inCoda.decrementAndGet();
+        }
+    }
+
+    private void consegna(Messaggio messaggio) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String esito = "ok";
+        try {
+            MailInfo.MailInfoBuilder mail = messaggio.mail();
+            if (!messaggio.allegati().isEmpty()) {
+                mail.allegati(leggiAllegati(messaggio.allegati()));
+            }
+            mailService.inviaEmail(mail.build());
+        } catch (RuntimeException e) {
+            esito = "errore";
+            throw e;
+        } finally {
+            // Il contenuto degli allegati non resta in memoria tra un tentativo e l'altro
+            if (!messaggio.allegati().isEmpty()) {
+                messaggio.mail().allegati(null);
+            }
+            sample.stop(Timer.builder(METRIC_INVIO)
+                    .description("Invio di una email di report")
+                    .tag("esito", esito)
+                    .register(meterRegistry));
+        }
+    }
+
+    private static Map<String, byte[]> leggiAllegati(Map<String, Path> allegati) {
+        Map<String, byte[]> contenuti = new LinkedHashMap<>();
+        allegati.forEach((nome, file) -> {
+            try {
+                contenuti.put(nome, Files.readAllBytes(file));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Allegato " + file + " non leggibile", e);
+            }
+        });
+        return contenuti;
+    }
+
+    @PreDestroy
+    void chiudi() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                // Scarta i nuovi tentativi pianificati e attende le consegne interrotte
+                executor.shutdownNow();
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+        svuota();
+    }
+
+    /**
+     * Ultimo tentativo di invio, dal thread di chiusura, dei messaggi rimasti in coda
+     */
+    private void svuota() {
+        List<Messaggio> rimasti = List.copyOf(inAttesa);
+        if (rimasti.isEmpty()) {
+            return;
+        }
+        log.warn("{} email di report non ancora inviate in chiusura: ultimo tentativo di invio", rimasti.size());
+        int perse = 0;
+        for (Messaggio messaggio : rimasti) {
+            try {
+                consegna(messaggio);
+                log.info("Email \"{}\" a {} inviata in chiusura", messaggio.oggetto(), messaggio.destinatari());
+            } catch (RuntimeException e) {
+                perse++;
+                log.error("Email \"{}\" a {} non inviata in chiusura, allegati {}: {}", messaggio.oggetto(), messaggio.destinatari(),
+                        messaggio.allegati().values(), e.getMessage());
+            } finally {
+                rimuovi(messaggio);
+            }
+        }
+        if (perse > 0) {
+            log.error("{} email di report perse in chiusura", perse);
+        }
+    }
+
+    private record Messaggio(MailInfo.MailInfoBuilder mail, Map<String, Path> allegati, String oggetto, String destinatari) {
+    }
+}
@@ -3,7 +3,6 @@ package it.govpay.maggioli.batch.service;
 import java.time.OffsetDateTime;
 import java.util.Base64;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -15,10 +14,12 @@ import org.springframework.web.client.RestTemplate;
 
 import it.govpay.common.client.model.Connettore;
 import it.govpay.common.client.service.ConnettoreService;
-import it.govpay.maggioli.batch.entity.SingoloVersamento;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.exception.LoginFailedException;
+import it.govpay.maggioli.batch.exception.PayloadValidationException;
 import it.govpay.maggioli.batch.gde.service.GdeService;
 import it.govpay.maggioli.batch.utils.SendingUtils;
+import it.govpay.maggioli.batch.validation.NotificaPagamentoValidator;
 import it.govpay.maggioli.client.ApiClient;
 import it.govpay.maggioli.client.api.AutenticazioneApi;
 import it.govpay.maggioli.client.api.NotificheApi;
@@ -36,11 +37,16 @@ import lombok.extern.slf4j.Slf4j;
 public class NotificheApiService {
 
     private final ConnettoreService connettoreService;
+    private final ConfigurazioneRunService configurazioneRunService;
     private final GdeService gdeService;
+    private final NotificaPagamentoValidator validator;
 
-    public NotificheApiService(ConnettoreService connettoreService, GdeService gdeService) {
+    public NotificheApiService(ConnettoreService connettoreService, ConfigurazioneRunService configurazioneRunService, GdeService gdeService,
+                               NotificaPagamentoValidator validator) {
         this.connettoreService = connettoreService;
+        this.configurazioneRunService = configurazioneRunService;
         this.gdeService = gdeService;
+        this.validator = validator;
     }
 
     /**
@@ -82,11 +88,19 @@ public class NotificheApiService {
     /**
      * Send notifica ricevuto
      */
-    public RispostaNotificaPagamentoDto notificaPagamento(String codConnettore, String codDominio, Set<SingoloVersamento> singoliVersamenti, byte[] xmlRt) throws RestClientException {
+    public RispostaNotificaPagamentoDto notificaPagamento(String codConnettore, String codDominio, List<RicevutaDaNotificare.VoceContabile> voci, byte[] xmlRt) throws RestClientException {
+        // Richiesta costruita e validata prima di login e invio: se non valida non si contatta il servizio
+        return invia(codConnettore, codDominio, buildRichiesta(codDominio, voci, xmlRt));
+    }
+
+    /**
+     * Invia una richiesta di notifica gia' costruita (vedi {@link #buildRichiesta})
+     */
+    public RispostaNotificaPagamentoDto invia(String codConnettore, String codDominio, RichiestaNotificaPagamentoV2Dto notificaPagamento) throws RestClientException {
         try {
             log.debug("Chiamata API per l'invio della notifica di pagamento per il dominio {} tramite connettore {}", codDominio, codConnettore);
 
-            Connettore connettore = connettoreService.getConnettore(codConnettore);
+            Connettore connettore = configurazioneRunService.connettore(codConnettore);
             RestTemplate restTemplate = connettoreService.getRestTemplate(codConnettore);
 
             // Rimuove BasicAuthInterceptor: l'autenticazione Maggioli avviene via login JSON + Bearer token
@@ -102,13 +116,6 @@ public class NotificheApiService {
 
             NotificheApi notificheApi = new NotificheApi(apiClient);
 
-            RichiestaNotificaPagamentoV2Dto notificaPagamento = new RichiestaNotificaPagamentoV2Dto();
-			if (singoliVersamenti != null) {
-				notificaPagamento.setDatiAccertamento(SendingUtils.buildDatiAccertamento(singoliVersamenti));
-			}
-        	notificaPagamento.setIdentificativoDominioEnteCreditore(codDominio);
-        	notificaPagamento.setBase64Ricevuta(Base64.getEncoder().encodeToString(xmlRt));
-
             OffsetDateTime startNotifica = OffsetDateTime.now();
             ResponseEntity<RispostaNotificaPagamentoDto> responseEntity;
             try {
@@ -130,4 +137,33 @@ public class NotificheApiService {
         }
     }
 
+    /**
+     * Costruisce la richiesta di notifica e, se abilitata, la valida localmente.
+     *
+     * @throws PayloadValidationException se la richiesta verrebbe rifiutata dal servizio
+     */
+    public RichiestaNotificaPagamentoV2Dto buildRichiesta(String codDominio, List<RicevutaDaNotificare.VoceContabile> voci, byte[] xmlRt) {
+        RichiestaNotificaPagamentoV2Dto notificaPagamento = new RichiestaNotificaPagamentoV2Dto();
+        try {
+			if (voci != null) {
+				notificaPagamento.setDatiAccertamento(SendingUtils.buildDatiAccertamento(voci));
+			}
+        } catch (RuntimeException e) {
+        	if (!validator.isAbilitata()) {
+        		throw e;
+        	}
+        	throw new PayloadValidationException(codDominio, validator.contabilitaNonValida(e.getMessage()));
+        }
+    	notificaPagamento.setIdentificativoDominioEnteCreditore(codDominio);
+    	notificaPagamento.setBase64Ricevuta(xmlRt != null ? Base64.getEncoder().encodeToString(xmlRt) : null);
+
+    	if (validator.isAbilitata()) {
+    		List<String> errori = validator.valida(notificaPagamento, xmlRt);
+    		if (!errori.isEmpty()) {
+    			throw new PayloadValidationException(codDominio, errori);
+    		}
+    	}
+    	return notificaPagamento;
+    }
+
 }
@@ -0,0 +1,50 @@
+package it.govpay.maggioli.batch.service;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metriche delle notifiche inviate, comuni al job batch e alla modalita' continua
+ * cosi' che latenza e throughput delle due modalita' siano confrontabili.
+ */
+@Component
+public class NotificheMetrics {
+
+    static final String METRIC_INVIATE = "govpay.maggioli.notifiche.sent";
+    static final String METRIC_LATENZA = "govpay.maggioli.notifiche.latency";
+
+    public static final String MODALITA_BATCH = "batch";
+    public static final String MODALITA_CONTINUA = "continua";
+
+    private final MeterRegistry meterRegistry;
+
+    public NotificheMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Registra l'esito di una notifica e la latenza dalla ricezione della RT
+     */
+    public void registra(String modalita, String esito, Instant dataMsgRicevuta) {
+        Counter.builder(METRIC_INVIATE)
+                .description("Notifiche elaborate per esito")
+                .tag("modalita", modalita)
+                .tag("esito", esito != null ? esito : "sconosciuto")
+                .register(meterRegistry)
+                .increment();
+        if (dataMsgRicevuta != null) {
+            Duration latenza = Duration.between(dataMsgRicevuta, Instant.now());
+            Timer.builder(METRIC_LATENZA)
+                    .description("Tempo tra la ricezione della RT e la notifica al servizio Maggioli")
+                    .tag("modalita", modalita)
+                    .register(meterRegistry)
+                    .record(latenza.isNegative() ? Duration.ZERO : latenza);
+        }
+    }
+}
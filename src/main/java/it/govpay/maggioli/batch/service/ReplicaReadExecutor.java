@@ -0,0 +1,154 @@
+package it.govpay.maggioli.batch.service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Esegue le letture pesanti su RPT in una nuova transazione read-only, instradata sulla replica
+ * (vedi {@link it.govpay.maggioli.batch.config.ReplicaDataSourceConfiguration}).
+ * <p>
+ * Il ritardo della replica e' misurato a intervalli confrontando la ricevuta piu' recente dei domini abilitati
+ * sul primario e sulla replica: oltre il ritardo massimo, o se la replica non risponde, le letture sono eseguite
+ * sul primario nella transazione del chiamante. Da usare solo per letture che non dipendono da scritture della
+ * stessa esecuzione: le query che uniscono JPPA_NOTIFICHE restano sul primario.
+ */
+@Service
+@Slf4j
+public class ReplicaReadExecutor {
+
+    static final String METRIC_RITARDO = "govpay.maggioli.replica.lag";
+    static final String METRIC_LETTURE = "govpay.maggioli.replica.reads";
+
+    private static final List<Integer> ESITI_DA_NOTIFICARE = List.of(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO, Costanti.RPT_ESITO_PAGAMENTO_PARZIALMENTE_ESEGUITO);
+
+    private final RptRepository rptRepository;
+    private final BatchProperties batchProperties;
+    private final TransactionTemplate replicaTemplate;
+    private final Clock clock;
+
+    private final AtomicLong ritardoMillis = new AtomicLong();
+    private final Counter lettureReplica;
+    private final Counter letturePrimario;
+
+    private volatile boolean allineata;
+    private volatile long prossimaVerifica;
+
+    public ReplicaReadExecutor(RptRepository rptRepository, PlatformTransactionManager transactionManager, BatchProperties batchProperties,
+                               MeterRegistry meterRegistry) {
+        this(rptRepository, transactionManager, batchProperties, meterRegistry, Clock.systemUTC());
+    }
+
+    ReplicaReadExecutor(RptRepository rptRepository, PlatformTransactionManager transactionManager, BatchProperties batchProperties,
+                        MeterRegistry meterRegistry, Clock clock) {
+        this.rptRepository = rptRepository;
+        this.batchProperties = batchProperties;
+        this.clock = clock;
+        this.replicaTemplate = new TransactionTemplate(transactionManager);
+        this.replicaTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.replicaTemplate.setReadOnly(true);
+        this.lettureReplica = Counter.builder(METRIC_LETTURE).tag("destinazione", "replica")
+                .description("Letture su RPT per destinazione").register(meterRegistry);
+        this.letturePrimario = Counter.builder(METRIC_LETTURE).tag("destinazione", "primario")
+                .description("Letture su RPT per destinazione").register(meterRegistry);
+        if (isAttiva()) {
+            meterRegistry.gauge(METRIC_RITARDO, ritardoMillis, v -> v.get() / 1000.0);
+        }
+    }
+
+    public boolean isAttiva() {
+        return batchProperties.getReplica().isEnabled();
+    }
+
+    /**
+     * Esegue la lettura sulla replica se allineata, altrimenti sul primario
+     */
+    public <T> T leggi(Supplier<T> lettura) {
+        if (!isAttiva()) {
+            return lettura.get();
+        }
+        if (replicaAllineata()) {
+            try {
+                T risultato = replicaTemplate.execute(status -> lettura.get());
+                lettureReplica.increment();
+                return risultato;
+            } catch (DataAccessException | TransactionException e) {
+                log.warn("Lettura sulla replica fallita, ripetuta sul primario: {}", e.getMessage());
+                sospendi();
+            }
+        }
+        letturePrimario.increment();
+        return lettura.get();
+    }
+
+    /**
+     * Esegue la lettura sempre sul primario, ad esempio per recuperare righe non ancora replicate
+     */
+    public <T> T leggiDalPrimario(Supplier<T> lettura) {
+        if (isAttiva()) {
+            letturePrimario.increment();
+        }
+        return lettura.get();
+    }
+
+    boolean replicaAllineata() {
+        if (clock.millis() < prossimaVerifica) {
+            return allineata;
+        }
+        synchronized (this) {
+            if (clock.millis() >= prossimaVerifica) {
+                allineata = misuraRitardo();
+                prossimaVerifica = clock.millis() + batchProperties.getReplica().getVerificaMillis();
+            }
+            return allineata;
+        }
+    }
+
+    private boolean misuraRitardo() {
+        long massimo = batchProperties.getReplica().getRitardoMassimoMillis();
+        try {
+            Instant primario = rptRepository.findMaxDataMsgRicevutaDominiAbilitati(ESITI_DA_NOTIFICARE);
+            Instant replica = replicaTemplate.execute(status -> rptRepository.findMaxDataMsgRicevutaDominiAbilitati(ESITI_DA_NOTIFICARE));
+            long ritardo;
+            if (primario == null) {
+                ritardo = 0;
+            } else if (replica == null) {
+                ritardo = Long.MAX_VALUE;
+            } else {
+                ritardo = Math.max(0, Duration.between(replica, primario).toMillis());
+            }
+            ritardoMillis.set(ritardo);
+            boolean esito = ritardo <= massimo;
+            if (esito != allineata) {
+                log.info("Replica {}: ritardo {} ms (massimo {} ms)", esito ? "allineata, letture sulla replica" : "in ritardo, letture sul primario",
+                        ritardo == Long.MAX_VALUE ? "n.d." : ritardo, massimo);
+            }
+            return esito;
+        } catch (DataAccessException | TransactionException e) {
+            log.warn("Verifica del ritardo della replica fallita, letture sul primario: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void sospendi() {
+        allineata = false;
+        prossimaVerifica = clock.millis() + batchProperties.getReplica().getVerificaMillis();
+    }
+}
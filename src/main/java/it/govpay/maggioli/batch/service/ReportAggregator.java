@@ -0,0 +1,199 @@
+package it.govpay.maggioli.batch.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.listener.JobExecutionListener;
+import org.springframework.stereotype.Service;
+
+import it.govpay.common.mail.MailInfo;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tracciati di esito consolidati (proprieta' del connettore MODALITA_REPORT).
+ * <p>
+ * Con MODALITA_REPORT=CONNETTORE o DESTINATARI le partizioni dello step 3 non producono zip ed email propri:
+ * scrivono il CSV del dominio su un file di spool e lo registrano qui. A fine job i tracciati dei domini dello
+ * stesso connettore (CONNETTORE) o con gli stessi destinatari (DESTINATARI) sono compressi in un unico zip, una
+ * voce CSV per dominio, e notificati con una sola email riepilogativa. Directory (FILE_SYSTEM_PATH), oggetto e
+ * allegato (ALLEGA_ZIP) fanno parte della chiave del gruppo: domini che li configurano diversamente producono
+ * report distinti.
+ */
+@Service
+@Slf4j
+public class ReportAggregator implements JobExecutionListener {
+
+    private static final DateTimeFormatter FORMATTER_NOME = DateTimeFormatter.ofPattern("ddMMyyyyHHmmssSSS").withZone(ZoneId.of("Europe/Rome"));
+    private static final DateTimeFormatter FORMATTER_DATA_ORA = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").withZone(ZoneId.of("Europe/Rome"));
+    private static final String TIPO_TRACCIATO_DESC = " inviati al servizio Maggioli JPPA";
+
+    public enum ModalitaReport {
+        /** Uno zip e una email per dominio */
+        DOMINIO,
+        /** Uno zip e una email per connettore */
+        CONNETTORE,
+        /** Uno zip e una email per insieme di destinatari (EMAIL_INDIRIZZO) */
+        DESTINATARI;
+
+        public static ModalitaReport da(String valore) {
+            if (valore == null || valore.isBlank()) {
+                return DOMINIO;
+            }
+            try {
+                return valueOf(valore.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                log.warn("MODALITA_REPORT non valida: {}, utilizzata DOMINIO", valore);
+                return DOMINIO;
+            }
+        }
+    }
+
+    /**
+     * CSV di un dominio in attesa di consolidamento, con la configurazione di report del suo connettore
+     */
+    public record Tracciato(String codConnettore, String codDominio, Path csv, String nomeVoce, long numeroPagamenti,
+            Instant dataUltimaRicevuta, ModalitaReport modalita, String fileSystemPath, List<String> destinatari,
+            String oggetto, boolean allegaZip) {
+    }
+
+    private final MaggioliMailService mailService;
+    private final MailOutbox mailOutbox;
+    private final ReportPackager reportPackager;
+    private final Map<Long, Queue<Tracciato>> tracciati = new ConcurrentHashMap<>();
+    private final AtomicInteger progressivo = new AtomicInteger();
+
+    public ReportAggregator(MaggioliMailService mailService, MailOutbox mailOutbox, ReportPackager reportPackager) {
+        this.mailService = mailService;
+        this.mailOutbox = mailOutbox;
+        this.reportPackager = reportPackager;
+    }
+
+    public void registra(Long jobExecutionId, Tracciato tracciato) {
+        tracciati.computeIfAbsent(jobExecutionId, id -> new ConcurrentLinkedQueue<>()).add(tracciato);
+    }
+
+    @Override
+    public void afterJob(JobExecution jobExecution) {
+        Queue<Tracciato> daConsolidare = tracciati.remove(jobExecution.getId());
+        if (daConsolidare == null || daConsolidare.isEmpty()) {
+            return;
+        }
+        Map<String, List<Tracciato>> gruppi = daConsolidare.stream()
+                .sorted(Comparator.comparing(Tracciato::codDominio))
+                .collect(Collectors.groupingBy(ReportAggregator::chiave, LinkedHashMap::new, Collectors.toList()));
+        Instant adesso = Instant.now();
+        gruppi.values().forEach(gruppo -> pubblica(gruppo, adesso));
+    }
+
+    /**
+     * Gruppo del tracciato: il connettore, o l'insieme dei destinatari se MODALITA_REPORT=DESTINATARI e ce ne sono,
+     * con directory, oggetto e allegato del report
+     */
+    static String chiave(Tracciato tracciato) {
+        String report = "|" + tracciato.fileSystemPath() + "|" + tracciato.oggetto() + "|" + tracciato.allegaZip();
+        if (tracciato.modalita() == ModalitaReport.DESTINATARI && !tracciato.destinatari().isEmpty()) {
+            return "D:" + tracciato.destinatari().stream().map(d -> d.toLowerCase(Locale.ROOT)).sorted().distinct().collect(Collectors.joining(",")) + report;
+        }
+        return "C:" + tracciato.codConnettore() + report;
+    }
+
+    private void pubblica(List<Tracciato> gruppo, Instant adesso) {
+        Tracciato primo = gruppo.get(0);
+        String nome = primo.modalita() == ModalitaReport.CONNETTORE ? primo.codConnettore() : "REPORT";
+        Path destinazione = Paths.get(primo.fileSystemPath()).resolve("GOVPAY_" + nome + "_" + FORMATTER_NOME.format(adesso)
+                + "_" + progressivo.incrementAndGet() + ".zip");
+        Map<String, Path> voci = new LinkedHashMap<>();
+        gruppo.forEach(t -> voci.put(t.nomeVoce(), t.csv()));
+        try {
+            Files.createDirectories(destinazione.getParent());
+        } catch (IOException e) {
+            log.error("Directory {} del report consolidato non disponibile, file di spool conservati: {}", destinazione.getParent(), e.getMessage());
+            return;
+        }
+        log.info("Report consolidato {}: {} domini", destinazione.getFileName(), gruppo.size());
+        reportPackager.impacchetta(voci, destinazione, () -> inviaEmailRiepilogo(gruppo, destinazione));
+    }
+
+    private void inviaEmailRiepilogo(List<Tracciato> gruppo, Path zip) {
+        Tracciato primo = gruppo.get(0);
+        if (!mailService.isAbilitato()) {
+            log.warn("INVIA_TRACCIATO_ESITO=true ma il servizio mail non è configurato o non è abilitato");
+            return;
+        }
+        if (primo.destinatari().isEmpty()) {
+            log.warn("INVIA_TRACCIATO_ESITO=true ma nessun destinatario configurato (EMAIL_INDIRIZZO) per il report consolidato {}", zip.getFileName());
+            return;
+        }
+        try {
+            MailInfo.MailInfoBuilder builder = MailInfo.builder()
+                    .to(List.of(primo.destinatari().get(0)))
+                    .oggetto(buildMailOggetto(gruppo))
+                    .testo(buildMailBody(gruppo));
+            if (primo.destinatari().size() > 1) {
+                builder.cc(primo.destinatari().subList(1, primo.destinatari().size()));
+            }
+            mailOutbox.invia(builder, primo.allegaZip() ? Map.of(zip.getFileName().toString(), zip) : Map.of());
+            log.info("Email riepilogativa {} a {} per {} domini", mailOutbox.isAbilitata() ? "accodata" : "inviata", primo.destinatari(), gruppo.size());
+        } catch (Exception e) {
+            log.error("Errore nell'invio email riepilogativa del report {}: {}", zip.getFileName(), e.getMessage(), e);
+        }
+    }
+
+    private static Instant dataUltimaRicevuta(List<Tracciato> gruppo) {
+        return gruppo.stream().map(Tracciato::dataUltimaRicevuta).filter(Objects::nonNull).max(Comparator.naturalOrder()).orElse(null);
+    }
+
+    static String buildMailOggetto(List<Tracciato> gruppo) {
+        String oggetto = gruppo.get(0).oggetto();
+        if (oggetto != null && !oggetto.isEmpty()) {
+            return oggetto;
+        }
+        Instant ultima = dataUltimaRicevuta(gruppo);
+        return "Pagamenti" + TIPO_TRACCIATO_DESC + " al " + (ultima != null ? FORMATTER_DATA_ORA.format(ultima) : "");
+    }
+
+    static String buildMailBody(List<Tracciato> gruppo) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Salve,");
+        sb.append("\n");
+        if (gruppo.get(0).allegaZip()) {
+            sb.append("\nin allegato alla presente il tracciato dei pagamenti").append(TIPO_TRACCIATO_DESC).append(", un file CSV per ente creditore:");
+        } else {
+            sb.append("\ndi seguito le informazioni sul tracciato dei pagamenti").append(TIPO_TRACCIATO_DESC).append(":");
+        }
+        sb.append("\n");
+        long totale = 0;
+        for (Tracciato tracciato : gruppo) {
+            sb.append("\nEnte Creditore: ").append(tracciato.codDominio())
+                    .append(" - Numero pagamenti: ").append(tracciato.numeroPagamenti());
+            if (tracciato.dataUltimaRicevuta() != null) {
+                sb.append(" - Data ultima ricevuta: ").append(FORMATTER_DATA_ORA.format(tracciato.dataUltimaRicevuta()));
+            }
+            totale += tracciato.numeroPagamenti();
+        }
+        sb.append("\n");
+        sb.append("\nTotale pagamenti: ").append(totale);
+        sb.append("\n");
+        sb.append("\nLa seguente comunicazione proviene da un sistema automatico.");
+        sb.append("\n");
+        sb.append("\nCordiali saluti.");
+        return sb.toString();
+    }
+}
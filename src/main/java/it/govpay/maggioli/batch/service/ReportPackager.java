@@ -0,0 +1,231 @@
+package it.govpay.maggioli.batch.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Compressione in background dei tracciati di esito scritti dalle partizioni su file di spool
+ * (govpay.batch.spool.enabled=true).
+ * <p>
+ * Le partizioni scrivono righe CSV in append su un file non compresso; a fine partizione il file viene accodato
+ * qui e compresso da un numero limitato di thread, per cui i Deflater attivi (e la loro memoria nativa) non
+ * dipendono dal numero di domini. Lo zip viene scritto accanto alla destinazione con estensione .tmp e rinominato
+ * in modo atomico, cosi' in FILE_SYSTEM_PATH compaiono solo tracciati completi. Con la coda piena (o in chiusura)
+ * la partizione comprime il proprio tracciato. Se la compressione fallisce il file di spool resta nella directory di spool.
+ */
+@Service
+@Slf4j
+public class ReportPackager {
+
+    static final String METRIC_IMPACCHETTAMENTO = "govpay.maggioli.report.packaging";
+
+    private final BatchProperties batchProperties;
+    private final MeterRegistry meterRegistry;
+    private final Executor executor;
+    private final Set<CompletableFuture<Path>> inCorso = ConcurrentHashMap.newKeySet();
+
+    public ReportPackager(BatchProperties batchProperties, MeterRegistry meterRegistry) {
+        this(batchProperties, meterRegistry, creaExecutor(batchProperties.getSpool()));
+    }
+
+    ReportPackager(BatchProperties batchProperties, MeterRegistry meterRegistry, Executor executor) {
+        this.batchProperties = batchProperties;
+        this.meterRegistry = meterRegistry;
+        this.executor = executor;
+    }
+
+    private static ExecutorService creaExecutor(BatchProperties.Spool spool) {
+        int thread = Math.max(1, spool.getConcorrenza());
+        return new ThreadPoolExecutor(thread, thread, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, spool.getCapacitaCoda())),
+                new CustomizableThreadFactory("maggioli-report-"), (compito, pool) -> compito.run());
+    }
+
+    public boolean isAbilitato() {
+        return batchProperties.getSpool().isEnabled();
+    }
+
+    /**
+     * Nuovo file di spool per il tracciato indicato
+     */
+    public Path nuovoSpool(String nomeTracciato) throws IOException {
+        Path directory = directorySpool();
+        Files.createDirectories(directory);
+        return Files.createTempFile(directory, nomeTracciato + "_", ".csv");
+    }
+
+    private Path directorySpool() {
+        String directory = batchProperties.getSpool().getDirectory();
+        if (directory == null || directory.isBlank()) {
+            return Paths.get(System.getProperty("java.io.tmpdir"), "govpay-maggioli-spool");
+        }
+        return Paths.get(directory);
+    }
+
+    /**
+     * Accoda la compressione del file di spool nello zip di destinazione, come unica voce con il nome indicato.
+     * L'azione indicata viene eseguita dopo la pubblicazione dello zip e prima del completamento del risultato,
+     * cosi' {@link #attendi(Duration)} ne attende anche la fine.
+     */
+    public CompletableFuture<Path> impacchetta(Path spool, Path destinazione, String nomeVoce, Runnable dopoPubblicazione) {
+        return impacchetta(Map.of(nomeVoce, spool), destinazione, dopoPubblicazione);
+    }
+
+    /**
+     * Accoda la compressione di piu' file di spool in un unico zip, una voce per file (nome voce → file di spool)
+     */
+    public CompletableFuture<Path> impacchetta(Map<String, Path> voci, Path destinazione, Runnable dopoPubblicazione) {
+        Map<String, Path> daComprimere = new LinkedHashMap<>(voci);
+        CompletableFuture<Path> risultato = new CompletableFuture<>();
+        inCorso.add(risultato);
+        risultato.whenComplete((p, e) -> inCorso.remove(risultato));
+        executor.execute(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            String esito = "ok";
+            try {
+                comprimi(daComprimere, destinazione);
+                for (Path spool : daComprimere.values()) {
+                    Files.deleteIfExists(spool);
+                }
+                log.debug("{} tracciati compressi in {}", daComprimere.size(), destinazione);
+            } catch (IOException | RuntimeException e) {
+                esito = "errore";
+                log.error("Compressione dei tracciati {} in {} fallita, file di spool conservati: {}", daComprimere.values(), destinazione, e.getMessage(), e);
+                risultato.completeExceptionally(e);
+                return;
+            } finally {
+                sample.stop(Timer.builder(METRIC_IMPACCHETTAMENTO)
+                        .description("Compressione e pubblicazione di un tracciato di esito")
+                        .tag("esito", esito)
+                        .register(meterRegistry));
+            }
+            try {
+                dopoPubblicazione.run();
+            } catch (RuntimeException e) {
+                log.error("Errore dopo la pubblicazione del tracciato {}: {}", destinazione, e.getMessage(), e);
+            } finally {
+                risultato.complete(destinazione);
+            }
+        });
+        return risultato;
+    }
+
+    private void comprimi(Map<String, Path> voci, Path destinazione) throws IOException {
+        BatchProperties.Spool config = batchProperties.getSpool();
+        Path parziale = destinazione.resolveSibling(destinazione.getFileName() + ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(parziale));
+                    ZipOutputStream zos = new ZipOutputStream(out)) {
+                zos.setLevel(config.getLivelloCompressione());
+                for (Map.Entry<String, Path> file : voci.entrySet()) {
+                    Path spool = file.getValue();
+                    ZipEntry voce = new ZipEntry(file.getKey());
+                    if (config.isSenzaCompressione()) {
+                        // STORED richiede dimensione e CRC prima dei dati
+                        long dimensione = Files.size(spool);
+                        voce.setMethod(ZipEntry.STORED);
+                        voce.setSize(dimensione);
+                        voce.setCompressedSize(dimensione);
+                        voce.setCrc(crc(spool));
+                    }
+                    zos.putNextEntry(voce);
+                    Files.copy(spool, zos);
+                    zos.closeEntry();
+                }
+            }
+            pubblica(parziale, destinazione);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(parziale);
+            throw e;
+        }
+    }
+
+    private static void pubblica(Path parziale, Path destinazione) throws IOException {
+        try {
+            Files.move(parziale, destinazione, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(parziale, destinazione, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long crc(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int letti;
+            while ((letti = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, letti);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Attende la fine delle compressioni accodate fino a questo momento
+     *
+     * @return false se il tempo massimo e' trascorso prima della fine
+     */
+    public boolean attendi(Duration attesaMassima) {
+        CompletableFuture<?>[] pendenti = inCorso.toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(pendenti).exceptionally(e -> null).get(attesaMassima.toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // Gli errori di compressione sono gestiti da chi ha accodato il tracciato
+            return true;
+        }
+    }
+
+    @PreDestroy
+    void chiudi() {
+        if (executor instanceof ExecutorService servizio) {
+            servizio.shutdown();
+            try {
+                if (!servizio.awaitTermination(60, TimeUnit.SECONDS)) {
+                    log.warn("Compressione dei tracciati non completata in chiusura, file di spool conservati in {}", directorySpool());
+                    servizio.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                servizio.shutdownNow();
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import it.govpay.maggioli.batch.Costanti;
 import it.govpay.maggioli.batch.dto.DominioProcessingContext;
 import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch;
 import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.batch.infrastructure.item.ItemProcessor;
 import org.springframework.stereotype.Component;
@@ -19,9 +20,11 @@ import java.util.List;
 public class MaggioliJppaHeadersProcessor implements ItemProcessor<DominioProcessingContext, MaggioliHeadersBatch> {
 
 	private final RptRepository rptRepository;
+	private final ReplicaReadExecutor replicaReadExecutor;
 
-	public MaggioliJppaHeadersProcessor(RptRepository rptRepository) {
+	public MaggioliJppaHeadersProcessor(RptRepository rptRepository, ReplicaReadExecutor replicaReadExecutor) {
         this.rptRepository = rptRepository;
+        this.replicaReadExecutor = replicaReadExecutor;
     }
 
     @Override
@@ -30,11 +33,11 @@ public class MaggioliJppaHeadersProcessor implements ItemProcessor<DominioProces
             context.getCodDominio(), context.getLastRtDate());
 
         try {
-            // Fetch receipt to be notify for this domain
+            // Fetch receipt to be notify for this domain (from the read replica when enabled)
         	List<Integer> esitiPgamento = List.of(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO, Costanti.RPT_ESITO_PAGAMENTO_PARZIALMENTE_ESEGUITO);
-            List<MaggioliHeadersBatch.NotificaHeader> headers =
+            List<MaggioliHeadersBatch.NotificaHeader> headers = replicaReadExecutor.leggi(() ->
                    context.getLastRtDate() != null ? rptRepository.findIdsByCodDominioAndCodEsitoPagamentoInAndDataMsgRicevutaAfter(context.getCodDominio(), esitiPgamento, context.getLastRtDate())
-                                                   : rptRepository.findIdsByCodDominioAndCodEsitoPagamentoIn(context.getCodDominio(), esitiPgamento);
+                                                   : rptRepository.findIdsByCodDominioAndCodEsitoPagamentoIn(context.getCodDominio(), esitiPgamento));
 
             if (headers.isEmpty()) {
                 log.info("Nessuna nuova ricevuta trovata per il dominio {}", context.getCodDominio());
@@ -8,40 +8,41 @@ import org.springframework.batch.core.configuration.annotation.StepScope;
 import org.springframework.batch.infrastructure.item.ItemReader;
 import org.springframework.stereotype.Component;
 
+import it.govpay.maggioli.batch.dto.ConfigurazioneRun;
 import it.govpay.maggioli.batch.dto.DominioProcessingContext;
-import it.govpay.maggioli.batch.entity.JppaConfig;
-import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Reader for enabled domains to fetch JPPA configiuration headers.
  * Thread-safe: uses ConcurrentLinkedQueue to distribute domains across threads.
+ * Domains are taken from the run configuration loaded at job start.
  */
 @Component
 @StepScope
 @Slf4j
 public class MaggioliJppaHeadersReader implements ItemReader<DominioProcessingContext>, StepExecutionListener {
 
-    private final JppaConfigRepository jppaConfigRepository;
+    private final ConfigurazioneRunService configurazioneRunService;
 
     // Thread-safe queue shared across all reader instances within the same step execution
-    private static final java.util.concurrent.atomic.AtomicReference<java.util.concurrent.ConcurrentLinkedQueue<JppaConfig>> dominioQueueRef =
+    private static final java.util.concurrent.atomic.AtomicReference<java.util.concurrent.ConcurrentLinkedQueue<ConfigurazioneRun.Dominio>> dominioQueueRef =
         new java.util.concurrent.atomic.AtomicReference<>();
     private static final Object lock = new Object();
 
-    public MaggioliJppaHeadersReader(JppaConfigRepository jppaConfigRepository) {
-        this.jppaConfigRepository = jppaConfigRepository;
+    public MaggioliJppaHeadersReader(ConfigurazioneRunService configurazioneRunService) {
+        this.configurazioneRunService = configurazioneRunService;
     }
 
     @Override
     public DominioProcessingContext read() {
         // Initialize queue once for all threads (thread-safe)
-        java.util.concurrent.ConcurrentLinkedQueue<JppaConfig> queue = dominioQueueRef.get();
+        java.util.concurrent.ConcurrentLinkedQueue<ConfigurazioneRun.Dominio> queue = dominioQueueRef.get();
         if (queue == null) {
             synchronized (lock) {
                 queue = dominioQueueRef.get();
                 if (queue == null) {
-                    List<JppaConfig> jppaConfigInfos = jppaConfigRepository.findAllByAbilitato(Boolean.TRUE);
+                    List<ConfigurazioneRun.Dominio> jppaConfigInfos = configurazioneRunService.corrente().dominiAbilitati();
                     log.info("Trovati {} domini abilitati da processare", jppaConfigInfos.size());
                     queue = new java.util.concurrent.ConcurrentLinkedQueue<>(jppaConfigInfos);
                     dominioQueueRef.set(queue);
@@ -50,14 +51,14 @@ public class MaggioliJppaHeadersReader implements ItemReader<DominioProcessingCo
         }
 
         // Each thread polls from the shared queue
-        JppaConfig jppaConfigInfos = queue.poll();
+        ConfigurazioneRun.Dominio jppaConfigInfos = queue.poll();
         if (jppaConfigInfos != null) {
-            log.debug("Lettura dominio: {} (thread: {})", jppaConfigInfos.getCodDominio(), Thread.currentThread().getName());
+            log.debug("Lettura dominio: {} (thread: {})", jppaConfigInfos.codDominio(), Thread.currentThread().getName());
 
             return DominioProcessingContext.builder()
-                .codDominio(jppaConfigInfos.getCodDominio())
-                .codConnettore(jppaConfigInfos.getConnettore())
-                .lastRtDate(jppaConfigInfos.getDataUltimaRt())
+                .codDominio(jppaConfigInfos.codDominio())
+                .codConnettore(jppaConfigInfos.codConnettore())
+                .lastRtDate(jppaConfigInfos.dataUltimaRt())
                 .build();
         }
 
@@ -0,0 +1,171 @@
+package it.govpay.maggioli.batch.step3;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+import org.springframework.batch.core.listener.ChunkListener;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.StepExecution;
+import org.springframework.batch.infrastructure.repeat.RepeatContext;
+import org.springframework.batch.infrastructure.repeat.context.RepeatContextSupport;
+import org.springframework.batch.infrastructure.repeat.policy.CompletionPolicySupport;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Commit interval dello step 3 adattato a runtime (chunk-tuning), condiviso da tutte le partizioni.
+ * Alla fine di ogni chunk la dimensione viene ricalcolata, entro i limiti configurati:
+ * <ul>
+ * <li>dimezzata se i tentativi falliti superano la soglia rispetto alle ricevute del chunk, se il chunk
+ * e' andato in rollback o se l'heap supera la soglia di occupazione</li>
+ * <li>altrimenti portata in proporzione alla durata obiettivo del chunk (al piu' raddoppiata, e aumentata solo
+ * dopo un chunk pieno)</li>
+ * </ul>
+ * La dimensione corrente e' esposta come metrica e registrata nel contesto della partizione per il riepilogo.
+ */
+@Component
+@Slf4j
+public class AdaptiveChunkCompletionPolicy extends CompletionPolicySupport implements ChunkListener, RetryListener {
+
+    public static final String CHIAVE_DIMENSIONE_CHUNK = "dimensioneChunk";
+
+    static final String METRIC_DIMENSIONE = "govpay.maggioli.chunk.size";
+
+    private final BatchProperties batchProperties;
+    private final Clock clock;
+    private final DoubleSupplier occupazioneHeap;
+    private final AtomicInteger dimensione;
+
+    private final ThreadLocal<Long> inizioChunk = new ThreadLocal<>();
+    private final ThreadLocal<Long> lettiInizioChunk = new ThreadLocal<>();
+    private final ThreadLocal<int[]> tentativiFalliti = ThreadLocal.withInitial(() -> new int[1]);
+
+    public AdaptiveChunkCompletionPolicy(BatchProperties batchProperties, MeterRegistry meterRegistry) {
+        this(batchProperties, meterRegistry, Clock.systemUTC(), AdaptiveChunkCompletionPolicy::occupazioneHeap);
+    }
+
+    AdaptiveChunkCompletionPolicy(BatchProperties batchProperties, MeterRegistry meterRegistry, Clock clock, DoubleSupplier occupazioneHeap) {
+        this.batchProperties = batchProperties;
+        this.clock = clock;
+        this.occupazioneHeap = occupazioneHeap;
+        this.dimensione = new AtomicInteger(limita(batchProperties.getPaymentsChunkSize()));
+        if (isAttiva()) {
+            meterRegistry.gauge(METRIC_DIMENSIONE, dimensione);
+        }
+    }
+
+    public boolean isAttiva() {
+        return batchProperties.getChunkTuning().isEnabled();
+    }
+
+    public int getDimensione() {
+        return dimensione.get();
+    }
+
+    @Override
+    public RepeatContext start(RepeatContext parent) {
+        return new ContestoChunk(parent, dimensione.get());
+    }
+
+    @Override
+    public boolean isComplete(RepeatContext context) {
+        return context.getStartedCount() >= ((ContestoChunk) context).dimensione;
+    }
+
+    @Override
+    public void beforeChunk(ChunkContext context) {
+        inizioChunk.set(clock.millis());
+        lettiInizioChunk.set(context.getStepContext().getStepExecution().getReadCount());
+        tentativiFalliti.get()[0] = 0;
+    }
+
+    @Override
+    public void afterChunk(ChunkContext context) {
+        StepExecution stepExecution = context.getStepContext().getStepExecution();
+        Long inizio = inizioChunk.get();
+        Long letti = lettiInizioChunk.get();
+        if (inizio != null && letti != null) {
+            registraChunk((int) (stepExecution.getReadCount() - letti), clock.millis() - inizio, tentativiFalliti.get()[0]);
+        }
+        stepExecution.getExecutionContext().putInt(CHIAVE_DIMENSIONE_CHUNK, dimensione.get());
+    }
+
+    @Override
+    public void afterChunkError(ChunkContext context) {
+        riduci("rollback del chunk");
+    }
+
+    @Override
+    public <T, E extends Throwable> void onError(RetryContext context, RetryCallback<T, E> callback, Throwable throwable) {
+        tentativiFalliti.get()[0]++;
+    }
+
+    /**
+     * Ricalcola la dimensione dopo un chunk completato
+     *
+     * @param ricevute ricevute lette nel chunk
+     * @param durataMillis durata del chunk fino al commit
+     * @param falliti tentativi di invio falliti nel chunk
+     * @return la nuova dimensione
+     */
+    int registraChunk(int ricevute, long durataMillis, int falliti) {
+        BatchProperties.ChunkTuning config = batchProperties.getChunkTuning();
+        if (ricevute > 0 && (double) falliti / ricevute > config.getSogliaRetry()) {
+            return riduci(falliti + " tentativi falliti su " + ricevute + " ricevute");
+        }
+        double heap = occupazioneHeap.getAsDouble();
+        if (heap > config.getSogliaMemoria()) {
+            return riduci(String.format("heap occupato al %.0f%%", heap * 100));
+        }
+        if (ricevute <= 0) {
+            return dimensione.get();
+        }
+        long obiettivo = config.getTempoCommitObiettivoMillis();
+        return dimensione.updateAndGet(attuale -> {
+            long proporzionale = durataMillis <= 0 ? 2L * attuale : Math.round((double) attuale * obiettivo / durataMillis);
+            long nuova = Math.min(proporzionale, 2L * attuale);
+            if (nuova > attuale && ricevute < attuale) {
+                // Chunk non pieno (fine partizione): nessuna indicazione per aumentare
+                nuova = attuale;
+            }
+            return limita(nuova);
+        });
+    }
+
+    private int riduci(String motivo) {
+        int nuova = dimensione.updateAndGet(attuale -> limita(attuale / 2L));
+        log.debug("Dimensione chunk ridotta a {} ({})", nuova, motivo);
+        return nuova;
+    }
+
+    private int limita(long valore) {
+        BatchProperties.ChunkTuning config = batchProperties.getChunkTuning();
+        int minima = Math.max(1, config.getDimensioneMinima());
+        return (int) Math.clamp(valore, minima, Math.max(minima, config.getDimensioneMassima()));
+    }
+
+    private static double occupazioneHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+
+    /**
+     * Contesto di un chunk con la dimensione fissata alla sua apertura
+     */
+    private static class ContestoChunk extends RepeatContextSupport {
+
+        private final int dimensione;
+
+        ContestoChunk(RepeatContext parent, int dimensione) {
+            super(parent);
+            this.dimensione = dimensione;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package it.govpay.maggioli.batch.step3;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.batch.core.configuration.annotation.StepScope;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.utils.RetryAfterUtils;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coda ritardata delle ricevute da ritentare, una per partizione (modalita' retry DELAYED).
+ * Il processor vi parcheggia le ricevute fallite con il ritardo indicato da Retry-After (429/503)
+ * o con backoff esponenziale; il reader le ripropone quando il ritardo e' scaduto, intanto la partizione
+ * prosegue con le altre ricevute. Finite le ricevute nuove, l'attesa dei ritardi avviene tra un chunk e l'altro. Le ricevute non ancora risolte limitano l'avanzamento della data ultima RT.
+ */
+@Component
+@StepScope
+@Slf4j
+public class DelayedRetryQueue {
+
+    static final String METRIC_PARCHEGGI = "govpay.maggioli.retry.parked";
+    static final String METRIC_RITARDO = "govpay.maggioli.retry.delay";
+    static final String METRIC_ATTESA_IDLE = "govpay.maggioli.retry.idle";
+    static final String METRIC_ESAURITI = "govpay.maggioli.retry.exhausted";
+
+    private final BatchProperties batchProperties;
+    private final DelayQueue<RicevutaInAttesa> coda = new DelayQueue<>();
+    private final Map<Long, Integer> fallimenti = new ConcurrentHashMap<>();
+    private final Map<Long, Instant> irrisolte = new ConcurrentHashMap<>();
+
+    private final Counter parcheggiRetryAfter;
+    private final Counter parcheggiBackoff;
+    private final Counter esauriti;
+    private final Timer ritardo;
+    private final Timer attesaIdle;
+
+    public DelayedRetryQueue(BatchProperties batchProperties, MeterRegistry meterRegistry) {
+        this.batchProperties = batchProperties;
+        this.parcheggiRetryAfter = Counter.builder(METRIC_PARCHEGGI).tag("motivo", "retry_after")
+                .description("Ricevute parcheggiate per un nuovo tentativo").register(meterRegistry);
+        this.parcheggiBackoff = Counter.builder(METRIC_PARCHEGGI).tag("motivo", "backoff")
+                .description("Ricevute parcheggiate per un nuovo tentativo").register(meterRegistry);
+        this.esauriti = Counter.builder(METRIC_ESAURITI)
+                .description("Ricevute che hanno esaurito i tentativi").register(meterRegistry);
+        this.ritardo = Timer.builder(METRIC_RITARDO)
+                .description("Tempo trascorso in coda dalle ricevute parcheggiate").register(meterRegistry);
+        this.attesaIdle = Timer.builder(METRIC_ATTESA_IDLE)
+                .description("Attesa della partizione senza altro lavoro in attesa della scadenza dei ritardi").register(meterRegistry);
+    }
+
+    public boolean isAttiva() {
+        return batchProperties.getRetry().getMode() == BatchProperties.ModalitaRetry.DELAYED;
+    }
+
+    /**
+     * Parcheggia la ricevuta fallita per un nuovo tentativo.
+     *
+     * @return false se la ricevuta ha esaurito i tentativi e l'errore va propagato
+     */
+    public boolean parcheggia(RicevutaDaNotificare rpt, RestClientException e) {
+        int tentativiFalliti = fallimenti.merge(rpt.id(), 1, Integer::sum);
+        if (tentativiFalliti >= batchProperties.getMaxRetries()) {
+            esauriti.increment();
+            fallimenti.remove(rpt.id());
+            if (batchProperties.getDlq().isEnabled()) {
+                // Sara' registrata in DLQ: non trattiene la data ultima RT
+                irrisolte.remove(rpt.id());
+            } else {
+                irrisolte.put(rpt.id(), rpt.dataMsgRicevuta());
+            }
+            return false;
+        }
+
+        Optional<Duration> retryAfter = RetryAfterUtils.fromException(e, Instant.now());
+        Duration attesa = retryAfter.orElseGet(() -> backoff(tentativiFalliti));
+        Duration massimo = Duration.ofMillis(batchProperties.getRetry().getMaxAttesaMillis());
+        if (attesa.compareTo(massimo) > 0) {
+            attesa = massimo;
+        }
+        (retryAfter.isPresent() ? parcheggiRetryAfter : parcheggiBackoff).increment();
+
+        irrisolte.put(rpt.id(), rpt.dataMsgRicevuta());
+        coda.put(new RicevutaInAttesa(rpt, System.nanoTime() + attesa.toNanos(), System.nanoTime()));
+        log.info("Ricevuta ec={}, iuv={} parcheggiata per il tentativo {} tra {} ms{}", rpt.codDominio(), rpt.iuv(),
+                tentativiFalliti + 1, attesa.toMillis(), retryAfter.isPresent() ? " (Retry-After)" : "");
+        return true;
+    }
+
+    /**
+     * Ricevuta il cui ritardo e' scaduto, senza attendere
+     */
+    public RicevutaDaNotificare prelevaPronta() {
+        return estrai(coda.poll());
+    }
+
+    /**
+     * true se restano ricevute parcheggiate, scadute o no
+     */
+    public boolean inAttesa() {
+        return !coda.isEmpty();
+    }
+
+    /**
+     * Attende la scadenza della prossima ricevuta parcheggiata senza prelevarla.
+     * Va chiamato tra un chunk e l'altro, mai dentro la transazione del chunk.
+     *
+     * @return false se la coda e' vuota
+     */
+    public boolean attendiScadenza() throws InterruptedException {
+        RicevutaInAttesa prossima = coda.peek();
+        if (prossima == null) {
+            return false;
+        }
+        long attesa = prossima.getDelay(TimeUnit.NANOSECONDS);
+        if (attesa > 0) {
+            TimeUnit.NANOSECONDS.sleep(attesa);
+            attesaIdle.record(attesa, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * La ricevuta ha ottenuto un esito definitivo
+     */
+    public void risolta(RicevutaDaNotificare rpt) {
+        if (rpt.id() != null && fallimenti.remove(rpt.id()) != null) {
+            irrisolte.remove(rpt.id());
+        }
+    }
+
+    /**
+     * Data della ricevuta non ancora risolta piu' vecchia, oltre la quale la data ultima RT non puo' avanzare
+     */
+    public Instant dataMenoRecenteIrrisolta() {
+        return irrisolte.values().stream().min(Comparator.naturalOrder()).orElse(null);
+    }
+
+    private RicevutaDaNotificare estrai(RicevutaInAttesa ricevuta) {
+        if (ricevuta == null) {
+            return null;
+        }
+        ritardo.record(System.nanoTime() - ricevuta.parcheggiataIl(), TimeUnit.NANOSECONDS);
+        return ricevuta.rpt();
+    }
+
+    private Duration backoff(int tentativiFalliti) {
+        BatchProperties.Retry retry = batchProperties.getRetry();
+        long attesa = retry.getBackoffInizialeMillis();
+        for (int i = 1; i < tentativiFalliti && attesa < retry.getBackoffMassimoMillis(); i++) {
+            attesa *= 2;
+        }
+        return Duration.ofMillis(Math.min(attesa, retry.getBackoffMassimoMillis()));
+    }
+
+    record RicevutaInAttesa(RicevutaDaNotificare rpt, long scadenzaNanos, long parcheggiataIl) implements Delayed {
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(scadenzaNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package it.govpay.maggioli.batch.step3;
+
+import java.util.Optional;
+
+import org.springframework.batch.core.listener.StepExecutionListener;
+import org.springframework.batch.core.step.StepExecution;
+import org.springframework.batch.infrastructure.item.Chunk;
+import org.springframework.stereotype.Component;
+
+import it.govpay.maggioli.batch.dto.ConfigurazioneRun;
+import it.govpay.maggioli.batch.dto.DominioProcessingContext;
+import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.step2.MaggioliJppaHeadersProcessor;
+import it.govpay.maggioli.batch.step2.MaggioliJppaHeadersWriter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Modalita' streaming: acquisisce gli headers (JPPA_NOTIFICHE) del dominio della partizione prima
+ * dell'apertura del reader, con la stessa logica dello step 2.
+ * Cosi' l'invio di un dominio parte appena i suoi headers sono salvati, senza attendere gli altri domini.
+ */
+@Component
+@Slf4j
+public class DominioHeadersAcquisitionListener implements StepExecutionListener {
+
+    private final ConfigurazioneRunService configurazioneRunService;
+    private final MaggioliJppaHeadersProcessor headersProcessor;
+    private final MaggioliJppaHeadersWriter headersWriter;
+
+    public DominioHeadersAcquisitionListener(ConfigurazioneRunService configurazioneRunService,
+                                             MaggioliJppaHeadersProcessor headersProcessor,
+                                             MaggioliJppaHeadersWriter headersWriter) {
+        this.configurazioneRunService = configurazioneRunService;
+        this.headersProcessor = headersProcessor;
+        this.headersWriter = headersWriter;
+    }
+
+    @Override
+    public void beforeStep(StepExecution stepExecution) {
+        String codDominio = stepExecution.getExecutionContext().getString("codDominio");
+        // Data ultima RT letta all'avvio del job: viene aggiornata solo a fine partizione
+        Optional<ConfigurazioneRun.Dominio> jppaConfig = configurazioneRunService.corrente().dominio(codDominio);
+        if (jppaConfig.isEmpty()) {
+            log.warn("Configurazione non trovata per il dominio {}, acquisizione headers saltata", codDominio);
+            return;
+        }
+
+        DominioProcessingContext context = DominioProcessingContext.builder()
+            .codDominio(codDominio)
+            .codConnettore(jppaConfig.get().codConnettore())
+            .lastRtDate(jppaConfig.get().dataUltimaRt())
+            .build();
+        try {
+            MaggioliHeadersBatch batch = headersProcessor.process(context);
+            if (batch != null) {
+                // Il writer e' transazionale: gli headers sono committati prima della lettura delle ricevute
+                headersWriter.write(Chunk.of(batch));
+            }
+        } catch (Exception e) {
+            log.error("Errore nell'acquisizione headers per il dominio {}: {}", codDominio, e.getMessage());
+            throw new IllegalStateException("Acquisizione headers fallita per il dominio " + codDominio, e);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package it.govpay.maggioli.batch.step3;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.springframework.batch.core.configuration.annotation.StepScope;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
+import it.govpay.maggioli.client.model.RichiestaNotificaPagamentoV2Dto;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pipeline dello step 3 per una partizione (dominio), con tre stadi sovrapposti collegati da code limitate:
+ * <ol>
+ * <li>lettura: carica a pagine le ricevute del dominio, con le voci contabili dei singoli versamenti</li>
+ * <li>costruzione: prepara e valida la richiesta di notifica (datiAccertamento e RT in base64)</li>
+ * <li>invio: il chunk dello step, che legge dalla coda di invio e spedisce la richiesta gia' pronta</li>
+ * </ol>
+ * Cosi' il DB lavora mentre le chiamate HTTP sono in attesa e viceversa. L'ordine delle ricevute e' preservato.
+ */
+@Component
+@StepScope
+@Slf4j
+public class NotificationPipeline {
+
+    /** Marcatore di fine delle code */
+    private static final RicevutaDaNotificare FINE = new RicevutaDaNotificare(null, null, null, null, null, null, List.of());
+
+    private final RptRepository rptRepository;
+    private final ReplicaReadExecutor replicaReadExecutor;
+    private final NotificheApiService notificheApiService;
+    private final BatchProperties batchProperties;
+    private final PipelineMetrics metrics;
+
+    private final Map<Long, Preparazione> preparate = new ConcurrentHashMap<>();
+    private final AtomicReference<Throwable> errore = new AtomicReference<>();
+    private final List<Thread> stadi = new ArrayList<>();
+
+    private BlockingQueue<RicevutaDaNotificare> codaLettura;
+    private BlockingQueue<RicevutaDaNotificare> codaInvio;
+    private volatile boolean fermata;
+
+    public NotificationPipeline(RptRepository rptRepository, ReplicaReadExecutor replicaReadExecutor, NotificheApiService notificheApiService,
+                                BatchProperties batchProperties, PipelineMetrics metrics) {
+        this.rptRepository = rptRepository;
+        this.replicaReadExecutor = replicaReadExecutor;
+        this.notificheApiService = notificheApiService;
+        this.batchProperties = batchProperties;
+        this.metrics = metrics;
+    }
+
+    public boolean isAttiva() {
+        return batchProperties.getPipeline().isEnabled();
+    }
+
+    /**
+     * Avvia gli stadi di lettura e costruzione per il dominio della partizione
+     *
+     * @return numero di ricevute da notificare
+     */
+    public int avvia(String codDominio, boolean escludiDlq) {
+        BatchProperties.Pipeline config = batchProperties.getPipeline();
+        List<Long> ids = escludiDlq
+                ? rptRepository.findIdsByNotificheNotInDlqOrderByDataMsgRicevuta(codDominio)
+                : rptRepository.findIdsByNotificheOrderByDataMsgRicevuta(codDominio);
+
+        codaLettura = new ArrayBlockingQueue<>(Math.max(1, config.getProfonditaCodaLettura()));
+        codaInvio = new ArrayBlockingQueue<>(Math.max(1, config.getProfonditaCodaInvio()));
+        fermata = false;
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("maggioli-pipeline-" + codDominio + "-");
+        threadFactory.setDaemon(true);
+        stadi.add(threadFactory.newThread(() -> lettura(ids, Math.max(1, config.getDimensionePagina()))));
+        stadi.add(threadFactory.newThread(this::costruzione));
+        stadi.forEach(Thread::start);
+
+        log.info("Pipeline avviata per dominio {}: {} ricevute, pagine da {}, code {}/{}", codDominio, ids.size(),
+                config.getDimensionePagina(), config.getProfonditaCodaLettura(), config.getProfonditaCodaInvio());
+        return ids.size();
+    }
+
+    /**
+     * Prossima ricevuta con la richiesta pronta per l'invio; null a fine lettura
+     */
+    public RicevutaDaNotificare prossima() throws InterruptedException {
+        RicevutaDaNotificare rpt = preleva(codaInvio, PipelineMetrics.CODA_INVIO, PipelineMetrics.STADIO_INVIO);
+        if (rpt == FINE) {
+            // Il marcatore resta in coda per le letture successive
+            codaInvio.offer(FINE);
+            Throwable causa = errore.get();
+            if (causa != null) {
+                throw new IllegalStateException("Pipeline interrotta: " + causa.getMessage(), causa);
+            }
+            return null;
+        }
+        return rpt;
+    }
+
+    /**
+     * true se tutte le ricevute lette sono gia' state prelevate, senza attendere gli stadi
+     */
+    public boolean terminata() {
+        return codaInvio != null && codaInvio.peek() == FINE;
+    }
+
+    /**
+     * Richiesta preparata per la ricevuta, costruita al momento se non disponibile (es. nuovi tentativi).
+     * Gli errori di costruzione e validazione sono rilanciati come avverrebbe senza pipeline.
+     */
+    public RichiestaNotificaPagamentoV2Dto richiesta(RicevutaDaNotificare rpt) {
+        Preparazione preparazione = preparate.remove(rpt.id());
+        if (preparazione == null) {
+            return notificheApiService.buildRichiesta(rpt.codDominio(), rpt.voci(), rpt.xmlRt());
+        }
+        if (preparazione.errore() != null) {
+            throw preparazione.errore();
+        }
+        return preparazione.richiesta();
+    }
+
+    /**
+     * Ferma gli stadi e scarta il lavoro non consumato
+     */
+    public void ferma() {
+        fermata = true;
+        stadi.forEach(Thread::interrupt);
+        for (Thread stadio : stadi) {
+            try {
+                stadio.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        stadi.clear();
+        svuota(codaLettura, PipelineMetrics.CODA_LETTURA);
+        svuota(codaInvio, PipelineMetrics.CODA_INVIO);
+        preparate.clear();
+    }
+
+    private void lettura(List<Long> ids, int dimensionePagina) {
+        try {
+            for (int inizio = 0; inizio < ids.size() && !fermata; inizio += dimensionePagina) {
+                List<Long> pagina = ids.subList(inizio, Math.min(inizio + dimensionePagina, ids.size()));
+                for (RicevutaDaNotificare rpt : caricaPagina(pagina)) {
+                    accoda(codaLettura, rpt, PipelineMetrics.CODA_LETTURA, PipelineMetrics.STADIO_LETTURA);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            log.error("Errore nella lettura delle ricevute della pipeline: {}", e.getMessage(), e);
+            errore.compareAndSet(null, e);
+        }
+        chiudi(codaLettura, PipelineMetrics.CODA_LETTURA, PipelineMetrics.STADIO_LETTURA);
+    }
+
+    private void costruzione() {
+        try {
+            RicevutaDaNotificare rpt;
+            while ((rpt = preleva(codaLettura, PipelineMetrics.CODA_LETTURA, PipelineMetrics.STADIO_COSTRUZIONE)) != FINE) {
+                Preparazione preparazione;
+                try {
+                    preparazione = new Preparazione(notificheApiService.buildRichiesta(rpt.codDominio(), rpt.voci(), rpt.xmlRt()), null);
+                } catch (RuntimeException e) {
+                    // Riportato dal processor sulla singola ricevuta
+                    preparazione = new Preparazione(null, e);
+                }
+                preparate.put(rpt.id(), preparazione);
+                accoda(codaInvio, rpt, PipelineMetrics.CODA_INVIO, PipelineMetrics.STADIO_COSTRUZIONE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        chiudi(codaInvio, PipelineMetrics.CODA_INVIO, PipelineMetrics.STADIO_COSTRUZIONE);
+    }
+
+    /**
+     * Carica una pagina di ricevute mantenendo l'ordine degli id.
+     * Con la replica attiva le ricevute non ancora replicate sono rilette dal primario.
+     */
+    private List<RicevutaDaNotificare> caricaPagina(List<Long> pagina) {
+        Map<Long, Integer> posizioni = new HashMap<>();
+        for (int i = 0; i < pagina.size(); i++) {
+            posizioni.put(pagina.get(i), i);
+        }
+        List<RicevutaDaNotificare> ricevute = new ArrayList<>(replicaReadExecutor.leggi(() -> rptRepository.findRicevuteByIdIn(pagina)));
+        if (replicaReadExecutor.isAttiva() && ricevute.size() < pagina.size()) {
+            Set<Long> lette = ricevute.stream().map(RicevutaDaNotificare::id).collect(Collectors.toSet());
+            List<Long> mancanti = pagina.stream().filter(id -> !lette.contains(id)).toList();
+            ricevute.addAll(replicaReadExecutor.leggiDalPrimario(() -> rptRepository.findRicevuteByIdIn(mancanti)));
+        }
+        ricevute.sort(Comparator.comparing(rpt -> posizioni.get(rpt.id())));
+        return ricevute;
+    }
+
+    private void chiudi(BlockingQueue<RicevutaDaNotificare> coda, String nomeCoda, String stadio) {
+        try {
+            accoda(coda, FINE, nomeCoda, stadio);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accoda(BlockingQueue<RicevutaDaNotificare> coda, RicevutaDaNotificare rpt, String nomeCoda, String stadio) throws InterruptedException {
+        long inizio = System.nanoTime();
+        coda.put(rpt);
+        metrics.registraAttesa(stadio, PipelineMetrics.ATTESA_USCITA, System.nanoTime() - inizio);
+        if (rpt != FINE) {
+            metrics.variaProfondita(nomeCoda, 1);
+        }
+    }
+
+    private RicevutaDaNotificare preleva(BlockingQueue<RicevutaDaNotificare> coda, String nomeCoda, String stadio) throws InterruptedException {
+        long inizio = System.nanoTime();
+        RicevutaDaNotificare rpt = coda.take();
+        metrics.registraAttesa(stadio, PipelineMetrics.ATTESA_INGRESSO, System.nanoTime() - inizio);
+        if (rpt != FINE) {
+            metrics.variaProfondita(nomeCoda, -1);
+        }
+        return rpt;
+    }
+
+    private void svuota(BlockingQueue<RicevutaDaNotificare> coda, String nomeCoda) {
+        if (coda == null) {
+            return;
+        }
+        List<RicevutaDaNotificare> residue = new ArrayList<>();
+        coda.drainTo(residue);
+        metrics.variaProfondita(nomeCoda, -(int) residue.stream().filter(rpt -> rpt != FINE).count());
+    }
+
+    record Preparazione(RichiestaNotificaPagamentoV2Dto richiesta, RuntimeException errore) {
+    }
+}
@@ -0,0 +1,56 @@
+package it.govpay.maggioli.batch.step3;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metriche della pipeline dello step 3, condivise tra le partizioni.
+ * La profondita' delle code e l'attesa di ogni stadio (in ingresso: manca lavoro a monte;
+ * in uscita: coda a valle piena) indicano quale stadio e' il collo di bottiglia.
+ */
+@Component
+public class PipelineMetrics {
+
+    static final String METRIC_PROFONDITA_CODA = "govpay.maggioli.pipeline.queue.depth";
+    static final String METRIC_ATTESA_STADIO = "govpay.maggioli.pipeline.stage.wait";
+
+    public static final String CODA_LETTURA = "lettura";
+    public static final String CODA_INVIO = "invio";
+
+    public static final String STADIO_LETTURA = "lettura";
+    public static final String STADIO_COSTRUZIONE = "costruzione";
+    public static final String STADIO_INVIO = "invio";
+
+    public static final String ATTESA_INGRESSO = "ingresso";
+    public static final String ATTESA_USCITA = "uscita";
+
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger profonditaLettura;
+    private final AtomicInteger profonditaInvio;
+
+    public PipelineMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.profonditaLettura = meterRegistry.gauge(METRIC_PROFONDITA_CODA, List.of(Tag.of("coda", CODA_LETTURA)), new AtomicInteger());
+        this.profonditaInvio = meterRegistry.gauge(METRIC_PROFONDITA_CODA, List.of(Tag.of("coda", CODA_INVIO)), new AtomicInteger());
+    }
+
+    void variaProfondita(String coda, int delta) {
+        (CODA_LETTURA.equals(coda) ? profonditaLettura : profonditaInvio).addAndGet(delta);
+    }
+
+    void registraAttesa(String stadio, String attesa, long nanos) {
+        Timer.builder(METRIC_ATTESA_STADIO)
+                .description("Tempo in cui lo stadio della pipeline resta fermo in attesa di una coda")
+                .tag("stadio", stadio)
+                .tag("attesa", attesa)
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -16,7 +16,8 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 
 import it.govpay.maggioli.batch.Costanti;
-import it.govpay.maggioli.batch.entity.RPT;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.exception.PayloadValidationException;
 import it.govpay.maggioli.batch.service.NotificheApiService;
 import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto;
 
@@ -26,16 +27,22 @@ import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto;
 @Component
 @StepScope
 @Slf4j
-public class SendNotificationProcessor implements ItemProcessor<RPT, SendNotificationProcessor.NotificationCompleteData> {
+public class SendNotificationProcessor implements ItemProcessor<RicevutaDaNotificare, SendNotificationProcessor.NotificationCompleteData> {
 
     private final NotificheApiService notificheApiService;
+    private final DelayedRetryQueue retryQueue;
+    private final NotificationPipeline pipeline;
     private final String codConnettore;
 
     public SendNotificationProcessor(
         NotificheApiService notificheApiService,
+        DelayedRetryQueue retryQueue,
+        NotificationPipeline pipeline,
         @Value("#{stepExecutionContext['codConnettore']}") String codConnettore
     ) {
         this.notificheApiService = notificheApiService;
+        this.retryQueue = retryQueue;
+        this.pipeline = pipeline;
         this.codConnettore = codConnettore;
     }
 
@@ -46,37 +53,62 @@ public class SendNotificationProcessor implements ItemProcessor<RPT, SendNotific
     }
 
     @Override
-    public NotificationCompleteData process(RPT rpt) throws Exception {
-        log.info("Processing RPT: ec={}, iuv={}, idRicevuta={}, connettore={}", rpt.getCodDominio(), rpt.getIuv(), rpt.getCcp(), codConnettore);
+    public NotificationCompleteData process(RicevutaDaNotificare ricevuta) throws Exception {
+        log.info("Processing RPT: ec={}, iuv={}, idRicevuta={}, connettore={}", ricevuta.codDominio(), ricevuta.iuv(), ricevuta.ccp(), codConnettore);
 
         try {
-            // Send notification
-        	RispostaNotificaPagamentoDto clientResp = notificheApiService.notificaPagamento(codConnettore, rpt.getCodDominio(), rpt.getVersamento().getSingoliVersamenti(), rpt.getXmlRt());
+            // Send notification (in pipeline la richiesta e' gia' stata costruita e validata)
+        	RispostaNotificaPagamentoDto clientResp = pipeline.isAttiva()
+        			? notificheApiService.invia(codConnettore, ricevuta.codDominio(), pipeline.richiesta(ricevuta))
+        			: notificheApiService.notificaPagamento(codConnettore, ricevuta.codDominio(), ricevuta.voci(), ricevuta.xmlRt());
+        	retryQueue.risolta(ricevuta);
 
             return NotificationCompleteData.builder()
-                .codDominio(rpt.getCodDominio())
-                .dataMsgRicevuta(rpt.getDataMsgRicevuta())
-                .iuv(rpt.getIuv())
-                .ccp(rpt.getCcp())
+                .idRpt(ricevuta.id())
+                .codDominio(ricevuta.codDominio())
+                .dataMsgRicevuta(ricevuta.dataMsgRicevuta())
+                .iuv(ricevuta.iuv())
+                .ccp(ricevuta.ccp())
                 .esito(clientResp.getEsito().name())
                 .warnings(msgListAsString(clientResp.getWarningMessages()))
                 .errors(msgListAsString(clientResp.getErrorMessages()))
                 .build();
 
+        } catch (PayloadValidationException e) {
+            // Richiesta rifiutata localmente: il servizio risponderebbe comunque 400, non ritentare
+            log.error("Notifica ec={}, iuv={}, idRicevuta={} non inviata, validazione fallita: {}", ricevuta.codDominio(), ricevuta.iuv(), ricevuta.ccp(), e.getMessage());
+            retryQueue.risolta(ricevuta);
+            return NotificationCompleteData.builder()
+                .idRpt(ricevuta.id())
+                .codDominio(ricevuta.codDominio())
+                .dataMsgRicevuta(ricevuta.dataMsgRicevuta())
+                .iuv(ricevuta.iuv())
+                .ccp(ricevuta.ccp())
+                .esito(Costanti.ESITO_ERRORE_INVIO)
+                .errors(msgListAsString(e.getErrori()))
+                .build();
+
         } catch (HttpClientErrorException.BadRequest e) {
             // Errore 400: dati non validi, non ritentare, loggare e proseguire con esito errore
-            log.error("Errore HTTP 400 nell'invio della notifica ec={}, iuv={}, idRicevuta={}: {}", rpt.getCodDominio(), rpt.getIuv(), rpt.getCcp(), e.getMessage());
+            log.error("Errore HTTP 400 nell'invio della notifica ec={}, iuv={}, idRicevuta={}: {}", ricevuta.codDominio(), ricevuta.iuv(), ricevuta.ccp(), e.getMessage());
+            retryQueue.risolta(ricevuta);
             return NotificationCompleteData.builder()
-                .codDominio(rpt.getCodDominio())
-                .dataMsgRicevuta(rpt.getDataMsgRicevuta())
-                .iuv(rpt.getIuv())
-                .ccp(rpt.getCcp())
+                .idRpt(ricevuta.id())
+                .codDominio(ricevuta.codDominio())
+                .dataMsgRicevuta(ricevuta.dataMsgRicevuta())
+                .iuv(ricevuta.iuv())
+                .ccp(ricevuta.ccp())
                 .esito(Costanti.ESITO_ERRORE_INVIO)
                 .errors(e.getStatusCode() + ": " + e.getMessage())
                 .build();
 
         } catch (RestClientException e) {
-            log.error("Errore nell'elaborazione della notifica della ricevuta ec={}, iuv={}, idRicevuta={}: {}", rpt.getCodDominio(), rpt.getIuv(), rpt.getCcp(), e.getMessage());
+            if (retryQueue.isAttiva() && retryQueue.parcheggia(ricevuta, e)) {
+                // Ritentata dal reader alla scadenza del ritardo, intanto la partizione prosegue
+                log.warn("Errore nell'invio della notifica ec={}, iuv={}, idRicevuta={}, nuovo tentativo pianificato: {}", ricevuta.codDominio(), ricevuta.iuv(), ricevuta.ccp(), e.getMessage());
+                return null;
+            }
+            log.error("Errore nell'elaborazione della notifica della ricevuta ec={}, iuv={}, idRicevuta={}: {}", ricevuta.codDominio(), ricevuta.iuv(), ricevuta.ccp(), e.getMessage());
             throw e;
         }
     }
@@ -88,6 +120,7 @@ public class SendNotificationProcessor implements ItemProcessor<RPT, SendNotific
     @Builder
     @AllArgsConstructor
     public static class NotificationCompleteData {
+        private Long idRpt;
         private String codDominio;
         private Instant dataMsgRicevuta;
         private String iuv;
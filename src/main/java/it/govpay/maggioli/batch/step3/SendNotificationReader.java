@@ -4,27 +4,34 @@ import java.util.Iterator;
 import java.util.List;
 
 import org.springframework.batch.core.configuration.annotation.StepScope;
+import org.springframework.batch.core.listener.ChunkListener;
+import org.springframework.batch.core.scope.context.ChunkContext;
 import org.springframework.batch.infrastructure.item.ExecutionContext;
 import org.springframework.batch.infrastructure.item.ItemReader;
 import org.springframework.batch.infrastructure.item.ItemStream;
 import org.springframework.batch.infrastructure.item.ItemStreamException;
+import org.springframework.batch.infrastructure.repeat.support.RepeatSynchronizationManager;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import it.govpay.maggioli.batch.entity.RPT;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.repository.RptRepository;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Reader RPT per info JPPA_NOTIFICHE di una specifica partizione (dominio).
  * Legge TUTTE le ricevute identificate nelle JPPA_NOTIFICHE del dominio assegnato alla partizione.
+ * Con la retry DELAYED la lettura non attende mai dentro il chunk: finite le ricevute nuove ogni nuovo tentativo
+ * chiude il chunk e l'attesa della prossima ricevuta parcheggiata avviene in {@link #afterChunk}, fuori transazione.
  */
 @Component
 @StepScope
 @Slf4j
-public class SendNotificationReader implements ItemReader<RPT>, ItemStream {
+public class SendNotificationReader implements ItemReader<RicevutaDaNotificare>, ItemStream, ChunkListener {
 
     private final RptRepository rptRepository;
+    private final DelayedRetryQueue retryQueue;
+    private final NotificationPipeline pipeline;
 
     @Value("#{stepExecutionContext['codDominio']}")
     private String codDominio;
@@ -35,11 +42,16 @@ public class SendNotificationReader implements ItemReader<RPT>, ItemStream {
     @Value("#{stepExecutionContext['totalPartitions']}")
     private Integer totalPartitions;
 
-    private Iterator<RPT> rptIterator;
+    @Value("${govpay.batch.dlq.enabled:false}")
+    private boolean dlqEnabled;
+
+    private Iterator<RicevutaDaNotificare> rptIterator;
     private boolean initialized = false;
 
-    public SendNotificationReader(RptRepository rptRepository) {
+    public SendNotificationReader(RptRepository rptRepository, DelayedRetryQueue retryQueue, NotificationPipeline pipeline) {
         this.rptRepository = rptRepository;
+        this.retryQueue = retryQueue;
+        this.pipeline = pipeline;
     }
 
     @Override
@@ -48,8 +60,20 @@ public class SendNotificationReader implements ItemReader<RPT>, ItemStream {
             log.info("Inizializzazione partizione {}/{} per dominio: {}",
                      partitionNumber, totalPartitions, codDominio);
 
-            // Carica TUTTE le ricevute da notificare di questo dominio
-            List<RPT> rpt = rptRepository.findByNotificheOrderByDataMsgRicevuta(codDominio);
+            if (pipeline.isAttiva()) {
+                // Lettura e costruzione delle richieste procedono in parallelo all'invio
+                int totale = pipeline.avvia(codDominio, dlqEnabled);
+                log.info("Partizione {} (dominio {}): trovate {} ricevute da processare in pipeline",
+                         partitionNumber, codDominio, totale);
+                initialized = true;
+                return;
+            }
+
+            // Carica TUTTE le ricevute da notificare di questo dominio (con DLQ attiva, escluse quelle lasciate al job di reinvio),
+            // come record immutabili fuori dal persistence context
+            List<RicevutaDaNotificare> rpt = dlqEnabled
+                    ? rptRepository.findRicevuteByNotificheNotInDlqOrderByDataMsgRicevuta(codDominio)
+                    : rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(codDominio);
 
             log.info("Partizione {} (dominio {}): trovate {} ricevute da processare",
                      partitionNumber, codDominio, rpt.size());
@@ -60,15 +84,53 @@ public class SendNotificationReader implements ItemReader<RPT>, ItemStream {
     }
 
     @Override
-    public RPT read() {
-        if (rptIterator != null && rptIterator.hasNext()) {
-            RPT ricevuta = rptIterator.next();
-            log.debug("Lettura ricevuta per dominio {}: (iuv {} , ccp {})", codDominio, ricevuta.getIuv(), ricevuta.getCcp());
-            return ricevuta;
+    public RicevutaDaNotificare read() throws InterruptedException {
+        // Le ricevute parcheggiate con ritardo scaduto hanno la precedenza
+        RicevutaDaNotificare ricevuta = retryQueue.isAttiva() ? retryQueue.prelevaPronta() : null;
+        if (ricevuta != null) {
+            log.debug("Nuovo tentativo ricevuta per dominio {}: (iuv {} , ccp {})", codDominio, ricevuta.iuv(), ricevuta.ccp());
+        } else {
+            ricevuta = pipeline.isAttiva() ? pipeline.prossima() : prossimaDalDb();
+            if (ricevuta == null) {
+                if (retryQueue.isAttiva() && retryQueue.inAttesa()) {
+                    // Non si attende dentro il chunk: le ricevute restano non risolte e trattengono la data ultima RT
+                    log.info("Partizione {} (dominio {}): ricevute parcheggiate non ancora scadute lasciate all'esecuzione successiva",
+                             partitionNumber, codDominio);
+                }
+                log.info("Partizione {} (dominio {}): completata lettura di tutte le ricevute da notificare", partitionNumber, codDominio);
+                return null; // End of partition data
+            }
+            log.debug("Lettura ricevuta per dominio {}: (iuv {} , ccp {})", codDominio, ricevuta.iuv(), ricevuta.ccp());
+        }
+
+        if (retryQueue.isAttiva() && letturaTerminata()) {
+            // Finite le ricevute nuove il chunk si chiude qui: i nuovi tentativi sono attesi in afterChunk
+            RepeatSynchronizationManager.setCompleteOnly();
+        }
+        return ricevuta;
+    }
+
+    /**
+     * Dopo il commit del chunk, finite le ricevute nuove, attende la scadenza della prossima ricevuta parcheggiata
+     */
+    @Override
+    public void afterChunk(ChunkContext context) {
+        if (!retryQueue.isAttiva() || !letturaTerminata()) {
+            return;
+        }
+        try {
+            retryQueue.attendiScadenza();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        log.info("Partizione {} (dominio {}): completata lettura di tutte le ricevute da notificare", partitionNumber, codDominio);
-        return null; // End of partition data
+    private RicevutaDaNotificare prossimaDalDb() {
+        return rptIterator != null && rptIterator.hasNext() ? rptIterator.next() : null;
+    }
+
+    private boolean letturaTerminata() {
+        return pipeline.isAttiva() ? pipeline.terminata() : rptIterator == null || !rptIterator.hasNext();
     }
 
     @Override
@@ -80,5 +142,8 @@ public class SendNotificationReader implements ItemReader<RPT>, ItemStream {
     public void close() throws ItemStreamException {
         // Cleanup se necessario
         rptIterator = null;
+        if (pipeline.isAttiva()) {
+            pipeline.ferma();
+        }
     }
 }
@@ -1,15 +1,18 @@
 package it.govpay.maggioli.batch.step3;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -22,6 +25,7 @@ import java.util.zip.ZipOutputStream;
 import org.apache.commons.csv.CSVFormat;
 import org.springframework.batch.core.ExitStatus;
 import org.springframework.batch.core.step.StepExecution;
+import org.springframework.batch.core.listener.SkipListener;
 import org.springframework.batch.core.listener.StepExecutionListener;
 import org.springframework.batch.core.configuration.annotation.StepScope;
 import org.springframework.batch.infrastructure.item.Chunk;
@@ -30,23 +34,34 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
-import it.govpay.common.client.service.ConnettoreService;
 import it.govpay.common.mail.MailInfo;
 import it.govpay.common.utils.ConnettoreMapUtils;
 import it.govpay.maggioli.batch.Costanti;
-import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
 import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.DeadLetterService;
 import it.govpay.maggioli.batch.service.MaggioliMailService;
+import it.govpay.maggioli.batch.service.MailOutbox;
+import it.govpay.maggioli.batch.service.NotificheMetrics;
+import it.govpay.maggioli.batch.service.ReportAggregator;
+import it.govpay.maggioli.batch.service.ReportAggregator.ModalitaReport;
+import it.govpay.maggioli.batch.service.ReportPackager;
 import it.govpay.maggioli.batch.utils.CSVUtils;
+import it.govpay.maggioli.batch.utils.CsvReportWriter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * Writer to save report complete data
+ * Writer to save report complete data.
+ * With the dead letter queue enabled, failed notifications (send errors and receipts skipped after exhausted retries)
+ * are stored in bulk in JPPA_NOTIFICHE_DLQ.
  */
 @Component
 @StepScope
 @Slf4j
-public class SendNotificationWriter implements ItemWriter<SendNotificationProcessor.NotificationCompleteData>, StepExecutionListener {
+public class SendNotificationWriter implements ItemWriter<SendNotificationProcessor.NotificationCompleteData>, StepExecutionListener,
+		SkipListener<RicevutaDaNotificare, SendNotificationProcessor.NotificationCompleteData> {
 	private static final String PATTERN_DATA_DD_MM_YYYY_HH_MM_SS_SSS = "ddMMyyyyHHmmSSsss";
 	private static final String [] MAGGIOLI_JPPA_HEADER_FILE_CSV = {"idDominio","iuv","cpp","esito","warnings","errors"};
 	private static final String TIPO_TRACCIATO_DESC = " inviati al servizio Maggioli JPPA";
@@ -58,6 +73,7 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
 	private static final String P_EMAIL_ALLEGATO = Costanti.P_EMAIL_ALLEGATO;
 	private static final String P_EMAIL_INDIRIZZO = Costanti.P_EMAIL_INDIRIZZO;
 	private static final String P_EMAIL_SUBJECT = Costanti.P_EMAIL_SUBJECT;
+	private static final String P_MODALITA_REPORT = Costanti.P_MODALITA_REPORT;
 
 	@Value("#{stepExecutionContext['codDominio']}")
     private String codDominio;
@@ -65,14 +81,30 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
 	@Value("#{stepExecutionContext['codConnettore']}")
     private String codConnettore;
 
+	@Value("${govpay.batch.dlq.enabled:false}")
+	private boolean dlqEnabled;
+
 	private final JppaConfigRepository jppaConfigRepository;
-	private final ConnettoreService connettoreService;
+	private final ConfigurazioneRunService configurazioneRunService;
 	private final MaggioliMailService mailService;
+	private final DeadLetterService deadLetterService;
+	private final DelayedRetryQueue retryQueue;
+	private final NotificheMetrics notificheMetrics;
+	private final ReportPackager reportPackager;
+	private final MailOutbox mailOutbox;
+	private final ReportAggregator reportAggregator;
+	private final List<JppaNotificheDlq> scartate = new ArrayList<>();
 	private final SimpleDateFormat sdf;
 	private final AtomicInteger progressivo = new AtomicInteger(0);
 	private final CSVUtils csvUtils = CSVUtils.getInstance(CSVFormat.DEFAULT);
 
 	private ZipOutputStream zos;
+	private CsvReportWriter csvWriter;
+	private Path spoolFile;
+	private String nomeVoceReport;
+	private ModalitaReport modalitaReport = ModalitaReport.DOMINIO;
+	private String fileSystemPath;
+	private Long jobExecutionId;
 	private File zipFile;
 	private Instant lastDataMsgRicevuta;
 	private int recordCount;
@@ -81,10 +113,18 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
 	private List<String> emailDestinatari;
 	private String emailOggetto;
 
-    public SendNotificationWriter(JppaConfigRepository jppaConfigRepository, ConnettoreService connettoreService, MaggioliMailService mailService) {
+    public SendNotificationWriter(JppaConfigRepository jppaConfigRepository, ConfigurazioneRunService configurazioneRunService, MaggioliMailService mailService,
+    		DeadLetterService deadLetterService, DelayedRetryQueue retryQueue, NotificheMetrics notificheMetrics,
+    		ReportPackager reportPackager, MailOutbox mailOutbox, ReportAggregator reportAggregator) {
     	this.jppaConfigRepository = jppaConfigRepository;
-    	this.connettoreService = connettoreService;
+    	this.configurazioneRunService = configurazioneRunService;
     	this.mailService = mailService;
+    	this.deadLetterService = deadLetterService;
+    	this.retryQueue = retryQueue;
+    	this.notificheMetrics = notificheMetrics;
+    	this.reportPackager = reportPackager;
+    	this.mailOutbox = mailOutbox;
+    	this.reportAggregator = reportAggregator;
 		this.sdf = new SimpleDateFormat(PATTERN_DATA_DD_MM_YYYY_HH_MM_SS_SSS);
 		this.sdf.setTimeZone(TimeZone.getTimeZone("Europe/Rome"));
 		this.sdf.setLenient(false);
@@ -103,6 +143,18 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
     public void write(Chunk<? extends SendNotificationProcessor.NotificationCompleteData> chunk) throws IOException {
         for (SendNotificationProcessor.NotificationCompleteData data : chunk) {
         	lastDataMsgRicevuta = maxData(data.getDataMsgRicevuta(), lastDataMsgRicevuta);
+        	notificheMetrics.registra(NotificheMetrics.MODALITA_BATCH, data.getEsito(), data.getDataMsgRicevuta());
+
+        	if (dlqEnabled && Costanti.ESITO_ERRORE_INVIO.equals(data.getEsito()) && data.getIdRpt() != null) {
+        		scartate.add(JppaNotificheDlq.builder()
+        				.idRpt(data.getIdRpt())
+        				.codDominio(data.getCodDominio())
+        				.iuv(data.getIuv())
+        				.ccp(data.getCcp())
+        				.dataMsgRicevuta(data.getDataMsgRicevuta())
+        				.ultimoErrore(data.getErrors())
+        				.build());
+        	}
 
         	if (!inviaTracciatoEsito) {
         		continue;
@@ -112,7 +164,7 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
 
             try {
             	String[] csvData = new String[] {data.getCodDominio(), data.getIuv(), data.getCcp(), data.getEsito(), data.getWarnings(), data.getErrors()};
-            	zos.write(csvUtils.toCsv(csvData).getBytes());
+            	csvWriter.printRecord(csvData);
             	recordCount++;
                 log.info("Aggiunto record CSV: Dominio={}, Iuv={}", data.getCodDominio(), data.getIuv());
             } catch (IOException e) {
@@ -120,11 +172,58 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
                 throw e;
             }
         }
+
+        if (csvWriter != null) {
+        	// I record del chunk lasciano il buffer a ogni commit
+        	csvWriter.flush();
+        }
+        registraScartate();
+    }
+
+    /**
+     * Ricevuta scartata dopo l'esaurimento dei tentativi: con DLQ attiva viene accodata per il job di reinvio
+     * e non trattiene l'avanzamento della data ultima RT.
+     */
+    @Override
+    public void onSkipInProcess(RicevutaDaNotificare item, Throwable t) {
+    	if (!dlqEnabled) {
+    		return;
+    	}
+    	log.warn("Ricevuta ec={}, iuv={}, idRicevuta={} scartata dopo l'esaurimento dei tentativi, registrata in DLQ: {}",
+    			item.codDominio(), item.iuv(), item.ccp(), t.getMessage());
+    	lastDataMsgRicevuta = maxData(item.dataMsgRicevuta(), lastDataMsgRicevuta);
+    	scartate.add(JppaNotificheDlq.builder()
+    			.idRpt(item.id())
+    			.codDominio(item.codDominio())
+    			.iuv(item.iuv())
+    			.ccp(item.ccp())
+    			.dataMsgRicevuta(item.dataMsgRicevuta())
+    			.ultimoErrore(t.getClass().getSimpleName() + ": " + t.getMessage())
+    			.build());
+    }
+
+    /**
+     * La data ultima RT non supera le ricevute ancora in attesa di un nuovo tentativo, che vengono cosi' riacquisite
+     */
+    private void limitaDataUltimaRt() {
+    	Instant limite = retryQueue.dataMenoRecenteIrrisolta();
+    	if (limite != null && lastDataMsgRicevuta != null && !lastDataMsgRicevuta.isBefore(limite)) {
+    		log.warn("Dominio {}: ricevute non risolte dal {}, data ultima RT limitata", codDominio, limite);
+    		lastDataMsgRicevuta = limite.minusMillis(1);
+    	}
+    }
+
+    private void registraScartate() {
+    	if (scartate.isEmpty()) {
+    		return;
+    	}
+    	deadLetterService.registra(new ArrayList<>(scartate));
+    	scartate.clear();
     }
 
 	@Override
     public void beforeStep(StepExecution stepExecution) {
-		Map<String, String> connettoreProps = connettoreService.getConnettoreAsMap(codConnettore);
+		Map<String, String> connettoreProps = configurazioneRunService.proprieta(codConnettore);
 		log.debug("Configurazione connettore {}: {}", codConnettore, connettoreProps);
 		this.inviaTracciatoEsito = ConnettoreMapUtils.getBoolean(connettoreProps, P_INVIA_TRACCIATO_ESITO, false);
 
@@ -139,8 +238,9 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
 				.filter(s -> !s.isEmpty()).toList();
 		this.emailOggetto = ConnettoreMapUtils.getString(connettoreProps, P_EMAIL_SUBJECT, null);
 		this.allegaZip = ConnettoreMapUtils.getBoolean(connettoreProps, P_EMAIL_ALLEGATO, false);
+		this.modalitaReport = ModalitaReport.da(ConnettoreMapUtils.getString(connettoreProps, P_MODALITA_REPORT, null));
 
-		String fileSystemPath = ConnettoreMapUtils.getString(connettoreProps, P_FILE_SYSTEM_PATH, "/tmp");
+		this.fileSystemPath = ConnettoreMapUtils.getString(connettoreProps, P_FILE_SYSTEM_PATH, "/tmp");
 		log.info("Produzione tracciato di esito abilitata per connettore {} dominio {}, directory: {}", codConnettore, codDominio, fileSystemPath);
 
     	try {
@@ -150,14 +250,26 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
 	    	}
 	    	String baseReportName = "GOVPAY_" + codDominio + "_" + sdf.format(new Date());
 	    	this.zipFile = new File(dir, baseReportName + "_" + progressivo.addAndGet(1) + ".zip");
-	    	OutputStream oututStreamDestinazione = new FileOutputStream(zipFile);
-	    	this.zos = new ZipOutputStream(oututStreamDestinazione);
-	    	ZipEntry tracciatoOutputEntry = new ZipEntry(baseReportName + "_" + progressivo.addAndGet(1) +".csv");
-			zos.putNextEntry(tracciatoOutputEntry);
+	    	this.nomeVoceReport = baseReportName + "_" + progressivo.addAndGet(1) +".csv";
+	    	if (modalitaReport != ModalitaReport.DOMINIO) {
+	    		// Il CSV viene consolidato a fine job con quelli degli altri domini del gruppo
+	    		this.jobExecutionId = stepExecution.getJobExecutionId();
+	    		this.spoolFile = reportPackager.nuovoSpool(baseReportName);
+	    		this.csvWriter = csvUtils.newReportWriter(Files.newOutputStream(spoolFile));
+	    	} else if (reportPackager.isAbilitato()) {
+	    		// Solo append sul file di spool: la compressione avviene in background a fine partizione
+	    		this.spoolFile = reportPackager.nuovoSpool(baseReportName);
+	    		this.csvWriter = csvUtils.newReportWriter(Files.newOutputStream(spoolFile));
+	    	} else {
+		    	OutputStream oututStreamDestinazione = new BufferedOutputStream(new FileOutputStream(zipFile));
+		    	this.zos = new ZipOutputStream(oututStreamDestinazione);
+				zos.putNextEntry(new ZipEntry(nomeVoceReport));
+				this.csvWriter = csvUtils.newReportWriter(zos);
+	    	}
 
-			zos.write(csvUtils.toCsv(MAGGIOLI_JPPA_HEADER_FILE_CSV).getBytes());
+			csvWriter.printRecord(MAGGIOLI_JPPA_HEADER_FILE_CSV);
 
-			log.debug("Zip report inizializzato per nuova esecuzione dello step");
+			log.debug("Report inizializzato per nuova esecuzione dello step");
     	} catch (IOException e) {
             log.error("Fail to initialize report zip: {}", e.getMessage());
             log.error(e.getMessage(), e);
@@ -167,21 +279,26 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
 
     @Override
     public ExitStatus afterStep(StepExecution stepExecution) {
+    	// Scarti dell'ultimo chunk (notificati dopo la scrittura)
+    	registraScartate();
+    	limitaDataUltimaRt();
     	try {
 	        if (lastDataMsgRicevuta != null) {
 		        // aggiorno ultima data ricevuta notificata
-		        JppaConfig jppaConfig = jppaConfigRepository.findByCodDominio(codDominio).orElse(null);
-		        jppaConfig.setDataUltimaRt(lastDataMsgRicevuta);
-		        jppaConfigRepository.save(jppaConfig);
+		        jppaConfigRepository.aggiornaDataUltimaRt(codDominio, lastDataMsgRicevuta);
 	        }
 
-	        if (zos != null) {
+	        if (csvWriter != null && zos != null) {
 		        log.debug("Chiusura zip report per fine esecuzione dello step");
-		        zos.flush();
+		        csvWriter.flush();
 				zos.closeEntry();
-				zos.flush();
-				zos.close();
+				// Chiude anche lo zip e il file
+				csvWriter.close();
+				csvWriter = null;
 				zos = null;
+	        } else if (csvWriter != null) {
+	        	csvWriter.close();
+	        	csvWriter = null;
 	        }
     	} catch (IOException e) {
             log.error("Fail to close report zip: {}", e.getMessage());
@@ -189,12 +306,43 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
             throw new RuntimeException("Fail to complete step", e);
     	}
 
-    	inviaEmailReport();
+    	if (inviaTracciatoEsito && recordCount == 0) {
+    		// Partizione senza ricevute: nessun tracciato vuoto, nessuna email e nessuna voce nel report consolidato
+    		log.info("Nessun pagamento per connettore {} dominio {}: tracciato di esito non prodotto", codConnettore, codDominio);
+    		eliminaTracciatoVuoto();
+    		return null;
+    	}
+
+    	if (spoolFile != null && modalitaReport != ModalitaReport.DOMINIO) {
+    		reportAggregator.registra(jobExecutionId, new ReportAggregator.Tracciato(codConnettore, codDominio, spoolFile, nomeVoceReport,
+    				recordCount, lastDataMsgRicevuta, modalitaReport, fileSystemPath, emailDestinatari, emailOggetto, allegaZip));
+    		spoolFile = null;
+    	} else if (spoolFile != null) {
+    		// L'email parte quando lo zip e' stato pubblicato in FILE_SYSTEM_PATH
+    		reportPackager.impacchetta(spoolFile, zipFile.toPath(), nomeVoceReport, this::inviaEmailReport);
+    		spoolFile = null;
+    	} else {
+    		inviaEmailReport();
+    	}
 
         // Leave unchanged exit status
         return null;
     }
 
+    private void eliminaTracciatoVuoto() {
+    	try {
+    		if (spoolFile != null) {
+    			Files.deleteIfExists(spoolFile);
+    			spoolFile = null;
+    		}
+    		if (zipFile != null) {
+    			Files.deleteIfExists(zipFile.toPath());
+    		}
+    	} catch (IOException e) {
+    		log.warn("Impossibile eliminare il tracciato vuoto per dominio {}: {}", codDominio, e.getMessage());
+    	}
+    }
+
     private void inviaEmailReport() {
     	log.debug("inviaEmailReport: inviaTracciatoEsito={}, zipFile={}, allegaZip={}, mailAbilitato={}, destinatari={}",
     			inviaTracciatoEsito, zipFile, allegaZip, mailService.isAbilitato(), emailDestinatari);
@@ -220,17 +368,18 @@ public class SendNotificationWriter implements ItemWriter<SendNotificationProces
     			builder.cc(emailDestinatari.subList(1, emailDestinatari.size()));
     		}
 
+    		Map<String, Path> allegati = Map.of();
     		if (allegaZip && zipFile != null && zipFile.exists()) {
-    			byte[] zipBytes = Files.readAllBytes(zipFile.toPath());
     			log.debug("Invio email report: destinatari={}, oggetto={}, allegato={} ({} bytes)",
-    					emailDestinatari, emailOggetto, zipFile.getName(), zipBytes.length);
-    			builder.allegati(Map.of(zipFile.getName(), zipBytes));
+    					emailDestinatari, emailOggetto, zipFile.getName(), zipFile.length());
+    			allegati = Map.of(zipFile.getName(), zipFile.toPath());
     		} else {
     			log.debug("Invio email report: destinatari={}, oggetto={} (senza allegato)", emailDestinatari, emailOggetto);
     		}
 
-    		mailService.inviaEmail(builder.build());
-    		log.info("Email report inviata a {} per connettore {} dominio {}", emailDestinatari, codConnettore, codDominio);
+    		mailOutbox.invia(builder, allegati);
+    		log.info("Email report {} a {} per connettore {} dominio {}", mailOutbox.isAbilitata() ? "accodata" : "inviata",
+    				emailDestinatari, codConnettore, codDominio);
     	} catch (Exception e) {
     		log.error("Errore nell'invio email report per connettore {} dominio {}: {}", codConnettore, codDominio, e.getMessage(), e);
     	}
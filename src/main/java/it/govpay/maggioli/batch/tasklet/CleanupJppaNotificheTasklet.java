@@ -1,5 +1,6 @@
 package it.govpay.maggioli.batch.tasklet;
 
+import it.govpay.maggioli.batch.config.BatchProperties;
 import it.govpay.maggioli.batch.repository.JppaNotificheRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.batch.core.step.StepContribution;
@@ -7,30 +8,37 @@ import org.springframework.batch.core.scope.context.ChunkContext;
 import org.springframework.batch.core.step.tasklet.Tasklet;
 import org.springframework.batch.infrastructure.repeat.RepeatStatus;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
 /**
- * Tasklet to clean up JPPA_NOTIFICHE table before starting the batch process
+ * Tasklet to clean up JPPA_NOTIFICHE table before starting the batch process.
+ * With staging.truncate the step runs without a chunk transaction (see BatchJobConfiguration#cleanupStep)
+ * and the TRUNCATE commits on its own
  */
 @Component
 @Slf4j
 public class CleanupJppaNotificheTasklet implements Tasklet {
 
     private final JppaNotificheRepository jppaNotificheRepository;
+    private final BatchProperties batchProperties;
 
-    public CleanupJppaNotificheTasklet(JppaNotificheRepository jppaNotificheRepository) {
+    public CleanupJppaNotificheTasklet(JppaNotificheRepository jppaNotificheRepository, BatchProperties batchProperties) {
         this.jppaNotificheRepository = jppaNotificheRepository;
+        this.batchProperties = batchProperties;
     }
 
     @Override
-    @Transactional
     public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) {
         log.info("Starting cleanup of JPPA_NOTIFICHE table");
 
         long count = jppaNotificheRepository.count();
-        jppaNotificheRepository.deleteAllRecords();
-
-        log.info("Deleted {} records from JPPA_NOTIFICHE table", count);
+        if (batchProperties.getStaging().isTruncate()) {
+            // Tabella di appoggio svuotata a ogni esecuzione: niente undo/redo per riga
+            jppaNotificheRepository.truncate();
+            log.info("Truncated JPPA_NOTIFICHE table ({} records)", count);
+        } else {
+            jppaNotificheRepository.deleteAllRecords();
+            log.info("Deleted {} records from JPPA_NOTIFICHE table", count);
+        }
 
         return RepeatStatus.FINISHED;
     }
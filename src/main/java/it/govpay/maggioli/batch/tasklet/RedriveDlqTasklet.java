@@ -0,0 +1,156 @@
+package it.govpay.maggioli.batch.tasklet;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.StepContribution;
+import org.springframework.batch.core.step.tasklet.Tasklet;
+import org.springframework.batch.infrastructure.repeat.RepeatStatus;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.ConfigurazioneRun;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
+import it.govpay.maggioli.batch.entity.RPT;
+import it.govpay.maggioli.batch.repository.JppaNotificheDlqRepository;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.DeadLetterService;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tasklet del job di reinvio: rispedisce un blocco limitato di notifiche scadute in JPPA_NOTIFICHE_DLQ,
+ * con un numero di invii contemporanei indipendente dal job principale.
+ * <p>
+ * Lo step non apre una transazione sul database (vedi {@code redriveDlqStep}): le chiamate HTTP avvengono
+ * fuori transazione e l'esito di ogni notifica (rimozione o ripianificazione con backoff) e' salvato
+ * con una transazione propria da {@link DeadLetterService}, subito dopo l'invio.
+ */
+@Component
+@Slf4j
+public class RedriveDlqTasklet implements Tasklet {
+
+    private final JppaNotificheDlqRepository dlqRepository;
+    private final RptRepository rptRepository;
+    private final ConfigurazioneRunService configurazioneRunService;
+    private final NotificheApiService notificheApiService;
+    private final DeadLetterService deadLetterService;
+    private final BatchProperties batchProperties;
+    private final ExecutorService executor;
+
+    public RedriveDlqTasklet(JppaNotificheDlqRepository dlqRepository, RptRepository rptRepository,
+                             ConfigurazioneRunService configurazioneRunService, NotificheApiService notificheApiService,
+                             DeadLetterService deadLetterService, BatchProperties batchProperties) {
+        this(dlqRepository, rptRepository, configurazioneRunService, notificheApiService, deadLetterService, batchProperties,
+                Executors.newFixedThreadPool(Math.max(1, batchProperties.getDlq().getConcorrenza()), new CustomizableThreadFactory("maggioli-redrive-")));
+    }
+
+    RedriveDlqTasklet(JppaNotificheDlqRepository dlqRepository, RptRepository rptRepository,
+                      ConfigurazioneRunService configurazioneRunService, NotificheApiService notificheApiService,
+                      DeadLetterService deadLetterService, BatchProperties batchProperties, ExecutorService executor) {
+        this.dlqRepository = dlqRepository;
+        this.rptRepository = rptRepository;
+        this.configurazioneRunService = configurazioneRunService;
+        this.notificheApiService = notificheApiService;
+        this.deadLetterService = deadLetterService;
+        this.batchProperties = batchProperties;
+        this.executor = executor;
+    }
+
+    @Override
+    public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws InterruptedException {
+        BatchProperties.Dlq dlq = batchProperties.getDlq();
+        List<JppaNotificheDlq> scadute = dlqRepository.findByDataProssimoTentativoLessThanEqualOrderByDataProssimoTentativo(
+                Instant.now(), PageRequest.of(0, dlq.getRedriveBatchSize()));
+        if (scadute.isEmpty()) {
+            log.info("Nessuna notifica da reinviare in JPPA_NOTIFICHE_DLQ");
+            return RepeatStatus.FINISHED;
+        }
+        log.info("Reinvio di {} notifiche da JPPA_NOTIFICHE_DLQ (concorrenza {})", scadute.size(), dlq.getConcorrenza());
+
+        Map<Long, RPT> ricevute = rptRepository.findByIdInFetchVersamento(scadute.stream().map(JppaNotificheDlq::getIdRpt).toList())
+                .stream().collect(Collectors.toMap(RPT::getId, Function.identity()));
+        ConfigurazioneRun configurazione = configurazioneRunService.corrente();
+
+        List<Future<Boolean>> invii = new ArrayList<>(scadute.size());
+        for (JppaNotificheDlq notifica : scadute) {
+            RPT rpt = ricevute.get(notifica.getIdRpt());
+            String codConnettore = configurazione.dominio(notifica.getCodDominio()).map(ConfigurazioneRun.Dominio::codConnettore).orElse(null);
+            invii.add(executor.submit(() -> reinvia(notifica, rpt, codConnettore)));
+        }
+
+        int consegnate = 0;
+        int fallite = 0;
+        for (Future<Boolean> invio : invii) {
+            try {
+                if (Boolean.TRUE.equals(invio.get())) {
+                    consegnate++;
+                } else {
+                    fallite++;
+                }
+            } catch (ExecutionException e) {
+                // Esito non salvato: la notifica resta in DLQ con la pianificazione precedente
+                log.error("Errore nel salvataggio dell'esito del reinvio: {}", e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                fallite++;
+            }
+        }
+
+        log.info("Reinvio DLQ completato: {} consegnate, {} ancora in errore", consegnate, fallite);
+        return RepeatStatus.FINISHED;
+    }
+
+    /**
+     * Reinvia una notifica e ne salva subito l'esito; restituisce true se la notifica e' uscita dalla DLQ
+     */
+    private boolean reinvia(JppaNotificheDlq notifica, RPT rpt, String codConnettore) {
+        if (rpt == null) {
+            log.warn("Ricevuta idRpt={} non piu' presente, rimossa da JPPA_NOTIFICHE_DLQ", notifica.getIdRpt());
+            deadLetterService.rimuovi(notifica);
+            return true;
+        }
+        if (codConnettore == null) {
+            deadLetterService.registraReinvioFallito(notifica, "Nessun connettore configurato per il dominio " + notifica.getCodDominio(), Instant.now());
+            return false;
+        }
+        try {
+            notificheApiService.notificaPagamento(codConnettore, rpt.getCodDominio(),
+                    RicevutaDaNotificare.voci(rpt.getVersamento().getSingoliVersamenti()), rpt.getXmlRt());
+        } catch (RuntimeException e) {
+            log.warn("Reinvio fallito per idRpt={} (dominio {}, iuv {}, tentativo {}): {}",
+                    notifica.getIdRpt(), notifica.getCodDominio(), notifica.getIuv(), notifica.getTentativi() + 1, e.getMessage());
+            deadLetterService.registraReinvioFallito(notifica, e.getClass().getSimpleName() + ": " + e.getMessage(), Instant.now());
+            return false;
+        }
+        deadLetterService.rimuovi(notifica);
+        return true;
+    }
+
+    @PreDestroy
+    void chiudi() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Reinvii DLQ ancora in corso in chiusura: le notifiche restano in JPPA_NOTIFICHE_DLQ");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
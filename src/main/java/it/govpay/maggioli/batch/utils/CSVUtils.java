@@ -24,6 +24,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -125,6 +126,13 @@ public class CSVUtils {
 		return writer.toString();
 	}
 
+	/**
+	 * Writer in streaming sullo stream indicato, con il formato di questa istanza
+	 */
+	public CsvReportWriter newReportWriter(OutputStream out) throws IOException {
+		return new CsvReportWriter(out, csvFormat);
+	}
+
 	public String getDelimiter() {
 		return this.csvFormat.getDelimiterString();
 	}
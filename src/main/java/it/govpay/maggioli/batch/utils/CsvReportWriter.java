@@ -0,0 +1,72 @@
+/*
+ * GovPay - Porta di Accesso al Nodo dei Pagamenti SPC
+ * http://www.gov4j.it/govpay
+ *
+ * Copyright (c) 2014-2025 Link.it srl (http://www.link.it).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3, as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package it.govpay.maggioli.batch.utils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Scrittura in streaming di un tracciato CSV: un solo {@link CSVPrinter} su un writer UTF-8 bufferizzato
+ * per tutta la durata del tracciato, al posto di una stringa per record.
+ * <p>
+ * I record restano nel buffer fino a {@link #flush()} (da invocare a fine chunk) o {@link #close()}, che chiude
+ * anche lo stream di destinazione.
+ */
+public class CsvReportWriter implements Flushable, Closeable {
+
+	private static final int DIMENSIONE_BUFFER = 32 * 1024;
+
+	private final CSVPrinter printer;
+	private long recordCount;
+
+	public CsvReportWriter(OutputStream out, CSVFormat csvFormat) throws IOException {
+		this.printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), DIMENSIONE_BUFFER), csvFormat);
+	}
+
+	public void printRecord(String ...values) throws IOException {
+		printer.printRecord((Object[]) values);
+		recordCount++;
+	}
+
+	/**
+	 * Record scritti, intestazione compresa
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		printer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		printer.close(true);
+	}
+}
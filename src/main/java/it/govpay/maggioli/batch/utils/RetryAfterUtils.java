@@ -0,0 +1,58 @@
+package it.govpay.maggioli.batch.utils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Interpretazione dell'header Retry-After (RFC 9110): numero di secondi oppure data HTTP
+ */
+public class RetryAfterUtils {
+	private RetryAfterUtils() {
+		// 
+	}
+
+	/**
+	 * Ritardo indicato dal servizio per le risposte 429 e 503, se presente e valido
+	 */
+	public static Optional<Duration> fromException(RestClientException e, Instant adesso) {
+		if (!(e instanceof HttpStatusCodeException httpException)) {
+			return Optional.empty();
+		}
+		int status = httpException.getStatusCode().value();
+		if (status != HttpStatus.TOO_MANY_REQUESTS.value() && status != HttpStatus.SERVICE_UNAVAILABLE.value()) {
+			return Optional.empty();
+		}
+		HttpHeaders headers = httpException.getResponseHeaders();
+		return headers != null ? parse(headers.getFirst(HttpHeaders.RETRY_AFTER), adesso) : Optional.empty();
+	}
+
+	public static Optional<Duration> parse(String valore, Instant adesso) {
+		if (valore == null || valore.isBlank()) {
+			return Optional.empty();
+		}
+		String retryAfter = valore.trim();
+		if (retryAfter.chars().allMatch(Character::isDigit)) {
+			try {
+				return Optional.of(Duration.ofSeconds(Long.parseLong(retryAfter)));
+			} catch (NumberFormatException ex) {
+				return Optional.empty();
+			}
+		}
+		try {
+			Instant data = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+			Duration ritardo = Duration.between(adesso, data);
+			return Optional.of(ritardo.isNegative() ? Duration.ZERO : ritardo);
+		} catch (DateTimeParseException ex) {
+			return Optional.empty();
+		}
+	}
+}
@@ -13,6 +13,7 @@ import tools.jackson.databind.json.JsonMapper;
 
 import it.govpay.maggioli.batch.dto.Contabilita;
 import it.govpay.maggioli.batch.dto.QuotaContabilita;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.entity.SingoloVersamento;
 import it.govpay.maggioli.client.model.DatoAccertamentoDto;
 
@@ -56,8 +57,12 @@ public class SendingUtils {
 	}
 
 	public static List<DatoAccertamentoDto> buildDatiAccertamento(Set<SingoloVersamento> singoliVersamenti) {
-		List<DatoAccertamentoDto> result = singoliVersamenti.stream()
-				.map(sv -> contabilitaConverter(sv.getContabilita(), sv.getDescrizione()))
+		return buildDatiAccertamento(RicevutaDaNotificare.voci(singoliVersamenti));
+	}
+
+	public static List<DatoAccertamentoDto> buildDatiAccertamento(List<RicevutaDaNotificare.VoceContabile> voci) {
+		List<DatoAccertamentoDto> result = voci.stream()
+				.map(voce -> contabilitaConverter(voce.contabilita(), voce.descrizione()))
 				.flatMap(Collection::stream)
 				.toList();
 		return result.isEmpty() ? null : result;
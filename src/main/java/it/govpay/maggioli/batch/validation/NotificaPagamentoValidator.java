@@ -0,0 +1,194 @@
+package it.govpay.maggioli.batch.validation;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.client.model.DatoAccertamentoDto;
+import it.govpay.maggioli.client.model.RichiestaNotificaPagamentoV2Dto;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Validazione locale della richiesta di notifica prima dell'invio.
+ * Le regole riproducono i vincoli di {@code RichiestaNotificaPagamentoV2Dto} e {@code DatoAccertamentoDto}
+ * dichiarati in maggioli-api.json: le richieste che il servizio rifiuterebbe con 400 non vengono inviate.
+ * La coerenza tra la somma degli importi di accertamento e l'importo totale pagato nella RT non e' un vincolo
+ * dell'API ed e' verificata solo se abilitata (validazione.importo-coerente).
+ */
+@Component
+@Slf4j
+public class NotificaPagamentoValidator {
+
+    static final String METRIC_SCARTI = "govpay.maggioli.validazione.rejected";
+
+    public static final String REGOLA_DOMINIO = "dominio";
+    public static final String REGOLA_RICEVUTA = "ricevuta";
+    public static final String REGOLA_CONTABILITA = "contabilita";
+    public static final String REGOLA_ACCERTAMENTO = "accertamento";
+    public static final String REGOLA_IMPORTO = "importo";
+
+    /** Elementi con l'importo totale nella RT: RT 1.x e paSendRT (2.x) */
+    private static final Set<String> ELEMENTI_IMPORTO_TOTALE = Set.of("importoTotalePagato", "paymentAmount");
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private final BatchProperties batchProperties;
+    private final MeterRegistry meterRegistry;
+
+    public NotificaPagamentoValidator(BatchProperties batchProperties, MeterRegistry meterRegistry) {
+        this.batchProperties = batchProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    public boolean isAbilitata() {
+        return batchProperties.getValidazione().isEnabled();
+    }
+
+    /**
+     * Errore di conversione della contabilita' dei singoli versamenti
+     */
+    public List<String> contabilitaNonValida(String messaggio) {
+        registraScarto(REGOLA_CONTABILITA);
+        return List.of("contabilita non valida: " + messaggio);
+    }
+
+    /**
+     * @return elenco degli errori, vuoto se la richiesta e' valida
+     */
+    public List<String> valida(RichiestaNotificaPagamentoV2Dto richiesta, byte[] xmlRt) {
+        List<String> errori = new ArrayList<>();
+        List<String> regole = new ArrayList<>();
+
+        if (isBlank(richiesta.getIdentificativoDominioEnteCreditore())) {
+            aggiungi(errori, regole, REGOLA_DOMINIO, "identificativoDominioEnteCreditore obbligatorio");
+        }
+        if (xmlRt == null || xmlRt.length == 0 || isBlank(richiesta.getBase64Ricevuta())) {
+            aggiungi(errori, regole, REGOLA_RICEVUTA, "ricevuta telematica assente");
+        }
+
+        List<DatoAccertamentoDto> dati = richiesta.getDatiAccertamento();
+        if (dati == null || dati.isEmpty()) {
+            if (batchProperties.getValidazione().isContabilitaObbligatoria()) {
+                aggiungi(errori, regole, REGOLA_CONTABILITA, "contabilita assente: nessun dato di accertamento");
+            }
+        } else {
+            for (int i = 0; i < dati.size(); i++) {
+                validaDatoAccertamento(dati.get(i), i + 1, errori, regole);
+            }
+            if (batchProperties.getValidazione().isImportoCoerente()
+                    && !regole.contains(REGOLA_ACCERTAMENTO) && !regole.contains(REGOLA_RICEVUTA)) {
+                validaImportoTotale(dati, xmlRt, errori, regole);
+            }
+        }
+
+        regole.stream().distinct().forEach(this::registraScarto);
+        return errori;
+    }
+
+    private void validaDatoAccertamento(DatoAccertamentoDto dato, int posizione, List<String> errori, List<String> regole) {
+        String prefisso = "datiAccertamento[" + posizione + "]: ";
+        if (isBlank(dato.getCodiceAccertamento())) {
+            aggiungi(errori, regole, REGOLA_ACCERTAMENTO, prefisso + "codiceAccertamento (capitolo) obbligatorio");
+        }
+        if (!annoValido(dato.getAnnoAccertamento())) {
+            aggiungi(errori, regole, REGOLA_ACCERTAMENTO, prefisso + "annoAccertamento (annoEsercizio) non valido: " + dato.getAnnoAccertamento());
+        }
+        if (isBlank(dato.getDescrizioneAccertamento())) {
+            aggiungi(errori, regole, REGOLA_ACCERTAMENTO, prefisso + "descrizioneAccertamento obbligatoria");
+        }
+        BigDecimal importo = dato.getImportoAccertamento();
+        if (importo == null) {
+            aggiungi(errori, regole, REGOLA_ACCERTAMENTO, prefisso + "importoAccertamento obbligatorio");
+        } else if (importo.stripTrailingZeros().scale() > 2) {
+            aggiungi(errori, regole, REGOLA_ACCERTAMENTO, prefisso + "importoAccertamento con piu' di due cifre decimali: " + importo.toPlainString());
+        }
+    }
+
+    private void validaImportoTotale(List<DatoAccertamentoDto> dati, byte[] xmlRt, List<String> errori, List<String> regole) {
+        BigDecimal totaleRt = importoTotaleRt(xmlRt);
+        if (totaleRt == null) {
+            // Importo non leggibile dalla RT: la coerenza non e' verificabile localmente
+            return;
+        }
+        BigDecimal totaleAccertamenti = dati.stream().map(DatoAccertamentoDto::getImportoAccertamento)
+                .filter(Objects::nonNull).reduce(BigDecimal.ZERO, BigDecimal::add);
+        if (totaleAccertamenti.compareTo(totaleRt) != 0) {
+            aggiungi(errori, regole, REGOLA_IMPORTO, "somma importi accertamento " + totaleAccertamenti.toPlainString()
+                    + " diversa dall'importo totale pagato nella RT " + totaleRt.toPlainString());
+        }
+    }
+
+    /**
+     * Legge l'importo totale pagato dalla RT con un parser StAX senza DTD ne' entita' esterne
+     */
+    BigDecimal importoTotaleRt(byte[] xmlRt) {
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(xmlRt));
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && ELEMENTI_IMPORTO_TOTALE.contains(reader.getLocalName())) {
+                    return new BigDecimal(reader.getElementText().trim());
+                }
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            log.debug("Importo totale non leggibile dalla RT: {}", e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.trace("Errore chiusura reader RT: {}", e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean annoValido(String anno) {
+        if (isBlank(anno)) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(anno.trim()) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBlank(String valore) {
+        return valore == null || valore.isBlank();
+    }
+
+    private static void aggiungi(List<String> errori, List<String> regole, String regola, String errore) {
+        errori.add(errore);
+        regole.add(regola);
+    }
+
+    private void registraScarto(String regola) {
+        Counter.builder(METRIC_SCARTI)
+                .description("Notifiche non inviate perche' non superano la validazione locale, per regola")
+                .tag("regola", regola)
+                .register(meterRegistry)
+                .increment();
+    }
+}
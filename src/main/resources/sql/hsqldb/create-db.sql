@@ -3,3 +3,38 @@ CREATE TABLE IF NOT EXISTS JPPA_NOTIFICHE (
     cod_dominio VARCHAR(35),
     CONSTRAINT pk_jppa_notifiche PRIMARY KEY (id_rpt)
 );
+
+-- Notifiche non consegnate in attesa del job di reinvio
+CREATE TABLE IF NOT EXISTS JPPA_NOTIFICHE_DLQ (
+    id_rpt BIGINT NOT NULL,
+    cod_dominio VARCHAR(35) NOT NULL,
+    iuv VARCHAR(35),
+    ccp VARCHAR(35),
+    data_msg_ricevuta TIMESTAMP,
+    tentativi INT NOT NULL,
+    ultimo_errore VARCHAR(1000),
+    data_inserimento TIMESTAMP NOT NULL,
+    data_prossimo_tentativo TIMESTAMP,
+    CONSTRAINT pk_jppa_notifiche_dlq PRIMARY KEY (id_rpt)
+);
+CREATE INDEX IF NOT EXISTS idx_jppa_dlq_prossimo ON JPPA_NOTIFICHE_DLQ (data_prossimo_tentativo);
+
+-- Scheduling pesato dei domini (classe SLA e peso)
+ALTER TABLE JPPA_CONFIG ADD COLUMN IF NOT EXISTS classe_sla VARCHAR(35);
+ALTER TABLE JPPA_CONFIG ADD COLUMN IF NOT EXISTS peso INT;
+
+-- Modalita' cooperativa: lease dei domini e nodi attivi
+CREATE TABLE IF NOT EXISTS JPPA_LEASE (
+    cod_dominio VARCHAR(35) NOT NULL,
+    nodo VARCHAR(255),
+    scadenza TIMESTAMP NOT NULL,
+    data_acquisizione TIMESTAMP,
+    CONSTRAINT pk_jppa_lease PRIMARY KEY (cod_dominio)
+);
+CREATE INDEX IF NOT EXISTS idx_jppa_lease_nodo ON JPPA_LEASE (nodo);
+
+CREATE TABLE IF NOT EXISTS JPPA_NODI (
+    nodo VARCHAR(255) NOT NULL,
+    ultimo_heartbeat TIMESTAMP NOT NULL,
+    CONSTRAINT pk_jppa_nodi PRIMARY KEY (nodo)
+);
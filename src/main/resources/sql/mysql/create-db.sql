@@ -3,3 +3,50 @@ CREATE TABLE IF NOT EXISTS JPPA_NOTIFICHE (
     cod_dominio VARCHAR(35),
     CONSTRAINT pk_jppa_notifiche PRIMARY KEY (id_rpt)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Notifiche non consegnate in attesa del job di reinvio
+CREATE TABLE IF NOT EXISTS JPPA_NOTIFICHE_DLQ (
+    id_rpt BIGINT NOT NULL,
+    cod_dominio VARCHAR(35) NOT NULL,
+    iuv VARCHAR(35),
+    ccp VARCHAR(35),
+    data_msg_ricevuta TIMESTAMP(3) NULL,
+    tentativi INT NOT NULL,
+    ultimo_errore VARCHAR(1000),
+    data_inserimento TIMESTAMP(3) NOT NULL,
+    data_prossimo_tentativo TIMESTAMP(3) NULL,
+    CONSTRAINT pk_jppa_notifiche_dlq PRIMARY KEY (id_rpt),
+    INDEX idx_jppa_dlq_prossimo (data_prossimo_tentativo)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Scheduling pesato dei domini (classe SLA e peso)
+-- MySQL non supporta ADD COLUMN IF NOT EXISTS: ogni colonna e' aggiunta solo se assente
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.columns
+               WHERE table_schema = DATABASE() AND table_name = 'JPPA_CONFIG' AND column_name = 'classe_sla') = 0,
+              'ALTER TABLE JPPA_CONFIG ADD COLUMN classe_sla VARCHAR(35)', 'DO 0');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.columns
+               WHERE table_schema = DATABASE() AND table_name = 'JPPA_CONFIG' AND column_name = 'peso') = 0,
+              'ALTER TABLE JPPA_CONFIG ADD COLUMN peso INT', 'DO 0');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+-- Modalita' cooperativa: lease dei domini e nodi attivi
+CREATE TABLE IF NOT EXISTS JPPA_LEASE (
+    cod_dominio VARCHAR(35) NOT NULL,
+    nodo VARCHAR(255),
+    scadenza TIMESTAMP(3) NOT NULL,
+    data_acquisizione TIMESTAMP(3) NULL,
+    CONSTRAINT pk_jppa_lease PRIMARY KEY (cod_dominio),
+    INDEX idx_jppa_lease_nodo (nodo)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+CREATE TABLE IF NOT EXISTS JPPA_NODI (
+    nodo VARCHAR(255) NOT NULL,
+    ultimo_heartbeat TIMESTAMP(3) NOT NULL,
+    CONSTRAINT pk_jppa_nodi PRIMARY KEY (nodo)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
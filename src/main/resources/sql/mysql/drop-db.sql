@@ -1 +1,4 @@
 DROP TABLE IF EXISTS JPPA_NOTIFICHE;
+DROP TABLE IF EXISTS JPPA_NOTIFICHE_DLQ;
+DROP TABLE IF EXISTS JPPA_LEASE;
+DROP TABLE IF EXISTS JPPA_NODI;
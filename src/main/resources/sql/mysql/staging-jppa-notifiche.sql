@@ -0,0 +1,15 @@
+-- =============================================================================
+-- Variante a basso overhead della tabella di appoggio JPPA_NOTIFICHE per MySQL / MariaDB (opzionale)
+--
+-- Con ENGINE=MEMORY la tabella non scrive redo log ne' doublewrite di InnoDB e dopo un riavvio del server
+-- e' vuota. Le modifiche restano nel binary log se attivo (le repliche ricevono comunque le righe).
+-- La dimensione massima e' limitata da max_heap_table_size: verificare che contenga tutte le ricevute
+-- di un'esecuzione (le righe MEMORY hanno lunghezza fissa, circa 200 byte).
+-- Lo svuotamento con TRUNCATE (govpay.batch.staging.truncate=true) richiede il privilegio DROP sulla tabella.
+-- Da eseguire dopo create-db.sql, a batch fermo.
+-- =============================================================================
+
+ALTER TABLE JPPA_NOTIFICHE ENGINE=MEMORY;
+
+-- Ripristino della tabella ordinaria:
+-- ALTER TABLE JPPA_NOTIFICHE ENGINE=InnoDB;
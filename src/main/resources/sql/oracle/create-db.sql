@@ -3,3 +3,49 @@ CREATE TABLE JPPA_NOTIFICHE (
     cod_dominio VARCHAR2(35),
     CONSTRAINT pk_jppa_notifiche PRIMARY KEY (id_rpt)
 );
+
+-- Notifiche non consegnate in attesa del job di reinvio
+CREATE TABLE JPPA_NOTIFICHE_DLQ (
+    id_rpt NUMBER(19) NOT NULL,
+    cod_dominio VARCHAR2(35) NOT NULL,
+    iuv VARCHAR2(35),
+    ccp VARCHAR2(35),
+    data_msg_ricevuta TIMESTAMP,
+    tentativi NUMBER(10) NOT NULL,
+    ultimo_errore VARCHAR2(1000),
+    data_inserimento TIMESTAMP NOT NULL,
+    data_prossimo_tentativo TIMESTAMP,
+    CONSTRAINT pk_jppa_notifiche_dlq PRIMARY KEY (id_rpt)
+);
+CREATE INDEX idx_jppa_dlq_prossimo ON JPPA_NOTIFICHE_DLQ (data_prossimo_tentativo);
+
+-- Scheduling pesato dei domini (classe SLA e peso)
+-- ORA-01430 (colonna gia' presente) e' ignorato per rendere lo script rieseguibile
+BEGIN
+    EXECUTE IMMEDIATE 'ALTER TABLE JPPA_CONFIG ADD (classe_sla VARCHAR2(35))';
+EXCEPTION WHEN OTHERS THEN
+    IF SQLCODE != -1430 THEN RAISE; END IF;
+END;
+/
+BEGIN
+    EXECUTE IMMEDIATE 'ALTER TABLE JPPA_CONFIG ADD (peso NUMBER(10))';
+EXCEPTION WHEN OTHERS THEN
+    IF SQLCODE != -1430 THEN RAISE; END IF;
+END;
+/
+
+-- Modalita' cooperativa: lease dei domini e nodi attivi
+CREATE TABLE JPPA_LEASE (
+    cod_dominio VARCHAR2(35) NOT NULL,
+    nodo VARCHAR2(255),
+    scadenza TIMESTAMP NOT NULL,
+    data_acquisizione TIMESTAMP,
+    CONSTRAINT pk_jppa_lease PRIMARY KEY (cod_dominio)
+);
+CREATE INDEX idx_jppa_lease_nodo ON JPPA_LEASE (nodo);
+
+CREATE TABLE JPPA_NODI (
+    nodo VARCHAR2(255) NOT NULL,
+    ultimo_heartbeat TIMESTAMP NOT NULL,
+    CONSTRAINT pk_jppa_nodi PRIMARY KEY (nodo)
+);
@@ -1 +1,4 @@
 TRUNCATE TABLE JPPA_NOTIFICHE;
+TRUNCATE TABLE JPPA_NOTIFICHE_DLQ;
+TRUNCATE TABLE JPPA_LEASE;
+TRUNCATE TABLE JPPA_NODI;
@@ -1 +1,4 @@
 DROP TABLE JPPA_NOTIFICHE;
+DROP TABLE JPPA_NOTIFICHE_DLQ;
+DROP TABLE JPPA_LEASE;
+DROP TABLE JPPA_NODI;
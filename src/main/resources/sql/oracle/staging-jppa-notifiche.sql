@@ -0,0 +1,19 @@
+-- =============================================================================
+-- Variante a basso overhead della tabella di appoggio JPPA_NOTIFICHE per Oracle (opzionale)
+--
+-- Una GLOBAL TEMPORARY TABLE non e' utilizzabile: i dati sono visibili alla sola sessione che li ha
+-- scritti, mentre lo step 2 e le partizioni dello step 3 usano connessioni diverse del pool.
+-- Con NOLOGGING le operazioni in direct-path e la ricostruzione degli indici non generano redo;
+-- gli INSERT convenzionali del batch ne generano comunque, per cui il risparmio principale viene
+-- dallo svuotamento con TRUNCATE (govpay.batch.staging.truncate=true), che non produce undo/redo per riga.
+-- Il TRUNCATE richiede che l'utente del batch sia proprietario della tabella.
+-- In presenza di standby Data Guard con FORCE LOGGING l'attributo NOLOGGING viene ignorato.
+-- Da eseguire dopo create-db.sql, a batch fermo.
+-- =============================================================================
+
+ALTER TABLE JPPA_NOTIFICHE NOLOGGING;
+ALTER INDEX pk_jppa_notifiche NOLOGGING;
+
+-- Ripristino della tabella ordinaria:
+-- ALTER TABLE JPPA_NOTIFICHE LOGGING;
+-- ALTER INDEX pk_jppa_notifiche LOGGING;
@@ -0,0 +1,13 @@
+-- =============================================================================
+-- Variante a basso overhead della tabella di appoggio JPPA_NOTIFICHE per PostgreSQL (opzionale)
+--
+-- JPPA_NOTIFICHE viene svuotata e ricaricata a ogni esecuzione del batch: come tabella UNLOGGED
+-- non scrive WAL, non viene replicata sugli standby e dopo un crash viene trovata vuota.
+-- Le query che la usano sono sempre eseguite sul primario (anche con la replica di sola lettura).
+-- Richiede PostgreSQL 9.5+. Da eseguire dopo create-db.sql, a batch fermo.
+-- =============================================================================
+
+ALTER TABLE JPPA_NOTIFICHE SET UNLOGGED;
+
+-- Ripristino della tabella ordinaria:
+-- ALTER TABLE JPPA_NOTIFICHE SET LOGGED;
@@ -4,3 +4,43 @@ CREATE TABLE JPPA_NOTIFICHE (
     cod_dominio VARCHAR(35),
     CONSTRAINT pk_jppa_notifiche PRIMARY KEY (id_rpt)
 );
+
+-- Notifiche non consegnate in attesa del job di reinvio
+IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_NOTIFICHE_DLQ')
+CREATE TABLE JPPA_NOTIFICHE_DLQ (
+    id_rpt BIGINT NOT NULL,
+    cod_dominio VARCHAR(35) NOT NULL,
+    iuv VARCHAR(35),
+    ccp VARCHAR(35),
+    data_msg_ricevuta DATETIME2,
+    tentativi INT NOT NULL,
+    ultimo_errore VARCHAR(1000),
+    data_inserimento DATETIME2 NOT NULL,
+    data_prossimo_tentativo DATETIME2,
+    CONSTRAINT pk_jppa_notifiche_dlq PRIMARY KEY (id_rpt),
+    INDEX idx_jppa_dlq_prossimo (data_prossimo_tentativo)
+);
+
+-- Scheduling pesato dei domini (classe SLA e peso)
+IF COL_LENGTH('JPPA_CONFIG', 'classe_sla') IS NULL
+ALTER TABLE JPPA_CONFIG ADD classe_sla VARCHAR(35);
+IF COL_LENGTH('JPPA_CONFIG', 'peso') IS NULL
+ALTER TABLE JPPA_CONFIG ADD peso INT;
+
+-- Modalita' cooperativa: lease dei domini e nodi attivi
+IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_LEASE')
+CREATE TABLE JPPA_LEASE (
+    cod_dominio VARCHAR(35) NOT NULL,
+    nodo VARCHAR(255),
+    scadenza DATETIME2 NOT NULL,
+    data_acquisizione DATETIME2,
+    CONSTRAINT pk_jppa_lease PRIMARY KEY (cod_dominio),
+    INDEX idx_jppa_lease_nodo (nodo)
+);
+
+IF NOT EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_NODI')
+CREATE TABLE JPPA_NODI (
+    nodo VARCHAR(255) NOT NULL,
+    ultimo_heartbeat DATETIME2 NOT NULL,
+    CONSTRAINT pk_jppa_nodi PRIMARY KEY (nodo)
+);
@@ -1,2 +1,8 @@
 IF EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_NOTIFICHE')
     DROP TABLE JPPA_NOTIFICHE;
+IF EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_NOTIFICHE_DLQ')
+    DROP TABLE JPPA_NOTIFICHE_DLQ;
+IF EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_LEASE')
+    DROP TABLE JPPA_LEASE;
+IF EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_NODI')
+    DROP TABLE JPPA_NODI;
@@ -0,0 +1,30 @@
+-- =============================================================================
+-- Variante a basso overhead della tabella di appoggio JPPA_NOTIFICHE per SQL Server (opzionale)
+--
+-- Tabella memory-optimized con DURABILITY = SCHEMA_ONLY: i dati non sono scritti nel transaction log
+-- e dopo un riavvio la tabella e' vuota. Richiede SQL Server 2016+ e un filegroup MEMORY_OPTIMIZED_DATA
+-- nel database (vedi sotto). Le tabelle memory-optimized non supportano TRUNCATE: con questa variante
+-- lasciare govpay.batch.staging.truncate=false (la DELETE non e' comunque registrata nel log).
+-- La tabella viene ricreata: da eseguire a batch fermo, il contenuto e' comunque ricostruito a ogni esecuzione.
+-- =============================================================================
+
+-- Filegroup per i dati memory-optimized, se non gia' presente (percorso da adattare):
+-- ALTER DATABASE CURRENT ADD FILEGROUP govpay_mod CONTAINS MEMORY_OPTIMIZED_DATA;
+-- ALTER DATABASE CURRENT ADD FILE (NAME = 'govpay_mod', FILENAME = '/var/opt/mssql/data/govpay_mod') TO FILEGROUP govpay_mod;
+
+-- Il batch accede alla tabella in transazioni esplicite READ COMMITTED: senza l'elevazione a SNAPSHOT
+-- SQL Server le rifiuta con l'errore 41368 (accesso a tabelle memory-optimized con livello di isolamento
+-- non supportato). L'opzione vale per tutto il database e riguarda solo le tabelle memory-optimized.
+ALTER DATABASE CURRENT SET MEMORY_OPTIMIZED_ELEVATE_TO_SNAPSHOT = ON;
+
+IF EXISTS (SELECT * FROM sys.tables WHERE name = 'JPPA_NOTIFICHE')
+DROP TABLE JPPA_NOTIFICHE;
+
+CREATE TABLE JPPA_NOTIFICHE (
+    id_rpt BIGINT NOT NULL,
+    cod_dominio VARCHAR(35),
+    CONSTRAINT pk_jppa_notifiche PRIMARY KEY NONCLUSTERED (id_rpt)
+) WITH (MEMORY_OPTIMIZED = ON, DURABILITY = SCHEMA_ONLY);
+
+-- Alternativa senza filegroup memory-optimized: modello di recovery SIMPLE o BULK_LOGGED a livello
+-- di database e svuotamento con TRUNCATE (govpay.batch.staging.truncate=true), registrato a livello di pagina.
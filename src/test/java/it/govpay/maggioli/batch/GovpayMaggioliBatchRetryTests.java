@@ -22,8 +22,8 @@ import it.govpay.maggioli.batch.exception.LoginFailedException;
 import it.govpay.maggioli.batch.dto.DominioProcessingContext;
 import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch;
 import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch.NotificaHeader;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.entity.JppaConfig;
-import it.govpay.maggioli.batch.entity.RPT;
 import it.govpay.maggioli.batch.repository.JppaConfigRepository;
 import it.govpay.maggioli.batch.config.ScheduledJobRunner;
 import it.govpay.maggioli.batch.config.TestScheduledJobRunnerConfig;
@@ -46,7 +46,6 @@ import static org.mockito.Mockito.when;
 
 import java.time.Instant;
 import java.util.List;
-import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -103,10 +102,10 @@ class GovpayMaggioliBatchRetryTests {
 	@MockitoBean
 	private JppaConfigRepository jppaConfigRepository = mock(JppaConfigRepository.class);
 
-	private RPT notificheReaderFun() {
+	private RicevutaDaNotificare notificheReaderFun() {
 		// poll() rimuove e ritorna l'elemento dalla coda (o null se vuota)
 		if (headerQueue.poll() != null)
-			return new RPT();
+			return new RicevutaDaNotificare(null, null, null, null, null, null, List.of());
 		return null;
 	}
 
@@ -120,8 +119,9 @@ class GovpayMaggioliBatchRetryTests {
 		// Mock JppaNotificheRepository per supportare il partitioning
 		when(notificheRepository.findDistinctCodDominio()).thenReturn(List.of(COD_DOMINIO_TEST));
 
-		// Mock JppaConfigRepository per fornire il connettore al DominioPartitioner
-		when(jppaConfigRepository.findByCodDominio(COD_DOMINIO_TEST)).thenReturn(Optional.of(JppaConfig.builder().codDominio(COD_DOMINIO_TEST).connettore(COD_CONNETTORE_TEST).build()));
+		// Mock JppaConfigRepository per fornire il connettore al DominioPartitioner (configurazione dell'esecuzione)
+		when(jppaConfigRepository.findAll()).thenReturn(List.of(
+				JppaConfig.builder().codDominio(COD_DOMINIO_TEST).connettore(COD_CONNETTORE_TEST).build()));
 
 		when(cleanupNotifiche.execute(any(), any())).thenReturn(RepeatStatus.FINISHED);
 
@@ -233,9 +233,10 @@ class GovpayMaggioliBatchRetryTests {
 		Mockito.reset(notificationReader);
 		Mockito.reset(notificationProcessor);
 		when(notificheRepository.findDistinctCodDominio()).thenReturn(List.of(COD_DOMINIO_PART1, COD_DOMINIO_PART2, COD_DOMINIO_PART3));
-		when(jppaConfigRepository.findByCodDominio(COD_DOMINIO_PART1)).thenReturn(Optional.of(JppaConfig.builder().codDominio(COD_DOMINIO_PART1).connettore(COD_CONNETTORE_TEST).build()));
-		when(jppaConfigRepository.findByCodDominio(COD_DOMINIO_PART2)).thenReturn(Optional.of(JppaConfig.builder().codDominio(COD_DOMINIO_PART2).connettore(COD_CONNETTORE_TEST).build()));
-		when(jppaConfigRepository.findByCodDominio(COD_DOMINIO_PART3)).thenReturn(Optional.of(JppaConfig.builder().codDominio(COD_DOMINIO_PART3).connettore(COD_CONNETTORE_TEST).build()));
+		when(jppaConfigRepository.findAll()).thenReturn(List.of(
+				JppaConfig.builder().codDominio(COD_DOMINIO_PART1).connettore(COD_CONNETTORE_TEST).build(),
+				JppaConfig.builder().codDominio(COD_DOMINIO_PART2).connettore(COD_CONNETTORE_TEST).build(),
+				JppaConfig.builder().codDominio(COD_DOMINIO_PART3).connettore(COD_CONNETTORE_TEST).build()));
 
 		// Headers reader deve restituire 3 DominioProcessingContext (uno per ogni dominio)
 		Instant lastRtData = Instant.now();
@@ -298,8 +299,9 @@ class GovpayMaggioliBatchRetryTests {
 		Mockito.reset(notificationReader);
 		Mockito.reset(notificationProcessor);
 		when(notificheRepository.findDistinctCodDominio()).thenReturn(List.of(COD_DOMINIO_PART1, COD_DOMINIO_PART2));
-		when(jppaConfigRepository.findByCodDominio(COD_DOMINIO_PART1)).thenReturn(Optional.of(JppaConfig.builder().codDominio(COD_DOMINIO_PART1).connettore(COD_CONNETTORE_TEST).build()));
-		when(jppaConfigRepository.findByCodDominio(COD_DOMINIO_PART2)).thenReturn(Optional.of(JppaConfig.builder().codDominio(COD_DOMINIO_PART2).connettore(COD_CONNETTORE_TEST).build()));
+		when(jppaConfigRepository.findAll()).thenReturn(List.of(
+				JppaConfig.builder().codDominio(COD_DOMINIO_PART1).connettore(COD_CONNETTORE_TEST).build(),
+				JppaConfig.builder().codDominio(COD_DOMINIO_PART2).connettore(COD_CONNETTORE_TEST).build()));
 
 		// Headers reader deve restituire 2 DominioProcessingContext
 		Instant lastRtData = Instant.now();
@@ -85,7 +85,7 @@ class PrometheusScrapeIntegrationTest {
         // Basta a far girare il job (anche se termina senza item) e a produrre
         // le metriche standard spring_batch_job/step di Micrometer.
         when(jobConcurrencyService.getCurrentRunningJobExecution(any())).thenReturn(null);
-        when(jppaConfigRepository.findAllByAbilitato(Boolean.TRUE)).thenReturn(List.<JppaConfig>of());
+        when(jppaConfigRepository.findAll()).thenReturn(List.<JppaConfig>of());
         when(jppaNotificheRepository.findDistinctCodDominio()).thenReturn(List.<String>of());
 
         JobExecution execution = batchScheduler.runBatchMaggioliJppaNotificationJob();
@@ -0,0 +1,134 @@
+package it.govpay.maggioli.batch.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.step.StepExecution;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.repository.RptRepository;
+
+/**
+ * Unit tests for AdaptiveJobScheduler
+ */
+@ExtendWith(MockitoExtension.class)
+class AdaptiveJobSchedulerTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private ScheduledJobRunner scheduledJobRunner;
+
+    @Mock
+    private RptRepository rptRepository;
+
+    @Mock
+    private JobExecution jobExecution;
+
+    private SimpleMeterRegistry meterRegistry;
+    private AdaptiveJobScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.getAdaptiveScheduling().setIntervalloMinimoMillis(60_000);
+        batchProperties.getAdaptiveScheduling().setIntervalloMassimoMillis(1_200_000);
+        batchProperties.getAdaptiveScheduling().setEsecuzioniVuote(3);
+        meterRegistry = new SimpleMeterRegistry();
+        scheduler = new AdaptiveJobScheduler(scheduledJobRunner, rptRepository, batchProperties, ZoneId.of("Europe/Rome"),
+            meterRegistry, 600_000, 1, Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    @DisplayName("Should halve the interval down to the minimum when backlog remains")
+    void testBacklogShortensInterval() {
+        scheduler.adatta(100, Duration.ofSeconds(10), 50);
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(300_000);
+
+        scheduler.adatta(100, Duration.ofSeconds(10), 50);
+        scheduler.adatta(100, Duration.ofSeconds(10), 50);
+        scheduler.adatta(100, Duration.ofSeconds(10), 50);
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(60_000);
+        assertThat(meterRegistry.get(AdaptiveJobScheduler.METRIC_INTERVALLO).gauge().value()).isEqualTo(60.0);
+    }
+
+    @Test
+    @DisplayName("Should halve the interval when the run takes more than half of it")
+    void testLongRunShortensInterval() {
+        scheduler.adatta(100, Duration.ofMinutes(6), 0);
+
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(300_000);
+    }
+
+    @Test
+    @DisplayName("Should double the interval up to the maximum after consecutive empty runs")
+    void testEmptyRunsLengthenInterval() {
+        scheduler.adatta(0, Duration.ofSeconds(1), 0);
+        scheduler.adatta(0, Duration.ofSeconds(1), 0);
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(600_000);
+
+        scheduler.adatta(0, Duration.ofSeconds(1), 0);
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(1_200_000);
+        assertThat(scheduler.getInfo().getEsecuzioniVuoteConsecutive()).isZero();
+
+        for (int i = 0; i < 3; i++) {
+            scheduler.adatta(0, Duration.ofSeconds(1), 0);
+        }
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(1_200_000);
+    }
+
+    @Test
+    @DisplayName("Should keep the interval and reset empty runs after a normal run")
+    void testNormalRunKeepsInterval() {
+        scheduler.adatta(0, Duration.ofSeconds(1), 0);
+        scheduler.adatta(0, Duration.ofSeconds(1), 0);
+        scheduler.adatta(10, Duration.ofSeconds(1), 0);
+        scheduler.adatta(0, Duration.ofSeconds(1), 0);
+
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(600_000);
+        assertThat(scheduler.getInfo().getEsecuzioniVuoteConsecutive()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should adapt from the notifications written by the worker partitions")
+    void testEseguiUsesWorkerWriteCount() throws Exception {
+        StepExecution worker = new StepExecution("sendNotificationWorkerStep:partition-12345678901", null);
+        worker.setWriteCount(5);
+        when(jobExecution.getStepExecutions()).thenReturn(List.of(new StepExecution("cleanupStep", null), worker));
+        when(scheduledJobRunner.eseguiJob()).thenReturn(jobExecution);
+        when(rptRepository.countDaNotificareDominiAbilitati(anyList())).thenReturn(0L);
+
+        scheduler.esegui();
+
+        assertThat(scheduler.getInfo().getMotivo()).isEqualTo("5 notifiche inviate senza arretrato");
+        assertThat(scheduler.getInfo().getUltimaEsecuzione()).isNotNull();
+    }
+
+    @Test
+    @DisplayName("Should not adapt when the job was not launched")
+    void testEseguiJobNotLaunched() throws Exception {
+        when(scheduledJobRunner.eseguiJob()).thenReturn(null);
+
+        scheduler.esegui();
+
+        verify(rptRepository, never()).countDaNotificareDominiAbilitati(anyList());
+        assertThat(scheduler.getIntervalloMillis()).isEqualTo(600_000);
+    }
+}
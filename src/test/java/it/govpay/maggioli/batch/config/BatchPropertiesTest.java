@@ -0,0 +1,32 @@
+package it.govpay.maggioli.batch.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for BatchProperties
+ */
+class BatchPropertiesTest {
+
+    @Test
+    @DisplayName("Should default the step 3 chunk size to 100")
+    void testDefaultPaymentsChunkSize() {
+        assertThat(new BatchProperties().getPaymentsChunkSize()).isEqualTo(100);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    @DisplayName("Should fall back to the deprecated chunk-size when payments-chunk-size is not set")
+    void testDeprecatedChunkSizeFallback() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.setChunkSize(200);
+        batchProperties.verificaProprietaDeprecate();
+
+        assertThat(batchProperties.getPaymentsChunkSize()).isEqualTo(200);
+
+        batchProperties.setPaymentsChunkSize(50);
+        assertThat(batchProperties.getPaymentsChunkSize()).isEqualTo(50);
+    }
+}
@@ -0,0 +1,142 @@
+package it.govpay.maggioli.batch.config;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.core.job.JobExecution;
+
+import it.govpay.maggioli.batch.repository.RptRepository;
+
+/**
+ * Unit tests for ChangeDetectionTrigger
+ */
+@ExtendWith(MockitoExtension.class)
+class ChangeDetectionTriggerTest {
+
+    private static final Instant T0 = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private RptRepository rptRepository;
+
+    @Mock
+    private ScheduledJobRunner scheduledJobRunner;
+
+    private OrologioManuale clock;
+    private ChangeDetectionTrigger trigger;
+
+    @BeforeEach
+    void setUp() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.getChangeDetection().setQuieteMillis(2000);
+        batchProperties.getChangeDetection().setAttesaMassimaMillis(10000);
+        clock = new OrologioManuale(T0);
+        trigger = new ChangeDetectionTrigger(rptRepository, scheduledJobRunner, batchProperties, clock);
+    }
+
+    @Test
+    @DisplayName("Should not launch on the first probe nor without new receipts")
+    void testNoChanges() throws Exception {
+        when(rptRepository.findMaxDataMsgRicevutaDominiAbilitati(anyList())).thenReturn(T0.minusSeconds(60));
+
+        sonda(0);
+        sonda(5000);
+        sonda(5000);
+
+        verify(scheduledJobRunner, never()).eseguiJob();
+    }
+
+    @Test
+    @DisplayName("Should launch once after the quiet period")
+    void testLaunchAfterQuietPeriod() throws Exception {
+        when(rptRepository.findMaxDataMsgRicevutaDominiAbilitati(anyList()))
+            .thenReturn(T0.minusSeconds(60), T0, T0, T0);
+        when(scheduledJobRunner.eseguiJob()).thenReturn(mock(JobExecution.class));
+
+        sonda(0);     // baseline
+        sonda(1000);  // new receipt detected, quiet period not elapsed
+        verify(scheduledJobRunner, never()).eseguiJob();
+
+        sonda(2000);  // quiet period elapsed
+        sonda(1000);  // nothing new
+        verify(scheduledJobRunner, times(1)).eseguiJob();
+    }
+
+    @Test
+    @DisplayName("Should launch within the maximum wait during continuous bursts")
+    void testMaximumWait() throws Exception {
+        when(rptRepository.findMaxDataMsgRicevutaDominiAbilitati(anyList()))
+            .thenAnswer(inv -> clock.instant());
+        when(scheduledJobRunner.eseguiJob()).thenReturn(mock(JobExecution.class));
+
+        sonda(0);
+        for (int i = 0; i < 11; i++) {
+            sonda(1000);
+        }
+
+        verify(scheduledJobRunner, times(1)).eseguiJob();
+    }
+
+    @Test
+    @DisplayName("Should retry the launch while the job is already running")
+    void testPendingLaunch() throws Exception {
+        when(rptRepository.findMaxDataMsgRicevutaDominiAbilitati(anyList()))
+            .thenReturn(null, T0, T0, T0);
+        when(scheduledJobRunner.eseguiJob()).thenReturn(null, mock(JobExecution.class));
+
+        sonda(0);
+        sonda(1000);
+        sonda(2000);  // job running: still pending
+        sonda(1000);  // launched
+        sonda(1000);
+
+        verify(scheduledJobRunner, times(2)).eseguiJob();
+    }
+
+    private void sonda(long avanzamentoMillis) {
+        clock.avanza(avanzamentoMillis);
+        trigger.sonda();
+    }
+
+    private static final class OrologioManuale extends Clock {
+
+        private Instant adesso;
+
+        OrologioManuale(Instant adesso) {
+            this.adesso = adesso;
+        }
+
+        void avanza(long millis) {
+            adesso = adesso.plusMillis(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return adesso;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package it.govpay.maggioli.batch.config;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.batch.core.job.Job;
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.job.JobInstance;
+import org.springframework.batch.core.job.parameters.JobParameters;
+
+import it.govpay.common.batch.TriggerType;
+import it.govpay.common.batch.runner.JobExecutionHelper;
+import it.govpay.common.batch.runner.JobExecutionHelper.PreExecutionCheckResult;
+import it.govpay.common.batch.runner.JobExecutionHelper.PreExecutionResult;
+import it.govpay.common.batch.service.JobConcurrencyService;
+import it.govpay.maggioli.batch.Costanti;
+
+class RedriveJobRunnerTest {
+
+    @Mock
+    private JobExecutionHelper jobExecutionHelper;
+    @Mock
+    private JobConcurrencyService jobConcurrencyService;
+    @Mock
+    private Job maggioliJppaRedriveJob;
+
+    private RedriveJobRunner runner;
+
+    private static final String JOB_NAME = Costanti.MAGGIOLI_JPPA_REDRIVE_JOB_NAME;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        runner = new RedriveJobRunner(jobExecutionHelper, jobConcurrencyService, maggioliJppaRedriveJob);
+    }
+
+    @Test
+    void whenNotificationJobRunning_thenPostponeRedrive() throws Exception {
+        when(jobConcurrencyService.getCurrentRunningJobExecution(Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME))
+            .thenReturn(new JobExecution(1L, new JobInstance(1L, Costanti.MAGGIOLI_JPPA_NOTIFICATION_JOB_NAME), new JobParameters()));
+
+        JobExecution result = runner.runBatchMaggioliJppaRedriveJob();
+
+        assertNull(result);
+        verify(jobExecutionHelper, never()).checkBeforeExecution(JOB_NAME);
+        verify(jobExecutionHelper, never()).runJob(any(), any(), any());
+    }
+
+    @Test
+    void whenRedriveRunningOnAnotherNode_thenSkipLaunching() throws Exception {
+        when(jobExecutionHelper.checkBeforeExecution(JOB_NAME))
+            .thenReturn(new PreExecutionResult(PreExecutionCheckResult.RUNNING_ON_OTHER_NODE, null, "OtherNode"));
+
+        JobExecution result = runner.runBatchMaggioliJppaRedriveJob();
+
+        assertNull(result);
+        verify(jobExecutionHelper, never()).runJob(any(), any(), any());
+    }
+
+    @Test
+    void whenNothingRunning_thenLaunchRedrive() throws Exception {
+        when(jobExecutionHelper.checkBeforeExecution(JOB_NAME))
+            .thenReturn(new PreExecutionResult(PreExecutionCheckResult.CAN_PROCEED, null, null));
+        JobExecution launched = new JobExecution(2L, new JobInstance(2L, JOB_NAME), new JobParameters());
+        when(jobExecutionHelper.runJob(eq(maggioliJppaRedriveJob), eq(JOB_NAME), eq(TriggerType.SCHEDULED)))
+            .thenReturn(launched);
+
+        JobExecution result = runner.runBatchMaggioliJppaRedriveJob();
+
+        assertNotNull(result);
+        verify(jobExecutionHelper).runJob(eq(maggioliJppaRedriveJob), eq(JOB_NAME), eq(TriggerType.SCHEDULED));
+    }
+}
@@ -16,6 +16,7 @@ import org.springframework.batch.core.job.Job;
 import org.springframework.batch.core.job.JobExecution;
 import org.springframework.batch.core.job.JobInstance;
 import org.springframework.batch.core.job.parameters.JobParameters;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import it.govpay.common.batch.TriggerType;
 import it.govpay.common.batch.runner.JobExecutionHelper;
@@ -102,4 +103,23 @@ class ScheduledJobRunnerTest {
         assertNull(result);
         verify(jobExecutionHelper, never()).runJob(any(), any());
     }
+
+    @Test
+    void whenAdaptiveSchedulingEnabled_thenFixedDelayRunSkips() throws Exception {
+        ReflectionTestUtils.setField(runner, "schedulazioneAdattiva", true);
+
+        JobExecution result = runner.runBatchMaggioliJppaNotificationJob();
+
+        assertNull(result);
+        verify(jobExecutionHelper, never()).checkBeforeExecution(JOB_NAME);
+    }
+
+    @Test
+    void whenContinuousModeEnabled_thenNoJobIsLaunched() throws Exception {
+        ReflectionTestUtils.setField(runner, "modalitaContinua", true);
+
+        assertNull(runner.runBatchMaggioliJppaNotificationJob());
+        assertNull(runner.eseguiJob());
+        verify(jobExecutionHelper, never()).checkBeforeExecution(JOB_NAME);
+    }
 }
@@ -0,0 +1,40 @@
+package it.govpay.maggioli.batch.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+/**
+ * Unit tests for ShortTransactionsConfiguration
+ */
+class ShortTransactionsConfigurationTest {
+
+    private final BeanPostProcessor postProcessor = ShortTransactionsConfiguration.connessioneDifferitaPostProcessor();
+
+    @Test
+    @DisplayName("Should wrap the application DataSource so the connection is fetched at the first statement")
+    void testWrapsApplicationDataSource() {
+        DataSource dataSource = mock(DataSource.class);
+
+        Object risultato = postProcessor.postProcessAfterInitialization(dataSource, ShortTransactionsConfiguration.DATA_SOURCE);
+
+        assertThat(risultato).isInstanceOf(LazyConnectionDataSourceProxy.class);
+        assertThat(((LazyConnectionDataSourceProxy) risultato).getTargetDataSource()).isSameAs(dataSource);
+    }
+
+    @Test
+    @DisplayName("Should leave the batch DataSource and an already lazy DataSource untouched")
+    void testLeavesOtherDataSources() {
+        DataSource batchDataSource = mock(DataSource.class);
+        LazyConnectionDataSourceProxy lazy = new LazyConnectionDataSourceProxy(mock(DataSource.class));
+
+        assertThat(postProcessor.postProcessAfterInitialization(batchDataSource, "batchDataSource")).isSameAs(batchDataSource);
+        assertThat(postProcessor.postProcessAfterInitialization(lazy, ShortTransactionsConfiguration.DATA_SOURCE)).isSameAs(lazy);
+    }
+}
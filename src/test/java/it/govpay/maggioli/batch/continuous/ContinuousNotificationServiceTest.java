@@ -0,0 +1,125 @@
+package it.govpay.maggioli.batch.continuous;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.DeadLetterService;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+import it.govpay.maggioli.batch.service.NotificheMetrics;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
+
+/**
+ * Unit tests for ContinuousNotificationService
+ */
+@ExtendWith(MockitoExtension.class)
+class ContinuousNotificationServiceTest {
+
+    @Mock
+    private JppaConfigRepository jppaConfigRepository;
+
+    @Mock
+    private RptRepository rptRepository;
+
+    @Mock
+    private NotificheApiService notificheApiService;
+
+    @Mock
+    private DeadLetterService deadLetterService;
+
+    @Mock
+    private DomainLeaseService leaseService;
+
+    private ContinuousNotificationService service;
+
+    @BeforeEach
+    void setUp() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.getContinuous().setAttesaMillis(10);
+        batchProperties.getContinuous().setPausaErroreMillis(1_000);
+        // Il supervisore non interviene durante il test: l'allineamento e' invocato direttamente
+        batchProperties.getContinuous().setAggiornamentoConnettoriMillis(3_600_000);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        service = new ContinuousNotificationService(jppaConfigRepository, rptRepository,
+            new ReplicaReadExecutor(rptRepository, mock(PlatformTransactionManager.class), batchProperties, meterRegistry),
+            notificheApiService, deadLetterService, new NotificheMetrics(meterRegistry), leaseService, batchProperties, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.stop();
+    }
+
+    private static JppaConfig dominio(String codDominio, String connettore) {
+        return JppaConfig.builder().codDominio(codDominio).connettore(connettore).build();
+    }
+
+    @Test
+    @DisplayName("Should start a worker for each connector of the enabled domains")
+    void testStartsWorkerPerConnector() {
+        when(jppaConfigRepository.findAllByAbilitato(Boolean.TRUE))
+            .thenReturn(List.of(dominio("11111111111", "CONN_A"), dominio("22222222222", "CONN_A"), dominio("33333333333", "CONN_B")));
+
+        service.start();
+
+        assertThat(service.getConnettoriAttivi()).containsExactly("CONN_A", "CONN_B");
+        verify(jppaConfigRepository, timeout(5_000).atLeastOnce()).findAllByAbilitatoAndConnettore(Boolean.TRUE, "CONN_A");
+        verify(jppaConfigRepository, timeout(5_000).atLeastOnce()).findAllByAbilitatoAndConnettore(Boolean.TRUE, "CONN_B");
+    }
+
+    @Test
+    @DisplayName("Should start workers for new connectors and stop the ones no longer used without a restart")
+    void testRealignsWorkersOnConnectorChange() {
+        when(jppaConfigRepository.findAllByAbilitato(Boolean.TRUE))
+            .thenReturn(List.of(dominio("11111111111", "CONN_A")))
+            .thenReturn(List.of(dominio("11111111111", "CONN_B"), dominio("22222222222", "CONN_C"), dominio("33333333333", null)));
+
+        service.start();
+        assertThat(service.getConnettoriAttivi()).containsExactly("CONN_A");
+
+        service.allinea();
+
+        assertThat(service.getConnettoriAttivi()).containsExactly("CONN_B", "CONN_C");
+        verify(jppaConfigRepository, timeout(5_000).atLeastOnce()).findAllByAbilitatoAndConnettore(Boolean.TRUE, "CONN_B");
+        verify(jppaConfigRepository, timeout(5_000).atLeastOnce()).findAllByAbilitatoAndConnettore(Boolean.TRUE, "CONN_C");
+    }
+
+    @Test
+    @DisplayName("Should restart a connector that is used again once its previous worker has stopped")
+    void testRestartsReusedConnector() throws InterruptedException {
+        when(jppaConfigRepository.findAllByAbilitato(Boolean.TRUE))
+            .thenReturn(List.of(dominio("11111111111", "CONN_A")))
+            .thenReturn(List.of())
+            .thenReturn(List.of(dominio("11111111111", "CONN_A")));
+
+        service.start();
+        service.allinea();
+        assertThat(service.getConnettoriAttivi()).isEmpty();
+
+        // Il worker del connettore ripreso riparte dopo l'arresto del precedente, al piu' tardi ai giri successivi
+        for (int i = 0; i < 100 && service.getConnettoriAttivi().isEmpty(); i++) {
+            service.allinea();
+            Thread.sleep(20);
+        }
+
+        assertThat(service.getConnettoriAttivi()).containsExactly("CONN_A");
+    }
+}
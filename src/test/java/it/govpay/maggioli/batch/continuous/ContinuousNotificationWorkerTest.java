@@ -0,0 +1,231 @@
+package it.govpay.maggioli.batch.continuous;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
+import it.govpay.maggioli.batch.entity.RPT;
+import it.govpay.maggioli.batch.entity.Versamento;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.DeadLetterService;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+import it.govpay.maggioli.batch.service.NotificheMetrics;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
+import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto;
+import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto.EsitoEnum;
+
+/**
+ * Unit tests for ContinuousNotificationWorker
+ */
+@ExtendWith(MockitoExtension.class)
+class ContinuousNotificationWorkerTest {
+
+    private static final String COD_CONNETTORE = "CONN_TEST";
+    private static final String COD_DOMINIO = "12345678901";
+    private static final Instant ULTIMA_RT = Instant.parse("2025-06-01T09:00:00Z");
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private JppaConfigRepository jppaConfigRepository;
+
+    @Mock
+    private RptRepository rptRepository;
+
+    @Mock
+    private NotificheApiService notificheApiService;
+
+    @Mock
+    private DeadLetterService deadLetterService;
+
+    @Mock
+    private DomainLeaseService leaseService;
+
+    private BatchProperties batchProperties;
+    private SimpleMeterRegistry meterRegistry;
+    private JppaConfig config;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        batchProperties.getContinuous().setDimensioneIncremento(3);
+        batchProperties.getContinuous().setPausaErroreMillis(60_000);
+        meterRegistry = new SimpleMeterRegistry();
+        config = JppaConfig.builder().codDominio(COD_DOMINIO).connettore(COD_CONNETTORE).dataUltimaRt(ULTIMA_RT).build();
+    }
+
+    private ContinuousNotificationWorker worker(boolean dlqEnabled) {
+        return new ContinuousNotificationWorker(COD_CONNETTORE, jppaConfigRepository, rptRepository,
+            new ReplicaReadExecutor(rptRepository, mock(PlatformTransactionManager.class), batchProperties, meterRegistry), notificheApiService, deadLetterService,
+            new NotificheMetrics(meterRegistry), leaseService, batchProperties, dlqEnabled, Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    private static RptRepository.RicevutaProjection ricevuta(long id, Instant data) {
+        return new RptRepository.RicevutaProjection() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public Instant getDataMsgRicevuta() {
+                return data;
+            }
+        };
+    }
+
+    private static RPT rpt(long id, Instant data) {
+        return RPT.builder()
+            .id(id)
+            .codDominio(COD_DOMINIO)
+            .iuv("IUV" + id)
+            .ccp("CCP" + id)
+            .versamento(Versamento.builder().id(100L + id).build())
+            .dataMsgRicevuta(data)
+            .xmlRt("XML_RT".getBytes())
+            .build();
+    }
+
+    private static RispostaNotificaPagamentoDto ok() {
+        RispostaNotificaPagamentoDto risposta = new RispostaNotificaPagamentoDto();
+        risposta.setEsito(EsitoEnum.OK);
+        return risposta;
+    }
+
+    private void stubIncremento(List<RptRepository.RicevutaProjection> ricevute, List<RPT> rpts) {
+        when(jppaConfigRepository.findAllByAbilitatoAndConnettore(Boolean.TRUE, COD_CONNETTORE)).thenReturn(List.of(config));
+        when(rptRepository.findRicevuteDaNotificare(eq(COD_DOMINIO), anyList(), eq(ULTIMA_RT), any(Pageable.class))).thenReturn(ricevute);
+        when(rptRepository.findByIdInFetchVersamento(any())).thenReturn(rpts);
+    }
+
+    @Test
+    @DisplayName("Should send a partial increment in order and advance the watermark")
+    void testPartialIncrement() {
+        Instant t1 = ULTIMA_RT.plusSeconds(1);
+        Instant t2 = ULTIMA_RT.plusSeconds(2);
+        stubIncremento(List.of(ricevuta(1, t1), ricevuta(2, t2)), List.of(rpt(2, t2), rpt(1, t1)));
+        when(notificheApiService.notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), any(), any())).thenReturn(ok());
+
+        int elaborate = worker(false).ciclo();
+
+        assertThat(elaborate).isEqualTo(2);
+        verify(jppaConfigRepository).aggiornaDataUltimaRt(COD_DOMINIO, t2);
+        assertThat(meterRegistry.get("govpay.maggioli.notifiche.sent").tag("modalita", NotificheMetrics.MODALITA_CONTINUA).tag("esito", "OK")
+            .counter().count()).isEqualTo(2.0);
+    }
+
+    @Test
+    @DisplayName("Should stop a full increment before the receipts sharing the last timestamp")
+    void testFullIncrementTrimsLastTimestamp() {
+        Instant t1 = ULTIMA_RT.plusSeconds(1);
+        Instant t2 = ULTIMA_RT.plusSeconds(2);
+        stubIncremento(List.of(ricevuta(1, t1), ricevuta(2, t2), ricevuta(3, t2)), List.of(rpt(1, t1)));
+        when(notificheApiService.notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), any(), any())).thenReturn(ok());
+
+        int elaborate = worker(false).ciclo();
+
+        assertThat(elaborate).isEqualTo(1);
+        verify(jppaConfigRepository).aggiornaDataUltimaRt(COD_DOMINIO, t1);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Long>> ids = ArgumentCaptor.forClass(List.class);
+        verify(rptRepository).findByIdInFetchVersamento(ids.capture());
+        assertThat(ids.getValue()).containsExactly(1L);
+    }
+
+    @Test
+    @DisplayName("Should pause the domain and keep the watermark before a failed receipt without DLQ")
+    void testTransientErrorPausesDomain() {
+        Instant t1 = ULTIMA_RT.plusSeconds(1);
+        Instant t2 = ULTIMA_RT.plusSeconds(2);
+        stubIncremento(List.of(ricevuta(1, t1), ricevuta(2, t2)), List.of(rpt(1, t1), rpt(2, t2)));
+        when(notificheApiService.notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), any(), any()))
+            .thenReturn(ok())
+            .thenThrow(HttpServerErrorException.create(HttpStatus.SERVICE_UNAVAILABLE, "Service Unavailable", HttpHeaders.EMPTY, null, null));
+
+        ContinuousNotificationWorker worker = worker(false);
+        assertThat(worker.ciclo()).isEqualTo(1);
+        verify(jppaConfigRepository).aggiornaDataUltimaRt(COD_DOMINIO, t1);
+
+        // Secondo ciclo durante la pausa: il dominio non viene letto
+        assertThat(worker.ciclo()).isZero();
+        verify(rptRepository, times(1)).findRicevuteDaNotificare(eq(COD_DOMINIO), anyList(), any(), any(Pageable.class));
+        verify(deadLetterService, never()).registra(anyList());
+    }
+
+    @Test
+    @DisplayName("Should register rejected and failed receipts in the DLQ and advance when enabled")
+    void testDlqRegistersAndAdvances() {
+        Instant t1 = ULTIMA_RT.plusSeconds(1);
+        Instant t2 = ULTIMA_RT.plusSeconds(2);
+        stubIncremento(List.of(ricevuta(1, t1), ricevuta(2, t2)), List.of(rpt(1, t1), rpt(2, t2)));
+        when(notificheApiService.notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), any(), any()))
+            .thenThrow(HttpClientErrorException.create(HttpStatus.BAD_REQUEST, "Bad Request", HttpHeaders.EMPTY, null, null))
+            .thenThrow(HttpServerErrorException.create(HttpStatus.SERVICE_UNAVAILABLE, "Service Unavailable", HttpHeaders.EMPTY, null, null));
+
+        int elaborate = worker(true).ciclo();
+
+        assertThat(elaborate).isEqualTo(2);
+        verify(jppaConfigRepository).aggiornaDataUltimaRt(COD_DOMINIO, t2);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<JppaNotificheDlq>> scartate = ArgumentCaptor.forClass(List.class);
+        verify(deadLetterService).registra(scartate.capture());
+        assertThat(scartate.getValue()).extracting(JppaNotificheDlq::getIdRpt).containsExactly(1L, 2L);
+        // Anche la ricevuta fallita e registrata in DLQ conta come ERRORE_INVIO
+        assertThat(meterRegistry.get("govpay.maggioli.notifiche.sent").tag("esito", Costanti.ESITO_ERRORE_INVIO).counter().count()).isEqualTo(2.0);
+    }
+
+    @Test
+    @DisplayName("Should skip the domains whose lease is held by another node")
+    void testLeaseNotHeldSkipsDomain() {
+        when(jppaConfigRepository.findAllByAbilitatoAndConnettore(Boolean.TRUE, COD_CONNETTORE)).thenReturn(List.of(config));
+        when(leaseService.isAttiva()).thenReturn(true);
+        when(leaseService.possiede(COD_DOMINIO)).thenReturn(false);
+
+        assertThat(worker(false).ciclo()).isZero();
+        verify(rptRepository, never()).findRicevuteDaNotificare(any(), anyList(), any(), any(Pageable.class));
+    }
+
+    @Test
+    @DisplayName("Should advance the watermark through the lease-fenced update")
+    void testLeaseFencedWatermark() {
+        Instant t1 = ULTIMA_RT.plusSeconds(1);
+        stubIncremento(List.of(ricevuta(1, t1)), List.of(rpt(1, t1)));
+        when(leaseService.isAttiva()).thenReturn(true);
+        when(leaseService.possiede(COD_DOMINIO)).thenReturn(true);
+        when(leaseService.aggiornaDataUltimaRt(COD_DOMINIO, t1)).thenReturn(false);
+        when(notificheApiService.notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), any(), any())).thenReturn(ok());
+
+        assertThat(worker(false).ciclo()).isEqualTo(1);
+        verify(jppaConfigRepository, never()).aggiornaDataUltimaRt(any(), any());
+    }
+}
@@ -0,0 +1,233 @@
+package it.govpay.maggioli.batch.continuous;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.entity.JppaLease;
+import it.govpay.maggioli.batch.entity.JppaNodo;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.repository.JppaLeaseRepository;
+import it.govpay.maggioli.batch.repository.JppaNodoRepository;
+
+/**
+ * Unit tests for DomainLeaseService
+ */
+@ExtendWith(MockitoExtension.class)
+class DomainLeaseServiceTest {
+
+    private static final String NODO = "nodo-1";
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+    private static final long DURATA = 30;
+
+    @Mock
+    private JppaLeaseRepository leaseRepository;
+
+    @Mock
+    private JppaNodoRepository nodoRepository;
+
+    @Mock
+    private JppaConfigRepository jppaConfigRepository;
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    private SimpleMeterRegistry meterRegistry;
+    private DomainLeaseService leaseService;
+    private Instant ora = NOW;
+
+    @BeforeEach
+    void setUp() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.getLease().setEnabled(true);
+        batchProperties.getLease().setIdNodo(NODO);
+        batchProperties.getLease().setDurataMillis(30_000);
+        batchProperties.getLease().setHeartbeatMillis(10_000);
+        meterRegistry = new SimpleMeterRegistry();
+        Clock clock = mock(Clock.class);
+        lenient().when(clock.instant()).thenAnswer(inv -> ora);
+        leaseService = new DomainLeaseService(leaseRepository, nodoRepository, jppaConfigRepository, batchProperties, meterRegistry,
+            "GovPay-Maggioli-JPPA-Batch", executor, clock);
+    }
+
+    private void heartbeat(List<String> posseduti, long nodiAttivi, long domini) {
+        when(nodoRepository.registraHeartbeat(NODO)).thenReturn(1);
+        when(leaseRepository.findDominiPosseduti(NODO)).thenReturn(posseduti);
+        when(nodoRepository.countAttivi(DURATA)).thenReturn(nodiAttivi);
+        when(jppaConfigRepository.countByAbilitato(Boolean.TRUE)).thenReturn(domini);
+        leaseService.heartbeat();
+    }
+
+    @Test
+    @DisplayName("Should create the lease row and acquire a free domain")
+    void testAcquireFreeDomain() {
+        heartbeat(List.of(), 1, 4);
+        when(leaseRepository.existsById("D1")).thenReturn(false);
+        when(leaseRepository.acquisisci("D1", NODO, DURATA)).thenReturn(1);
+
+        assertThat(leaseService.possiede("D1")).isTrue();
+        assertThat(leaseService.possiede("D1")).isTrue();
+
+        verify(leaseRepository).save(any(JppaLease.class));
+        verify(leaseRepository).acquisisci("D1", NODO, DURATA);
+        assertThat(meterRegistry.get(DomainLeaseService.METRIC_LEASE).gauge().value()).isEqualTo(1.0);
+    }
+
+    @Test
+    @DisplayName("Should not process a domain leased by another node")
+    void testDomainHeldElsewhere() {
+        heartbeat(List.of(), 1, 4);
+        when(leaseRepository.existsById("D1")).thenReturn(true);
+        when(leaseRepository.acquisisci("D1", NODO, DURATA)).thenReturn(0);
+
+        assertThat(leaseService.possiede("D1")).isFalse();
+        verify(leaseRepository, never()).save(any(JppaLease.class));
+    }
+
+    @Test
+    @DisplayName("Should register the node, renew the leases and release domains above the fair share")
+    void testHeartbeatAndRebalance() {
+        heartbeat(List.of("D1", "D2", "D3"), 2, 4);
+
+        verify(nodoRepository).registraHeartbeat(NODO);
+        verify(nodoRepository, never()).save(any(JppaNodo.class));
+        verify(leaseRepository).rinnova(NODO, DURATA);
+
+        // Quota 2 su 4 domini e 2 nodi: il primo dominio controllato viene rilasciato
+        assertThat(leaseService.possiede("D3")).isFalse();
+        verify(leaseRepository).rilascia("D3", NODO);
+        assertThat(leaseService.possiede("D1")).isTrue();
+        assertThat(leaseService.possiede("D2")).isTrue();
+
+        // Quota raggiunta: nessun nuovo dominio
+        assertThat(leaseService.possiede("D4")).isFalse();
+        verify(leaseRepository, never()).acquisisci(eq("D4"), any(), eq(DURATA));
+    }
+
+    @Test
+    @DisplayName("Should drop the domain when the fenced watermark update finds the lease lost")
+    void testLostLeaseOnWatermarkUpdate() {
+        heartbeat(List.of("D1"), 1, 1);
+        when(jppaConfigRepository.aggiornaDataUltimaRtConLease("D1", NOW, NODO)).thenReturn(0);
+
+        assertThat(leaseService.aggiornaDataUltimaRt("D1", NOW)).isFalse();
+
+        // Quota 1, nessun lease posseduto: il dominio va riacquisito
+        when(leaseRepository.existsById("D1")).thenReturn(true);
+        when(leaseRepository.acquisisci("D1", NODO, DURATA)).thenReturn(0);
+        assertThat(leaseService.possiede("D1")).isFalse();
+    }
+
+    @Test
+    @DisplayName("Should release every lease and deregister the node on shutdown")
+    void testRilasciaTutti() {
+        heartbeat(List.of("D1", "D2"), 1, 2);
+
+        leaseService.rilasciaTutti();
+
+        verify(leaseRepository).rilascia("D1", NODO);
+        verify(leaseRepository).rilascia("D2", NODO);
+        verify(nodoRepository).deleteById(NODO);
+    }
+
+    @Test
+    @DisplayName("Should insert the node row on its first heartbeat and stamp it with the database clock")
+    void testFirstHeartbeat() {
+        when(nodoRepository.registraHeartbeat(NODO)).thenReturn(0, 1);
+        when(leaseRepository.findDominiPosseduti(NODO)).thenReturn(List.of());
+        when(nodoRepository.countAttivi(DURATA)).thenReturn(1L);
+        when(jppaConfigRepository.countByAbilitato(Boolean.TRUE)).thenReturn(1L);
+
+        leaseService.heartbeat();
+
+        verify(nodoRepository).save(any(JppaNodo.class));
+        verify(nodoRepository, times(2)).registraHeartbeat(NODO);
+    }
+
+    @Test
+    @DisplayName("Should not exceed the quota when workers acquire domains concurrently")
+    void testQuotaUnderConcurrency() throws Exception {
+        heartbeat(List.of(), 2, 2);
+        CountDownLatch inAcquisizione = new CountDownLatch(1);
+        CountDownLatch sblocca = new CountDownLatch(1);
+        when(leaseRepository.existsById("D1")).thenReturn(true);
+        when(leaseRepository.acquisisci("D1", NODO, DURATA)).thenAnswer(inv -> {
+            inAcquisizione.countDown();
+            sblocca.await(5, TimeUnit.SECONDS);
+            return 1;
+        });
+        lenient().when(leaseRepository.existsById("D2")).thenReturn(true);
+        lenient().when(leaseRepository.acquisisci("D2", NODO, DURATA)).thenReturn(1);
+
+        CompletableFuture<Boolean> primo = CompletableFuture.supplyAsync(() -> leaseService.possiede("D1"));
+        assertThat(inAcquisizione.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Boolean> secondo = CompletableFuture.supplyAsync(() -> leaseService.possiede("D2"));
+        // Il secondo worker attende la fine dell'acquisizione del primo
+        assertThatThrownBy(() -> secondo.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+        sblocca.countDown();
+
+        assertThat(primo.get(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(secondo.get(5, TimeUnit.SECONDS)).isFalse();
+        verify(leaseRepository, never()).acquisisci("D2", NODO, DURATA);
+    }
+
+    @Test
+    @DisplayName("Should run the heartbeat on the service's own scheduler")
+    void testHeartbeatOnOwnScheduler() {
+        leaseService.avvia();
+
+        verify(executor).scheduleWithFixedDelay(any(Runnable.class), eq(10_000L), eq(10_000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    @DisplayName("Should stop processing the owned domains once the local lease deadline has passed")
+    void testLocalDeadline() {
+        heartbeat(List.of("D1"), 1, 1);
+        assertThat(leaseService.possiede("D1")).isTrue();
+
+        // Scadenza locale: rinnovo + 30 s - 10 s di margine
+        ora = NOW.plusSeconds(20);
+        assertThat(leaseService.possiede("D1")).isTrue();
+        ora = NOW.plusSeconds(21);
+        assertThat(leaseService.possiede("D1")).isFalse();
+        verify(leaseRepository, never()).acquisisci(any(), any(), eq(DURATA));
+        assertThat(meterRegistry.get(DomainLeaseService.METRIC_LEASE).gauge().value()).isZero();
+
+        // Il rinnovo successivo riporta i domini ancora posseduti su DB
+        leaseService.heartbeat();
+        assertThat(leaseService.possiede("D1")).isTrue();
+    }
+
+    @Test
+    @DisplayName("Should not acquire domains before the first successful heartbeat")
+    void testNoDomainsBeforeHeartbeat() {
+        assertThat(leaseService.possiede("D1")).isFalse();
+
+        verify(leaseRepository, never()).acquisisci(any(), any(), eq(DURATA));
+    }
+}
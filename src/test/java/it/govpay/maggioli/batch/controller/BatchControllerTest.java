@@ -4,7 +4,10 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
 
 import java.time.ZoneId;
 
@@ -13,6 +16,7 @@ import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.batch.core.job.Job;
 import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.core.env.Environment;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -22,6 +26,10 @@ import it.govpay.common.batch.dto.BatchInfo;
 import it.govpay.common.batch.runner.JobExecutionHelper;
 import it.govpay.common.client.service.ConnettoreService;
 import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.config.AdaptiveJobScheduler;
+import it.govpay.maggioli.batch.dto.AdaptiveScheduleInfo;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.ConnettoreCache;
 import jakarta.persistence.EntityManager;
 
 @DisplayName("BatchController")
@@ -34,10 +42,14 @@ class BatchControllerTest {
     private Environment environment;
     private ZoneId applicationZoneId;
     private EntityManager entityManager;
+    private ObjectProvider<AdaptiveJobScheduler> adaptiveJobScheduler;
+    private ConfigurazioneRunService configurazioneRunService;
+    private ConnettoreCache connettoreCache;
 
     private BatchController controller;
 
     @BeforeEach
+    @SuppressWarnings("unchecked")
     void setUp() {
         jobExecutionHelper = mock(JobExecutionHelper.class);
         jobRepository = mock(JobRepository.class);
@@ -46,6 +58,9 @@ class BatchControllerTest {
         environment = mock(Environment.class);
         applicationZoneId = ZoneId.of("Europe/Rome");
         entityManager = mock(EntityManager.class);
+        adaptiveJobScheduler = mock(ObjectProvider.class);
+        configurazioneRunService = mock(ConfigurazioneRunService.class);
+        connettoreCache = mock(ConnettoreCache.class);
 
         controller = new BatchController(
                 jobExecutionHelper,
@@ -55,7 +70,10 @@ class BatchControllerTest {
                 applicationZoneId,
                 600_000L,
                 connettoreService,
-                entityManager);
+                entityManager,
+                adaptiveJobScheduler,
+                configurazioneRunService,
+                connettoreCache);
     }
 
     @Test
@@ -93,6 +111,19 @@ class BatchControllerTest {
         assertEquals(HttpStatus.OK, response.getStatusCode());
         assertEquals("Cache connettori invalidata", response.getBody());
         verify(connettoreService).clearCache();
+        verify(connettoreCache).invalidaTutto();
+        verify(configurazioneRunService).invalida();
+    }
+
+    @Test
+    @DisplayName("clearCache/{codConnettore} invalidates a single connector")
+    void clearCacheConnettoreInvalidatesSingleEntry() {
+        ResponseEntity<String> response = controller.clearCacheConnettoreEndpoint("CONN");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(connettoreCache).invalida("CONN");
+        verify(configurazioneRunService).invalida();
+        verify(connettoreService, never()).clearCache();
     }
 
     @Test
@@ -118,4 +149,37 @@ class BatchControllerTest {
         assertEquals(ReflectionTestUtils.invokeMethod(controller, "getDisplayName"), info.getDisplayName());
         assertEquals(ReflectionTestUtils.invokeMethod(controller, "getDescription"), info.getDescription());
     }
+
+    @Test
+    @DisplayName("run is rejected with 409 when continuous mode is enabled")
+    void runRejectedInContinuousMode() {
+        ReflectionTestUtils.setField(controller, "modalitaContinua", true);
+
+        ResponseEntity<Object> response = controller.eseguiJobEndpoint(true);
+
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+        verifyNoInteractions(jobExecutionHelper);
+    }
+
+    @Test
+    @DisplayName("nextExecution/adaptive reports the interval chosen by the adaptive scheduler")
+    void adaptiveScheduleReportsAdaptiveInterval() {
+        AdaptiveJobScheduler scheduler = mock(AdaptiveJobScheduler.class);
+        AdaptiveScheduleInfo info = AdaptiveScheduleInfo.builder().modalita("ADATTIVA").intervalloMillis(120_000L).build();
+        when(adaptiveJobScheduler.getIfAvailable()).thenReturn(scheduler);
+        when(scheduler.getInfo()).thenReturn(info);
+
+        ResponseEntity<AdaptiveScheduleInfo> response = controller.getAdaptiveScheduleEndpoint();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(info, response.getBody());
+    }
+
+    @Test
+    @DisplayName("nextExecution/adaptive returns 404 when adaptive scheduling is disabled")
+    void adaptiveScheduleNotFoundWhenDisabled() {
+        ResponseEntity<AdaptiveScheduleInfo> response = controller.getAdaptiveScheduleEndpoint();
+
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
 }
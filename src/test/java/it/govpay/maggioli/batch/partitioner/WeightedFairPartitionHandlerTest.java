@@ -0,0 +1,154 @@
+package it.govpay.maggioli.batch.partitioner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.core.partition.StepExecutionSplitter;
+import org.springframework.batch.core.step.Step;
+import org.springframework.batch.core.step.StepExecution;
+import org.springframework.core.task.SyncTaskExecutor;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+
+/**
+ * Unit tests for WeightedFairPartitionHandler
+ */
+@ExtendWith(MockitoExtension.class)
+class WeightedFairPartitionHandlerTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private Step step;
+
+    @Mock
+    private StepExecutionSplitter splitter;
+
+    private BatchProperties.Scheduling scheduling;
+    private SimpleMeterRegistry meterRegistry;
+    private List<String> eseguite;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        scheduling = new BatchProperties.Scheduling();
+        scheduling.getPesiClassi().put("ALTA", 4);
+        scheduling.getPesiClassi().put("BASSA", 1);
+        meterRegistry = new SimpleMeterRegistry();
+        eseguite = new ArrayList<>();
+        lenient().doAnswer(inv -> eseguite.add(((StepExecution) inv.getArgument(0)).getStepName()))
+            .when(step).execute(any(StepExecution.class));
+    }
+
+    @Test
+    @DisplayName("Should give precedence to higher weight class")
+    void testWeightedOrder() throws Exception {
+        // Given: aging disabled, two domains per class
+        scheduling.setInvecchiamentoMillis(0);
+        StepExecution master = new StepExecution("master", null);
+        when(splitter.split(any(StepExecution.class), anyInt())).thenReturn(Set.of(
+            partizione("partition-A", "BASSA", NOW.minusSeconds(60)),
+            partizione("partition-B", "ALTA", NOW.minusSeconds(30)),
+            partizione("partition-C", "ALTA", NOW.minusSeconds(20)),
+            partizione("partition-D", "BASSA", NOW.minusSeconds(10))));
+
+        // When: executed on a single slot
+        Collection<StepExecution> result = handler(1).handle(splitter, master);
+
+        // Then: ALTA class consumes its share first, then BASSA by oldest receipt
+        assertThat(result).hasSize(4);
+        assertThat(eseguite).containsExactly("partition-B", "partition-C", "partition-A", "partition-D");
+    }
+
+    @Test
+    @DisplayName("Should let an aged domain overtake higher weight classes")
+    void testAging() throws Exception {
+        // Given: BASSA domain waiting for 10 aging intervals
+        scheduling.setInvecchiamentoMillis(60_000);
+        StepExecution master = new StepExecution("master", null);
+        when(splitter.split(any(StepExecution.class), anyInt())).thenReturn(Set.of(
+            partizione("partition-A", "BASSA", NOW.minusSeconds(600)),
+            partizione("partition-B", "ALTA", NOW.minusSeconds(30)),
+            partizione("partition-C", "ALTA", NOW.minusSeconds(20))));
+
+        // When
+        handler(1).handle(splitter, master);
+
+        // Then: aged domain goes first
+        assertThat(eseguite).containsExactly("partition-A", "partition-B", "partition-C");
+    }
+
+    @Test
+    @DisplayName("Should use domain weight and default class when missing")
+    void testDomainWeightAndDefaultClass() throws Exception {
+        // Given: a STANDARD domain (default class) with explicit weight 10 and an ALTA domain
+        scheduling.setInvecchiamentoMillis(0);
+        StepExecution master = new StepExecution("master", null);
+        StepExecution standard = new StepExecution("partition-S", null);
+        standard.getExecutionContext().putInt(WeightedFairPartitionHandler.CTX_PESO, 10);
+        when(splitter.split(any(StepExecution.class), anyInt())).thenReturn(new LinkedHashSet<>(List.of(
+            partizione("partition-A", "ALTA", NOW.minusSeconds(60)),
+            standard)));
+
+        // When
+        handler(1).handle(splitter, master);
+
+        // Then: weight 10 beats class weight 4
+        assertThat(eseguite).containsExactly("partition-S", "partition-A");
+    }
+
+    @Test
+    @DisplayName("Should record queue wait per SLA class")
+    void testQueueWaitMetric() throws Exception {
+        StepExecution master = new StepExecution("master", null);
+        when(splitter.split(any(StepExecution.class), anyInt())).thenReturn(Set.of(
+            partizione("partition-A", "BASSA", NOW.minusSeconds(60)),
+            partizione("partition-B", "ALTA", NOW.minusSeconds(30)),
+            partizione("partition-C", "ALTA", NOW.minusSeconds(20))));
+
+        handler(2).handle(splitter, master);
+
+        assertThat(meterRegistry.get(WeightedFairPartitionHandler.METRIC_ATTESA_CODA).tag("classe", "ALTA").timer().count()).isEqualTo(2);
+        assertThat(meterRegistry.get(WeightedFairPartitionHandler.METRIC_ATTESA_CODA).tag("classe", "BASSA").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should return empty result when there are no partitions")
+    void testNoPartitions() throws Exception {
+        StepExecution master = new StepExecution("master", null);
+        when(splitter.split(any(StepExecution.class), anyInt())).thenReturn(Set.of());
+
+        assertThat(handler(2).handle(splitter, master)).isEmpty();
+        assertThat(eseguite).isEmpty();
+    }
+
+    private WeightedFairPartitionHandler handler(int slot) {
+        return new WeightedFairPartitionHandler(step, new SyncTaskExecutor(), slot, scheduling, meterRegistry,
+            Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    private StepExecution partizione(String nome, String classe, Instant dataRtMenoRecente) {
+        StepExecution stepExecution = new StepExecution(nome, null);
+        stepExecution.getExecutionContext().putString(WeightedFairPartitionHandler.CTX_CLASSE_SLA, classe);
+        stepExecution.getExecutionContext().putLong(WeightedFairPartitionHandler.CTX_DATA_RT_MENO_RECENTE, dataRtMenoRecente.toEpochMilli());
+        return stepExecution;
+    }
+}
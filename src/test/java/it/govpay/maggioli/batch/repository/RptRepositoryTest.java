@@ -0,0 +1,87 @@
+package it.govpay.maggioli.batch.repository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+
+/**
+ * Unit tests for the two-phase loading of step 3 receipts in RptRepository
+ */
+class RptRepositoryTest {
+
+    private static final String COD_DOMINIO = "12345678901";
+
+    private RptRepository rptRepository;
+
+    @BeforeEach
+    void setUp() {
+        rptRepository = mock(RptRepository.class, CALLS_REAL_METHODS);
+    }
+
+    @Test
+    @DisplayName("Should attach the entries of each versamento to its receipts keeping the receipts order")
+    void testAttachesEntriesInOrder() {
+        when(rptRepository.findRptByNotificheOrderByDataMsgRicevuta(COD_DOMINIO))
+            .thenReturn(List.of(new Rpt(2L, 20L), new Rpt(1L, 10L), new Rpt(3L, 30L)));
+        when(rptRepository.findVociContabiliByIdVersamentoIn(anyCollection()))
+            .thenReturn(List.of(new Voce(10L, "quota 1"), new Voce(20L, "unica"), new Voce(10L, "quota 2")));
+
+        List<RicevutaDaNotificare> ricevute = rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(COD_DOMINIO);
+
+        assertThat(ricevute).extracting(RicevutaDaNotificare::id).containsExactly(2L, 1L, 3L);
+        assertThat(ricevute.get(0).voci()).extracting(RicevutaDaNotificare.VoceContabile::descrizione).containsExactly("unica");
+        assertThat(ricevute.get(1).voci()).extracting(RicevutaDaNotificare.VoceContabile::descrizione).containsExactly("quota 1", "quota 2");
+        assertThat(ricevute.get(2).voci()).isEmpty();
+        verify(rptRepository, times(1)).findVociContabiliByIdVersamentoIn(anyCollection());
+    }
+
+    @Test
+    @DisplayName("Should load the entries in blocks of at most MAX_VERSAMENTI_PER_QUERY versamenti")
+    @SuppressWarnings("unchecked")
+    void testLoadsEntriesInBlocks() {
+        List<RptRepository.RptDaNotificareProjection> righe = new ArrayList<>();
+        for (long i = 0; i < RptRepository.MAX_VERSAMENTI_PER_QUERY + 1; i++) {
+            righe.add(new Rpt(i, 1000 + i));
+        }
+        when(rptRepository.findRptByIdIn(anyCollection())).thenReturn(righe);
+        when(rptRepository.findVociContabiliByIdVersamentoIn(anyCollection())).thenReturn(List.of());
+
+        assertThat(rptRepository.findRicevuteByIdIn(List.of(1L))).hasSize(RptRepository.MAX_VERSAMENTI_PER_QUERY + 1);
+
+        ArgumentCaptor<Collection<Long>> blocchi = ArgumentCaptor.forClass(Collection.class);
+        verify(rptRepository, times(2)).findVociContabiliByIdVersamentoIn(blocchi.capture());
+        assertThat(blocchi.getAllValues()).extracting(Collection::size).containsExactly(RptRepository.MAX_VERSAMENTI_PER_QUERY, 1);
+    }
+
+    private record Rpt(Long id, Long idVersamento) implements RptRepository.RptDaNotificareProjection {
+        public Long getId() { return id; }
+        public String getCodDominio() { return COD_DOMINIO; }
+        public String getIuv() { return "IUV_" + id; }
+        public String getCcp() { return "CCP_" + id; }
+        public Instant getDataMsgRicevuta() { return Instant.EPOCH; }
+        public byte[] getXmlRt() { return "XML_RT_TEST".getBytes(); }
+        public Long getIdVersamento() { return idVersamento; }
+    }
+
+    private record Voce(Long idVersamento, String descrizione) implements RptRepository.VoceContabileProjection {
+        public Long getIdVersamento() { return idVersamento; }
+        public String getDescrizione() { return descrizione; }
+        public String getContabilita() { return null; }
+    }
+}
@@ -0,0 +1,127 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+
+/**
+ * Unit tests for BatchMetadataPruner, on an embedded database with the Spring Batch schema
+ */
+class BatchMetadataPrunerTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+    private static final LocalDateTime ADESSO = LocalDateTime.ofInstant(NOW, ZoneOffset.UTC);
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private BatchProperties batchProperties;
+    private BatchMetadataPruner pruner;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder()
+            .setType(EmbeddedDatabaseType.H2)
+            .generateUniqueName(true)
+            .addScript("org/springframework/batch/core/schema-h2.sql")
+            .build();
+        jdbcTemplate = new JdbcTemplate(database);
+        batchProperties = new BatchProperties();
+        batchProperties.getMetadataPruning().setDimensioneBlocco(2);
+        pruner = new BatchMetadataPruner(jdbcTemplate, new DataSourceTransactionManager(database), batchProperties, "BATCH_",
+            Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    private void esecuzione(long id, String jobName, String stato, LocalDateTime fine) {
+        jdbcTemplate.update("INSERT INTO BATCH_JOB_INSTANCE (JOB_INSTANCE_ID, VERSION, JOB_NAME, JOB_KEY) VALUES (?, 0, ?, ?)", id, jobName, "key" + id);
+        jdbcTemplate.update("INSERT INTO BATCH_JOB_EXECUTION (JOB_EXECUTION_ID, VERSION, JOB_INSTANCE_ID, CREATE_TIME, START_TIME, END_TIME, STATUS) VALUES (?, 0, ?, ?, ?, ?, ?)",
+            id, id, Timestamp.valueOf(fine.minusMinutes(5)), Timestamp.valueOf(fine.minusMinutes(5)), Timestamp.valueOf(fine), stato);
+        jdbcTemplate.update("INSERT INTO BATCH_JOB_EXECUTION_CONTEXT (JOB_EXECUTION_ID, SHORT_CONTEXT) VALUES (?, '{}')", id);
+        jdbcTemplate.update("INSERT INTO BATCH_JOB_EXECUTION_PARAMS (JOB_EXECUTION_ID, PARAMETER_NAME, PARAMETER_TYPE, PARAMETER_VALUE, IDENTIFYING) VALUES (?, 'run.id', 'java.lang.Long', ?, 'Y')",
+            id, String.valueOf(id));
+        for (long s = 0; s < 3; s++) {
+            long stepId = id * 10 + s;
+            jdbcTemplate.update("INSERT INTO BATCH_STEP_EXECUTION (STEP_EXECUTION_ID, VERSION, STEP_NAME, JOB_EXECUTION_ID, CREATE_TIME, STATUS) VALUES (?, 0, ?, ?, ?, ?)",
+                stepId, "step" + s, id, Timestamp.valueOf(fine.minusMinutes(5)), stato);
+            jdbcTemplate.update("INSERT INTO BATCH_STEP_EXECUTION_CONTEXT (STEP_EXECUTION_ID, SHORT_CONTEXT) VALUES (?, '{}')", stepId);
+        }
+    }
+
+    private List<Long> esecuzioniRimaste() {
+        return jdbcTemplate.queryForList("SELECT JOB_EXECUTION_ID FROM BATCH_JOB_EXECUTION ORDER BY JOB_EXECUTION_ID", Long.class);
+    }
+
+    private long conta(String tabella) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + tabella, Long.class);
+    }
+
+    @Test
+    @DisplayName("Should delete finished executions older than the retention in bounded batches and FK order")
+    void testRetentionByAge() {
+        batchProperties.getMetadataPruning().setGiorniRetention(30);
+        esecuzione(1, "maggioliJppaNotificationJob", "COMPLETED", ADESSO.minusDays(60));
+        esecuzione(2, "maggioliJppaNotificationJob", "FAILED", ADESSO.minusDays(45));
+        esecuzione(3, "maggioliJppaNotificationJob", "COMPLETED", ADESSO.minusDays(40));
+        esecuzione(4, "maggioliJppaNotificationJob", "COMPLETED", ADESSO.minusDays(1));
+        esecuzione(5, "maggioliJppaNotificationJob", "STARTED", ADESSO.minusDays(50));
+
+        int eliminate = pruner.pota();
+
+        assertThat(eliminate).isEqualTo(3);
+        assertThat(esecuzioniRimaste()).containsExactly(4L, 5L);
+        assertThat(conta("BATCH_STEP_EXECUTION")).isEqualTo(6);
+        assertThat(conta("BATCH_STEP_EXECUTION_CONTEXT")).isEqualTo(6);
+        assertThat(conta("BATCH_JOB_EXECUTION_CONTEXT")).isEqualTo(2);
+        assertThat(conta("BATCH_JOB_EXECUTION_PARAMS")).isEqualTo(2);
+        assertThat(conta("BATCH_JOB_INSTANCE")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Should keep only the most recent executions of each job")
+    void testRetentionByCount() {
+        batchProperties.getMetadataPruning().setGiorniRetention(0);
+        batchProperties.getMetadataPruning().setEsecuzioniDaMantenere(2);
+        esecuzione(1, "maggioliJppaNotificationJob", "COMPLETED", ADESSO.minusHours(4));
+        esecuzione(2, "maggioliJppaRedriveJob", "COMPLETED", ADESSO.minusHours(4));
+        esecuzione(3, "maggioliJppaNotificationJob", "COMPLETED", ADESSO.minusHours(3));
+        esecuzione(4, "maggioliJppaNotificationJob", "COMPLETED", ADESSO.minusHours(2));
+        esecuzione(5, "maggioliJppaNotificationJob", "COMPLETED", ADESSO.minusHours(1));
+
+        int eliminate = pruner.pota();
+
+        assertThat(eliminate).isEqualTo(2);
+        assertThat(esecuzioniRimaste()).containsExactly(2L, 4L, 5L);
+    }
+
+    @Test
+    @DisplayName("Should delete the given step executions with their contexts")
+    void testEliminaStepExecution() {
+        esecuzione(1, "maggioliJppaNotificationJob", "COMPLETED", ADESSO);
+
+        pruner.eliminaStepExecution(List.of(11L, 12L));
+
+        assertThat(jdbcTemplate.queryForList("SELECT STEP_EXECUTION_ID FROM BATCH_STEP_EXECUTION", Long.class)).containsExactly(10L);
+        assertThat(conta("BATCH_STEP_EXECUTION_CONTEXT")).isEqualTo(1);
+    }
+}
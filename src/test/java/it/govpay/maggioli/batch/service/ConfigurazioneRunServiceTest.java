@@ -0,0 +1,191 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.job.JobInstance;
+import org.springframework.batch.core.job.parameters.JobParameters;
+import org.springframework.batch.core.scope.context.StepSynchronizationManager;
+import org.springframework.batch.core.step.StepExecution;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.common.client.model.Connettore;
+import it.govpay.common.client.service.ConnettoreService;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.ConfigurazioneRun;
+import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+
+/**
+ * Unit tests for ConfigurazioneRunService
+ */
+@ExtendWith(MockitoExtension.class)
+class ConfigurazioneRunServiceTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private JppaConfigRepository jppaConfigRepository;
+
+    @Mock
+    private ConnettoreService connettoreService;
+
+    private ConfigurazioneRunService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new ConfigurazioneRunService(jppaConfigRepository, new ConnettoreCache(connettoreService, new BatchProperties(), new SimpleMeterRegistry()),
+                Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    private static JobExecution esecuzione(long id) {
+        return new JobExecution(id, new JobInstance(id, "maggioliJppaNotificationJob"), new JobParameters());
+    }
+
+    private static JppaConfig config(String codDominio, String connettore, boolean abilitato, Instant dataUltimaRt) {
+        return JppaConfig.builder().codDominio(codDominio).connettore(connettore).abilitato(abilitato).dataUltimaRt(dataUltimaRt).build();
+    }
+
+    @Test
+    @DisplayName("Should load JPPA_CONFIG once and each connector once for the whole run")
+    void testLoadsOncePerRun() {
+        Connettore connettore = mock(Connettore.class);
+        when(jppaConfigRepository.findAll()).thenReturn(List.of(
+                config("11111111111", "CONN", true, NOW), config("22222222222", "CONN", true, null), config("33333333333", "CONN", false, null)));
+        when(connettoreService.getConnettore("CONN")).thenReturn(connettore);
+        when(connettoreService.getConnettoreAsMap("CONN")).thenReturn(Map.of("INVIA_TRACCIATO_ESITO", "true"));
+
+        service.beforeJob(esecuzione(1L));
+        ConfigurazioneRun configurazione = service.corrente();
+
+        assertThat(configurazione.dominiAbilitati()).extracting(ConfigurazioneRun.Dominio::codDominio).containsExactly("11111111111", "22222222222");
+        assertThat(configurazione.dominio("11111111111")).get().extracting(ConfigurazioneRun.Dominio::dataUltimaRt).isEqualTo(NOW);
+        assertThat(service.connettore("CONN")).isSameAs(connettore);
+        assertThat(service.proprieta("CONN")).containsEntry("INVIA_TRACCIATO_ESITO", "true");
+        assertThat(configurazione.caricamento()).isEqualTo(NOW);
+        verify(jppaConfigRepository, times(1)).findAll();
+        verify(connettoreService, times(1)).getConnettore("CONN");
+        verify(connettoreService, times(1)).getConnettoreAsMap("CONN");
+    }
+
+    @Test
+    @DisplayName("Should fall back to ConnettoreService for connectors missing from the run configuration")
+    void testFallbackForUnknownConnector() {
+        when(jppaConfigRepository.findAll()).thenReturn(List.of(config("11111111111", "CONN", true, null)));
+        when(connettoreService.getConnettore("CONN")).thenThrow(new IllegalStateException("connettore non trovato"));
+        when(connettoreService.getConnettoreAsMap("ALTRO")).thenReturn(Map.of("EMAIL_INDIRIZZO", "a@b.it"));
+
+        assertThat(service.corrente().connettori()).isEmpty();
+        assertThat(service.proprieta("ALTRO")).containsEntry("EMAIL_INDIRIZZO", "a@b.it");
+    }
+
+    @Test
+    @DisplayName("Should keep the same version when only the last RT date changes")
+    void testVersionIgnoresLastRtDate() {
+        when(jppaConfigRepository.findAll())
+                .thenReturn(List.of(config("11111111111", null, true, NOW)))
+                .thenReturn(List.of(config("11111111111", null, true, NOW.plusSeconds(60))))
+                .thenReturn(List.of(config("11111111111", null, false, NOW.plusSeconds(60))));
+
+        String prima = service.aggiorna().versione();
+        ConfigurazioneRun seconda = service.aggiorna();
+        String terza = service.aggiorna().versione();
+
+        assertThat(seconda.versione()).isEqualTo(prima);
+        assertThat(seconda.dominio("11111111111")).get().extracting(ConfigurazioneRun.Dominio::dataUltimaRt).isEqualTo(NOW.plusSeconds(60));
+        assertThat(terza).isNotEqualTo(prima);
+    }
+
+    @Test
+    @DisplayName("Should reload the configuration after invalidation")
+    void testInvalidate() {
+        when(jppaConfigRepository.findAll()).thenReturn(List.of());
+
+        service.corrente();
+        service.corrente();
+        service.invalida();
+        service.corrente();
+
+        verify(jppaConfigRepository, times(2)).findAll();
+    }
+
+    @Test
+    @DisplayName("Should keep the run configuration of a running job across invalidations")
+    void testInvalidateDuringRun() {
+        when(jppaConfigRepository.findAll())
+                .thenReturn(List.of(config("11111111111", null, true, NOW)))
+                .thenReturn(List.of(config("11111111111", null, false, NOW)));
+        JobExecution esecuzione = esecuzione(1L);
+
+        service.beforeJob(esecuzione);
+        ConfigurazioneRun delJob = service.corrente();
+        service.invalida();
+
+        assertThat(service.corrente()).isSameAs(delJob);
+
+        service.afterJob(esecuzione);
+        assertThat(service.corrente().dominiAbilitati()).isEmpty();
+        verify(jppaConfigRepository, times(2)).findAll();
+    }
+
+    @Test
+    @DisplayName("Should give each running job execution its own configuration")
+    void testConcurrentExecutions() {
+        when(jppaConfigRepository.findAll())
+                .thenReturn(List.of(config("11111111111", null, true, NOW)))
+                .thenReturn(List.of(config("22222222222", null, true, NOW)));
+        JobExecution principale = esecuzione(1L);
+        JobExecution reinvio = esecuzione(2L);
+
+        service.beforeJob(principale);
+        service.beforeJob(reinvio);
+
+        StepSynchronizationManager.register(new StepExecution("sendNotificationWorkerStep", principale));
+        try {
+            assertThat(service.corrente().dominio("11111111111")).isPresent();
+        } finally {
+            StepSynchronizationManager.close();
+        }
+        // Senza contesto di step: configurazione del job avviato per ultimo
+        assertThat(service.corrente().dominio("22222222222")).isPresent();
+    }
+
+    @Test
+    @DisplayName("Should reload the configuration after the connector TTL once the job has ended")
+    void testReloadsAfterJobEnded() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.getConnettoreCache().setEnabled(true);
+        batchProperties.getConnettoreCache().setTtlMillis(300_000);
+        Clock clock = mock(Clock.class);
+        when(clock.instant()).thenReturn(NOW);
+        when(clock.millis()).thenReturn(NOW.toEpochMilli() + 300_000);
+        ConfigurazioneRunService continua = new ConfigurazioneRunService(jppaConfigRepository,
+                new ConnettoreCache(connettoreService, batchProperties, new SimpleMeterRegistry()), clock);
+        when(jppaConfigRepository.findAll()).thenReturn(List.of());
+        JobExecution esecuzione = esecuzione(1L);
+
+        continua.beforeJob(esecuzione);
+        continua.corrente();
+        continua.afterJob(esecuzione);
+        // Fuori dai job (modalita' continua) la configurazione del job concluso non e' piu' trattenuta
+        continua.corrente();
+
+        verify(jppaConfigRepository, times(2)).findAll();
+    }
+}
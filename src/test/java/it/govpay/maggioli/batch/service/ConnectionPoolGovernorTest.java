@@ -0,0 +1,178 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+
+/**
+ * Unit tests for ConnectionPoolGovernor
+ */
+@ExtendWith(MockitoExtension.class)
+class ConnectionPoolGovernorTest {
+
+    @Mock
+    private HikariPoolMXBean pool;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private Clock clock;
+
+    private BatchProperties batchProperties;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        batchProperties.getPoolGovernor().setEnabled(true);
+        batchProperties.getPoolGovernor().setRiservaConnessioni(1);
+        batchProperties.getPoolGovernor().setVerificaMillis(5000);
+        meterRegistry = new SimpleMeterRegistry();
+        lenient().when(clock.millis()).thenReturn(0L);
+        lenient().when(transactionManager.getTransaction(any())).thenAnswer(inv -> new SimpleTransactionStatus());
+    }
+
+    @AfterEach
+    void tearDown() {
+        TransactionSynchronizationManager.setActualTransactionActive(false);
+    }
+
+    private ConnectionPoolGovernor governor(int dimensionePool) {
+        return new ConnectionPoolGovernor(dimensionePool, () -> "primario", () -> pool, batchProperties, meterRegistry, clock);
+    }
+
+    @Test
+    @DisplayName("Should leave the transaction manager untouched when disabled")
+    void testDisabled() {
+        batchProperties.getPoolGovernor().setEnabled(false);
+
+        assertThat(governor(3).governa(transactionManager)).isSameAs(transactionManager);
+        assertThat(meterRegistry.find(ConnectionPoolGovernor.METRIC_PERMESSI).gauge()).isNull();
+    }
+
+    @Test
+    @DisplayName("Should be inactive when the pool size is unknown")
+    void testNonHikariDataSource() {
+        assertThat(governor(0).isAttivo()).isFalse();
+        assertThat(governor(0).governa(transactionManager)).isSameAs(transactionManager);
+    }
+
+    @Test
+    @DisplayName("Should start from the pool size minus the reserve")
+    void testInitialLimit() {
+        ConnectionPoolGovernor governor = governor(5);
+
+        assertThat(governor.getLimite()).isEqualTo(4);
+        assertThat(meterRegistry.get(ConnectionPoolGovernor.METRIC_PERMESSI).gauge().value()).isEqualTo(4);
+        assertThat(governor(1).getLimite()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should block a chunk transaction beyond the limit until another one commits")
+    void testBlocksBeyondLimit() throws Exception {
+        PlatformTransactionManager governato = governor(3).governa(transactionManager);
+        DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+
+        TransactionStatus prima = governato.getTransaction(definition);
+        governato.getTransaction(definition);
+        CompletableFuture<TransactionStatus> terza = CompletableFuture.supplyAsync(() -> governato.getTransaction(definition));
+
+        Thread.sleep(200);
+        assertThat(terza).isNotDone();
+
+        governato.commit(prima);
+
+        assertThat(terza.get(5, TimeUnit.SECONDS)).isNotNull();
+        verify(transactionManager).commit(prima);
+        assertThat(meterRegistry.get(ConnectionPoolGovernor.METRIC_ATTESA).timer().count()).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Should release the permit on rollback")
+    void testReleasesOnRollback() throws Exception {
+        PlatformTransactionManager governato = governor(2).governa(transactionManager);
+        DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+
+        governato.rollback(governato.getTransaction(definition));
+
+        assertThat(CompletableFuture.supplyAsync(() -> governato.getTransaction(definition)).get(5, TimeUnit.SECONDS)).isNotNull();
+    }
+
+    @Test
+    @DisplayName("Should not take a permit for a transaction nested in an active one")
+    void testNestedTransaction() {
+        ConnectionPoolGovernor governor = governor(2);
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+
+        assertThat(governor.acquisisci()).isFalse();
+        assertThat(governor.acquisisci()).isFalse();
+    }
+
+    @Test
+    @DisplayName("Should lower the limit under pool pressure and raise it back when the pool is free")
+    void testRecalibration() {
+        ConnectionPoolGovernor governor = governor(4);
+        when(pool.getThreadsAwaitingConnection()).thenReturn(2);
+
+        governor.ricalibra();
+        assertThat(governor.getLimite()).isEqualTo(2);
+
+        // Entro l'intervallo di verifica il limite non cambia
+        governor.ricalibra();
+        assertThat(governor.getLimite()).isEqualTo(2);
+
+        when(clock.millis()).thenReturn(5000L);
+        governor.ricalibra();
+        assertThat(governor.getLimite()).isEqualTo(1);
+
+        when(clock.millis()).thenReturn(10_000L);
+        governor.ricalibra();
+        assertThat(governor.getLimite()).isEqualTo(1);
+
+        when(pool.getThreadsAwaitingConnection()).thenReturn(0);
+        when(clock.millis()).thenReturn(15_000L);
+        governor.ricalibra();
+        when(clock.millis()).thenReturn(20_000L);
+        governor.ricalibra();
+        when(clock.millis()).thenReturn(25_000L);
+        governor.ricalibra();
+        assertThat(governor.getLimite()).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Should lower the limit when the pool acquire time exceeds the threshold")
+    void testRecalibrationOnAcquireTime() {
+        batchProperties.getPoolGovernor().setAttesaMassimaMillis(100);
+        ConnectionPoolGovernor governor = governor(4);
+        meterRegistry.timer(ConnectionPoolGovernor.METRIC_ATTESA_HIKARI, "pool", "primario").record(500, TimeUnit.MILLISECONDS);
+
+        governor.ricalibra();
+
+        assertThat(governor.getLimite()).isEqualTo(2);
+    }
+}
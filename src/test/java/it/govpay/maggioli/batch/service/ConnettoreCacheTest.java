@@ -0,0 +1,198 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.common.client.model.Connettore;
+import it.govpay.common.client.service.ConnettoreService;
+import it.govpay.maggioli.batch.config.BatchProperties;
+
+/**
+ * Unit tests for ConnettoreCache
+ */
+@ExtendWith(MockitoExtension.class)
+class ConnettoreCacheTest {
+
+    private static final String COD_CONNETTORE = "CONN";
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private ConnettoreService connettoreService;
+
+    @Mock
+    private Clock clock;
+
+    private BatchProperties batchProperties;
+    private SimpleMeterRegistry meterRegistry;
+    private final List<Runnable> aggiornamenti = new ArrayList<>();
+    private ConnettoreCache cache;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        batchProperties.getConnettoreCache().setEnabled(true);
+        batchProperties.getConnettoreCache().setTtlMillis(300_000);
+        batchProperties.getConnettoreCache().setAnticipoMillis(60_000);
+        meterRegistry = new SimpleMeterRegistry();
+        lenient().when(clock.millis()).thenAnswer(inv -> clock.instant().toEpochMilli());
+        lenient().when(clock.instant()).thenReturn(NOW);
+        cache = new ConnettoreCache(connettoreService, batchProperties, meterRegistry, clock, aggiornamenti::add);
+    }
+
+    private void adesso(long millisDopo) {
+        when(clock.instant()).thenReturn(NOW.plusMillis(millisDopo));
+    }
+
+    private double richieste(String esito) {
+        return meterRegistry.get(ConnettoreCache.METRIC_RICHIESTE).tag("esito", esito).counter().count();
+    }
+
+    @Test
+    @DisplayName("Should pass through to ConnettoreService when disabled")
+    void testDisabled() {
+        batchProperties.getConnettoreCache().setEnabled(false);
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE)).thenReturn(Map.of("P", "1"));
+
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+
+        verify(connettoreService, times(2)).getConnettoreAsMap(COD_CONNETTORE);
+        verify(connettoreService, never()).clearCache();
+    }
+
+    @Test
+    @DisplayName("Should load a connector once and serve it from the cache until it expires")
+    void testMissThenHit() {
+        Connettore connettore = mock(Connettore.class);
+        when(connettoreService.getConnettore(COD_CONNETTORE)).thenReturn(connettore);
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE)).thenReturn(Map.of("P", "1"));
+
+        assertThat(cache.getConnettore(COD_CONNETTORE)).isSameAs(connettore);
+        assertThat(cache.getConnettoreAsMap(COD_CONNETTORE)).containsEntry("P", "1");
+
+        verify(connettoreService, times(1)).getConnettore(COD_CONNETTORE);
+        assertThat(richieste("miss")).isEqualTo(1);
+        assertThat(richieste("hit")).isEqualTo(1);
+        assertThat(meterRegistry.get(ConnettoreCache.METRIC_CARICAMENTO).tag("modalita", "sincrono").timer().count()).isEqualTo(1);
+        assertThat(aggiornamenti).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Should refresh ahead of expiry in background while serving the current entry")
+    void testRefreshAhead() {
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE)).thenReturn(Map.of("P", "1"), Map.of("P", "2"));
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+
+        adesso(250_000);
+        assertThat(cache.getConnettoreAsMap(COD_CONNETTORE)).containsEntry("P", "1");
+        // Un solo ricaricamento anche con piu' letture nella finestra
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+        assertThat(aggiornamenti).hasSize(1);
+
+        aggiornamenti.get(0).run();
+
+        assertThat(cache.getConnettoreAsMap(COD_CONNETTORE)).containsEntry("P", "2");
+        assertThat(meterRegistry.get(ConnettoreCache.METRIC_CARICAMENTO).tag("modalita", "anticipato").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should reload synchronously an expired entry")
+    void testExpired() {
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE)).thenReturn(Map.of("P", "1"), Map.of("P", "2"));
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+
+        adesso(300_000);
+
+        assertThat(cache.getConnettoreAsMap(COD_CONNETTORE)).containsEntry("P", "2");
+        assertThat(richieste("miss")).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Should reload only the invalidated connector")
+    void testInvalidateSingleEntry() {
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE)).thenReturn(Map.of("P", "1"), Map.of("P", "2"));
+        when(connettoreService.getConnettoreAsMap("ALTRO")).thenReturn(Map.of("Q", "1"));
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+        cache.getConnettoreAsMap("ALTRO");
+
+        cache.invalida(COD_CONNETTORE);
+
+        assertThat(cache.getConnettoreAsMap(COD_CONNETTORE)).containsEntry("P", "2");
+        cache.getConnettoreAsMap("ALTRO");
+        verify(connettoreService, times(1)).getConnettoreAsMap("ALTRO");
+    }
+
+    @Test
+    @DisplayName("Should clear the ConnettoreService cache once per round of loads instead of once per connector")
+    void testClearsConnettoreServiceOncePerRound() {
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE)).thenReturn(Map.of("P", "1"));
+        when(connettoreService.getConnettoreAsMap("ALTRO")).thenReturn(Map.of("Q", "1"));
+
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+        cache.getConnettoreAsMap("ALTRO");
+        verify(connettoreService, times(1)).clearCache();
+
+        // Entrambe le voci scadute: un solo svuotamento per ricaricarle
+        adesso(300_000);
+        cache.getConnettoreAsMap(COD_CONNETTORE);
+        cache.getConnettoreAsMap("ALTRO");
+        verify(connettoreService, times(2)).clearCache();
+        verify(connettoreService, times(2)).getConnettoreAsMap("ALTRO");
+    }
+
+    @Test
+    @DisplayName("Should not cache a failed load")
+    void testFailedLoad() {
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE))
+                .thenThrow(new IllegalStateException("database non disponibile"))
+                .thenReturn(Map.of("P", "1"));
+
+        assertThatThrownBy(() -> cache.getConnettoreAsMap(COD_CONNETTORE)).isInstanceOf(IllegalStateException.class);
+        assertThat(cache.getConnettoreAsMap(COD_CONNETTORE)).containsEntry("P", "1");
+        assertThat(meterRegistry.get(ConnettoreCache.METRIC_CARICAMENTO).tag("esito", "errore").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should load a missing connector once for concurrent readers")
+    void testSingleFlight() throws Exception {
+        CountDownLatch inCaricamento = new CountDownLatch(1);
+        CountDownLatch sblocca = new CountDownLatch(1);
+        when(connettoreService.getConnettoreAsMap(COD_CONNETTORE)).thenAnswer(inv -> {
+            inCaricamento.countDown();
+            sblocca.await(5, TimeUnit.SECONDS);
+            return Map.of("P", "1");
+        });
+
+        CompletableFuture<Map<String, String>> primo = CompletableFuture.supplyAsync(() -> cache.getConnettoreAsMap(COD_CONNETTORE));
+        assertThat(inCaricamento.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Map<String, String>> secondo = CompletableFuture.supplyAsync(() -> cache.getConnettoreAsMap(COD_CONNETTORE));
+        sblocca.countDown();
+
+        assertThat(primo.get(5, TimeUnit.SECONDS)).containsEntry("P", "1");
+        assertThat(secondo.get(5, TimeUnit.SECONDS)).containsEntry("P", "1");
+        verify(connettoreService, times(1)).getConnettoreAsMap(COD_CONNETTORE);
+    }
+}
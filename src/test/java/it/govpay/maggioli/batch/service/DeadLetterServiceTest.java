@@ -0,0 +1,119 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
+import it.govpay.maggioli.batch.repository.JppaNotificheDlqRepository;
+
+/**
+ * Unit tests for DeadLetterService
+ */
+@ExtendWith(MockitoExtension.class)
+class DeadLetterServiceTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private JppaNotificheDlqRepository dlqRepository;
+
+    @Captor
+    private ArgumentCaptor<List<JppaNotificheDlq>> salvateCaptor;
+
+    private BatchProperties batchProperties;
+    private DeadLetterService service;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        batchProperties.getDlq().setMaxTentativi(3);
+        batchProperties.getDlq().setBackoffInizialeMillis(1000);
+        batchProperties.getDlq().setBackoffMassimoMillis(3000);
+        service = new DeadLetterService(dlqRepository, batchProperties);
+    }
+
+    private static JppaNotificheDlq notifica(long idRpt, String errore) {
+        return JppaNotificheDlq.builder().idRpt(idRpt).codDominio("12345678901").iuv("IUV" + idRpt).ultimoErrore(errore).build();
+    }
+
+    @Test
+    @DisplayName("Should insert new notifications with the first attempt scheduled")
+    void testRegistraNuove() {
+        when(dlqRepository.findAllById(anyCollection())).thenReturn(List.of());
+
+        service.registra(List.of(notifica(1L, "timeout"), notifica(2L, "x".repeat(2000))));
+
+        verify(dlqRepository).saveAll(salvateCaptor.capture());
+        List<JppaNotificheDlq> salvate = salvateCaptor.getValue();
+        assertThat(salvate).hasSize(2);
+        assertThat(salvate).allSatisfy(n -> {
+            assertThat(n.getTentativi()).isEqualTo(1);
+            assertThat(n.getDataInserimento()).isNotNull();
+            assertThat(n.getDataProssimoTentativo()).isAfter(n.getDataInserimento());
+        });
+        assertThat(salvate.get(1).getUltimoErrore()).hasSize(1000);
+    }
+
+    @Test
+    @DisplayName("Should bump the attempts of notifications already in the DLQ")
+    void testRegistraEsistente() {
+        JppaNotificheDlq esistente = notifica(1L, "timeout");
+        esistente.setTentativi(1);
+        when(dlqRepository.findAllById(anyCollection())).thenReturn(List.of(esistente));
+
+        service.registra(List.of(notifica(1L, "503")));
+
+        verify(dlqRepository).saveAll(salvateCaptor.capture());
+        assertThat(salvateCaptor.getValue()).containsExactly(esistente);
+        assertThat(esistente.getTentativi()).isEqualTo(2);
+        assertThat(esistente.getUltimoErrore()).isEqualTo("503");
+    }
+
+    @Test
+    @DisplayName("Should stop rescheduling once the maximum number of attempts is reached")
+    void testTentativiEsauriti() {
+        JppaNotificheDlq dlq = notifica(1L, "timeout");
+        dlq.setTentativi(1);
+
+        service.registraReinvioFallito(dlq, "timeout", NOW);
+        assertThat(dlq.getTentativi()).isEqualTo(2);
+        assertThat(dlq.getDataProssimoTentativo()).isEqualTo(NOW.plusMillis(2000));
+
+        service.registraReinvioFallito(dlq, "timeout", NOW);
+        assertThat(dlq.getTentativi()).isEqualTo(3);
+        assertThat(dlq.getDataProssimoTentativo()).isNull();
+        verify(dlqRepository, times(2)).save(dlq);
+    }
+
+    @Test
+    @DisplayName("Should double the backoff up to the configured maximum")
+    void testBackoff() {
+        assertThat(service.prossimoTentativo(1, NOW)).isEqualTo(NOW.plusMillis(1000));
+        assertThat(service.prossimoTentativo(2, NOW)).isEqualTo(NOW.plusMillis(2000));
+        assertThat(service.prossimoTentativo(5, NOW)).isEqualTo(NOW.plusMillis(3000));
+    }
+
+    @Test
+    @DisplayName("Should delete a delivered notification by id")
+    void testRimuovi() {
+        service.rimuovi(notifica(7L, null));
+
+        verify(dlqRepository).deleteById(7L);
+    }
+}
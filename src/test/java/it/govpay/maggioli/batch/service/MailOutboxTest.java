@@ -0,0 +1,166 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mail.MailSendException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.common.mail.MailInfo;
+import it.govpay.maggioli.batch.config.BatchProperties;
+
+/**
+ * Unit tests for MailOutbox
+ */
+@ExtendWith(MockitoExtension.class)
+class MailOutboxTest {
+
+    @Mock
+    private MaggioliMailService mailService;
+
+    @Mock
+    private ScheduledExecutorService executor;
+
+    @TempDir
+    Path tempDir;
+
+    private BatchProperties batchProperties;
+    private SimpleMeterRegistry meterRegistry;
+    private MailOutbox outbox;
+    private Path allegato;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        batchProperties = new BatchProperties();
+        batchProperties.getMailOutbox().setEnabled(true);
+        batchProperties.getMailOutbox().setMaxTentativi(2);
+        batchProperties.getMailOutbox().setBackoffInizialeMillis(1000);
+        meterRegistry = new SimpleMeterRegistry();
+        outbox = new MailOutbox(mailService, batchProperties, meterRegistry, executor);
+        allegato = Files.writeString(tempDir.resolve("report.zip"), "contenuto", StandardCharsets.UTF_8);
+    }
+
+    private static MailInfo.MailInfoBuilder mail() {
+        return MailInfo.builder().to(List.of("test@example.com")).oggetto("Report").testo("Salve");
+    }
+
+    private double inCoda() {
+        return meterRegistry.get(MailOutbox.METRIC_CODA).gauge().value();
+    }
+
+    private Runnable pianificato(long ritardoMillis, int volte) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(volte)).schedule(captor.capture(), eq(ritardoMillis), eq(TimeUnit.MILLISECONDS));
+        return captor.getValue();
+    }
+
+    @Test
+    @DisplayName("Should send synchronously and propagate errors when disabled")
+    void testDisabled() {
+        batchProperties.getMailOutbox().setEnabled(false);
+        doThrow(new MailSendException("SMTP non raggiungibile")).when(mailService).inviaEmail(any());
+
+        assertThatThrownBy(() -> outbox.invia(mail(), Map.of())).isInstanceOf(MailSendException.class);
+        verifyNoInteractions(executor);
+    }
+
+    @Test
+    @DisplayName("Should queue the message and read the attachment only when sending")
+    void testQueuedSend() throws Exception {
+        outbox.invia(mail(), Map.of("report.zip", allegato));
+
+        verify(mailService, never()).inviaEmail(any());
+        assertThat(inCoda()).isEqualTo(1);
+        Files.writeString(allegato, "aggiornato", StandardCharsets.UTF_8);
+
+        pianificato(0, 1).run();
+
+        ArgumentCaptor<MailInfo> captor = ArgumentCaptor.forClass(MailInfo.class);
+        verify(mailService).inviaEmail(captor.capture());
+        assertThat(new String(captor.getValue().getAllegati().get("report.zip"), StandardCharsets.UTF_8)).isEqualTo("aggiornato");
+        assertThat(inCoda()).isZero();
+        assertThat(meterRegistry.get(MailOutbox.METRIC_INVIO).tag("esito", "ok").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should retry with backoff and drop the message after the last attempt")
+    void testRetry() {
+        doThrow(new MailSendException("SMTP non raggiungibile")).when(mailService).inviaEmail(any());
+
+        outbox.invia(mail(), Map.of("report.zip", allegato));
+        pianificato(0, 1).run();
+        pianificato(1000, 1).run();
+
+        verify(mailService, times(2)).inviaEmail(any());
+        verify(executor, times(2)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+        assertThat(inCoda()).isZero();
+        assertThat(meterRegistry.get(MailOutbox.METRIC_INVIO).tag("esito", "errore").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("Should send from the calling thread when the queue is full")
+    void testQueueFull() {
+        batchProperties.getMailOutbox().setCapacitaCoda(1);
+
+        outbox.invia(mail(), Map.of());
+        outbox.invia(mail(), Map.of());
+
+        verify(mailService, times(1)).inviaEmail(any());
+        verify(executor, times(1)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+        assertThat(inCoda()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should try once more on shutdown the messages still queued or waiting for a retry")
+    void testDrainOnShutdown() {
+        doThrow(new MailSendException("SMTP non raggiungibile")).doNothing().when(mailService).inviaEmail(any());
+        batchProperties.getMailOutbox().setMaxTentativi(3);
+
+        outbox.invia(mail(), Map.of("report.zip", allegato));
+        pianificato(0, 1).run();
+        // Nuovo tentativo pianificato tra 1000 ms, mai eseguito: la chiusura lo invia subito
+        outbox.chiudi();
+
+        verify(executor).shutdownNow();
+        verify(mailService, times(2)).inviaEmail(any());
+        assertThat(inCoda()).isZero();
+        assertThat(meterRegistry.get(MailOutbox.METRIC_INVIO).tag("esito", "ok").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should drop on shutdown a message that still cannot be sent")
+    void testLostOnShutdown() {
+        doThrow(new MailSendException("SMTP non raggiungibile")).when(mailService).inviaEmail(any());
+
+        outbox.invia(mail(), Map.of("report.zip", allegato));
+        outbox.chiudi();
+
+        verify(mailService, times(1)).inviaEmail(any());
+        assertThat(inCoda()).isZero();
+        assertThat(meterRegistry.get(MailOutbox.METRIC_INVIO).tag("esito", "errore").timer().count()).isEqualTo(1);
+    }
+}
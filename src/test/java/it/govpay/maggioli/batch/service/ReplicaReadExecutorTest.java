@@ -0,0 +1,118 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.repository.RptRepository;
+
+/**
+ * Unit tests for ReplicaReadExecutor
+ */
+@ExtendWith(MockitoExtension.class)
+class ReplicaReadExecutorTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+    private static final Instant ULTIMA_RICEVUTA = NOW.minusSeconds(30);
+
+    @Mock
+    private RptRepository rptRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private SimpleMeterRegistry meterRegistry;
+    private ReplicaReadExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.getReplica().setEnabled(true);
+        batchProperties.getReplica().setRitardoMassimoMillis(60_000);
+        batchProperties.getReplica().setVerificaMillis(30_000);
+        meterRegistry = new SimpleMeterRegistry();
+        executor = new ReplicaReadExecutor(rptRepository, transactionManager, batchProperties, meterRegistry, Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    /**
+     * La prima chiamata della sonda e' sul primario, la seconda (nella transazione read-only) sulla replica
+     */
+    private void ritardoReplica(long secondi) {
+        when(rptRepository.findMaxDataMsgRicevutaDominiAbilitati(anyList()))
+            .thenReturn(ULTIMA_RICEVUTA, ULTIMA_RICEVUTA.minusSeconds(secondi));
+    }
+
+    private double letture(String destinazione) {
+        return meterRegistry.get(ReplicaReadExecutor.METRIC_LETTURE).tag("destinazione", destinazione).counter().count();
+    }
+
+    @Test
+    @DisplayName("Should read from the replica in a new read-only transaction when it is within the allowed lag")
+    void testReadsFromAlignedReplica() {
+        ritardoReplica(10);
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+
+        assertThat(executor.leggi(() -> "ok")).isEqualTo("ok");
+        assertThat(executor.leggi(() -> "ok")).isEqualTo("ok");
+
+        ArgumentCaptor<TransactionDefinition> definizioni = ArgumentCaptor.forClass(TransactionDefinition.class);
+        // Una transazione per la sonda (eseguita una sola volta nell'intervallo di verifica) e una per lettura
+        verify(transactionManager, times(3)).getTransaction(definizioni.capture());
+        assertThat(definizioni.getAllValues()).allSatisfy(definizione -> {
+            assertThat(definizione.isReadOnly()).isTrue();
+            assertThat(definizione.getPropagationBehavior()).isEqualTo(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        });
+        assertThat(letture("replica")).isEqualTo(2.0);
+        assertThat(meterRegistry.get(ReplicaReadExecutor.METRIC_RITARDO).gauge().value()).isEqualTo(10.0);
+    }
+
+    @Test
+    @DisplayName("Should fall back to the primary when the replica lags behind the newest receipt")
+    void testFallsBackOnLag() {
+        ritardoReplica(120);
+        when(transactionManager.getTransaction(any())).thenReturn(new SimpleTransactionStatus());
+
+        assertThat(executor.leggi(() -> "ok")).isEqualTo("ok");
+
+        verify(transactionManager, times(1)).getTransaction(any());
+        assertThat(letture("primario")).isEqualTo(1.0);
+        assertThat(letture("replica")).isZero();
+    }
+
+    @Test
+    @DisplayName("Should repeat the read on the primary when the replica is unavailable")
+    void testFallsBackOnReplicaError() {
+        ritardoReplica(0);
+        when(transactionManager.getTransaction(any()))
+            .thenReturn(new SimpleTransactionStatus())
+            .thenThrow(new CannotCreateTransactionException("replica non raggiungibile"));
+
+        assertThat(executor.leggi(() -> "ok")).isEqualTo("ok");
+        // Replica sospesa fino alla prossima verifica
+        assertThat(executor.leggi(() -> "ok")).isEqualTo("ok");
+
+        verify(transactionManager, times(2)).getTransaction(any());
+        assertThat(letture("primario")).isEqualTo(2.0);
+    }
+}
@@ -0,0 +1,136 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.job.JobInstance;
+import org.springframework.batch.core.job.parameters.JobParameters;
+
+import it.govpay.maggioli.batch.service.ReportAggregator.ModalitaReport;
+import it.govpay.maggioli.batch.service.ReportAggregator.Tracciato;
+
+/**
+ * Unit tests for ReportAggregator
+ */
+@ExtendWith(MockitoExtension.class)
+class ReportAggregatorTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Mock
+    private MaggioliMailService mailService;
+
+    @Mock
+    private MailOutbox mailOutbox;
+
+    @Mock
+    private ReportPackager reportPackager;
+
+    @TempDir
+    Path tempDir;
+
+    private ReportAggregator aggregator;
+    private JobExecution jobExecution;
+
+    @BeforeEach
+    void setUp() {
+        aggregator = new ReportAggregator(mailService, mailOutbox, reportPackager);
+        jobExecution = new JobExecution(1L, new JobInstance(1L, "maggioliJppaNotificationJob"), new JobParameters());
+    }
+
+    private Tracciato tracciato(String codConnettore, String codDominio, ModalitaReport modalita, List<String> destinatari) {
+        return new Tracciato(codConnettore, codDominio, tempDir.resolve(codDominio + ".csv"), "GOVPAY_" + codDominio + ".csv",
+                3, NOW, modalita, tempDir.resolve("report").toString(), destinatari, null, true);
+    }
+
+    @Test
+    @DisplayName("Should default to DOMINIO for missing or unknown MODALITA_REPORT")
+    void testModalitaReport() {
+        assertThat(ModalitaReport.da(null)).isEqualTo(ModalitaReport.DOMINIO);
+        assertThat(ModalitaReport.da("sconosciuta")).isEqualTo(ModalitaReport.DOMINIO);
+        assertThat(ModalitaReport.da(" destinatari ")).isEqualTo(ModalitaReport.DESTINATARI);
+    }
+
+    @Test
+    @DisplayName("Should group domains of different connectors sharing the same recipients")
+    @SuppressWarnings("unchecked")
+    void testGroupByRecipients() {
+        aggregator.registra(1L, tracciato("A", "33333333333", ModalitaReport.DESTINATARI, List.of("b@ente.it", "a@ente.it")));
+        aggregator.registra(1L, tracciato("B", "11111111111", ModalitaReport.DESTINATARI, List.of("A@ente.it", "b@ente.it")));
+        aggregator.registra(1L, tracciato("C", "22222222222", ModalitaReport.CONNETTORE, List.of("a@ente.it", "b@ente.it")));
+
+        aggregator.afterJob(jobExecution);
+
+        ArgumentCaptor<Map<String, Path>> voci = ArgumentCaptor.forClass(Map.class);
+        ArgumentCaptor<Path> destinazioni = ArgumentCaptor.forClass(Path.class);
+        verify(reportPackager, times(2)).impacchetta(voci.capture(), destinazioni.capture(), any(Runnable.class));
+        assertThat(voci.getAllValues().get(0)).containsOnlyKeys("GOVPAY_11111111111.csv", "GOVPAY_33333333333.csv");
+        assertThat(voci.getAllValues().get(1)).containsOnlyKeys("GOVPAY_22222222222.csv");
+        assertThat(destinazioni.getAllValues().get(0).getFileName().toString()).startsWith("GOVPAY_REPORT_");
+        assertThat(destinazioni.getAllValues().get(1).getFileName().toString()).startsWith("GOVPAY_C_");
+    }
+
+    @Test
+    @DisplayName("Should keep apart recipients sharing domains with a different directory or attachment setting")
+    @SuppressWarnings("unchecked")
+    void testGroupKeepsReportSettings() {
+        List<String> destinatari = List.of("a@ente.it");
+        String altraDirectory = tempDir.resolve("altro").toString();
+        aggregator.registra(1L, tracciato("A", "11111111111", ModalitaReport.DESTINATARI, destinatari));
+        aggregator.registra(1L, new Tracciato("B", "22222222222", tempDir.resolve("22222222222.csv"), "GOVPAY_22222222222.csv",
+                3, NOW, ModalitaReport.DESTINATARI, altraDirectory, destinatari, null, true));
+        aggregator.registra(1L, new Tracciato("C", "33333333333", tempDir.resolve("33333333333.csv"), "GOVPAY_33333333333.csv",
+                3, NOW, ModalitaReport.DESTINATARI, tempDir.resolve("report").toString(), destinatari, null, false));
+
+        aggregator.afterJob(jobExecution);
+
+        ArgumentCaptor<Map<String, Path>> voci = ArgumentCaptor.forClass(Map.class);
+        ArgumentCaptor<Path> destinazioni = ArgumentCaptor.forClass(Path.class);
+        verify(reportPackager, times(3)).impacchetta(voci.capture(), destinazioni.capture(), any(Runnable.class));
+        assertThat(voci.getAllValues()).allSatisfy(v -> assertThat(v).hasSize(1));
+        assertThat(destinazioni.getAllValues().get(1).getParent()).isEqualTo(Path.of(altraDirectory));
+    }
+
+    @Test
+    @DisplayName("Should consolidate only the reports of the finished job execution")
+    void testOnlyCurrentJob() {
+        aggregator.registra(2L, tracciato("A", "11111111111", ModalitaReport.CONNETTORE, List.of()));
+
+        aggregator.afterJob(jobExecution);
+
+        verify(reportPackager, never()).impacchetta(anyMap(), any(Path.class), any(Runnable.class));
+    }
+
+    @Test
+    @DisplayName("Digest body should list every domain and the total")
+    void testDigestBody() {
+        String testo = ReportAggregator.buildMailBody(List.of(
+                tracciato("A", "11111111111", ModalitaReport.CONNETTORE, List.of()),
+                tracciato("A", "22222222222", ModalitaReport.CONNETTORE, List.of())));
+
+        assertThat(testo)
+                .contains("Ente Creditore: 11111111111 - Numero pagamenti: 3")
+                .contains("Ente Creditore: 22222222222 - Numero pagamenti: 3")
+                .contains("Totale pagamenti: 6");
+        assertThat(ReportAggregator.buildMailOggetto(List.of(tracciato("A", "11111111111", ModalitaReport.CONNETTORE, List.of()))))
+                .contains("inviati al servizio Maggioli JPPA").contains("01/06/2025");
+    }
+}
@@ -0,0 +1,124 @@
+package it.govpay.maggioli.batch.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+
+/**
+ * Unit tests for ReportPackager
+ */
+class ReportPackagerTest {
+
+    private static final String CSV = "idDominio,iuv\r\n12345678901,IUV1\r\n";
+
+    @TempDir
+    Path tempDir;
+
+    private BatchProperties batchProperties;
+    private SimpleMeterRegistry meterRegistry;
+    private Path destinazione;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        batchProperties.getSpool().setEnabled(true);
+        batchProperties.getSpool().setDirectory(tempDir.resolve("spool").toString());
+        meterRegistry = new SimpleMeterRegistry();
+        destinazione = tempDir.resolve("GOVPAY_12345678901_1.zip");
+    }
+
+    private Path spool(ReportPackager packager) throws IOException {
+        Path spool = packager.nuovoSpool("GOVPAY_12345678901");
+        Files.writeString(spool, CSV, StandardCharsets.UTF_8);
+        return spool;
+    }
+
+    private static String contenuto(ZipFile zip, ZipEntry voce) throws IOException {
+        return new String(zip.getInputStream(voce).readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @DisplayName("Should compress the spool file, publish the zip and then run the follow-up action")
+    void testCompressAndPublish() throws Exception {
+        ReportPackager packager = new ReportPackager(batchProperties, meterRegistry, Runnable::run);
+        Path spool = spool(packager);
+        AtomicBoolean pubblicato = new AtomicBoolean();
+
+        CompletableFuture<Path> risultato = packager.impacchetta(spool, destinazione, "GOVPAY_12345678901_2.csv",
+                () -> pubblicato.set(Files.exists(destinazione)));
+
+        assertThat(risultato).isCompletedWithValue(destinazione);
+        assertThat(pubblicato).isTrue();
+        assertThat(spool).doesNotExist();
+        assertThat(destinazione.resolveSibling(destinazione.getFileName() + ".tmp")).doesNotExist();
+        try (ZipFile zip = new ZipFile(destinazione.toFile())) {
+            ZipEntry voce = zip.getEntry("GOVPAY_12345678901_2.csv");
+            assertThat(voce.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+            assertThat(contenuto(zip, voce)).isEqualTo(CSV);
+        }
+        assertThat(meterRegistry.get(ReportPackager.METRIC_IMPACCHETTAMENTO).tag("esito", "ok").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should store the CSV without compression when configured")
+    void testStored() throws Exception {
+        batchProperties.getSpool().setSenzaCompressione(true);
+        ReportPackager packager = new ReportPackager(batchProperties, meterRegistry, Runnable::run);
+
+        packager.impacchetta(spool(packager), destinazione, "tracciato.csv", () -> { }).join();
+
+        try (ZipFile zip = new ZipFile(destinazione.toFile())) {
+            ZipEntry voce = zip.getEntry("tracciato.csv");
+            assertThat(voce.getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(contenuto(zip, voce)).isEqualTo(CSV);
+        }
+    }
+
+    @Test
+    @DisplayName("Should keep the spool file and skip the follow-up action when packaging fails")
+    void testFailureKeepsSpool() throws Exception {
+        ReportPackager packager = new ReportPackager(batchProperties, meterRegistry, Runnable::run);
+        Path spool = spool(packager);
+        Path inesistente = tempDir.resolve("mancante").resolve("report.zip");
+        AtomicBoolean eseguita = new AtomicBoolean();
+
+        CompletableFuture<Path> risultato = packager.impacchetta(spool, inesistente, "tracciato.csv", () -> eseguita.set(true));
+
+        assertThat(risultato).isCompletedExceptionally();
+        assertThat(eseguita).isFalse();
+        assertThat(spool).exists();
+        assertThat(meterRegistry.get(ReportPackager.METRIC_IMPACCHETTAMENTO).tag("esito", "errore").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should wait only for packaging still in progress")
+    void testAttendi() throws Exception {
+        List<Runnable> accodati = new ArrayList<>();
+        ReportPackager packager = new ReportPackager(batchProperties, meterRegistry, accodati::add);
+
+        packager.impacchetta(spool(packager), destinazione, "tracciato.csv", () -> { });
+
+        assertThat(packager.attendi(Duration.ofMillis(50))).isFalse();
+        accodati.forEach(Runnable::run);
+        assertThat(packager.attendi(Duration.ofMillis(50))).isTrue();
+        assertThat(destinazione).exists();
+    }
+}
@@ -3,6 +3,7 @@ package it.govpay.maggioli.batch.step2;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.time.Instant;
@@ -15,10 +16,14 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
 import it.govpay.maggioli.batch.dto.DominioProcessingContext;
 import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch;
 import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
 
 /**
  * Unit tests for FdrHeadersProcessor
@@ -33,7 +38,8 @@ class MaggioliJppaHeadersProcessorTest {
 
     @BeforeEach
     void setUp() {
-        processor = new MaggioliJppaHeadersProcessor(rptRepository);
+        processor = new MaggioliJppaHeadersProcessor(rptRepository,
+            new ReplicaReadExecutor(rptRepository, mock(PlatformTransactionManager.class), new BatchProperties(), new SimpleMeterRegistry()));
     }
 
     @Test
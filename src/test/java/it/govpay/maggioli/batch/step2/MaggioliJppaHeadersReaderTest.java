@@ -1,7 +1,6 @@
 package it.govpay.maggioli.batch.step2;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -16,9 +15,14 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.common.client.service.ConnettoreService;
+import it.govpay.maggioli.batch.config.BatchProperties;
 import it.govpay.maggioli.batch.dto.DominioProcessingContext;
 import it.govpay.maggioli.batch.entity.JppaConfig;
 import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.ConnettoreCache;
 
 /**
  * Unit tests for FdrHeadersReader
@@ -29,13 +33,16 @@ class MaggioliJppaHeadersReaderTest {
     @Mock
     private JppaConfigRepository jppaConfigRepository;
 
+    @Mock
+    private ConnettoreService connettoreService;
+
     private MaggioliJppaHeadersReader reader;
 
     @BeforeEach
     void setUp() {
         // Reset static queue before each test
     	MaggioliJppaHeadersReader.resetQueue();
-        reader = new MaggioliJppaHeadersReader(jppaConfigRepository);
+        reader = new MaggioliJppaHeadersReader(new ConfigurazioneRunService(jppaConfigRepository, new ConnettoreCache(connettoreService, new BatchProperties(), new SimpleMeterRegistry())));
     }
 
     @Test
@@ -51,7 +58,7 @@ class MaggioliJppaHeadersReaderTest {
         Instant instant3 = null; // No previous acquisition
         JppaConfig jppaConfig3 = JppaConfig.builder().codDominio("12345678903").dataUltimaRt(instant3).build();
 
-        when(jppaConfigRepository.findAllByAbilitato(anyBoolean())).thenReturn(List.of(jppaConfig1, jppaConfig2, jppaConfig3));
+        when(jppaConfigRepository.findAll()).thenReturn(List.of(jppaConfig1, jppaConfig2, jppaConfig3));
 
         // When: Read all domains
         DominioProcessingContext ctx1 = reader.read();
@@ -75,21 +82,21 @@ class MaggioliJppaHeadersReaderTest {
         assertThat(ctx4).isNull(); // End of data
 
         // Verify repository was called only once (on first read)
-        verify(jppaConfigRepository, times(1)).findAllByAbilitato(anyBoolean());
+        verify(jppaConfigRepository, times(1)).findAll();
     }
 
     @Test
     @DisplayName("Should return null when no domains found")
     void testReadNoDomains() throws Exception {
         // Given: No domains
-        when(jppaConfigRepository.findAllByAbilitato(anyBoolean())).thenReturn(List.of());
+        when(jppaConfigRepository.findAll()).thenReturn(List.of());
 
         // When: Read
         DominioProcessingContext result = reader.read();
 
         // Then: Should return null immediately
         assertThat(result).isNull();
-        verify(jppaConfigRepository, times(1)).findAllByAbilitato(anyBoolean());
+        verify(jppaConfigRepository, times(1)).findAll();
     }
 
     @Test
@@ -99,7 +106,7 @@ class MaggioliJppaHeadersReaderTest {
         Instant instant = Instant.parse("2025-01-27T10:00:00Z");
         JppaConfig jppaConfig = JppaConfig.builder().codDominio("12345678901").dataUltimaRt(instant).build();
 
-        when(jppaConfigRepository.findAllByAbilitato(anyBoolean())).thenReturn(List.of(jppaConfig));
+        when(jppaConfigRepository.findAll()).thenReturn(List.of(jppaConfig));
 
         // When: Read twice
         DominioProcessingContext ctx1 = reader.read();
@@ -118,7 +125,7 @@ class MaggioliJppaHeadersReaderTest {
         Instant instant = Instant.parse("2025-01-27T10:00:00Z");
         JppaConfig jppaConfig = JppaConfig.builder().codDominio("12345678901").dataUltimaRt(instant).build();
 
-        when(jppaConfigRepository.findAllByAbilitato(anyBoolean())).thenReturn(List.of(jppaConfig));
+        when(jppaConfigRepository.findAll()).thenReturn(List.of(jppaConfig));
 
         // When: Read multiple times
         reader.read();
@@ -126,6 +133,6 @@ class MaggioliJppaHeadersReaderTest {
         reader.read();
 
         // Then: Repository should be called only once
-        verify(jppaConfigRepository, times(1)).findAllByAbilitato(anyBoolean());
+        verify(jppaConfigRepository, times(1)).findAll();
     }
 }
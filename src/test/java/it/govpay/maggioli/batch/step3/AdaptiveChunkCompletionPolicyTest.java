@@ -0,0 +1,115 @@
+package it.govpay.maggioli.batch.step3;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.batch.infrastructure.repeat.RepeatContext;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+
+/**
+ * Unit tests for AdaptiveChunkCompletionPolicy
+ */
+class AdaptiveChunkCompletionPolicyTest {
+
+    private BatchProperties batchProperties;
+    private SimpleMeterRegistry meterRegistry;
+    private double heap;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        batchProperties.setPaymentsChunkSize(50);
+        batchProperties.getChunkTuning().setEnabled(true);
+        batchProperties.getChunkTuning().setDimensioneMinima(10);
+        batchProperties.getChunkTuning().setDimensioneMassima(200);
+        batchProperties.getChunkTuning().setTempoCommitObiettivoMillis(1000);
+        meterRegistry = new SimpleMeterRegistry();
+        heap = 0.3;
+    }
+
+    private AdaptiveChunkCompletionPolicy policy() {
+        return new AdaptiveChunkCompletionPolicy(batchProperties, meterRegistry, Clock.fixed(Instant.parse("2025-06-01T10:00:00Z"), ZoneOffset.UTC),
+            () -> heap);
+    }
+
+    @Test
+    @DisplayName("Should start from the payments chunk size and complete the chunk at the current size")
+    void testCompletesAtCurrentSize() {
+        AdaptiveChunkCompletionPolicy policy = policy();
+        RepeatContext context = policy.start(null);
+
+        for (int i = 0; i < 49; i++) {
+            policy.update(context);
+        }
+        assertThat(policy.isComplete(context)).isFalse();
+        policy.update(context);
+        assertThat(policy.isComplete(context)).isTrue();
+        assertThat(meterRegistry.get("govpay.maggioli.chunk.size").gauge().value()).isEqualTo(50.0);
+    }
+
+    @Test
+    @DisplayName("Should grow after fast full chunks, at most doubling, up to the maximum")
+    void testGrowsOnFastChunks() {
+        AdaptiveChunkCompletionPolicy policy = policy();
+
+        assertThat(policy.registraChunk(50, 100, 0)).isEqualTo(100);
+        assertThat(policy.registraChunk(100, 800, 0)).isEqualTo(125);
+        assertThat(policy.registraChunk(125, 10, 0)).isEqualTo(200);
+        assertThat(meterRegistry.get("govpay.maggioli.chunk.size").gauge().value()).isEqualTo(200.0);
+    }
+
+    @Test
+    @DisplayName("Should not grow after a partial chunk at the end of a partition")
+    void testPartialChunkDoesNotGrow() {
+        AdaptiveChunkCompletionPolicy policy = policy();
+
+        assertThat(policy.registraChunk(7, 10, 0)).isEqualTo(50);
+    }
+
+    @Test
+    @DisplayName("Should shrink proportionally to the commit time target, down to the minimum")
+    void testShrinksOnSlowChunks() {
+        AdaptiveChunkCompletionPolicy policy = policy();
+
+        assertThat(policy.registraChunk(50, 2000, 0)).isEqualTo(25);
+        assertThat(policy.registraChunk(25, 10_000, 0)).isEqualTo(10);
+    }
+
+    @Test
+    @DisplayName("Should halve the size on high retry rate, memory pressure and rollback")
+    void testHalvesOnRetriesAndMemory() {
+        AdaptiveChunkCompletionPolicy policy = policy();
+
+        assertThat(policy.registraChunk(50, 100, 6)).isEqualTo(25);
+
+        heap = 0.9;
+        assertThat(policy.registraChunk(25, 100, 0)).isEqualTo(12);
+
+        heap = 0.3;
+        policy.afterChunkError(null);
+        assertThat(policy.getDimensione()).isEqualTo(10);
+    }
+
+    @Test
+    @DisplayName("Should keep the size of a chunk already started when the size changes")
+    void testChunkKeepsStartSize() {
+        AdaptiveChunkCompletionPolicy policy = policy();
+        RepeatContext context = policy.start(null);
+
+        policy.registraChunk(50, 5000, 0);
+        for (int i = 0; i < 49; i++) {
+            policy.update(context);
+        }
+
+        assertThat(policy.getDimensione()).isEqualTo(10);
+        assertThat(policy.isComplete(context)).isFalse();
+    }
+}
@@ -0,0 +1,121 @@
+package it.govpay.maggioli.batch.step3;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.core.step.StepExecution;
+import org.springframework.batch.infrastructure.item.Chunk;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.common.client.service.ConnettoreService;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.DominioProcessingContext;
+import it.govpay.maggioli.batch.dto.MaggioliHeadersBatch;
+import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.ConnettoreCache;
+import it.govpay.maggioli.batch.step2.MaggioliJppaHeadersProcessor;
+import it.govpay.maggioli.batch.step2.MaggioliJppaHeadersWriter;
+
+/**
+ * Unit tests for DominioHeadersAcquisitionListener
+ */
+@ExtendWith(MockitoExtension.class)
+class DominioHeadersAcquisitionListenerTest {
+
+    private static final String COD_DOMINIO = "12345678901";
+
+    @Mock
+    private JppaConfigRepository jppaConfigRepository;
+
+    @Mock
+    private ConnettoreService connettoreService;
+
+    @Mock
+    private MaggioliJppaHeadersProcessor headersProcessor;
+
+    @Mock
+    private MaggioliJppaHeadersWriter headersWriter;
+
+    private DominioHeadersAcquisitionListener listener;
+    private StepExecution stepExecution;
+
+    @BeforeEach
+    void setUp() {
+        listener = new DominioHeadersAcquisitionListener(new ConfigurazioneRunService(jppaConfigRepository, new ConnettoreCache(connettoreService, new BatchProperties(), new SimpleMeterRegistry())), headersProcessor, headersWriter);
+        stepExecution = new StepExecution("partition-" + COD_DOMINIO, null);
+        stepExecution.getExecutionContext().putString("codDominio", COD_DOMINIO);
+    }
+
+    @Test
+    @DisplayName("Should acquire and write headers of the partition domain")
+    void testAcquireHeaders() throws Exception {
+        Instant lastRt = Instant.parse("2025-06-01T10:00:00Z");
+        when(jppaConfigRepository.findAll())
+            .thenReturn(List.of(JppaConfig.builder().codDominio(COD_DOMINIO).connettore("CONN").dataUltimaRt(lastRt).build()));
+        MaggioliHeadersBatch batch = MaggioliHeadersBatch.builder().codDominio(COD_DOMINIO).headers(List.of()).build();
+        when(headersProcessor.process(any(DominioProcessingContext.class))).thenReturn(batch);
+
+        listener.beforeStep(stepExecution);
+
+        ArgumentCaptor<DominioProcessingContext> context = ArgumentCaptor.forClass(DominioProcessingContext.class);
+        verify(headersProcessor).process(context.capture());
+        assertThat(context.getValue().getLastRtDate()).isEqualTo(lastRt);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Chunk<MaggioliHeadersBatch>> chunk = ArgumentCaptor.forClass(Chunk.class);
+        verify(headersWriter).write(chunk.capture());
+        assertThat(chunk.getValue().getItems()).containsExactly(batch);
+    }
+
+    @Test
+    @DisplayName("Should not write when there are no new receipts")
+    void testNoNewReceipts() throws Exception {
+        when(jppaConfigRepository.findAll())
+            .thenReturn(List.of(JppaConfig.builder().codDominio(COD_DOMINIO).connettore("CONN").build()));
+        when(headersProcessor.process(any(DominioProcessingContext.class))).thenReturn(null);
+
+        listener.beforeStep(stepExecution);
+
+        verify(headersWriter, never()).write(any());
+    }
+
+    @Test
+    @DisplayName("Should skip acquisition when domain configuration is missing")
+    void testMissingConfiguration() {
+        when(jppaConfigRepository.findAll()).thenReturn(List.of());
+
+        listener.beforeStep(stepExecution);
+
+        verifyNoInteractions(headersProcessor, headersWriter);
+    }
+
+    @Test
+    @DisplayName("Should fail the partition when acquisition fails")
+    void testAcquisitionFailure() throws Exception {
+        when(jppaConfigRepository.findAll())
+            .thenReturn(List.of(JppaConfig.builder().codDominio(COD_DOMINIO).connettore("CONN").build()));
+        when(headersProcessor.process(any(DominioProcessingContext.class)))
+            .thenThrow(new DataAccessResourceFailureException("DB non disponibile"));
+
+        assertThatThrownBy(() -> listener.beforeStep(stepExecution))
+            .isInstanceOf(IllegalStateException.class)
+            .hasMessageContaining(COD_DOMINIO);
+    }
+}
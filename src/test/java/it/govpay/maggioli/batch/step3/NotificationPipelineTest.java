@@ -0,0 +1,131 @@
+package it.govpay.maggioli.batch.step3;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.exception.PayloadValidationException;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+import it.govpay.maggioli.batch.service.ReplicaReadExecutor;
+import it.govpay.maggioli.client.model.RichiestaNotificaPagamentoV2Dto;
+
+/**
+ * Unit tests for NotificationPipeline
+ */
+@ExtendWith(MockitoExtension.class)
+class NotificationPipelineTest {
+
+    private static final String COD_DOMINIO = "12345678901";
+
+    @Mock
+    private RptRepository rptRepository;
+
+    @Mock
+    private NotificheApiService notificheApiService;
+
+    private SimpleMeterRegistry meterRegistry;
+    private NotificationPipeline pipeline;
+
+    @BeforeEach
+    void setUp() {
+        BatchProperties batchProperties = new BatchProperties();
+        batchProperties.getPipeline().setEnabled(true);
+        batchProperties.getPipeline().setDimensionePagina(2);
+        batchProperties.getPipeline().setProfonditaCodaLettura(1);
+        batchProperties.getPipeline().setProfonditaCodaInvio(1);
+        meterRegistry = new SimpleMeterRegistry();
+        pipeline = new NotificationPipeline(rptRepository,
+            new ReplicaReadExecutor(rptRepository, mock(PlatformTransactionManager.class), batchProperties, meterRegistry),
+            notificheApiService, batchProperties, new PipelineMetrics(meterRegistry));
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.ferma();
+    }
+
+    @Test
+    @DisplayName("Should deliver receipts in id order across pages with prepared requests")
+    void testOrderAndPreparedRequests() throws Exception {
+        when(rptRepository.findIdsByNotificheOrderByDataMsgRicevuta(COD_DOMINIO)).thenReturn(List.of(3L, 1L, 2L));
+        // The fetch query does not preserve order
+        when(rptRepository.findRicevuteByIdIn(anyList())).thenAnswer(inv -> {
+            List<RicevutaDaNotificare> ricevute = new ArrayList<>();
+            for (Long id : inv.<Collection<Long>>getArgument(0)) {
+                ricevute.add(0, rpt(id));
+            }
+            return ricevute;
+        });
+        when(notificheApiService.buildRichiesta(anyString(), any(), any())).thenAnswer(inv -> {
+            RichiestaNotificaPagamentoV2Dto richiesta = new RichiestaNotificaPagamentoV2Dto();
+            richiesta.setIdentificativoDominioEnteCreditore(inv.getArgument(0));
+            return richiesta;
+        });
+
+        assertThat(pipeline.avvia(COD_DOMINIO, false)).isEqualTo(3);
+
+        List<Long> ids = new ArrayList<>();
+        RicevutaDaNotificare rpt;
+        while ((rpt = pipeline.prossima()) != null) {
+            ids.add(rpt.id());
+            assertThat(pipeline.richiesta(rpt).getIdentificativoDominioEnteCreditore()).isEqualTo(COD_DOMINIO);
+        }
+
+        assertThat(ids).containsExactly(3L, 1L, 2L);
+        assertThat(pipeline.prossima()).isNull();
+        assertThat(meterRegistry.get(PipelineMetrics.METRIC_PROFONDITA_CODA).tag("coda", PipelineMetrics.CODA_INVIO).gauge().value()).isZero();
+        assertThat(meterRegistry.get(PipelineMetrics.METRIC_ATTESA_STADIO).tag("stadio", PipelineMetrics.STADIO_INVIO).timer().count()).isPositive();
+    }
+
+    @Test
+    @DisplayName("Should rethrow validation errors of the build stage on the receipt")
+    void testBuildErrorRethrown() throws Exception {
+        when(rptRepository.findIdsByNotificheNotInDlqOrderByDataMsgRicevuta(COD_DOMINIO)).thenReturn(List.of(1L));
+        when(rptRepository.findRicevuteByIdIn(anyList())).thenReturn(List.of(rpt(1L)));
+        when(notificheApiService.buildRichiesta(anyString(), any(), any()))
+            .thenThrow(new PayloadValidationException(COD_DOMINIO, List.of("ricevuta telematica assente")));
+
+        pipeline.avvia(COD_DOMINIO, true);
+        RicevutaDaNotificare rpt = pipeline.prossima();
+
+        assertThatThrownBy(() -> pipeline.richiesta(rpt)).isInstanceOf(PayloadValidationException.class);
+        assertThat(pipeline.prossima()).isNull();
+    }
+
+    @Test
+    @DisplayName("Should fail the partition when the read stage fails")
+    void testReadStageFailure() {
+        when(rptRepository.findIdsByNotificheOrderByDataMsgRicevuta(COD_DOMINIO)).thenReturn(List.of(1L));
+        when(rptRepository.findRicevuteByIdIn(anyList())).thenThrow(new IllegalStateException("DB non disponibile"));
+
+        pipeline.avvia(COD_DOMINIO, false);
+
+        assertThatThrownBy(() -> pipeline.prossima()).isInstanceOf(IllegalStateException.class).hasMessageContaining("DB non disponibile");
+    }
+
+    private static RicevutaDaNotificare rpt(Long id) {
+        return new RicevutaDaNotificare(id, COD_DOMINIO, null, null, Instant.now(), "XML_RT_TEST".getBytes(), List.of());
+    }
+}
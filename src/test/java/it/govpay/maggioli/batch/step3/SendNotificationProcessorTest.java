@@ -5,6 +5,8 @@ import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
@@ -17,12 +19,15 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestClientException;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import it.govpay.maggioli.batch.Costanti;
-import it.govpay.maggioli.batch.entity.RPT;
-import it.govpay.maggioli.batch.entity.Versamento;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.exception.LoginFailedException;
+import it.govpay.maggioli.batch.exception.PayloadValidationException;
 import it.govpay.maggioli.batch.service.NotificheApiService;
 import it.govpay.maggioli.batch.step3.SendNotificationProcessor.NotificationCompleteData;
+import it.govpay.maggioli.client.model.RichiestaNotificaPagamentoV2Dto;
 import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto;
 import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto.EsitoEnum;
 
@@ -37,26 +42,30 @@ class SendNotificationProcessorTest {
     @Mock
     private NotificheApiService notificheApiService;
 
+    @Mock
+    private NotificationPipeline pipeline;
+
     private SendNotificationProcessor processor;
 
+    private BatchProperties batchProperties;
+
+    private DelayedRetryQueue retryQueue;
+
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        processor = new SendNotificationProcessor(notificheApiService, COD_CONNETTORE);
+        batchProperties = new BatchProperties();
+        retryQueue = new DelayedRetryQueue(batchProperties, new SimpleMeterRegistry());
+        processor = new SendNotificationProcessor(notificheApiService, retryQueue, pipeline, COD_CONNETTORE);
+    }
+
+    private RicevutaDaNotificare createRPT() {
+        return createRPT(Instant.now());
     }
 
-    private RPT createRPT() {
-        return RPT.builder()
-                  .id(1L)
-                  .versamento(Versamento.builder().id(101L).build())
-                  .codDominio("12345678901")
-                  .ccp("CCP_TEST")
-                  .iuv("IUV_TEST")
-                  .stato("RPT_RICEVUTA_NODO")
-                  .codEsitoPagamento(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO)
-                  .dataMsgRicevuta(Instant.now())
-                  .xmlRt("XML_RT_TEST".getBytes())
-                  .build();
+    private RicevutaDaNotificare createRPT(Instant dataMsgRicevuta) {
+        return new RicevutaDaNotificare(1L, "12345678901", "IUV_TEST", "CCP_TEST", dataMsgRicevuta, "XML_RT_TEST".getBytes(),
+                List.of(new RicevutaDaNotificare.VoceContabile("Versamento di test", null)));
     }
 
     private RispostaNotificaPagamentoDto createRispostaNotificaPagamento() {
@@ -69,7 +78,7 @@ class SendNotificationProcessorTest {
     @Test
     @DisplayName("Test successful processing with complete data")
     void testProcessSuccessWithCompleteData() throws Exception {
-    	RPT rpt = createRPT();
+    	RicevutaDaNotificare rpt = createRPT();
     	RispostaNotificaPagamentoDto response = createRispostaNotificaPagamento();
 
         when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any())).thenReturn(response);
@@ -78,28 +87,28 @@ class SendNotificationProcessorTest {
 
         assertNotNull(result);
         assertEquals("12345678901", result.getCodDominio());
-        assertEquals(rpt.getDataMsgRicevuta(), result.getDataMsgRicevuta());
+        assertEquals(rpt.dataMsgRicevuta(), result.getDataMsgRicevuta());
 
-        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.getCodDominio(), rpt.getVersamento().getSingoliVersamenti(), rpt.getXmlRt());
+        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.codDominio(), rpt.voci(), rpt.xmlRt());
     }
 
     @Test
     @DisplayName("Test processing throws RestClientException on 5xx")
     void testProcessThrowsRestClientException() throws Exception {
-        RPT rpt = createRPT();
+        RicevutaDaNotificare rpt = createRPT();
 
         when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
                                 .thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR, "Server error"));
 
         assertThrows(RestClientException.class, () -> processor.process(rpt));
 
-        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.getCodDominio(), rpt.getVersamento().getSingoliVersamenti(), rpt.getXmlRt());
+        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.codDominio(), rpt.voci(), rpt.xmlRt());
     }
 
     @Test
     @DisplayName("Test errore 400 Bad Request restituisce DTO con ERRORE_INVIO senza rilanciare")
     void testProcess400BadRequestReturnsErrorDto() throws Exception {
-        RPT rpt = createRPT();
+        RicevutaDaNotificare rpt = createRPT();
 
         when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
                                 .thenThrow(HttpClientErrorException.create(HttpStatus.BAD_REQUEST, "Bad Request", HttpHeaders.EMPTY, null, null));
@@ -107,38 +116,127 @@ class SendNotificationProcessorTest {
         NotificationCompleteData result = processor.process(rpt);
 
         assertNotNull(result);
-        assertEquals(rpt.getCodDominio(), result.getCodDominio());
-        assertEquals(rpt.getIuv(), result.getIuv());
-        assertEquals(rpt.getCcp(), result.getCcp());
+        assertEquals(rpt.codDominio(), result.getCodDominio());
+        assertEquals(rpt.iuv(), result.getIuv());
+        assertEquals(rpt.ccp(), result.getCcp());
         assertEquals(Costanti.ESITO_ERRORE_INVIO, result.getEsito());
         assertNotNull(result.getErrors());
 
-        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.getCodDominio(), rpt.getVersamento().getSingoliVersamenti(), rpt.getXmlRt());
+        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.codDominio(), rpt.voci(), rpt.xmlRt());
     }
 
     @Test
     @DisplayName("Test errore 4xx diverso da 400 rilancia l'eccezione")
     void testProcess4xxOtherThan400Throws() throws Exception {
-        RPT rpt = createRPT();
+        RicevutaDaNotificare rpt = createRPT();
 
         when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
                                 .thenThrow(HttpClientErrorException.create(HttpStatus.NOT_FOUND, "Not Found", HttpHeaders.EMPTY, null, null));
 
         assertThrows(HttpClientErrorException.class, () -> processor.process(rpt));
 
-        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.getCodDominio(), rpt.getVersamento().getSingoliVersamenti(), rpt.getXmlRt());
+        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.codDominio(), rpt.voci(), rpt.xmlRt());
     }
 
     @Test
     @DisplayName("Test LoginFailedException propagates without being caught")
     void testProcessLoginFailedExceptionPropagates() throws Exception {
-        RPT rpt = createRPT();
+        RicevutaDaNotificare rpt = createRPT();
 
         when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
                                 .thenThrow(new LoginFailedException("Login fallito"));
 
         assertThrows(LoginFailedException.class, () -> processor.process(rpt));
 
-        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.getCodDominio(), rpt.getVersamento().getSingoliVersamenti(), rpt.getXmlRt());
+        verify(notificheApiService).notificaPagamento(COD_CONNETTORE, rpt.codDominio(), rpt.voci(), rpt.xmlRt());
+    }
+
+    @Test
+    @DisplayName("Test modalita' DELAYED: errore 5xx parcheggia la ricevuta senza rilanciare")
+    void testDelayedParkOn5xx() throws Exception {
+        batchProperties.getRetry().setMode(BatchProperties.ModalitaRetry.DELAYED);
+        batchProperties.getRetry().setBackoffInizialeMillis(0);
+        RicevutaDaNotificare rpt = createRPT();
+
+        when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
+                                .thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR, "Server error"))
+                                .thenReturn(createRispostaNotificaPagamento());
+
+        assertNull(processor.process(rpt));
+        assertEquals(rpt.dataMsgRicevuta(), retryQueue.dataMenoRecenteIrrisolta());
+
+        assertTrue(retryQueue.attendiScadenza());
+        RicevutaDaNotificare ritentata = retryQueue.prelevaPronta();
+        assertSame(rpt, ritentata);
+        assertNotNull(processor.process(ritentata));
+        assertNull(retryQueue.dataMenoRecenteIrrisolta());
+    }
+
+    @Test
+    @DisplayName("Test modalita' DELAYED: Retry-After su 503 determina il ritardo")
+    void testDelayedHonorsRetryAfter() throws Exception {
+        batchProperties.getRetry().setMode(BatchProperties.ModalitaRetry.DELAYED);
+        RicevutaDaNotificare rpt = createRPT();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "120");
+
+        when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
+                                .thenThrow(HttpServerErrorException.create(HttpStatus.SERVICE_UNAVAILABLE, "Unavailable", headers, null, null));
+
+        assertNull(processor.process(rpt));
+        // Ritardo di 120 secondi: non ancora pronta
+        assertNull(retryQueue.prelevaPronta());
+    }
+
+    @Test
+    @DisplayName("Test modalita' DELAYED: esauriti i tentativi l'eccezione viene rilanciata")
+    void testDelayedExhaustedThrows() throws Exception {
+        batchProperties.getRetry().setMode(BatchProperties.ModalitaRetry.DELAYED);
+        batchProperties.getRetry().setBackoffInizialeMillis(0);
+        batchProperties.setMaxRetries(2);
+        RicevutaDaNotificare rpt = createRPT(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+
+        when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
+                                .thenThrow(new HttpServerErrorException(HttpStatus.BAD_GATEWAY, "Bad gateway"));
+
+        assertNull(processor.process(rpt));
+        assertTrue(retryQueue.attendiScadenza());
+        assertThrows(RestClientException.class, () -> processor.process(retryQueue.prelevaPronta()));
+        // Senza DLQ la ricevuta resta non risolta e limita la data ultima RT
+        assertEquals(rpt.dataMsgRicevuta(), retryQueue.dataMenoRecenteIrrisolta());
+    }
+
+    @Test
+    @DisplayName("Test payload validation failure returns error outcome without retry")
+    void testProcessPayloadValidationFailure() throws Exception {
+        RicevutaDaNotificare rpt = createRPT();
+
+        when(notificheApiService.notificaPagamento(anyString(), anyString(), any(), any()))
+            .thenThrow(new PayloadValidationException(rpt.codDominio(),
+                List.of("datiAccertamento[1]: codiceAccertamento (capitolo) obbligatorio", "ricevuta telematica assente")));
+
+        NotificationCompleteData result = processor.process(rpt);
+
+        assertNotNull(result);
+        assertEquals(Costanti.ESITO_ERRORE_INVIO, result.getEsito());
+        assertEquals("datiAccertamento[1]: codiceAccertamento (capitolo) obbligatorio\nricevuta telematica assente", result.getErrors());
+        assertNull(retryQueue.dataMenoRecenteIrrisolta());
+        verify(notificheApiService, times(1)).notificaPagamento(anyString(), anyString(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Test pipeline mode sends the prepared request")
+    void testProcessWithPipeline() throws Exception {
+        RicevutaDaNotificare rpt = createRPT();
+        RichiestaNotificaPagamentoV2Dto richiesta = new RichiestaNotificaPagamentoV2Dto();
+
+        when(pipeline.isAttiva()).thenReturn(true);
+        when(pipeline.richiesta(rpt)).thenReturn(richiesta);
+        when(notificheApiService.invia(COD_CONNETTORE, rpt.codDominio(), richiesta)).thenReturn(createRispostaNotificaPagamento());
+
+        NotificationCompleteData result = processor.process(rpt);
+
+        assertEquals(EsitoEnum.OK.name(), result.getEsito());
+        verify(notificheApiService, never()).notificaPagamento(anyString(), anyString(), any(), any());
     }
 }
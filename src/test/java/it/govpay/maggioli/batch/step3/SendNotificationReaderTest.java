@@ -1,7 +1,9 @@
 package it.govpay.maggioli.batch.step3;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Field;
@@ -16,10 +18,10 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.batch.infrastructure.item.ExecutionContext;
+import org.springframework.batch.infrastructure.repeat.context.RepeatContextSupport;
+import org.springframework.batch.infrastructure.repeat.support.RepeatSynchronizationManager;
 
-import it.govpay.maggioli.batch.Costanti;
-import it.govpay.maggioli.batch.entity.RPT;
-import it.govpay.maggioli.batch.entity.Versamento;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
 import it.govpay.maggioli.batch.repository.RptRepository;
 
 /**
@@ -32,6 +34,12 @@ class SendNotificationReaderTest {
     @Mock
     private RptRepository rptRepository;
 
+    @Mock
+    private DelayedRetryQueue retryQueue;
+
+    @Mock
+    private NotificationPipeline pipeline;
+
     private SendNotificationReader reader;
 
     private static final String TEST_COD_DOMINIO = "12345678901";
@@ -40,7 +48,7 @@ class SendNotificationReaderTest {
 
     @BeforeEach
     void setUp() throws Exception {
-        reader = new SendNotificationReader(rptRepository);
+        reader = new SendNotificationReader(rptRepository, retryQueue, pipeline);
 
         // Simula l'iniezione di @Value da ExecutionContext usando reflection
         setField(reader, "codDominio", TEST_COD_DOMINIO);
@@ -52,34 +60,34 @@ class SendNotificationReaderTest {
     @DisplayName("Should read all receipt for assigned domain")
     void testReadAllRptForDomain() throws Exception {
         // Given: 10 receipts to be notify for the domain
-        List<RPT> receipts = createRptList(10, TEST_COD_DOMINIO);
-        when(rptRepository.findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+        List<RicevutaDaNotificare> receipts = createRptList(10, TEST_COD_DOMINIO);
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
             .thenReturn(receipts);
 
         // When: Open reader and read all
         reader.open(new ExecutionContext());
 
-        List<RPT> results = new ArrayList<>();
-        RPT rptTemp;
+        List<RicevutaDaNotificare> results = new ArrayList<>();
+        RicevutaDaNotificare rptTemp;
         while ((rptTemp = reader.read()) != null) {
             results.add(rptTemp);
         }
 
         // Then: Should read all 10 receipts
         assertThat(results).hasSize(10);
-        verify(rptRepository).findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO);
+        verify(rptRepository).findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO);
     }
 
     @Test
     @DisplayName("Should return null when domain has no recepit to be notify")
     void testReadNoRpts() throws Exception {
         // Given: Empty list for domain
-        when(rptRepository.findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
             .thenReturn(new ArrayList<>());
 
         // When: Open and read
         reader.open(new ExecutionContext());
-        RPT result = reader.read();
+        RicevutaDaNotificare result = reader.read();
 
         // Then: Should return null immediately
         assertThat(result).isNull();
@@ -89,29 +97,20 @@ class SendNotificationReaderTest {
     @DisplayName("Should read receipts in correct order")
     void testReadInOrder() throws Exception {
         // Given: receipts with sequential codes
-        List<RPT> receipts = new ArrayList<>();
+        List<RicevutaDaNotificare> receipts = new ArrayList<>();
         for (int i = 0; i < 5; i++) {
-            RPT rptTemp = RPT.builder()
-                    .id((long)i)
-                    .versamento(Versamento.builder().id((long)(100 + i)).build())
-                    .codDominio(TEST_COD_DOMINIO)
-                    .stato("RPT_RICEVUTA_NODO")
-                    .ccp("CCP_" + String.format("%03d", i))
-                    .iuv("IUV_" + String.format("%03d", i))
-                    .codEsitoPagamento(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO)
-                    .dataMsgRicevuta(Instant.now())
-                    .xmlRt(XML_RT.getBytes())
-                    .build();
+            RicevutaDaNotificare rptTemp = new RicevutaDaNotificare((long)i, TEST_COD_DOMINIO,
+                    "IUV_" + String.format("%03d", i), "CCP_" + String.format("%03d", i), Instant.now(), XML_RT.getBytes(), List.of());
             receipts.add(rptTemp);
         }
 
-        when(rptRepository.findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
             .thenReturn(receipts);
 
         // When: Read all
         reader.open(new ExecutionContext());
-        List<RPT> results = new ArrayList<>();
-        RPT rptTemp;
+        List<RicevutaDaNotificare> results = new ArrayList<>();
+        RicevutaDaNotificare rptTemp;
         while ((rptTemp = reader.read()) != null) {
             results.add(rptTemp);
         }
@@ -119,7 +118,7 @@ class SendNotificationReaderTest {
         // Then: Should maintain order
         assertThat(results).hasSize(5);
         for (int i = 0; i < 5; i++) {
-            assertThat(results.get(i).getIuv()).isEqualTo("IUV_" + String.format("%03d", i));
+            assertThat(results.get(i).iuv()).isEqualTo("IUV_" + String.format("%03d", i));
         }
     }
 
@@ -127,14 +126,14 @@ class SendNotificationReaderTest {
     @DisplayName("Should handle single receipt")
     void testReadSingleFlow() throws Exception {
         // Given: Single flow
-        List<RPT> receipts = createRptList(1, TEST_COD_DOMINIO);
-        when(rptRepository.findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+        List<RicevutaDaNotificare> receipts = createRptList(1, TEST_COD_DOMINIO);
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
             .thenReturn(receipts);
 
         // When: Read
         reader.open(new ExecutionContext());
-        RPT first = reader.read();
-        RPT second = reader.read();
+        RicevutaDaNotificare first = reader.read();
+        RicevutaDaNotificare second = reader.read();
 
         // Then: First should have value, second should be null
         assertThat(first).isNotNull();
@@ -145,8 +144,8 @@ class SendNotificationReaderTest {
     @DisplayName("Should only initialize once on open")
     void testInitializeOnce() throws Exception {
         // Given
-        List<RPT> receipts = createRptList(3, TEST_COD_DOMINIO);
-        when(rptRepository.findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+        List<RicevutaDaNotificare> receipts = createRptList(3, TEST_COD_DOMINIO);
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
             .thenReturn(receipts);
 
         // When: Open and read multiple times
@@ -157,15 +156,15 @@ class SendNotificationReaderTest {
         reader.read(); // Should return null
 
         // Then: Repository should be called only once
-        verify(rptRepository).findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO);
+        verify(rptRepository).findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO);
     }
 
     @Test
     @DisplayName("Should handle close properly")
     void testClose() throws Exception {
         // Given
-        List<RPT> receipts = createRptList(5, TEST_COD_DOMINIO);
-        when(rptRepository.findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+        List<RicevutaDaNotificare> receipts = createRptList(5, TEST_COD_DOMINIO);
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
             .thenReturn(receipts);
 
         // When: Open, read some, then close
@@ -177,12 +176,81 @@ class SendNotificationReaderTest {
         // Further reads after close would require reopen
     }
 
+    @Test
+    @DisplayName("Should re-read parked receipts before new ones and wait for them between chunks")
+    void testReadParkedReceipts() throws Exception {
+        // Given: 2 receipts, one parked receipt ready and one due after the iterator is exhausted
+        List<RicevutaDaNotificare> all = createRptList(4, TEST_COD_DOMINIO);
+        List<RicevutaDaNotificare> receipts = new ArrayList<>(all.subList(0, 2));
+        RicevutaDaNotificare ready = all.get(2);
+        RicevutaDaNotificare delayed = all.get(3);
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+            .thenReturn(receipts);
+        when(retryQueue.isAttiva()).thenReturn(true);
+        when(retryQueue.prelevaPronta()).thenReturn(null, ready, null, delayed, null);
+
+        // When: first chunk up to the last new receipt, wait between chunks, then the delayed one
+        reader.open(new ExecutionContext());
+        List<RicevutaDaNotificare> results = new ArrayList<>();
+        results.add(reader.read());
+        results.add(reader.read());
+        results.add(reader.read());
+        reader.afterChunk(null);
+        RicevutaDaNotificare rptTemp;
+        while ((rptTemp = reader.read()) != null) {
+            results.add(rptTemp);
+        }
+
+        // Then: first receipt, ready parked one, second receipt, then the awaited one
+        assertThat(results).containsExactly(receipts.get(0), ready, receipts.get(1), delayed);
+        verify(retryQueue).attendiScadenza();
+    }
+
+    @Test
+    @DisplayName("Should close the chunk after the last new receipt instead of waiting inside it")
+    void testCompleteChunkWhenInputExhausted() throws Exception {
+        List<RicevutaDaNotificare> receipts = createRptList(2, TEST_COD_DOMINIO);
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+            .thenReturn(receipts);
+        when(retryQueue.isAttiva()).thenReturn(true);
+        reader.open(new ExecutionContext());
+
+        RepeatContextSupport chunk = new RepeatContextSupport(null);
+        RepeatSynchronizationManager.register(chunk);
+        try {
+            reader.read();
+            assertThat(chunk.isCompleteOnly()).isFalse();
+            // No wait while new receipts are left
+            reader.afterChunk(null);
+            verify(retryQueue, never()).attendiScadenza();
+
+            reader.read();
+            assertThat(chunk.isCompleteOnly()).isTrue();
+        } finally {
+            RepeatSynchronizationManager.clear();
+        }
+    }
+
+    @Test
+    @DisplayName("Should never wait inside read for parked receipts not yet due")
+    void testReadDoesNotWait() throws Exception {
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+            .thenReturn(new ArrayList<>());
+        when(retryQueue.isAttiva()).thenReturn(true);
+        when(retryQueue.inAttesa()).thenReturn(true);
+
+        reader.open(new ExecutionContext());
+
+        assertThat(reader.read()).isNull();
+        verify(retryQueue, never()).attendiScadenza();
+    }
+
     @Test
     @DisplayName("Should handle large dataset for single domain")
     void testReadLargeDataset() throws Exception {
         // Given: 100 receipts for one domain
-        List<RPT> flussi = createRptList(100, TEST_COD_DOMINIO);
-        when(rptRepository.findByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
+        List<RicevutaDaNotificare> flussi = createRptList(100, TEST_COD_DOMINIO);
+        when(rptRepository.findRicevuteByNotificheOrderByDataMsgRicevuta(TEST_COD_DOMINIO))
             .thenReturn(flussi);
 
         // When: Read all
@@ -196,20 +264,35 @@ class SendNotificationReaderTest {
         assertThat(count).isEqualTo(100);
     }
 
-    private List<RPT> createRptList(int size, String codDominio) {
-        List<RPT> list = new ArrayList<>();
+    @Test
+    @DisplayName("Should read receipts from pipeline when enabled")
+    void testReadFromPipeline() throws Exception {
+        // Given: pipeline enabled with 2 prepared receipts
+        List<RicevutaDaNotificare> receipts = createRptList(2, TEST_COD_DOMINIO);
+        when(pipeline.isAttiva()).thenReturn(true);
+        when(pipeline.avvia(TEST_COD_DOMINIO, false)).thenReturn(2);
+        when(pipeline.prossima()).thenReturn(receipts.get(0), receipts.get(1), null);
+
+        // When
+        reader.open(new ExecutionContext());
+        List<RicevutaDaNotificare> results = new ArrayList<>();
+        RicevutaDaNotificare rptTemp;
+        while ((rptTemp = reader.read()) != null) {
+            results.add(rptTemp);
+        }
+        reader.close();
+
+        // Then: receipts come from the pipeline, no full load from repository
+        assertThat(results).containsExactlyElementsOf(receipts);
+        verify(pipeline).ferma();
+        verifyNoInteractions(rptRepository);
+    }
+
+    private List<RicevutaDaNotificare> createRptList(int size, String codDominio) {
+        List<RicevutaDaNotificare> list = new ArrayList<>();
         for (int i = 0; i < size; i++) {
-            RPT rptTemp = RPT.builder()
-                .id((long)i)
-                .versamento(Versamento.builder().id((long)(100 + i)).build())
-                .codDominio(codDominio)
-                .stato("RPT_RICEVUTA_NODO")
-                .ccp("CCP_"+ i)
-                .iuv("IUV_" + i)
-                .codEsitoPagamento(Costanti.RPT_ESITO_PAGAMENTO_ESEGUITO)
-                .dataMsgRicevuta(Instant.now())
-                .xmlRt(XML_RT.getBytes())
-                .build();
+            RicevutaDaNotificare rptTemp = new RicevutaDaNotificare((long)i, codDominio, "IUV_" + i, "CCP_" + i, Instant.now(),
+                XML_RT.getBytes(), List.of());
             list.add(rptTemp);
         }
         return list;
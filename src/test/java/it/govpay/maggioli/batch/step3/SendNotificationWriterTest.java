@@ -6,6 +6,7 @@ import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -14,12 +15,12 @@ import static org.mockito.Mockito.when;
 import java.io.File;
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -33,15 +34,30 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.core.job.JobExecution;
+import org.springframework.batch.core.job.JobInstance;
+import org.springframework.batch.core.job.parameters.JobParameters;
 import org.springframework.batch.core.step.StepExecution;
 import org.springframework.batch.infrastructure.item.Chunk;
 import org.springframework.mail.MailSendException;
+import org.springframework.web.client.ResourceAccessException;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import it.govpay.common.client.service.ConnettoreService;
 import it.govpay.common.mail.MailInfo;
-import it.govpay.maggioli.batch.entity.JppaConfig;
+import it.govpay.maggioli.batch.Costanti;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.RicevutaDaNotificare;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
 import it.govpay.maggioli.batch.repository.JppaConfigRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.ConnettoreCache;
+import it.govpay.maggioli.batch.service.DeadLetterService;
 import it.govpay.maggioli.batch.service.MaggioliMailService;
+import it.govpay.maggioli.batch.service.MailOutbox;
+import it.govpay.maggioli.batch.service.NotificheMetrics;
+import it.govpay.maggioli.batch.service.ReportAggregator;
+import it.govpay.maggioli.batch.service.ReportPackager;
 import it.govpay.maggioli.batch.utils.CSVUtils;
 import it.govpay.maggioli.client.model.RispostaNotificaPagamentoDto.EsitoEnum;
 
@@ -59,8 +75,20 @@ class SendNotificationWriterTest {
     @Mock
     private MaggioliMailService mailService;
 
+    @Mock
+    private DeadLetterService deadLetterService;
+
+    @Mock
+    private DelayedRetryQueue retryQueue;
+
     private SendNotificationWriter writer;
 
+    private BatchProperties batchProperties;
+
+    private ReportPackager reportPackager;
+
+    private ReportAggregator reportAggregator;
+
     private final CSVUtils csvUtils = CSVUtils.getInstance(CSVFormat.DEFAULT);
 
     private static final String TEST_COD_DOMINIO = "12345678901";
@@ -74,7 +102,12 @@ class SendNotificationWriterTest {
 
     @BeforeEach
     void setUp() throws Exception {
-        writer = new SendNotificationWriter(jppaConfigRepository, connettoreService, mailService);
+        batchProperties = new BatchProperties();
+        reportPackager = new ReportPackager(batchProperties, new SimpleMeterRegistry());
+        MailOutbox mailOutbox = new MailOutbox(mailService, batchProperties, new SimpleMeterRegistry());
+        reportAggregator = new ReportAggregator(mailService, mailOutbox, reportPackager);
+        writer = new SendNotificationWriter(jppaConfigRepository, new ConfigurazioneRunService(jppaConfigRepository, new ConnettoreCache(connettoreService, batchProperties, new SimpleMeterRegistry())), mailService, deadLetterService, retryQueue,
+            new NotificheMetrics(new SimpleMeterRegistry()), reportPackager, mailOutbox, reportAggregator);
 
         new File(TEST_REPORT_DIR).mkdir();
 
@@ -103,21 +136,7 @@ class SendNotificationWriterTest {
     }
 
     private void stubJppaConfig() {
-        JppaConfig config = JppaConfig.builder()
-                .codDominio(TEST_COD_DOMINIO)
-                .connettore(TEST_COD_CONNETTORE)
-                .abilitato(Boolean.TRUE)
-                .dataUltimaRt(Instant.parse("2025-01-27T10:30:00Z"))
-                .build();
-        when(jppaConfigRepository.findByCodDominio(TEST_COD_DOMINIO)).thenReturn(Optional.of(config));
-
-        JppaConfig savedConfig = JppaConfig.builder()
-                .codDominio(TEST_COD_DOMINIO)
-                .connettore(TEST_COD_CONNETTORE)
-                .abilitato(Boolean.TRUE)
-                .dataUltimaRt(TEST_MSG_RICEVUTA)
-                .build();
-        when(jppaConfigRepository.save(savedConfig)).thenReturn(savedConfig);
+        when(jppaConfigRepository.aggiornaDataUltimaRt(TEST_COD_DOMINIO, TEST_MSG_RICEVUTA)).thenReturn(1);
     }
 
     private SendNotificationProcessor.NotificationCompleteData buildCompleteData() {
@@ -169,11 +188,120 @@ class SendNotificationWriterTest {
             assertThat(!zipEnum.hasMoreElements());
         }
 
-        verify(jppaConfigRepository).findByCodDominio(TEST_COD_DOMINIO);
-        verify(jppaConfigRepository).save(any());
+        verify(jppaConfigRepository).aggiornaDataUltimaRt(TEST_COD_DOMINIO, TEST_MSG_RICEVUTA);
         verify(mailService, never()).inviaEmail(any());
     }
 
+    @Test
+    @DisplayName("Con lo spool attivo il CSV viene compresso in background e lo ZIP pubblicato prima dell'email")
+    void testSpoolCompressioneInBackground() throws Exception {
+        File spoolDir = new File(TEST_REPORT_DIR + "_spool");
+        batchProperties.getSpool().setEnabled(true);
+        batchProperties.getSpool().setDirectory(spoolDir.getPath());
+        stubConnettore(Map.of(
+            "INVIA_TRACCIATO_ESITO", "true",
+            "FILE_SYSTEM_PATH", TEST_REPORT_DIR,
+            "EMAIL_ALLEGATO", "true",
+            "EMAIL_INDIRIZZO", TEST_EMAIL
+        ));
+        stubJppaConfig();
+        when(mailService.isAbilitato()).thenReturn(true);
+
+        try {
+            StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
+            writer.beforeStep(stepExecution);
+            writer.write(new Chunk<>(List.of(buildCompleteData())));
+            writer.afterStep(stepExecution);
+
+            assertThat(reportPackager.attendi(Duration.ofSeconds(10))).isTrue();
+
+            File[] reports = new File(TEST_REPORT_DIR).listFiles();
+            assertNotNull(reports);
+            assertEquals(1, reports.length);
+            assertThat(reports[0].getName()).startsWith("GOVPAY_" + TEST_COD_DOMINIO + "_").endsWith(".zip");
+            try (ZipFile zipFd = new ZipFile(reports[0])) {
+                ZipEntry zipEntry = zipFd.entries().nextElement();
+                assertThat(zipEntry.getName()).endsWith(".csv");
+                List<byte[]> rows = CSVUtils.splitCSV(zipFd.getInputStream(zipEntry), 1);
+                assertEquals(1, rows.size());
+                assertEquals(TEST_IUV, csvUtils.getCSVRecord(new String(rows.get(0))).get(1));
+            }
+            assertThat(spoolDir.list()).isEmpty();
+
+            ArgumentCaptor<MailInfo> captor = ArgumentCaptor.forClass(MailInfo.class);
+            verify(mailService).inviaEmail(captor.capture());
+            assertThat(captor.getValue().getAllegati()).containsKey(reports[0].getName());
+        } finally {
+            File[] spool = spoolDir.listFiles();
+            if (spool != null) {
+                Arrays.stream(spool).forEach(File::delete);
+            }
+            spoolDir.delete();
+        }
+    }
+
+    @Test
+    @DisplayName("Con MODALITA_REPORT=CONNETTORE i domini del connettore producono un solo ZIP e una sola email a fine job")
+    void testReportConsolidatoPerConnettore() throws Exception {
+        File spoolDir = new File(TEST_REPORT_DIR + "_spool");
+        batchProperties.getSpool().setDirectory(spoolDir.getPath());
+        stubConnettore(Map.of(
+            "INVIA_TRACCIATO_ESITO", "true",
+            "FILE_SYSTEM_PATH", TEST_REPORT_DIR,
+            "EMAIL_ALLEGATO", "true",
+            "EMAIL_INDIRIZZO", TEST_EMAIL,
+            "MODALITA_REPORT", "CONNETTORE"
+        ));
+        stubJppaConfig();
+        when(jppaConfigRepository.aggiornaDataUltimaRt("22222222222", TEST_MSG_RICEVUTA)).thenReturn(1);
+        when(mailService.isAbilitato()).thenReturn(true);
+        JobExecution jobExecution = new JobExecution(1L, new JobInstance(1L, "maggioliJppaNotificationJob"), new JobParameters());
+
+        try {
+            for (String dominio : List.of(TEST_COD_DOMINIO, "22222222222")) {
+                setField(writer, "codDominio", dominio);
+                StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, jobExecution);
+                writer.beforeStep(stepExecution);
+                writer.write(new Chunk<>(List.of(buildCompleteData())));
+                writer.afterStep(stepExecution);
+            }
+
+            assertThat(new File(TEST_REPORT_DIR).list()).isEmpty();
+            verify(mailService, never()).inviaEmail(any());
+
+            reportAggregator.afterJob(jobExecution);
+            assertThat(reportPackager.attendi(Duration.ofSeconds(10))).isTrue();
+
+            File[] reports = new File(TEST_REPORT_DIR).listFiles();
+            assertNotNull(reports);
+            assertEquals(1, reports.length);
+            assertThat(reports[0].getName()).startsWith("GOVPAY_" + TEST_COD_CONNETTORE + "_").endsWith(".zip");
+            try (ZipFile zipFd = new ZipFile(reports[0])) {
+                assertThat(zipFd.stream().map(ZipEntry::getName))
+                    .hasSize(2)
+                    .anyMatch(n -> n.startsWith("GOVPAY_" + TEST_COD_DOMINIO + "_"))
+                    .anyMatch(n -> n.startsWith("GOVPAY_22222222222_"));
+            }
+            assertThat(spoolDir.list()).isEmpty();
+
+            ArgumentCaptor<MailInfo> captor = ArgumentCaptor.forClass(MailInfo.class);
+            verify(mailService).inviaEmail(captor.capture());
+            assertThat(captor.getValue().getAllegati()).containsOnlyKeys(reports[0].getName());
+            assertThat(captor.getValue().getTesto())
+                .contains("Ente Creditore: " + TEST_COD_DOMINIO)
+                .contains("Ente Creditore: 22222222222")
+                .contains("Totale pagamenti: 2");
+        } finally {
+            for (File dir : List.of(spoolDir, new File(TEST_REPORT_DIR))) {
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    Arrays.stream(files).forEach(File::delete);
+                }
+            }
+            spoolDir.delete();
+        }
+    }
+
     // -------------------------------------------------------------------------
     // Test invio email
     // -------------------------------------------------------------------------
@@ -310,9 +438,11 @@ class SendNotificationWriterTest {
             "EMAIL_INDIRIZZO", TEST_EMAIL
         ));
         when(mailService.isAbilitato()).thenReturn(false);
+        stubJppaConfig();
 
         StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
         writer.beforeStep(stepExecution);
+        writer.write(new Chunk<>(List.of(buildCompleteData())));
         writer.afterStep(stepExecution);
 
         verify(mailService, never()).inviaEmail(any());
@@ -328,9 +458,11 @@ class SendNotificationWriterTest {
             "EMAIL_INDIRIZZO", ""
         ));
         when(mailService.isAbilitato()).thenReturn(true);
+        stubJppaConfig();
 
         StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
         writer.beforeStep(stepExecution);
+        writer.write(new Chunk<>(List.of(buildCompleteData())));
         writer.afterStep(stepExecution);
 
         verify(mailService, never()).inviaEmail(any());
@@ -347,13 +479,137 @@ class SendNotificationWriterTest {
         ));
         when(mailService.isAbilitato()).thenReturn(true);
         doThrow(new MailSendException("SMTP non raggiungibile")).when(mailService).inviaEmail(any());
+        stubJppaConfig();
 
         StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
         writer.beforeStep(stepExecution);
+        writer.write(new Chunk<>(List.of(buildCompleteData())));
 
         assertDoesNotThrow(() -> writer.afterStep(stepExecution));
     }
 
+    @Test
+    @DisplayName("Partizione senza ricevute: nessuno ZIP vuoto e nessuna email")
+    void testPartizioneVuotaSenzaTracciato() throws Exception {
+        stubConnettore(Map.of(
+            "INVIA_TRACCIATO_ESITO", "true",
+            "FILE_SYSTEM_PATH", TEST_REPORT_DIR,
+            "EMAIL_ALLEGATO", "true",
+            "EMAIL_INDIRIZZO", TEST_EMAIL
+        ));
+
+        StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
+        writer.beforeStep(stepExecution);
+        writer.write(new Chunk<>(List.of()));
+        writer.afterStep(stepExecution);
+
+        assertThat(new File(TEST_REPORT_DIR).list()).isEmpty();
+        verify(mailService, never()).inviaEmail(any());
+        verify(jppaConfigRepository, never()).aggiornaDataUltimaRt(any(), any());
+    }
+
+    @Test
+    @DisplayName("Partizione senza ricevute con MODALITA_REPORT=CONNETTORE: nessuna voce nel report consolidato")
+    void testPartizioneVuotaNonRegistrataNelConsolidato() throws Exception {
+        File spoolDir = new File(TEST_REPORT_DIR + "_spool");
+        batchProperties.getSpool().setDirectory(spoolDir.getPath());
+        stubConnettore(Map.of(
+            "INVIA_TRACCIATO_ESITO", "true",
+            "FILE_SYSTEM_PATH", TEST_REPORT_DIR,
+            "EMAIL_INDIRIZZO", TEST_EMAIL,
+            "MODALITA_REPORT", "CONNETTORE"
+        ));
+        JobExecution jobExecution = new JobExecution(1L, new JobInstance(1L, "maggioliJppaNotificationJob"), new JobParameters());
+
+        try {
+            StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, jobExecution);
+            writer.beforeStep(stepExecution);
+            writer.afterStep(stepExecution);
+            reportAggregator.afterJob(jobExecution);
+            assertThat(reportPackager.attendi(Duration.ofSeconds(10))).isTrue();
+
+            assertThat(new File(TEST_REPORT_DIR).list()).isEmpty();
+            assertThat(spoolDir.list()).isEmpty();
+            verify(mailService, never()).inviaEmail(any());
+        } finally {
+            File[] files = spoolDir.listFiles();
+            if (files != null) {
+                Arrays.stream(files).forEach(File::delete);
+            }
+            spoolDir.delete();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Test dead letter queue
+    // -------------------------------------------------------------------------
+
+    @Test
+    @DisplayName("Con DLQ attiva gli esiti ERRORE_INVIO sono registrati in blocco")
+    @SuppressWarnings("unchecked")
+    void testErroreInvioRegistratoInDlq() throws Exception {
+        setField(writer, "dlqEnabled", true);
+        stubConnettore(Map.of("INVIA_TRACCIATO_ESITO", "false"));
+        stubJppaConfig();
+
+        SendNotificationProcessor.NotificationCompleteData ok = buildCompleteData();
+        ok.setIdRpt(1L);
+        SendNotificationProcessor.NotificationCompleteData ko = buildCompleteData();
+        ko.setIdRpt(2L);
+        ko.setEsito(Costanti.ESITO_ERRORE_INVIO);
+        ko.setErrors("400 BAD_REQUEST");
+
+        StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
+        writer.beforeStep(stepExecution);
+        writer.write(new Chunk<>(List.of(ok, ko)));
+        writer.afterStep(stepExecution);
+
+        ArgumentCaptor<List<JppaNotificheDlq>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deadLetterService).registra(captor.capture());
+        assertThat(captor.getValue()).hasSize(1);
+        assertThat(captor.getValue().get(0).getIdRpt()).isEqualTo(2L);
+        assertThat(captor.getValue().get(0).getUltimoErrore()).isEqualTo("400 BAD_REQUEST");
+    }
+
+    @Test
+    @DisplayName("Con DLQ attiva le ricevute scartate dopo i retry sono registrate e fanno avanzare la data ultima RT")
+    @SuppressWarnings("unchecked")
+    void testScartoRegistratoInDlq() throws Exception {
+        setField(writer, "dlqEnabled", true);
+        stubConnettore(Map.of("INVIA_TRACCIATO_ESITO", "false"));
+
+        RicevutaDaNotificare rpt = new RicevutaDaNotificare(3L, TEST_COD_DOMINIO, TEST_IUV, TEST_CCP, TEST_MSG_RICEVUTA, null, List.of());
+
+        StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
+        writer.beforeStep(stepExecution);
+        writer.onSkipInProcess(rpt, new ResourceAccessException("timeout"));
+        writer.afterStep(stepExecution);
+
+        ArgumentCaptor<List<JppaNotificheDlq>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deadLetterService).registra(captor.capture());
+        assertThat(captor.getValue()).extracting(JppaNotificheDlq::getIdRpt).containsExactly(3L);
+        verify(jppaConfigRepository).aggiornaDataUltimaRt(TEST_COD_DOMINIO, TEST_MSG_RICEVUTA);
+    }
+
+    @Test
+    @DisplayName("Con DLQ disattiva nessuna registrazione")
+    void testDlqDisattiva() throws Exception {
+        stubConnettore(Map.of("INVIA_TRACCIATO_ESITO", "false"));
+        stubJppaConfig();
+
+        SendNotificationProcessor.NotificationCompleteData ko = buildCompleteData();
+        ko.setIdRpt(2L);
+        ko.setEsito(Costanti.ESITO_ERRORE_INVIO);
+
+        StepExecution stepExecution = new StepExecution(TEST_STEP_NAME, null);
+        writer.beforeStep(stepExecution);
+        writer.write(new Chunk<>(List.of(ko)));
+        writer.onSkipInProcess(new RicevutaDaNotificare(3L, null, null, null, null, null, List.of()), new RuntimeException("x"));
+        writer.afterStep(stepExecution);
+
+        verify(deadLetterService, never()).registra(anyList());
+    }
+
     // -------------------------------------------------------------------------
     // Utility
     // -------------------------------------------------------------------------
@@ -0,0 +1,64 @@
+package it.govpay.maggioli.batch.tasklet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.infrastructure.repeat.RepeatStatus;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.repository.JppaNotificheRepository;
+
+/**
+ * Unit tests for CleanupJppaNotificheTasklet
+ */
+@ExtendWith(MockitoExtension.class)
+class CleanupJppaNotificheTaskletTest {
+
+    @Mock
+    private JppaNotificheRepository jppaNotificheRepository;
+
+    private BatchProperties batchProperties;
+    private CleanupJppaNotificheTasklet tasklet;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        tasklet = new CleanupJppaNotificheTasklet(jppaNotificheRepository, batchProperties);
+    }
+
+    @Test
+    @DisplayName("Should delete the staging rows by default")
+    void testDelete() {
+        when(jppaNotificheRepository.count()).thenReturn(3L);
+
+        assertThat(tasklet.execute(null, null)).isEqualTo(RepeatStatus.FINISHED);
+
+        verify(jppaNotificheRepository).deleteAllRecords();
+        verify(jppaNotificheRepository, never()).truncate();
+    }
+
+    @Test
+    @DisplayName("Should truncate the staging table in its own transaction when enabled")
+    void testTruncate() throws Exception {
+        batchProperties.getStaging().setTruncate(true);
+        when(jppaNotificheRepository.count()).thenReturn(3L);
+
+        assertThat(tasklet.execute(null, null)).isEqualTo(RepeatStatus.FINISHED);
+
+        verify(jppaNotificheRepository).truncate();
+        verify(jppaNotificheRepository, never()).deleteAllRecords();
+        // Il commit implicito del DDL (Oracle, MySQL) non deve chiudere la transazione del chiamante
+        Transactional transazione = JppaNotificheRepository.class.getMethod("truncate").getAnnotation(Transactional.class);
+        assertThat(transazione.propagation()).isEqualTo(Propagation.REQUIRES_NEW);
+    }
+}
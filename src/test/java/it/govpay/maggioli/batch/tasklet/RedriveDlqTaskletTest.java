@@ -0,0 +1,195 @@
+package it.govpay.maggioli.batch.tasklet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.batch.infrastructure.repeat.RepeatStatus;
+import org.springframework.data.domain.Pageable;
+import org.springframework.web.client.ResourceAccessException;
+
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.batch.dto.ConfigurazioneRun;
+import it.govpay.maggioli.batch.entity.JppaNotificheDlq;
+import it.govpay.maggioli.batch.entity.RPT;
+import it.govpay.maggioli.batch.entity.Versamento;
+import it.govpay.maggioli.batch.repository.JppaNotificheDlqRepository;
+import it.govpay.maggioli.batch.repository.RptRepository;
+import it.govpay.maggioli.batch.service.ConfigurazioneRunService;
+import it.govpay.maggioli.batch.service.DeadLetterService;
+import it.govpay.maggioli.batch.service.NotificheApiService;
+
+/**
+ * Unit tests for RedriveDlqTasklet
+ */
+@ExtendWith(MockitoExtension.class)
+class RedriveDlqTaskletTest {
+
+    private static final String COD_DOMINIO = "12345678901";
+    private static final String COD_CONNETTORE = "CONN";
+
+    @Mock
+    private JppaNotificheDlqRepository dlqRepository;
+    @Mock
+    private RptRepository rptRepository;
+    @Mock
+    private ConfigurazioneRunService configurazioneRunService;
+    @Mock
+    private NotificheApiService notificheApiService;
+
+    private BatchProperties batchProperties;
+    private RedriveDlqTasklet tasklet;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        batchProperties.getDlq().setMaxTentativi(3);
+        batchProperties.getDlq().setConcorrenza(2);
+        DeadLetterService deadLetterService = new DeadLetterService(dlqRepository, batchProperties);
+        tasklet = new RedriveDlqTasklet(dlqRepository, rptRepository, configurazioneRunService, notificheApiService,
+                deadLetterService, batchProperties, Executors.newFixedThreadPool(2));
+    }
+
+    @AfterEach
+    void tearDown() {
+        tasklet.chiudi();
+    }
+
+    private void configurazione(String codConnettore) {
+        ConfigurazioneRun.Dominio dominio = new ConfigurazioneRun.Dominio(COD_DOMINIO, codConnettore, true, null, null, null);
+        when(configurazioneRunService.corrente()).thenReturn(new ConfigurazioneRun("v1", Instant.now(), Map.of(COD_DOMINIO, dominio), Map.of()));
+    }
+
+    private void scadute(JppaNotificheDlq... notifiche) {
+        when(dlqRepository.findByDataProssimoTentativoLessThanEqualOrderByDataProssimoTentativo(any(Instant.class), any(Pageable.class)))
+                .thenReturn(List.of(notifiche));
+    }
+
+    private void ricevute(long... ids) {
+        List<RPT> rpt = Arrays.stream(ids).mapToObj(id -> RPT.builder().id(id).codDominio(COD_DOMINIO)
+                .versamento(Versamento.builder().singoliVersamenti(Set.of()).build()).xmlRt(new byte[] {1}).build()).toList();
+        when(rptRepository.findByIdInFetchVersamento(anyCollection())).thenReturn(rpt);
+    }
+
+    private static JppaNotificheDlq notifica(long idRpt, int tentativi) {
+        return JppaNotificheDlq.builder().idRpt(idRpt).codDominio(COD_DOMINIO).iuv("IUV" + idRpt).tentativi(tentativi)
+                .dataInserimento(Instant.now()).dataProssimoTentativo(Instant.now()).build();
+    }
+
+    @Test
+    @DisplayName("Should do nothing when no notification is due")
+    void testNessunaScaduta() throws Exception {
+        scadute();
+
+        assertThat(tasklet.execute(null, null)).isEqualTo(RepeatStatus.FINISHED);
+
+        verify(rptRepository, never()).findByIdInFetchVersamento(anyCollection());
+    }
+
+    @Test
+    @DisplayName("Should remove a delivered notification from the DLQ")
+    void testReinvioRiuscito() throws Exception {
+        scadute(notifica(1L, 1));
+        ricevute(1L);
+        configurazione(COD_CONNETTORE);
+
+        tasklet.execute(null, null);
+
+        verify(notificheApiService).notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), anyList(), any());
+        verify(dlqRepository).deleteById(1L);
+        verify(dlqRepository, never()).save(any());
+    }
+
+    @Test
+    @DisplayName("Should bump the attempts on every failed resend until they are exhausted")
+    void testFallimentiRipetuti() throws Exception {
+        JppaNotificheDlq dlq = notifica(1L, 1);
+        scadute(dlq);
+        ricevute(1L);
+        configurazione(COD_CONNETTORE);
+        when(notificheApiService.notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), anyList(), any()))
+                .thenThrow(new ResourceAccessException("timeout"));
+
+        tasklet.execute(null, null);
+        assertThat(dlq.getTentativi()).isEqualTo(2);
+        assertThat(dlq.getDataProssimoTentativo()).isNotNull();
+        assertThat(dlq.getUltimoErrore()).contains("ResourceAccessException");
+
+        tasklet.execute(null, null);
+        assertThat(dlq.getTentativi()).isEqualTo(3);
+        assertThat(dlq.getDataProssimoTentativo()).isNull();
+
+        verify(dlqRepository, times(2)).save(dlq);
+        verify(dlqRepository, never()).deleteById(any());
+    }
+
+    @Test
+    @DisplayName("Should drop notifications whose receipt no longer exists without sending them")
+    void testRicevutaAssente() throws Exception {
+        scadute(notifica(1L, 1));
+        when(rptRepository.findByIdInFetchVersamento(anyCollection())).thenReturn(List.of());
+        configurazione(COD_CONNETTORE);
+
+        tasklet.execute(null, null);
+
+        verify(dlqRepository).deleteById(1L);
+        verify(notificheApiService, never()).notificaPagamento(any(), any(), anyList(), any());
+    }
+
+    @Test
+    @DisplayName("Should reschedule notifications of a domain without connector")
+    void testConnettoreAssente() throws Exception {
+        JppaNotificheDlq dlq = notifica(1L, 1);
+        scadute(dlq);
+        ricevute(1L);
+        configurazione(null);
+
+        tasklet.execute(null, null);
+
+        assertThat(dlq.getTentativi()).isEqualTo(2);
+        verify(dlqRepository).save(dlq);
+        verify(notificheApiService, never()).notificaPagamento(any(), any(), anyList(), any());
+    }
+
+    @Test
+    @DisplayName("Should send up to the configured number of notifications at the same time")
+    void testInviiConcorrenti() throws Exception {
+        scadute(notifica(1L, 1), notifica(2L, 1));
+        ricevute(1L, 2L);
+        configurazione(COD_CONNETTORE);
+        CountDownLatch inCorso = new CountDownLatch(2);
+        when(notificheApiService.notificaPagamento(eq(COD_CONNETTORE), eq(COD_DOMINIO), anyList(), any())).thenAnswer(inv -> {
+            inCorso.countDown();
+            // Entrambi gli invii devono essere in corso contemporaneamente
+            assertThat(inCorso.await(5, TimeUnit.SECONDS)).isTrue();
+            return null;
+        });
+
+        tasklet.execute(null, null);
+
+        verify(dlqRepository).deleteById(1L);
+        verify(dlqRepository).deleteById(2L);
+    }
+}
@@ -2,7 +2,9 @@ package it.govpay.maggioli.batch.utils;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import org.apache.commons.csv.CSVFormat;
@@ -108,6 +110,25 @@ class CSVUtilsTest {
         assertThat(csv.trim()).isEqualTo("a,b,c");
     }
 
+    @Test
+    @DisplayName("newReportWriter should stream UTF-8 records and write them only on flush")
+    void testReportWriter() throws IOException {
+        CSVUtils utils = CSVUtils.getInstance();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (CsvReportWriter writer = utils.newReportWriter(out)) {
+            writer.printRecord("idDominio", "esito");
+            writer.printRecord("12345678901", "errore: \"città\", non valida");
+
+            assertThat(out.size()).isZero();
+            writer.flush();
+
+            assertThat(writer.getRecordCount()).isEqualTo(2);
+            assertThat(out.toString(StandardCharsets.UTF_8))
+                    .isEqualTo("idDominio,esito\r\n12345678901,\"errore: \"\"città\"\", non valida\"\r\n");
+        }
+    }
+
     @Test
     @DisplayName("getDelimiter should return the delimiter of the format")
     void testGetDelimiter() {
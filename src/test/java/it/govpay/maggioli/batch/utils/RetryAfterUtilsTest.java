@@ -0,0 +1,61 @@
+package it.govpay.maggioli.batch.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+class RetryAfterUtilsTest {
+
+    private static final Instant NOW = Instant.parse("2025-06-01T10:00:00Z");
+
+    @Test
+    @DisplayName("parse with delay in seconds")
+    void testParseSeconds() {
+        assertThat(RetryAfterUtils.parse("30", NOW)).contains(Duration.ofSeconds(30));
+        assertThat(RetryAfterUtils.parse(" 0 ", NOW)).contains(Duration.ZERO);
+    }
+
+    @Test
+    @DisplayName("parse with HTTP date")
+    void testParseHttpDate() {
+        assertThat(RetryAfterUtils.parse("Sun, 01 Jun 2025 10:02:00 GMT", NOW)).contains(Duration.ofMinutes(2));
+        // Data passata: nessuna attesa
+        assertThat(RetryAfterUtils.parse("Sun, 01 Jun 2025 09:00:00 GMT", NOW)).contains(Duration.ZERO);
+    }
+
+    @Test
+    @DisplayName("parse with missing or invalid value")
+    void testParseInvalid() {
+        assertThat(RetryAfterUtils.parse(null, NOW)).isEmpty();
+        assertThat(RetryAfterUtils.parse("", NOW)).isEmpty();
+        assertThat(RetryAfterUtils.parse("domani", NOW)).isEmpty();
+        assertThat(RetryAfterUtils.parse("-5", NOW)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("fromException reads Retry-After only on 429 and 503")
+    void testFromException() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "15");
+
+        assertThat(RetryAfterUtils.fromException(
+                HttpClientErrorException.create(HttpStatus.TOO_MANY_REQUESTS, "Too many", headers, null, null), NOW))
+            .contains(Duration.ofSeconds(15));
+        assertThat(RetryAfterUtils.fromException(
+                HttpServerErrorException.create(HttpStatus.SERVICE_UNAVAILABLE, "Unavailable", headers, null, null), NOW))
+            .contains(Duration.ofSeconds(15));
+        assertThat(RetryAfterUtils.fromException(
+                HttpServerErrorException.create(HttpStatus.INTERNAL_SERVER_ERROR, "Error", headers, null, null), NOW))
+            .isEmpty();
+        assertThat(RetryAfterUtils.fromException(new ResourceAccessException("timeout"), NOW)).isEmpty();
+    }
+}
@@ -0,0 +1,154 @@
+package it.govpay.maggioli.batch.validation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.govpay.maggioli.batch.config.BatchProperties;
+import it.govpay.maggioli.client.model.DatoAccertamentoDto;
+import it.govpay.maggioli.client.model.RichiestaNotificaPagamentoV2Dto;
+
+/**
+ * Unit tests for NotificaPagamentoValidator
+ */
+class NotificaPagamentoValidatorTest {
+
+    private static final byte[] RT = ("<RT><datiPagamento><importoTotalePagato>150.50</importoTotalePagato>"
+            + "</datiPagamento></RT>").getBytes(StandardCharsets.UTF_8);
+
+    private BatchProperties batchProperties;
+    private SimpleMeterRegistry meterRegistry;
+    private NotificaPagamentoValidator validator;
+
+    @BeforeEach
+    void setUp() {
+        batchProperties = new BatchProperties();
+        meterRegistry = new SimpleMeterRegistry();
+        validator = new NotificaPagamentoValidator(batchProperties, meterRegistry);
+    }
+
+    @Test
+    @DisplayName("Should accept a request consistent with the RT")
+    void testValidRequest() {
+        RichiestaNotificaPagamentoV2Dto richiesta = richiesta(RT,
+            dato("504 bis", "2025", "Tassa", "100.50"), dato("505", "2025", "Diritti", "50"));
+
+        assertThat(validator.valida(richiesta, RT)).isEmpty();
+        assertThat(meterRegistry.find(NotificaPagamentoValidator.METRIC_SCARTI).counters()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Should reject missing capitolo, anno and descrizione")
+    void testInvalidDatoAccertamento() {
+        RichiestaNotificaPagamentoV2Dto richiesta = richiesta(RT, dato(null, "0", " ", "150.50"));
+
+        List<String> errori = validator.valida(richiesta, RT);
+
+        assertThat(errori).hasSize(3);
+        assertThat(errori.get(0)).contains("codiceAccertamento");
+        assertThat(errori.get(1)).contains("annoAccertamento");
+        assertThat(errori.get(2)).contains("descrizioneAccertamento");
+        assertThat(conteggio(NotificaPagamentoValidator.REGOLA_ACCERTAMENTO)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should reject amounts with more than two decimals")
+    void testImportoScale() {
+        RichiestaNotificaPagamentoV2Dto richiesta = richiesta(RT, dato("504", "2025", "Tassa", "150.505"));
+
+        assertThat(validator.valida(richiesta, RT)).singleElement().asString().contains("due cifre decimali");
+    }
+
+    @Test
+    @DisplayName("Should reject amount mismatch with the RT total when the check is enabled")
+    void testImportoMismatch() {
+        batchProperties.getValidazione().setImportoCoerente(true);
+        RichiestaNotificaPagamentoV2Dto richiesta = richiesta(RT, dato("504", "2025", "Tassa", "100"));
+
+        assertThat(validator.valida(richiesta, RT)).singleElement().asString().contains("150.50");
+        assertThat(conteggio(NotificaPagamentoValidator.REGOLA_IMPORTO)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should accept a partially executed payment with a paid total below the quota sum by default")
+    void testPagamentoParziale() {
+        byte[] rt = ("<RT><datiPagamento><codiceEsitoPagamento>2</codiceEsitoPagamento>"
+                + "<importoTotalePagato>50.00</importoTotalePagato></datiPagamento></RT>").getBytes(StandardCharsets.UTF_8);
+        RichiestaNotificaPagamentoV2Dto richiesta = richiesta(rt,
+            dato("504 bis", "2025", "Tassa", "100.50"), dato("505", "2025", "Diritti", "50"));
+
+        assertThat(validator.valida(richiesta, rt)).isEmpty();
+        assertThat(meterRegistry.find(NotificaPagamentoValidator.METRIC_SCARTI).counters()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Should accept by default a payment with contabilita only on some singoli versamenti")
+    void testContabilitaParziale() {
+        // Solo il primo dei due singoli versamenti (100.50 + 50) ha la contabilita'
+        RichiestaNotificaPagamentoV2Dto richiesta = richiesta(RT, dato("504 bis", "2025", "Tassa", "100.50"));
+
+        assertThat(validator.valida(richiesta, RT)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Should read the total from a paSendRT receipt")
+    void testImportoTotalePaSendRt() {
+        byte[] rt = ("<pafn:paSendRTReq xmlns:pafn=\"http://pagopa-api.pagopa.gov.it/pa/paForNode.xsd\">"
+                + "<receipt><paymentAmount>12.00</paymentAmount></receipt></pafn:paSendRTReq>").getBytes(StandardCharsets.UTF_8);
+
+        assertThat(validator.importoTotaleRt(rt)).isEqualByComparingTo("12");
+        assertThat(validator.importoTotaleRt("non xml".getBytes(StandardCharsets.UTF_8))).isNull();
+    }
+
+    @Test
+    @DisplayName("Should reject empty RT and missing contabilita")
+    void testEmptyRtAndMissingContabilita() {
+        batchProperties.getValidazione().setContabilitaObbligatoria(true);
+        RichiestaNotificaPagamentoV2Dto richiesta = richiesta(new byte[0]);
+
+        List<String> errori = validator.valida(richiesta, new byte[0]);
+
+        assertThat(errori).hasSize(2);
+        assertThat(conteggio(NotificaPagamentoValidator.REGOLA_RICEVUTA)).isEqualTo(1);
+        assertThat(conteggio(NotificaPagamentoValidator.REGOLA_CONTABILITA)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Should accept missing contabilita when not mandatory")
+    void testContabilitaNotMandatory() {
+        batchProperties.getValidazione().setContabilitaObbligatoria(false);
+
+        assertThat(validator.valida(richiesta(RT), RT)).isEmpty();
+    }
+
+    private double conteggio(String regola) {
+        return meterRegistry.get(NotificaPagamentoValidator.METRIC_SCARTI).tag("regola", regola).counter().count();
+    }
+
+    private static RichiestaNotificaPagamentoV2Dto richiesta(byte[] xmlRt, DatoAccertamentoDto... dati) {
+        RichiestaNotificaPagamentoV2Dto richiesta = new RichiestaNotificaPagamentoV2Dto();
+        richiesta.setIdentificativoDominioEnteCreditore("12345678901");
+        richiesta.setBase64Ricevuta(Base64.getEncoder().encodeToString(xmlRt));
+        if (dati.length > 0) {
+            richiesta.setDatiAccertamento(List.of(dati));
+        }
+        return richiesta;
+    }
+
+    private static DatoAccertamentoDto dato(String codice, String anno, String descrizione, String importo) {
+        DatoAccertamentoDto dato = new DatoAccertamentoDto();
+        dato.setCodiceAccertamento(codice);
+        dato.setAnnoAccertamento(anno);
+        dato.setDescrizioneAccertamento(descrizione);
+        dato.setImportoAccertamento(new BigDecimal(importo));
+        return dato;
+    }
+}